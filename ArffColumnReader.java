@@ -0,0 +1,407 @@
+package weka.classifiers.lazy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Streaming reader of a dense ARFF file, which hands out the values of one
+ * data row at a time as primitive doubles instead of building Instances. <p>
+ *
+ * The header is parsed by WEKA, so the attributes are exactly the ones
+ * ArffLoader would create. The data section is read through a FileChannel
+ * into a reusable buffer and each line is parsed in place, byte by byte:
+ * numbers with at most 15 digits and no exponent are converted exactly from
+ * their digits, the others by Double.parseDouble, and nominal values are
+ * looked up in a hash table of the encoded values of each attribute, so
+ * reading a row allocates nothing. The values are those WEKA would give:
+ * missing values are NaN and nominal values are the index of the value in
+ * the attribute. Instance weights are ignored; sparse rows and string or
+ * relational attributes are not supported.
+ */
+final class ArffColumnReader implements Closeable {
+
+	/** Initial size of the buffer, which grows to hold the longest line. */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/** Powers of ten that are exact doubles. */
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	/** File being read. */
+	private final FileChannel m_Channel;
+
+	/** Bytes read from the file, of which [m_Position, m_Limit) are still to be parsed. */
+	private ByteBuffer m_Buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/** Start of the next line to be parsed in the buffer. */
+	private int m_Position;
+
+	/** End of the bytes read into the buffer. */
+	private int m_Limit;
+
+	/** Whether the whole file has been read into the buffer. */
+	private boolean m_EndOfFile;
+
+	/** Start of the line after the one returned by nextLine. */
+	private int m_Next;
+
+	/** Number of the last line read, for the error messages. */
+	private long m_LineNumber;
+
+	/** Attributes declared by the header, without data. */
+	private final Instances m_Header;
+
+	/** Encoded values of each nominal attribute, null for the others. */
+	private final byte[][][] m_NominalValues;
+
+	/** Open-addressing table of the value indices of each nominal attribute, -1 for empty. */
+	private final int[][] m_NominalTables;
+
+	/** Unescaped bytes of the last quoted token. */
+	private byte[] m_Unquoted = new byte[64];
+
+	/**
+	 * Opens a file and reads its header.
+	 *
+	 * @param file ARFF file
+	 * @throws IOException if the file cannot be read or its header is invalid
+	 */
+	ArffColumnReader(File file) throws IOException {
+		m_Channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			m_Header = readHeader();
+		} catch (IOException e) {
+			m_Channel.close();
+			throw e;
+		}
+
+		int numAttributes = m_Header.numAttributes();
+		m_NominalValues = new byte[numAttributes][][];
+		m_NominalTables = new int[numAttributes][];
+		for (int i = 0; i < numAttributes; i++) {
+			Attribute attribute = m_Header.attribute(i);
+			if (attribute.isString() || attribute.isRelationValued()) {
+				m_Channel.close();
+				throw new IOException("Attribute " + attribute.name() + " is neither numeric nor nominal");
+			}
+			if (attribute.isNominal()) {
+				m_NominalValues[i] = new byte[attribute.numValues()][];
+				m_NominalTables[i] = new int[Integer.highestOneBit(Math.max(1, 2 * attribute.numValues())) << 1];
+				Arrays.fill(m_NominalTables[i], -1);
+				for (int k = 0; k < attribute.numValues(); k++) {
+					byte[] value = attribute.value(k).getBytes(StandardCharsets.UTF_8);
+					m_NominalValues[i][k] = value;
+					int[] table = m_NominalTables[i];
+					int slot = hash(value, 0, value.length) & (table.length - 1);
+					while (table[slot] >= 0) {
+						slot = (slot + 1) & (table.length - 1);
+					}
+					table[slot] = k;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the attributes declared by the header, without data and
+	 * without class index
+	 */
+	Instances header() {
+		return m_Header;
+	}
+
+	/**
+	 * Reads the next data row.
+	 *
+	 * @param values receives the value of each attribute of the row
+	 * @return false if there are no rows left
+	 * @throws IOException if the file cannot be read or the row is invalid
+	 */
+	boolean next(double[] values) throws IOException {
+		while (true) {
+			int end = nextLine();
+			if (end < 0) {
+				return false;
+			}
+			byte[] bytes = m_Buffer.array();
+			int position = skipWhitespace(bytes, m_Position, end);
+			m_Position = m_Next;
+			if (position == end || bytes[position] == '%') {
+				continue;
+			}
+			if (bytes[position] == '{') {
+				throw error("sparse rows are not supported");
+			}
+			parseRow(bytes, position, end, values);
+			return true;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_Channel.close();
+	}
+
+	private Instances readHeader() throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		while (true) {
+			int end = nextLine();
+			if (end < 0) {
+				throw new IOException("No @data section found");
+			}
+			byte[] bytes = m_Buffer.array();
+			int position = skipWhitespace(bytes, m_Position, end);
+			boolean data = end - position >= 5
+					&& new String(bytes, position, 5, StandardCharsets.US_ASCII).equalsIgnoreCase("@data");
+			header.write(bytes, m_Position, end - m_Position);
+			header.write('\n');
+			m_Position = m_Next;
+			if (data) {
+				return new Instances(new StringReader(header.toString(StandardCharsets.UTF_8.name())));
+			}
+		}
+	}
+
+	/**
+	 * Makes sure the buffer holds the whole line starting at m_Position,
+	 * reading more of the file if needed, and sets m_Next to the start of
+	 * the following line.
+	 *
+	 * @return the end of the line in the buffer, without its terminator,
+	 * or -1 at the end of the file
+	 */
+	private int nextLine() throws IOException {
+		int scanned = m_Position;
+		while (true) {
+			byte[] bytes = m_Buffer.array();
+			for (int i = scanned; i < m_Limit; i++) {
+				if (bytes[i] == '\n') {
+					m_LineNumber++;
+					m_Next = i + 1;
+					return i > m_Position && bytes[i - 1] == '\r' ? i - 1 : i;
+				}
+			}
+			if (m_EndOfFile) {
+				if (m_Position == m_Limit) {
+					return -1;
+				}
+				m_LineNumber++;
+				m_Next = m_Limit;
+				return m_Limit;
+			}
+			scanned = m_Limit - m_Position;
+			fill();
+		}
+	}
+
+	/**
+	 * Moves the unparsed bytes to the start of the buffer, growing it if it
+	 * is full, and reads more of the file after them.
+	 */
+	private void fill() throws IOException {
+		int remaining = m_Limit - m_Position;
+		byte[] bytes = m_Buffer.array();
+		if (remaining == bytes.length) {
+			m_Buffer = ByteBuffer.allocate(2 * bytes.length);
+		}
+		System.arraycopy(bytes, m_Position, m_Buffer.array(), 0, remaining);
+		m_Position = 0;
+		m_Buffer.clear();
+		m_Buffer.position(remaining);
+		int read = m_Channel.read(m_Buffer);
+		if (read < 0) {
+			m_EndOfFile = true;
+		} else {
+			remaining += read;
+		}
+		m_Limit = remaining;
+	}
+
+	private void parseRow(byte[] bytes, int position, int end, double[] values) throws IOException {
+		int numAttributes = values.length;
+		for (int i = 0; i < numAttributes; i++) {
+			position = skipWhitespace(bytes, position, end);
+			if (position == end) {
+				throw error("expected " + numAttributes + " values");
+			}
+
+			// token [tokenStart, tokenEnd) of tokenBytes
+			byte[] tokenBytes = bytes;
+			int tokenStart = position;
+			int tokenEnd;
+			boolean quoted = bytes[position] == '\'' || bytes[position] == '"';
+			if (quoted) {
+				byte quote = bytes[position++];
+				int length = 0;
+				while (position < end && bytes[position] != quote) {
+					byte b = bytes[position++];
+					if (b == '\\' && position < end) {
+						b = unescape(bytes[position++]);
+					}
+					if (length == m_Unquoted.length) {
+						m_Unquoted = Arrays.copyOf(m_Unquoted, 2 * length);
+					}
+					m_Unquoted[length++] = b;
+				}
+				if (position == end) {
+					throw error("unterminated quoted value");
+				}
+				position++;
+				tokenBytes = m_Unquoted;
+				tokenStart = 0;
+				tokenEnd = length;
+			} else {
+				while (position < end && bytes[position] != ',' && !isWhitespace(bytes[position])) {
+					position++;
+				}
+				tokenEnd = position;
+			}
+
+			if (!quoted && tokenEnd - tokenStart == 1 && tokenBytes[tokenStart] == '?') {
+				values[i] = Utils.missingValue();
+			} else {
+				values[i] = value(i, tokenBytes, tokenStart, tokenEnd);
+			}
+
+			position = skipWhitespace(bytes, position, end);
+			if (i < numAttributes - 1) {
+				if (position == end || bytes[position] != ',') {
+					throw error("expected " + numAttributes + " values");
+				}
+				position++;
+			}
+		}
+
+		// an optional instance weight, which k-NN ignores
+		if (position < end && bytes[position] == '{') {
+			while (position < end && bytes[position] != '}') {
+				position++;
+			}
+			position = skipWhitespace(bytes, position + 1, end);
+		}
+		if (position < end) {
+			throw error("expected " + numAttributes + " values");
+		}
+	}
+
+	private double value(int attribute, byte[] bytes, int start, int end) throws IOException {
+		Attribute header = m_Header.attribute(attribute);
+		if (header.isNominal()) {
+			int[] table = m_NominalTables[attribute];
+			int slot = hash(bytes, start, end) & (table.length - 1);
+			while (table[slot] >= 0) {
+				byte[] value = m_NominalValues[attribute][table[slot]];
+				if (Arrays.equals(value, 0, value.length, bytes, start, end)) {
+					return table[slot];
+				}
+				slot = (slot + 1) & (table.length - 1);
+			}
+			throw error("nominal value " + new String(bytes, start, end - start, StandardCharsets.UTF_8)
+					+ " not declared in the header");
+		}
+		if (header.isDate()) {
+			try {
+				return header.parseDate(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+			} catch (ParseException e) {
+				throw error("invalid date " + new String(bytes, start, end - start, StandardCharsets.UTF_8));
+			}
+		}
+		return parseNumber(bytes, start, end);
+	}
+
+	/**
+	 * Parses a number as Double.parseDouble would. Up to 15 digits without
+	 * exponent, the digits form an integer below 2^53 and the power of ten
+	 * dividing it is exact, so the single division is correctly rounded.
+	 */
+	private double parseNumber(byte[] bytes, int start, int end) throws IOException {
+		int position = start;
+		boolean negative = false;
+		if (position < end && (bytes[position] == '-' || bytes[position] == '+')) {
+			negative = bytes[position++] == '-';
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int decimals = -1;
+		for (; position < end; position++) {
+			byte b = bytes[position];
+			if (b >= '0' && b <= '9') {
+				mantissa = 10 * mantissa + (b - '0');
+				digits++;
+				if (decimals >= 0) {
+					decimals++;
+				}
+			} else if (b == '.' && decimals < 0) {
+				decimals = 0;
+			} else {
+				break;
+			}
+		}
+		if (position == end && digits > 0 && digits <= 15) {
+			double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+			return negative ? -value : value;
+		}
+
+		String token = new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+		try {
+			return Double.parseDouble(token);
+		} catch (NumberFormatException e) {
+			throw error("invalid number " + token);
+		}
+	}
+
+	private static byte unescape(byte b) {
+		switch (b) {
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		default:
+			return b;
+		}
+	}
+
+	private static int hash(byte[] bytes, int start, int end) {
+		int hash = 1;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + bytes[i];
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+	private static int skipWhitespace(byte[] bytes, int position, int end) {
+		while (position < end && isWhitespace(bytes[position])) {
+			position++;
+		}
+		return position;
+	}
+
+	private IOException error(String message) {
+		return new IOException("Invalid data on line " + m_LineNumber + ": " + message);
+	}
+}
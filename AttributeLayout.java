@@ -0,0 +1,145 @@
+package weka.classifiers.lazy;
+
+import java.io.Serializable;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Precomputed description of which attributes of a data set are numerical
+ * inputs, which are categorical inputs and which one is the output. <p>
+ *
+ * Numerical input j (in attribute order) is stored at position j of the
+ * numeric part of a row, and uses min[j] and max[j] for its normalisation,
+ * following the same indexing used by MyKnn.determineMinMaxAttributeValues.
+ * Categorical input j is stored at position j of the nominal part of a row
+ * as the integer code of its value.
+ */
+final class AttributeLayout implements Serializable {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Total number of attributes, including the output attribute. */
+	final int m_NumAttributes;
+
+	/** Index of the output attribute. */
+	final int m_ClassIndex;
+
+	/** Attribute index of each numerical input attribute. */
+	final int[] m_NumericAttributes;
+
+	/** Attribute index of each categorical input attribute. */
+	final int[] m_NominalAttributes;
+
+	/** Number of values of each categorical input attribute. */
+	final int[] m_NominalCardinalities;
+
+	/**
+	 * Determines the layout of the attributes of a data set.
+	 *
+	 * @param header data set whose attributes are to be described
+	 */
+	AttributeLayout(Instances header) {
+		m_NumAttributes = header.numAttributes();
+		m_ClassIndex = header.classIndex();
+
+		int numeric = 0;
+		int nominal = 0;
+		for (int i = 0; i < m_NumAttributes; i++) {
+			if (i == m_ClassIndex) {
+				continue;
+			}
+			if (header.attribute(i).isNumeric()) {
+				numeric++;
+			} else {
+				nominal++;
+			}
+		}
+
+		m_NumericAttributes = new int[numeric];
+		m_NominalAttributes = new int[nominal];
+		m_NominalCardinalities = new int[nominal];
+		numeric = 0;
+		nominal = 0;
+		for (int i = 0; i < m_NumAttributes; i++) {
+			if (i == m_ClassIndex) {
+				continue;
+			}
+			if (header.attribute(i).isNumeric()) {
+				m_NumericAttributes[numeric++] = i;
+			} else {
+				m_NominalAttributes[nominal] = i;
+				m_NominalCardinalities[nominal++] = header.attribute(i).numValues();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of numerical input attributes
+	 */
+	int numNumeric() {
+		return m_NumericAttributes.length;
+	}
+
+	/**
+	 * @return the number of categorical input attributes
+	 */
+	int numNominal() {
+		return m_NominalAttributes.length;
+	}
+
+	/**
+	 * Copies the input attributes of an instance whose numerical inputs
+	 * have already been normalised into primitive arrays.
+	 *
+	 * @param instance normalised instance to be copied
+	 * @param numeric array receiving the numerical inputs
+	 * @param nominal array receiving the codes of the categorical inputs
+	 */
+	void copyInputs(Instance instance, double[] numeric, int[] nominal) {
+		for (int j = 0; j < m_NumericAttributes.length; j++) {
+			numeric[j] = instance.value(m_NumericAttributes[j]);
+		}
+		for (int j = 0; j < m_NominalAttributes.length; j++) {
+			nominal[j] = (int) instance.value(m_NominalAttributes[j]);
+		}
+	}
+
+	/**
+	 * Normalises the value of a numerical input as
+	 * MyKnn.normaliseNumericInputAttributes does. An input whose min and max
+	 * values are equal is constant over the training data and is normalised
+	 * to 0, so that it adds nothing to the distances, instead of to 0/0.
+	 *
+	 * @param value raw value of the input
+	 * @param min minimum value of the input
+	 * @param max maximum value of the input
+	 * @return the normalised value
+	 */
+	static double normalise(double value, double min, double max) {
+		return max == min ? 0 : (value - min) / (max - min);
+	}
+
+	/**
+	 * Normalises the input attributes of an instance into primitive arrays,
+	 * with the same formula as MyKnn.normaliseNumericInputAttributes, but
+	 * without modifying the instance.
+	 *
+	 * @param instance instance to be normalised, left unchanged
+	 * @param min minimum value of each numerical input attribute
+	 * @param max maximum value of each numerical input attribute
+	 * @param numeric array receiving the normalised numerical inputs
+	 * @param nominal array receiving the codes of the categorical inputs
+	 */
+	void normaliseInputs(Instance instance, double[] min, double[] max, double[] numeric, int[] nominal) {
+		for (int j = 0; j < m_NumericAttributes.length; j++) {
+			numeric[j] = normalise(instance.value(m_NumericAttributes[j]), min[j], max[j]);
+		}
+		for (int j = 0; j < m_NominalAttributes.length; j++) {
+			nominal[j] = (int) instance.value(m_NominalAttributes[j]);
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package weka.classifiers.lazy;
+
+import java.util.Arrays;
+
+/**
+ * Ball tree over the rows of the compact model. <p>
+ *
+ * Each node keeps a centre (the mean of the normalised numerical inputs and
+ * the most frequent value of each categorical input of its rows) and the
+ * largest distance between the centre and one of its rows. The distance used
+ * by MyKnn.euclideanDistance is a metric, so by the triangle inequality no
+ * row of a node can be closer to the query than the distance to the centre
+ * minus the radius. Nodes whose bound is strictly greater than the distance
+ * of the current k-th nearest neighbour are skipped. <p>
+ *
+ * Rows appended to the model are inserted into the leaf reached by following
+ * the closer centre at each node, growing the radii on the way, and a leaf
+ * that has grown too large is split in turn. Removed rows leave the radii as
+ * they are. The radii are measured in the frame of the model; when the model
+ * weights its numerical inputs, the distances to the centres are weighted too
+ * and the radii are scaled by the square root of the largest weight, which
+ * bounds the weighted radius.
+ */
+final class BallTreeSearch implements NeighbourSearch {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Maximum number of rows held by a leaf when it is built. */
+	static final int LEAF_SIZE = 32;
+
+	/**
+	 * Relative tolerance subtracted from the bounds, which are computed on
+	 * square-rooted distances and may therefore be off by a few ulps.
+	 */
+	private static final double SLACK = 1e-9;
+
+	/** Model to be searched. */
+	private final KnnModel m_Model;
+
+	/** Number of nodes in the tree. */
+	private int m_NumNodes;
+
+	/** Index of the left child of each node, or -1 for leaves. */
+	private int[] m_Left;
+
+	/** Index of the right child of each node, or -1 for leaves. */
+	private int[] m_Right;
+
+	/** Numerical inputs of the centre of each node, node x numNumeric. */
+	private double[] m_CentreNumeric;
+
+	/** Categorical inputs of the centre of each node, node x numNominal. */
+	private int[] m_CentreNominal;
+
+	/** Distance between the centre and the furthest row of each node. */
+	private double[] m_Radius;
+
+	/** Rows held by each leaf, null for internal nodes. */
+	private int[][] m_LeafRows;
+
+	/** Number of rows held by each leaf. */
+	private int[] m_LeafSize;
+
+	/** Leaf holding each row of the model. */
+	private int[] m_LeafOf;
+
+	/** Position of each row of the model in its leaf. */
+	private int[] m_PositionOf;
+
+	/**
+	 * Builds a ball tree over all rows of a model.
+	 *
+	 * @param model model to be searched
+	 */
+	BallTreeSearch(KnnModel model) {
+		m_Model = model;
+		int[] rows = new int[model.m_NumRows];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = model.slot(i);
+		}
+
+		int capacity = Math.max(1, 2 * (rows.length / LEAF_SIZE) + 1);
+		m_Left = new int[capacity];
+		m_Right = new int[capacity];
+		m_Radius = new double[capacity];
+		m_CentreNumeric = new double[capacity * model.m_Layout.numNumeric()];
+		m_CentreNominal = new int[capacity * model.m_Layout.numNominal()];
+		m_LeafRows = new int[capacity][];
+		m_LeafSize = new int[capacity];
+		m_LeafOf = new int[model.capacity()];
+		m_PositionOf = new int[model.capacity()];
+
+		build(newNode(), rows, 0, rows.length);
+	}
+
+	/**
+	 * Makes a node hold rows[begin, end), as a leaf or as the root of a
+	 * subtree, and computes its centre and radius.
+	 */
+	private void build(int node, int[] rows, int begin, int end) {
+		int numNumeric = m_Model.m_Layout.numNumeric();
+		int numNominal = m_Model.m_Layout.numNominal();
+
+		// centre of the rows and radius of the ball
+		Arrays.fill(m_CentreNumeric, node * numNumeric, (node + 1) * numNumeric, 0);
+		for (int i = begin; i < end; i++) {
+			for (int j = 0; j < numNumeric; j++) {
+				m_CentreNumeric[node * numNumeric + j] += m_Model.numeric(rows[i], j);
+			}
+		}
+		for (int j = 0; j < numNumeric; j++) {
+			m_CentreNumeric[node * numNumeric + j] /= Math.max(1, end - begin);
+		}
+		for (int j = 0; j < numNominal; j++) {
+			int[] counts = new int[m_Model.m_Layout.m_NominalCardinalities[j]];
+			int mode = 0;
+			for (int i = begin; i < end; i++) {
+				int value = m_Model.nominal(rows[i], j);
+				if (++counts[value] > counts[mode]) {
+					mode = value;
+				}
+			}
+			m_CentreNominal[node * numNominal + j] = mode;
+		}
+
+		int furthest = -1;
+		double radius = 0;
+		for (int i = begin; i < end; i++) {
+			double distance = distanceToCentre(node, rows[i]);
+			if (distance > radius || furthest < 0) {
+				radius = distance;
+				furthest = rows[i];
+			}
+		}
+		m_Radius[node] = radius;
+		if (end - begin <= LEAF_SIZE || radius == 0) {
+			makeLeaf(node, rows, begin, end);
+			return;
+		}
+
+		// splits the rows between the furthest row from the centre and the
+		// furthest row from that one, according to which one is closer
+		int pivot1 = furthest;
+		int pivot2 = pivot1;
+		double spread = -1;
+		for (int i = begin; i < end; i++) {
+			double distance = m_Model.squaredDistance(pivot1, rows[i]);
+			if (distance > spread) {
+				spread = distance;
+				pivot2 = rows[i];
+			}
+		}
+
+		int middle = begin;
+		for (int i = begin; i < end; i++) {
+			int row = rows[i];
+			if (m_Model.squaredDistance(pivot1, row) <= m_Model.squaredDistance(pivot2, row)) {
+				rows[i] = rows[middle];
+				rows[middle++] = row;
+			}
+		}
+		if (middle == begin || middle == end) {
+			makeLeaf(node, rows, begin, end);
+			return;
+		}
+
+		m_LeafRows[node] = null;
+		int left = newNode();
+		build(left, rows, begin, middle);
+		int right = newNode();
+		build(right, rows, middle, end);
+		m_Left[node] = left;
+		m_Right[node] = right;
+	}
+
+	private void makeLeaf(int node, int[] rows, int begin, int end) {
+		m_LeafRows[node] = Arrays.copyOfRange(rows, begin, end);
+		m_LeafSize[node] = end - begin;
+		for (int i = begin; i < end; i++) {
+			m_LeafOf[rows[i]] = node;
+			m_PositionOf[rows[i]] = i - begin;
+		}
+	}
+
+	private int newNode() {
+		if (m_NumNodes == m_Left.length) {
+			int capacity = 2 * m_NumNodes;
+			m_Left = Arrays.copyOf(m_Left, capacity);
+			m_Right = Arrays.copyOf(m_Right, capacity);
+			m_Radius = Arrays.copyOf(m_Radius, capacity);
+			m_CentreNumeric = Arrays.copyOf(m_CentreNumeric, capacity * m_Model.m_Layout.numNumeric());
+			m_CentreNominal = Arrays.copyOf(m_CentreNominal, capacity * m_Model.m_Layout.numNominal());
+			m_LeafRows = Arrays.copyOf(m_LeafRows, capacity);
+			m_LeafSize = Arrays.copyOf(m_LeafSize, capacity);
+		}
+		int node = m_NumNodes++;
+		m_Left[node] = -1;
+		m_Right[node] = -1;
+		return node;
+	}
+
+	private double distanceToCentre(int node, int row) {
+		return Math.sqrt(m_Model.squaredDistance(m_CentreNumeric, node * m_Model.m_Layout.numNumeric(),
+				m_CentreNominal, node * m_Model.m_Layout.numNominal(), row));
+	}
+
+	@Override
+	public void add(int row) {
+		if (row >= m_LeafOf.length) {
+			m_LeafOf = Arrays.copyOf(m_LeafOf, m_Model.capacity());
+			m_PositionOf = Arrays.copyOf(m_PositionOf, m_Model.capacity());
+		}
+		int node = 0;
+		m_Radius[node] = Math.max(m_Radius[node], distanceToCentre(node, row));
+		while (m_LeafRows[node] == null) {
+			double left = distanceToCentre(m_Left[node], row);
+			double right = distanceToCentre(m_Right[node], row);
+			node = left <= right ? m_Left[node] : m_Right[node];
+			m_Radius[node] = Math.max(m_Radius[node], Math.min(left, right));
+		}
+
+		int[] rows = m_LeafRows[node];
+		int size = m_LeafSize[node];
+		if (size == rows.length && size >= 2 * LEAF_SIZE) {
+			// splits the leaf, which happens at most once each time it doubles in size
+			rows = Arrays.copyOf(rows, size + 1);
+			rows[size] = row;
+			build(node, rows, 0, size + 1);
+			if (m_LeafRows[node] != null) {
+				m_LeafRows[node] = Arrays.copyOf(m_LeafRows[node], 2 * (size + 1));
+			}
+			return;
+		}
+		if (size == rows.length) {
+			rows = Arrays.copyOf(rows, Math.max(4, 2 * size));
+			m_LeafRows[node] = rows;
+		}
+		rows[size] = row;
+		m_LeafSize[node] = size + 1;
+		m_LeafOf[row] = node;
+		m_PositionOf[row] = size;
+	}
+
+	@Override
+	public void remove(int row) {
+		int node = m_LeafOf[row];
+		int position = m_PositionOf[row];
+		int last = m_LeafRows[node][--m_LeafSize[node]];
+		m_LeafRows[node][position] = last;
+		m_PositionOf[last] = position;
+	}
+
+	@Override
+	public void search(KnnQuery query) {
+		search(0, query.m_Numeric, query.m_Nominal, query);
+	}
+
+	/**
+	 * Searches a node, the child nearer to the query first, unless the
+	 * budget of the query is spent.
+	 */
+	private void search(int node, double[] numeric, int[] nominal, KnnQuery query) {
+		if (query.outOfBudget()) {
+			return;
+		}
+		NeighbourCandidates candidates = query.m_Candidates;
+		if (m_Left[node] < 0) {
+			int[] rows = m_LeafRows[node];
+			int size = query.budgetedRows(m_LeafSize[node]);
+			for (int i = 0; i < size; i++) {
+				int row = rows[i];
+				double bound = candidates.worstDistance();
+				candidates.offer(row, m_Model.squaredDistance(numeric, nominal, row, bound));
+			}
+			return;
+		}
+
+		int first = m_Left[node];
+		int second = m_Right[node];
+		double firstBound = lowerBound(first, numeric, nominal);
+		double secondBound = lowerBound(second, numeric, nominal);
+		if (secondBound < firstBound) {
+			int child = first;
+			first = second;
+			second = child;
+			double bound = firstBound;
+			firstBound = secondBound;
+			secondBound = bound;
+		}
+
+		if (firstBound <= Math.sqrt(candidates.worstDistance())) {
+			search(first, numeric, nominal, query);
+		}
+		if (secondBound <= Math.sqrt(candidates.worstDistance())) {
+			search(second, numeric, nominal, query);
+		}
+	}
+
+	/**
+	 * Lower bound of the distance (not squared) between the query and any
+	 * row of a node, lowered by a small tolerance for rounding errors.
+	 */
+	private double lowerBound(int node, double[] numeric, int[] nominal) {
+		int numNumeric = numeric.length;
+		int numNominal = nominal.length;
+		double[] weights = m_Model.m_Weights;
+		double sum = 0;
+		for (int j = 0; j < numNumeric; j++) {
+			double diff = numeric[j] - m_CentreNumeric[node * numNumeric + j];
+			sum += weights == null ? diff * diff : weights[j] * diff * diff;
+		}
+		for (int j = 0; j < numNominal; j++) {
+			if (nominal[j] != m_CentreNominal[node * numNominal + j]) {
+				sum += 1;
+			}
+		}
+		double distance = Math.sqrt(sum);
+		double radius = weights == null ? m_Radius[node] : m_Radius[node] * m_Model.m_WeightScale;
+		return distance - radius - SLACK * (1 + distance + radius);
+	}
+}
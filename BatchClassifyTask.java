@@ -0,0 +1,153 @@
+package weka.classifiers.lazy;
+
+import java.util.concurrent.RecursiveAction;
+
+import weka.core.Instances;
+
+/**
+ * Fork/join task predicting the outputs of a range of instances of a data
+ * set with a built MyKnn. <p>
+ *
+ * Ranges longer than the parallel cutoff of the classifier are split in two
+ * halves predicted in parallel. Shorter ranges are predicted one instance at
+ * a time, or, when the classifier scans its training data linearly and a
+ * block size is set, a tile of instances at a time: each block of training
+ * rows is then compared with all instances of the tile before moving on to
+ * the next block, so that the block stays in the processor caches. In both
+ * cases every instance sees the training rows it would see on its own, so
+ * the predictions are identical to the ones of classifyInstance. The
+ * instances whose prediction is cached by the classifier are not searched.
+ */
+final class BatchClassifyTask extends RecursiveAction {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Number of instances compared at once with a block of training rows. */
+	static final int QUERY_TILE = 32;
+
+	/** Number of training rows per block when the blocked kernel is used without a block size. */
+	static final int DEFAULT_BLOCK_ROWS = 1024;
+
+	/** Classifier making the predictions. */
+	private final MyKnn m_Knn;
+
+	/** Instances to be predicted. */
+	private final Instances m_Instances;
+
+	/** Receives the predictions. */
+	private final double[] m_Predictions;
+
+	/** First instance of the range. */
+	private final int m_Begin;
+
+	/** Instance after the last one of the range. */
+	private final int m_End;
+
+	/**
+	 * @param knn built classifier making the predictions
+	 * @param instances instances to be predicted, left unchanged
+	 * @param predictions receives the prediction of each instance
+	 * @param begin first instance of the range to be predicted
+	 * @param end instance after the last one of the range to be predicted
+	 */
+	BatchClassifyTask(MyKnn knn, Instances instances, double[] predictions, int begin, int end) {
+		m_Knn = knn;
+		m_Instances = instances;
+		m_Predictions = predictions;
+		m_Begin = begin;
+		m_End = end;
+	}
+
+	@Override
+	protected void compute() {
+		if (m_End - m_Begin <= Math.max(1, m_Knn.getParallelCutoff())) {
+			if ((m_Knn.getBlockRows() > 0 || m_Knn.m_BlockedKernel != null) && m_Knn.m_Search instanceof LinearSearch) {
+				classifyTiles();
+			} else {
+				for (int i = m_Begin; i < m_End; i++) {
+					m_Predictions[i] = m_Knn.predict(m_Instances.instance(i));
+				}
+			}
+			return;
+		}
+
+		int middle = (m_Begin + m_End) >>> 1;
+		invokeAll(new BatchClassifyTask(m_Knn, m_Instances, m_Predictions, m_Begin, middle),
+				new BatchClassifyTask(m_Knn, m_Instances, m_Predictions, middle, m_End));
+	}
+
+	private void classifyTiles() {
+		KnnModel model = m_Knn.m_Model;
+		LinearSearch search = (LinearSearch) m_Knn.m_Search;
+		int k = Math.min(m_Knn.getK(), model.m_NumRows);
+		BlockedDistanceKernel kernel = model.isWeighted() ? null : m_Knn.m_BlockedKernel;
+		int blockRows = m_Knn.getBlockRows() > 0 ? m_Knn.getBlockRows() : DEFAULT_BLOCK_ROWS;
+
+		KnnQuery[] tile = new KnnQuery[Math.min(QUERY_TILE, m_End - m_Begin)];
+		for (int t = 0; t < tile.length; t++) {
+			tile[t] = new KnnQuery(model.m_Layout, k);
+		}
+		int[] mismatches = kernel != null ? new int[tile.length * blockRows] : null;
+		PredictionCache cache = m_Knn.predictionCache();
+		long generation = cache != null ? cache.generation() : 0;
+		KnnMetrics metrics = m_Knn.metrics();
+		long[] hashes = new long[tile.length];
+		int[] indices = new int[tile.length];
+
+		int next = m_Begin;
+		while (next < m_End) {
+			// the instances found in the cache are not searched
+			int size = 0;
+			while (size < tile.length && next < m_End) {
+				KnnQuery query = tile[size];
+				model.normaliseInputs(m_Instances.instance(next), query);
+				if (cache != null) {
+					hashes[size] = PredictionCache.hash(query);
+					double prediction = cache.get(query, hashes[size]);
+					if (!Double.isNaN(prediction)) {
+						m_Predictions[next++] = prediction;
+						if (metrics != null) {
+							metrics.recordCachedBatch();
+						}
+						continue;
+					}
+				}
+				query.m_Candidates.reset(k);
+				search.prepare(query);
+				indices[size++] = next++;
+			}
+
+			searchBlocks(tile, size, model.m_Start, model.firstEnd(), search, kernel, blockRows, mismatches);
+			searchBlocks(tile, size, 0, model.secondEnd(), search, kernel, blockRows, mismatches);
+
+			for (int t = 0; t < size; t++) {
+				tile[t].m_Candidates.sort();
+				double prediction = m_Knn.determinePredictedOutput(tile[t].m_Candidates);
+				m_Predictions[indices[t]] = prediction;
+				if (cache != null) {
+					cache.put(tile[t], hashes[t], generation, prediction);
+				}
+				if (metrics != null) {
+					metrics.recordSearch(tile[t].m_Candidates, model.m_NumRows);
+				}
+			}
+		}
+	}
+
+	private static void searchBlocks(KnnQuery[] tile, int size, int begin, int end, LinearSearch search,
+			BlockedDistanceKernel kernel, int blockRows, int[] mismatches) {
+		for (int blockBegin = begin; blockBegin < end; blockBegin += blockRows) {
+			int blockEnd = Math.min(end, blockBegin + blockRows);
+			if (kernel != null) {
+				kernel.search(tile, size, blockBegin, blockEnd, mismatches);
+			} else {
+				for (int t = 0; t < size; t++) {
+					search.search(tile[t], blockBegin, blockEnd);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package weka.classifiers.lazy;
+
+import java.io.Serializable;
+
+/**
+ * Distance kernel comparing a tile of queries with a block of training rows
+ * at once, for large batches of predictions. <p>
+ *
+ * The squared Euclidean distance over the numerical inputs is expanded as
+ * ||q||^2 + ||x||^2 - 2 q.x, using the squared norms of the training rows
+ * computed once when the kernel is built, so that the work left per pair is
+ * a dot product. The dot products of four queries with a training row are
+ * accumulated together, so that each value of the row is loaded once for
+ * the four queries. The categorical mismatches are counted in a separate
+ * pass over the block. <p>
+ *
+ * The expanded form is subject to cancellation, so it is only used to
+ * discard rows: a row is discarded when its distance, lowered by a bound on
+ * the rounding error, is still strictly greater than the distance of the
+ * k-th nearest neighbour of the query. The exact distance of every other
+ * row is computed as in KnnModel.squaredDistance before being offered to the
+ * candidates, so the neighbours and tie-breaks are exactly the ones of a
+ * linear scan. The kernel reads the heap arrays of the model, so models held
+ * outside the heap are scanned row by row instead.
+ */
+final class BlockedDistanceKernel implements Serializable {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Number of queries whose dot products are accumulated together. */
+	static final int QUERY_BLOCK = 4;
+
+	/** Model to be searched. */
+	private final KnnModel m_Model;
+
+	/** Squared norm of the numerical inputs of each training row. */
+	private final double[] m_RowNorms;
+
+	/**
+	 * Relative rounding error of the expanded distance, as a multiple of
+	 * ||q||^2 + ||x||^2 + 2|q.x|.
+	 */
+	private final double m_RelativeError;
+
+	/**
+	 * @param model model to be searched
+	 */
+	BlockedDistanceKernel(KnnModel model) {
+		m_Model = model;
+		int numNumeric = model.m_Layout.numNumeric();
+		m_RowNorms = new double[model.capacity()];
+		for (int i = 0; i < model.m_NumRows; i++) {
+			int row = model.slot(i);
+			double norm = 0;
+			for (int j = 0; j < numNumeric; j++) {
+				double value = model.m_Numeric[row * numNumeric + j];
+				norm += value * value;
+			}
+			m_RowNorms[row] = norm;
+		}
+
+		// the dot product, the two norms and the final additions each have
+		// an error below (n + 2) units in the last place of their magnitude,
+		// and so does the exact distance the estimate is compared with
+		m_RelativeError = 4 * (numNumeric + 4) * Math.ulp(1.0);
+	}
+
+	/**
+	 * Offers a block of consecutive training rows to the candidates of a
+	 * tile of queries.
+	 *
+	 * @param tile normalised queries, whose candidates receive the nearest neighbours
+	 * @param size number of queries of the tile to be used
+	 * @param begin first row of the block
+	 * @param end row after the last row of the block
+	 * @param mismatches scratch array of at least size * (end - begin) elements
+	 */
+	void search(KnnQuery[] tile, int size, int begin, int end, int[] mismatches) {
+		int numNumeric = m_Model.m_Layout.numNumeric();
+		int numNominal = m_Model.m_Layout.numNominal();
+		int blockRows = end - begin;
+
+		// categorical mismatches of each query with each row of the block
+		for (int t = 0; t < size; t++) {
+			int[] nominal = tile[t].m_Nominal;
+			for (int row = begin; row < end; row++) {
+				int count = 0;
+				int offset = row * numNominal;
+				for (int j = 0; j < numNominal; j++) {
+					if (nominal[j] != m_Model.m_Nominal[offset + j]) {
+						count++;
+					}
+				}
+				mismatches[t * blockRows + row - begin] = count;
+			}
+		}
+
+		int t = 0;
+		for (; t + QUERY_BLOCK <= size; t += QUERY_BLOCK) {
+			double[] q0 = tile[t].m_Numeric;
+			double[] q1 = tile[t + 1].m_Numeric;
+			double[] q2 = tile[t + 2].m_Numeric;
+			double[] q3 = tile[t + 3].m_Numeric;
+			double n0 = norm(q0);
+			double n1 = norm(q1);
+			double n2 = norm(q2);
+			double n3 = norm(q3);
+			for (int row = begin; row < end; row++) {
+				int offset = row * numNumeric;
+				double d0 = 0;
+				double d1 = 0;
+				double d2 = 0;
+				double d3 = 0;
+				for (int j = 0; j < numNumeric; j++) {
+					double value = m_Model.m_Numeric[offset + j];
+					d0 += q0[j] * value;
+					d1 += q1[j] * value;
+					d2 += q2[j] * value;
+					d3 += q3[j] * value;
+				}
+				int position = row - begin;
+				offer(tile[t], n0, d0, row, mismatches[t * blockRows + position]);
+				offer(tile[t + 1], n1, d1, row, mismatches[(t + 1) * blockRows + position]);
+				offer(tile[t + 2], n2, d2, row, mismatches[(t + 2) * blockRows + position]);
+				offer(tile[t + 3], n3, d3, row, mismatches[(t + 3) * blockRows + position]);
+			}
+		}
+		for (; t < size; t++) {
+			double[] q = tile[t].m_Numeric;
+			double n = norm(q);
+			for (int row = begin; row < end; row++) {
+				int offset = row * numNumeric;
+				double dot = 0;
+				for (int j = 0; j < numNumeric; j++) {
+					dot += q[j] * m_Model.m_Numeric[offset + j];
+				}
+				offer(tile[t], n, dot, row, mismatches[t * blockRows + row - begin]);
+			}
+		}
+	}
+
+	private void offer(KnnQuery query, double queryNorm, double dot, int row, int mismatches) {
+		NeighbourCandidates candidates = query.m_Candidates;
+		double bound = candidates.worstDistance();
+		double rowNorm = m_RowNorms[row];
+		double estimate = queryNorm + rowNorm - 2 * dot;
+		double error = m_RelativeError * (queryNorm + rowNorm + 2 * Math.abs(dot));
+		if (estimate - error + mismatches > bound) {
+			return;
+		}
+		candidates.offer(row, m_Model.squaredDistance(query.m_Numeric, query.m_Nominal, row, bound));
+	}
+
+	private static double norm(double[] values) {
+		double norm = 0;
+		for (int j = 0; j < values.length; j++) {
+			norm += values[j] * values[j];
+		}
+		return norm;
+	}
+}
@@ -0,0 +1,80 @@
+package weka.classifiers.lazy;
+
+/**
+ * Prediction of MyKnn.classifyInstance made with a budget of time or of
+ * distance evaluations, telling whether the neighbours it averages are
+ * provably the exact ones and how much of the budget it used.
+ */
+public final class BudgetedPrediction {
+
+	/** Predicted output. */
+	private final double m_Prediction;
+
+	/** Whether the neighbours averaged are provably the exact ones. */
+	private final boolean m_Exact;
+
+	/** Number of distances computed by the search. */
+	private final int m_Evaluations;
+
+	/** Time the prediction took, in nanoseconds. */
+	private final long m_ElapsedNanos;
+
+	/** Whether the prediction took longer or computed more distances than its budget. */
+	private final boolean m_Overrun;
+
+	BudgetedPrediction(double prediction, boolean exact, int evaluations, long elapsedNanos, boolean overrun) {
+		m_Prediction = prediction;
+		m_Exact = exact;
+		m_Evaluations = evaluations;
+		m_ElapsedNanos = elapsedNanos;
+		m_Overrun = overrun;
+	}
+
+	/**
+	 * @return the predicted output, the average output of the best
+	 * neighbours found within the budget
+	 */
+	public double getPrediction() {
+		return m_Prediction;
+	}
+
+	/**
+	 * @return true if the search completed within the budget with an exact
+	 * search structure and exact distances, so that the prediction is the
+	 * one of classifyInstance without a budget
+	 */
+	public boolean isExact() {
+		return m_Exact;
+	}
+
+	/**
+	 * @return the number of distances computed by the search, 0 if the
+	 * prediction was found in the cache
+	 */
+	public int getDistanceEvaluations() {
+		return m_Evaluations;
+	}
+
+	/**
+	 * @return the time the prediction took, including the wait for an
+	 * update to complete, in nanoseconds
+	 */
+	public long getElapsedNanos() {
+		return m_ElapsedNanos;
+	}
+
+	/**
+	 * @return true if the prediction took longer or computed more distances
+	 * than its budget, which a search only checks between blocks of rows and
+	 * does not check before it has found k candidates
+	 */
+	public boolean isOverrun() {
+		return m_Overrun;
+	}
+
+	@Override
+	public String toString() {
+		return m_Prediction + (m_Exact ? " (exact, " : " (approximate, ") + m_Evaluations + " distances, "
+				+ m_ElapsedNanos + " ns" + (m_Overrun ? ", over budget)" : ")");
+	}
+}
@@ -0,0 +1,48 @@
+package weka.classifiers.lazy;
+
+/**
+ * Kernel computing the squared Euclidean distance between the normalised
+ * numerical inputs of a query and of a training row. <p>
+ *
+ * A kernel may accumulate the squared differences in another order than
+ * KnnModel.squaredDistance, so its result may differ from the exact distance
+ * by a few units in the last place. KnnModel only uses it to discard rows
+ * that are certainly too far, and computes the exact distance of the others.
+ */
+interface DistanceKernel {
+
+	/** Name of the module providing the JDK Vector API. */
+	String VECTOR_MODULE = "jdk.incubator.vector";
+
+	/** Name of the class implementing the kernel on the JDK Vector API. */
+	String VECTOR_KERNEL = "weka.classifiers.lazy.VectorDistanceKernel";
+
+	/**
+	 * Squared Euclidean distance between a query and a training row.
+	 *
+	 * @param query normalised numerical inputs of the query
+	 * @param data array holding the normalised numerical inputs of the training row
+	 * @param offset position of the first input of the training row in data
+	 * @param length number of numerical inputs
+	 * @return the squared distance, up to rounding errors
+	 */
+	double squaredDistance(double[] query, double[] data, int offset, int length);
+
+	/**
+	 * Returns the kernel built on the JDK Vector API, if the
+	 * jdk.incubator.vector module is available in this JVM (for example,
+	 * with --add-modules jdk.incubator.vector).
+	 *
+	 * @return the vectorised kernel, or null if the module is not available
+	 */
+	static DistanceKernel vectorised() {
+		if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+			return null;
+		}
+		try {
+			return (DistanceKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,692 @@
+package weka.classifiers.lazy;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Approximate search over a hierarchical navigable small-world (HNSW) graph
+ * of the rows of the compact model. <p>
+ *
+ * Each row is linked to some of its nearest rows on layer 0, and a random,
+ * exponentially decreasing fraction of the rows is also linked on the layers
+ * above, so that the top layers hold a few long links. A query descends
+ * greedily from the entry point through the upper layers, then explores
+ * layer 0 from the row reached, keeping the search breadth closest rows seen
+ * so far and following their links until none of them can bring a closer
+ * row. A row is inserted the same way with the construction breadth, and
+ * linked to the rows found, chosen by the heuristic of Malkov and Yashunin
+ * so that the links point in diverse directions. <p>
+ *
+ * The distances are the ones of MyKnn.euclideanDistance, and the rows found
+ * are offered to the candidates with their exact distances, so the
+ * neighbours returned are true training rows in the usual order, but some
+ * of the nearest ones may be missed: this search does not find exactly the
+ * neighbours of a linear scan. The recall grows with the number of links
+ * and both breadths, and so does the cost of a query, which is already
+ * bounded by the search breadth: the budget of a query is not checked. <p>
+ *
+ * A removed row leaves the graph: each row it was linked to loses its link
+ * to it and is linked again among its other links and the ones of the
+ * removed row, so that the graph stays navigable. Links from rows the
+ * removed row was not linked to are left in place and skipped by the
+ * searches while the slot is free, so a row appended to the slot later may
+ * receive a few of them. Once as many rows have been removed as there are
+ * rows in the model, the graph is built again from the rows of the model.
+ */
+final class HnswSearch implements NeighbourSearch {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Model to be searched. */
+	private final KnnModel m_Model;
+
+	/** Largest number of links of a row on the upper layers, twice as many on layer 0. */
+	private final int m_MaxConnections;
+
+	/** Number of closest rows kept while inserting a row. */
+	private final int m_ConstructionBreadth;
+
+	/** Number of closest rows kept while searching, at least k. */
+	private volatile int m_SearchBreadth;
+
+	/** Normalisation factor of the random levels, 1 / ln(m_MaxConnections). */
+	private final double m_LevelFactor;
+
+	/** Draws the level of each row. */
+	private final Random m_Random = new Random(1);
+
+	/** Top layer of each row of the model, -1 for rows not in the graph. */
+	private int[] m_Level;
+
+	/** Links of each row on layer 0, row x (2 x m_MaxConnections). */
+	private int[] m_Links;
+
+	/** Number of links of each row on layer 0. */
+	private int[] m_NumLinks;
+
+	/**
+	 * Links of each row on the upper layers, null for rows on layer 0 only:
+	 * for layer l, the number of links at (l - 1) x (m_MaxConnections + 1)
+	 * followed by the links.
+	 */
+	private int[][] m_UpperLinks;
+
+	/** Row the searches start from, -1 while the graph is empty. */
+	private int m_EntryPoint = -1;
+
+	/** Top layer of the entry point. */
+	private int m_TopLevel = -1;
+
+	/** Number of rows removed since the graph was built. */
+	private int m_NumRemoved;
+
+	/** Work buffers of the searches, one per thread. */
+	private transient volatile ThreadLocal<Scratch> m_Scratch;
+
+	/**
+	 * Builds a graph over all rows of a model.
+	 *
+	 * @param model model to be searched
+	 * @param maxConnections largest number of links of a row on the upper
+	 * layers, twice as many on layer 0
+	 * @param constructionBreadth number of closest rows kept while inserting a row
+	 * @param searchBreadth number of closest rows kept while searching
+	 */
+	HnswSearch(KnnModel model, int maxConnections, int constructionBreadth, int searchBreadth) {
+		m_Model = model;
+		m_MaxConnections = Math.max(2, maxConnections);
+		m_ConstructionBreadth = Math.max(1, constructionBreadth);
+		m_SearchBreadth = Math.max(1, searchBreadth);
+		m_LevelFactor = 1 / Math.log(m_MaxConnections);
+		build();
+	}
+
+	/**
+	 * Sets the number of closest rows kept while searching, which takes
+	 * effect at the next search.
+	 *
+	 * @param searchBreadth number of rows
+	 */
+	void setSearchBreadth(int searchBreadth) {
+		m_SearchBreadth = Math.max(1, searchBreadth);
+	}
+
+	/**
+	 * @return the row the searches start from, -1 while the graph is empty
+	 */
+	int entryPoint() {
+		return m_EntryPoint;
+	}
+
+	/**
+	 * @param row index of a training instance
+	 * @return the top layer of the row, -1 if it is not in the graph
+	 */
+	int level(int row) {
+		return row < m_Level.length ? m_Level[row] : -1;
+	}
+
+	/**
+	 * @param row index of a training instance in the graph
+	 * @param level layer, at most the top layer of the row
+	 * @return the rows the row is linked to on the layer
+	 */
+	int[] links(int row, int level) {
+		int[] links = new int[numLinks(row, level)];
+		for (int i = 0; i < links.length; i++) {
+			links[i] = link(row, level, i);
+		}
+		return links;
+	}
+
+	/**
+	 * Inserts all rows of the model into an empty graph, in age order.
+	 */
+	private void build() {
+		int capacity = m_Model.capacity();
+		m_Level = new int[capacity];
+		Arrays.fill(m_Level, -1);
+		m_Links = new int[capacity * 2 * m_MaxConnections];
+		m_NumLinks = new int[capacity];
+		m_UpperLinks = new int[capacity][];
+		m_EntryPoint = -1;
+		m_TopLevel = -1;
+		m_NumRemoved = 0;
+		for (int i = 0; i < m_Model.m_NumRows; i++) {
+			insert(m_Model.slot(i));
+		}
+	}
+
+	@Override
+	public void add(int row) {
+		if (m_NumRemoved >= m_Model.m_NumRows) {
+			build();
+			return;
+		}
+		if (row >= m_Level.length) {
+			int capacity = m_Model.capacity();
+			int oldCapacity = m_Level.length;
+			m_Level = Arrays.copyOf(m_Level, capacity);
+			Arrays.fill(m_Level, oldCapacity, capacity, -1);
+			m_Links = Arrays.copyOf(m_Links, capacity * 2 * m_MaxConnections);
+			m_NumLinks = Arrays.copyOf(m_NumLinks, capacity);
+			m_UpperLinks = Arrays.copyOf(m_UpperLinks, capacity);
+		}
+		insert(row);
+	}
+
+	@Override
+	public void remove(int row) {
+		int level = m_Level[row];
+		m_Level[row] = -1;
+		m_NumRemoved++;
+		Scratch scratch = scratch();
+		for (int l = 0; l <= level; l++) {
+			int numLinks = numLinks(row, l);
+			for (int i = 0; i < numLinks; i++) {
+				int neighbour = link(row, l, i);
+				if (m_Level[neighbour] >= l) {
+					unlink(neighbour, row, l, scratch);
+				}
+			}
+			setNumLinks(row, l, 0);
+		}
+		m_UpperLinks[row] = null;
+
+		if (row == m_EntryPoint) {
+			m_EntryPoint = -1;
+			m_TopLevel = -1;
+			for (int other = 0; other < m_Level.length; other++) {
+				if (m_Level[other] > m_TopLevel) {
+					m_EntryPoint = other;
+					m_TopLevel = m_Level[other];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the link from a row to a removed row, and links the row again
+	 * among its other links and the links of the removed row.
+	 */
+	private void unlink(int row, int removed, int level, Scratch scratch) {
+		int numLinks = numLinks(row, level);
+		int position = -1;
+		for (int i = 0; i < numLinks && position < 0; i++) {
+			if (link(row, level, i) == removed) {
+				position = i;
+			}
+		}
+		if (position < 0) {
+			return;
+		}
+
+		int stamp = scratch.nextStamp(m_Level.length);
+		int[] visited = scratch.m_Visited;
+		Heap linked = scratch.m_Linked;
+		linked.reset(0);
+		visited[row] = stamp;
+		visited[removed] = stamp;
+		for (int i = 0; i < numLinks; i++) {
+			int other = link(row, level, i);
+			if (visited[other] != stamp) {
+				visited[other] = stamp;
+				linked.push(other, m_Model.squaredDistance(row, other));
+			}
+		}
+		int numRemovedLinks = numLinks(removed, level);
+		for (int i = 0; i < numRemovedLinks; i++) {
+			int other = link(removed, level, i);
+			if (visited[other] != stamp && m_Level[other] >= level) {
+				visited[other] = stamp;
+				linked.push(other, m_Model.squaredDistance(row, other));
+			}
+		}
+		int maxLinks = level == 0 ? 2 * m_MaxConnections : m_MaxConnections;
+		numLinks = selectNeighbours(row, linked, maxLinks, scratch);
+		int[] selected = scratch.m_Selected;
+		for (int i = 0; i < numLinks; i++) {
+			setLink(row, level, i, selected[i]);
+		}
+		setNumLinks(row, level, numLinks);
+	}
+
+	@Override
+	public void search(KnnQuery query) {
+		if (m_EntryPoint < 0) {
+			return;
+		}
+		Scratch scratch = scratch();
+		scratch.m_Evaluated = 0;
+		int entry = descend(query.m_Numeric, query.m_Nominal, 1, scratch);
+		NeighbourCandidates candidates = query.m_Candidates;
+		Heap found = searchLayer(query.m_Numeric, query.m_Nominal, entry,
+				Math.max(m_SearchBreadth, candidates.capacity()), 0, scratch);
+		// the rows found are counted again when offered
+		candidates.addEvaluated(scratch.m_Evaluated - found.m_Size);
+		for (int i = 0; i < found.m_Size; i++) {
+			candidates.offer(found.m_Rows[i], found.m_Distances[i]);
+		}
+	}
+
+	/**
+	 * Inserts a row into the graph, on a random number of layers.
+	 */
+	private void insert(int row) {
+		int level = (int) (-Math.log(1 - m_Random.nextDouble()) * m_LevelFactor);
+		m_Level[row] = level;
+		m_NumLinks[row] = 0;
+		m_UpperLinks[row] = level > 0 ? new int[level * (m_MaxConnections + 1)] : null;
+		if (m_EntryPoint < 0) {
+			m_EntryPoint = row;
+			m_TopLevel = level;
+			return;
+		}
+
+		Scratch scratch = scratch();
+		double[] numeric = scratch.m_Numeric;
+		int[] nominal = scratch.m_Nominal;
+		for (int j = 0; j < numeric.length; j++) {
+			numeric[j] = m_Model.numeric(row, j);
+		}
+		for (int j = 0; j < nominal.length; j++) {
+			nominal[j] = m_Model.nominal(row, j);
+		}
+
+		int entry = descend(numeric, nominal, level + 1, scratch);
+		for (int l = Math.min(level, m_TopLevel); l >= 0; l--) {
+			Heap found = searchLayer(numeric, nominal, entry, m_ConstructionBreadth, l, scratch);
+			entry = found.nearest();
+			int maxLinks = l == 0 ? 2 * m_MaxConnections : m_MaxConnections;
+			int numLinks = selectNeighbours(row, found, m_MaxConnections, scratch);
+			int[] selected = scratch.m_Selected;
+			for (int i = 0; i < numLinks; i++) {
+				setLink(row, l, i, selected[i]);
+			}
+			setNumLinks(row, l, numLinks);
+			// linking back may select again into scratch.m_Selected, so the
+			// links are read from the row rather than from the selection
+			for (int i = 0; i < numLinks; i++) {
+				link(link(row, l, i), row, l, maxLinks, scratch);
+			}
+		}
+		if (level > m_TopLevel) {
+			m_EntryPoint = row;
+			m_TopLevel = level;
+		}
+	}
+
+	/**
+	 * Adds a link from a row to another one, pruning the links of the row
+	 * with the heuristic if it has too many.
+	 */
+	private void link(int row, int neighbour, int level, int maxLinks, Scratch scratch) {
+		int numLinks = numLinks(row, level);
+		for (int i = 0; i < numLinks; i++) {
+			if (link(row, level, i) == neighbour) {
+				return;
+			}
+		}
+		if (numLinks < maxLinks) {
+			setLink(row, level, numLinks, neighbour);
+			setNumLinks(row, level, numLinks + 1);
+			return;
+		}
+
+		Heap linked = scratch.m_Linked;
+		linked.reset(maxLinks + 1);
+		for (int i = 0; i < numLinks; i++) {
+			int other = link(row, level, i);
+			if (m_Level[other] >= level) {
+				linked.push(other, m_Model.squaredDistance(row, other));
+			}
+		}
+		linked.push(neighbour, m_Model.squaredDistance(row, neighbour));
+		numLinks = selectNeighbours(row, linked, maxLinks, scratch);
+		int[] selected = scratch.m_Selected;
+		for (int i = 0; i < numLinks; i++) {
+			setLink(row, level, i, selected[i]);
+		}
+		setNumLinks(row, level, numLinks);
+	}
+
+	/**
+	 * Chooses the links of a row among rows found near it, visited in order
+	 * of distance: a row is kept only if it is closer to the row than to
+	 * every row kept already, then the closest rows skipped fill the
+	 * remaining links.
+	 *
+	 * @param found rows found near the row, sorted by this method
+	 * @return the number of rows chosen, stored in scratch.m_Selected
+	 */
+	private int selectNeighbours(int row, Heap found, int maxLinks, Scratch scratch) {
+		found.sort();
+		int[] selected = scratch.selected(maxLinks);
+		int[] skipped = scratch.skipped(found.m_Size);
+		int numSelected = 0;
+		int numSkipped = 0;
+		for (int i = 0; i < found.m_Size && numSelected < maxLinks; i++) {
+			int other = found.m_Rows[i];
+			if (other == row) {
+				continue;
+			}
+			double distance = found.m_Distances[i];
+			boolean diverse = true;
+			for (int s = 0; s < numSelected && diverse; s++) {
+				diverse = m_Model.squaredDistance(other, selected[s]) >= distance;
+			}
+			if (diverse) {
+				selected[numSelected++] = other;
+			} else {
+				skipped[numSkipped++] = other;
+			}
+		}
+		for (int i = 0; i < numSkipped && numSelected < maxLinks; i++) {
+			selected[numSelected++] = skipped[i];
+		}
+		return numSelected;
+	}
+
+	/**
+	 * Descends greedily from the entry point to the closest row of a layer.
+	 *
+	 * @return the closest row found on the lowest layer visited
+	 */
+	private int descend(double[] numeric, int[] nominal, int lowestLevel, Scratch scratch) {
+		int current = m_EntryPoint;
+		double currentDistance = m_Model.squaredDistance(numeric, nominal, current, Double.POSITIVE_INFINITY);
+		scratch.m_Evaluated++;
+		for (int l = m_TopLevel; l >= lowestLevel; l--) {
+			boolean moved = true;
+			while (moved) {
+				moved = false;
+				int numLinks = numLinks(current, l);
+				for (int i = 0; i < numLinks; i++) {
+					int other = link(current, l, i);
+					if (m_Level[other] < l) {
+						continue;
+					}
+					double distance = m_Model.squaredDistance(numeric, nominal, other, currentDistance);
+					scratch.m_Evaluated++;
+					if (distance < currentDistance) {
+						current = other;
+						currentDistance = distance;
+						moved = true;
+					}
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Explores a layer from a row, keeping the closest rows seen so far.
+	 *
+	 * @return the closest rows seen, at most breadth of them, in scratch.m_Found
+	 */
+	private Heap searchLayer(double[] numeric, int[] nominal, int entry, int breadth, int level, Scratch scratch) {
+		int stamp = scratch.nextStamp(m_Level.length);
+		int[] visited = scratch.m_Visited;
+		Heap toVisit = scratch.m_ToVisit;
+		Heap found = scratch.m_Found;
+		toVisit.reset(0);
+		found.reset(breadth);
+
+		double distance = m_Model.squaredDistance(numeric, nominal, entry, Double.POSITIVE_INFINITY);
+		scratch.m_Evaluated++;
+		visited[entry] = stamp;
+		toVisit.push(entry, -distance);
+		found.push(entry, distance);
+		while (toVisit.m_Size > 0) {
+			// toVisit is a max-heap on the negated distances
+			double closest = -toVisit.m_Distances[0];
+			int current = toVisit.pop();
+			if (found.isFull() && closest > found.top()) {
+				break;
+			}
+			int numLinks = numLinks(current, level);
+			for (int i = 0; i < numLinks; i++) {
+				int other = link(current, level, i);
+				if (visited[other] == stamp || m_Level[other] < level) {
+					continue;
+				}
+				visited[other] = stamp;
+				double bound = found.isFull() ? found.top() : Double.POSITIVE_INFINITY;
+				distance = m_Model.squaredDistance(numeric, nominal, other, bound);
+				scratch.m_Evaluated++;
+				if (distance < bound) {
+					toVisit.push(other, -distance);
+					found.offer(other, distance);
+				}
+			}
+		}
+		return found;
+	}
+
+	private int numLinks(int row, int level) {
+		return level == 0 ? m_NumLinks[row] : m_UpperLinks[row][(level - 1) * (m_MaxConnections + 1)];
+	}
+
+	private void setNumLinks(int row, int level, int numLinks) {
+		if (level == 0) {
+			m_NumLinks[row] = numLinks;
+		} else {
+			m_UpperLinks[row][(level - 1) * (m_MaxConnections + 1)] = numLinks;
+		}
+	}
+
+	private int link(int row, int level, int i) {
+		return level == 0 ? m_Links[row * 2 * m_MaxConnections + i]
+				: m_UpperLinks[row][(level - 1) * (m_MaxConnections + 1) + 1 + i];
+	}
+
+	private void setLink(int row, int level, int i, int other) {
+		if (level == 0) {
+			m_Links[row * 2 * m_MaxConnections + i] = other;
+		} else {
+			m_UpperLinks[row][(level - 1) * (m_MaxConnections + 1) + 1 + i] = other;
+		}
+	}
+
+	private Scratch scratch() {
+		ThreadLocal<Scratch> scratch = m_Scratch;
+		if (scratch == null) {
+			synchronized (this) {
+				if (m_Scratch == null) {
+					m_Scratch = new ThreadLocal<Scratch>();
+				}
+				scratch = m_Scratch;
+			}
+		}
+		Scratch buffers = scratch.get();
+		if (buffers == null) {
+			buffers = new Scratch(m_Model.m_Layout);
+			scratch.set(buffers);
+		}
+		return buffers;
+	}
+
+	/**
+	 * Rows with their squared distances, kept as a max-heap on (distance,
+	 * row), bounded or not.
+	 */
+	private static final class Heap {
+
+		private int[] m_Rows = new int[16];
+
+		private double[] m_Distances = new double[16];
+
+		private int m_Size;
+
+		/** Largest number of rows kept, 0 for no limit. */
+		private int m_Capacity;
+
+		void reset(int capacity) {
+			m_Size = 0;
+			m_Capacity = capacity;
+			if (capacity > m_Rows.length) {
+				m_Rows = new int[capacity];
+				m_Distances = new double[capacity];
+			}
+		}
+
+		boolean isFull() {
+			return m_Capacity > 0 && m_Size >= m_Capacity;
+		}
+
+		double top() {
+			return m_Distances[0];
+		}
+
+		/**
+		 * @return the row of smallest distance, by a scan of the heap
+		 */
+		int nearest() {
+			int nearest = 0;
+			for (int i = 1; i < m_Size; i++) {
+				if (precedes(m_Distances[i], m_Rows[i], m_Distances[nearest], m_Rows[nearest])) {
+					nearest = i;
+				}
+			}
+			return m_Rows[nearest];
+		}
+
+		/**
+		 * Adds a row, replacing the furthest one if the heap is full and the
+		 * row precedes it.
+		 */
+		void offer(int row, double distance) {
+			if (!isFull()) {
+				push(row, distance);
+			} else if (precedes(distance, row, m_Distances[0], m_Rows[0])) {
+				siftDown(0, row, distance);
+			}
+		}
+
+		void push(int row, double distance) {
+			if (m_Size == m_Rows.length) {
+				m_Rows = Arrays.copyOf(m_Rows, 2 * m_Size);
+				m_Distances = Arrays.copyOf(m_Distances, 2 * m_Size);
+			}
+			int position = m_Size++;
+			while (position > 0) {
+				int parent = (position - 1) >>> 1;
+				if (!precedes(m_Distances[parent], m_Rows[parent], distance, row)) {
+					break;
+				}
+				m_Rows[position] = m_Rows[parent];
+				m_Distances[position] = m_Distances[parent];
+				position = parent;
+			}
+			m_Rows[position] = row;
+			m_Distances[position] = distance;
+		}
+
+		/**
+		 * Sorts the rows in ascending order of distance and row, after which
+		 * the heap may only be read or reset.
+		 */
+		void sort() {
+			int size = m_Size;
+			for (int last = size - 1; last > 0; last--) {
+				int row = m_Rows[last];
+				double distance = m_Distances[last];
+				m_Rows[last] = m_Rows[0];
+				m_Distances[last] = m_Distances[0];
+				m_Size = last;
+				siftDown(0, row, distance);
+			}
+			m_Size = size;
+		}
+
+		int pop() {
+			int top = m_Rows[0];
+			m_Size--;
+			if (m_Size > 0) {
+				siftDown(0, m_Rows[m_Size], m_Distances[m_Size]);
+			}
+			return top;
+		}
+
+		private void siftDown(int position, int row, double distance) {
+			int child;
+			while ((child = 2 * position + 1) < m_Size) {
+				if (child + 1 < m_Size && precedes(m_Distances[child], m_Rows[child], m_Distances[child + 1], m_Rows[child + 1])) {
+					child++;
+				}
+				if (!precedes(distance, row, m_Distances[child], m_Rows[child])) {
+					break;
+				}
+				m_Rows[position] = m_Rows[child];
+				m_Distances[position] = m_Distances[child];
+				position = child;
+			}
+			m_Rows[position] = row;
+			m_Distances[position] = distance;
+		}
+
+		private static boolean precedes(double distance1, int row1, double distance2, int row2) {
+			return distance1 < distance2 || (distance1 == distance2 && row1 < row2);
+		}
+	}
+
+	/**
+	 * Work buffers of the searches of a thread.
+	 */
+	private static final class Scratch {
+
+		/** Normalised inputs of the row being inserted. */
+		final double[] m_Numeric;
+
+		final int[] m_Nominal;
+
+		/** Stamp of the last search that visited each row. */
+		int[] m_Visited = new int[0];
+
+		int m_Stamp;
+
+		/** Number of distances to the query computed by the current search. */
+		int m_Evaluated;
+
+		final Heap m_ToVisit = new Heap();
+
+		final Heap m_Found = new Heap();
+
+		final Heap m_Linked = new Heap();
+
+		/** Rows chosen and skipped by selectNeighbours. */
+		int[] m_Selected = new int[16];
+
+		int[] m_Skipped = new int[16];
+
+		Scratch(AttributeLayout layout) {
+			m_Numeric = new double[layout.numNumeric()];
+			m_Nominal = new int[layout.numNominal()];
+		}
+
+		int nextStamp(int capacity) {
+			if (m_Visited.length < capacity || m_Stamp == Integer.MAX_VALUE) {
+				m_Visited = new int[Math.max(capacity, m_Visited.length)];
+				m_Stamp = 0;
+			}
+			return ++m_Stamp;
+		}
+
+		int[] selected(int size) {
+			if (m_Selected.length < size) {
+				m_Selected = new int[size];
+			}
+			return m_Selected;
+		}
+
+		int[] skipped(int size) {
+			if (m_Skipped.length < size) {
+				m_Skipped = new int[size];
+			}
+			return m_Skipped;
+		}
+	}
+}
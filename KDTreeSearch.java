@@ -0,0 +1,364 @@
+package weka.classifiers.lazy;
+
+import java.util.Arrays;
+
+/**
+ * KD-tree over the normalised numerical inputs of the compact model. <p>
+ *
+ * Each node splits its rows at the median of the numerical input with the
+ * widest range and keeps the bounding box of its rows. For categorical
+ * inputs a node records the value shared by all of its rows, if any, so that
+ * a query with a different value adds the mismatch distance of 1 to the
+ * lower bound of the node. Nodes whose lower bound is strictly greater than
+ * the distance of the current k-th nearest neighbour are skipped, which keeps
+ * the result identical to a linear scan. <p>
+ *
+ * Rows appended to the model are inserted into the leaf their split values
+ * lead to, widening the boxes on the way, and a leaf that has grown too
+ * large is split in turn. Removed rows leave the boxes as they are, which
+ * keeps them valid if looser. The bounds apply the weights of the model, so
+ * the tree stays valid while the range of the numerical inputs changes.
+ */
+final class KDTreeSearch implements NeighbourSearch {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Maximum number of rows held by a leaf when it is built. */
+	static final int LEAF_SIZE = 32;
+
+	/** Value recorded for a categorical input whose values differ within a node. */
+	private static final int MIXED = -1;
+
+	/** Model to be searched. */
+	private final KnnModel m_Model;
+
+	/** Number of nodes in the tree. */
+	private int m_NumNodes;
+
+	/** Index of the left child of each node, or -1 for leaves. */
+	private int[] m_Left;
+
+	/** Index of the right child of each node, or -1 for leaves. */
+	private int[] m_Right;
+
+	/** Numerical input each internal node splits on. */
+	private int[] m_SplitAttribute;
+
+	/** Value each internal node splits at, rows with smaller or equal values go left. */
+	private double[] m_SplitValue;
+
+	/** Smallest value of each numerical input, node x numNumeric. */
+	private double[] m_Lower;
+
+	/** Largest value of each numerical input, node x numNumeric. */
+	private double[] m_Upper;
+
+	/** Value shared by all rows for each categorical input, node x numNominal. */
+	private int[] m_NominalValues;
+
+	/** Rows held by each leaf, null for internal nodes. */
+	private int[][] m_LeafRows;
+
+	/** Number of rows held by each leaf. */
+	private int[] m_LeafSize;
+
+	/** Leaf holding each row of the model. */
+	private int[] m_LeafOf;
+
+	/** Position of each row of the model in its leaf. */
+	private int[] m_PositionOf;
+
+	/**
+	 * Builds a KD-tree over all rows of a model.
+	 *
+	 * @param model model to be searched
+	 */
+	KDTreeSearch(KnnModel model) {
+		m_Model = model;
+		int[] rows = new int[model.m_NumRows];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = model.slot(i);
+		}
+
+		int capacity = Math.max(1, 2 * (rows.length / LEAF_SIZE) + 1);
+		m_Left = new int[capacity];
+		m_Right = new int[capacity];
+		m_SplitAttribute = new int[capacity];
+		m_SplitValue = new double[capacity];
+		m_Lower = new double[capacity * model.m_Layout.numNumeric()];
+		m_Upper = new double[capacity * model.m_Layout.numNumeric()];
+		m_NominalValues = new int[capacity * model.m_Layout.numNominal()];
+		m_LeafRows = new int[capacity][];
+		m_LeafSize = new int[capacity];
+		m_LeafOf = new int[model.capacity()];
+		m_PositionOf = new int[model.capacity()];
+
+		build(newNode(), rows, 0, rows.length);
+	}
+
+	/**
+	 * Makes a node hold rows[begin, end), as a leaf or as the root of a
+	 * subtree, and computes its bounding box.
+	 */
+	private void build(int node, int[] rows, int begin, int end) {
+		int numNumeric = m_Model.m_Layout.numNumeric();
+		int numNominal = m_Model.m_Layout.numNominal();
+
+		// bounding box of the numerical inputs and shared categorical values
+		for (int j = 0; j < numNumeric; j++) {
+			double lower = Double.POSITIVE_INFINITY;
+			double upper = Double.NEGATIVE_INFINITY;
+			for (int i = begin; i < end; i++) {
+				double value = m_Model.numeric(rows[i], j);
+				lower = Math.min(lower, value);
+				upper = Math.max(upper, value);
+			}
+			m_Lower[node * numNumeric + j] = lower;
+			m_Upper[node * numNumeric + j] = upper;
+		}
+		for (int j = 0; j < numNominal; j++) {
+			int value = begin < end ? m_Model.nominal(rows[begin], j) : MIXED;
+			for (int i = begin + 1; i < end && value != MIXED; i++) {
+				if (m_Model.nominal(rows[i], j) != value) {
+					value = MIXED;
+				}
+			}
+			m_NominalValues[node * numNominal + j] = value;
+		}
+
+		// splits on the widest numerical input
+		int splitAttribute = -1;
+		double widest = 0;
+		for (int j = 0; j < numNumeric; j++) {
+			double width = m_Upper[node * numNumeric + j] - m_Lower[node * numNumeric + j];
+			if (width > widest) {
+				widest = width;
+				splitAttribute = j;
+			}
+		}
+		if (end - begin <= LEAF_SIZE || splitAttribute < 0) {
+			m_LeafRows[node] = Arrays.copyOfRange(rows, begin, end);
+			m_LeafSize[node] = end - begin;
+			for (int i = begin; i < end; i++) {
+				m_LeafOf[rows[i]] = node;
+				m_PositionOf[rows[i]] = i - begin;
+			}
+			return;
+		}
+
+		int middle = (begin + end) >>> 1;
+		select(rows, begin, end, middle, splitAttribute);
+		m_SplitAttribute[node] = splitAttribute;
+		m_SplitValue[node] = m_Model.numeric(rows[middle], splitAttribute);
+		m_LeafRows[node] = null;
+		int left = newNode();
+		build(left, rows, begin, middle);
+		int right = newNode();
+		build(right, rows, middle, end);
+		m_Left[node] = left;
+		m_Right[node] = right;
+	}
+
+	private int newNode() {
+		if (m_NumNodes == m_Left.length) {
+			int capacity = 2 * m_NumNodes;
+			m_Left = Arrays.copyOf(m_Left, capacity);
+			m_Right = Arrays.copyOf(m_Right, capacity);
+			m_SplitAttribute = Arrays.copyOf(m_SplitAttribute, capacity);
+			m_SplitValue = Arrays.copyOf(m_SplitValue, capacity);
+			m_Lower = Arrays.copyOf(m_Lower, capacity * m_Model.m_Layout.numNumeric());
+			m_Upper = Arrays.copyOf(m_Upper, capacity * m_Model.m_Layout.numNumeric());
+			m_NominalValues = Arrays.copyOf(m_NominalValues, capacity * m_Model.m_Layout.numNominal());
+			m_LeafRows = Arrays.copyOf(m_LeafRows, capacity);
+			m_LeafSize = Arrays.copyOf(m_LeafSize, capacity);
+		}
+		int node = m_NumNodes++;
+		m_Left[node] = -1;
+		m_Right[node] = -1;
+		return node;
+	}
+
+	/**
+	 * Rearranges rows[begin, end) so that the row at position nth has the
+	 * value it would have if the rows were sorted by the given numerical
+	 * input, with smaller or equal values before it and greater or equal
+	 * values after it.
+	 */
+	private void select(int[] rows, int begin, int end, int nth, int attribute) {
+		int low = begin;
+		int high = end - 1;
+		while (low < high) {
+			double pivot = m_Model.numeric(rows[(low + high) >>> 1], attribute);
+
+			// three-way partition, so that repeated values do not degrade the selection
+			int lt = low;
+			int gt = high;
+			int i = low;
+			while (i <= gt) {
+				double value = m_Model.numeric(rows[i], attribute);
+				if (value < pivot) {
+					swap(rows, lt++, i++);
+				} else if (value > pivot) {
+					swap(rows, i, gt--);
+				} else {
+					i++;
+				}
+			}
+			if (nth < lt) {
+				high = lt - 1;
+			} else if (nth > gt) {
+				low = gt + 1;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private static void swap(int[] rows, int i, int j) {
+		int row = rows[i];
+		rows[i] = rows[j];
+		rows[j] = row;
+	}
+
+	@Override
+	public void add(int row) {
+		if (row >= m_LeafOf.length) {
+			m_LeafOf = Arrays.copyOf(m_LeafOf, m_Model.capacity());
+			m_PositionOf = Arrays.copyOf(m_PositionOf, m_Model.capacity());
+		}
+		int node = 0;
+		widen(node, row);
+		while (m_LeafRows[node] == null) {
+			double value = m_Model.numeric(row, m_SplitAttribute[node]);
+			node = value <= m_SplitValue[node] ? m_Left[node] : m_Right[node];
+			widen(node, row);
+		}
+
+		int[] rows = m_LeafRows[node];
+		int size = m_LeafSize[node];
+		if (size == rows.length && size >= 2 * LEAF_SIZE) {
+			// splits the leaf, which happens at most once each time it doubles in size
+			rows = Arrays.copyOf(rows, size + 1);
+			rows[size] = row;
+			build(node, rows, 0, size + 1);
+			if (m_LeafRows[node] != null) {
+				m_LeafRows[node] = Arrays.copyOf(m_LeafRows[node], 2 * (size + 1));
+			}
+			return;
+		}
+		if (size == rows.length) {
+			rows = Arrays.copyOf(rows, Math.max(4, 2 * size));
+			m_LeafRows[node] = rows;
+		}
+		rows[size] = row;
+		m_LeafSize[node] = size + 1;
+		m_LeafOf[row] = node;
+		m_PositionOf[row] = size;
+	}
+
+	/**
+	 * Widens the bounding box of a node to include a row.
+	 */
+	private void widen(int node, int row) {
+		int numNumeric = m_Model.m_Layout.numNumeric();
+		int numNominal = m_Model.m_Layout.numNominal();
+		for (int j = 0; j < numNumeric; j++) {
+			double value = m_Model.numeric(row, j);
+			m_Lower[node * numNumeric + j] = Math.min(m_Lower[node * numNumeric + j], value);
+			m_Upper[node * numNumeric + j] = Math.max(m_Upper[node * numNumeric + j], value);
+		}
+		for (int j = 0; j < numNominal; j++) {
+			if (m_NominalValues[node * numNominal + j] != m_Model.nominal(row, j)) {
+				m_NominalValues[node * numNominal + j] = MIXED;
+			}
+		}
+	}
+
+	@Override
+	public void remove(int row) {
+		int node = m_LeafOf[row];
+		int position = m_PositionOf[row];
+		int last = m_LeafRows[node][--m_LeafSize[node]];
+		m_LeafRows[node][position] = last;
+		m_PositionOf[last] = position;
+	}
+
+	@Override
+	public void search(KnnQuery query) {
+		search(0, query.m_Numeric, query.m_Nominal, query);
+	}
+
+	/**
+	 * Searches a node, the child nearer to the query first, unless the
+	 * budget of the query is spent.
+	 */
+	private void search(int node, double[] numeric, int[] nominal, KnnQuery query) {
+		if (query.outOfBudget()) {
+			return;
+		}
+		NeighbourCandidates candidates = query.m_Candidates;
+		if (m_Left[node] < 0) {
+			int[] rows = m_LeafRows[node];
+			int size = query.budgetedRows(m_LeafSize[node]);
+			for (int i = 0; i < size; i++) {
+				int row = rows[i];
+				double bound = candidates.worstDistance();
+				candidates.offer(row, m_Model.squaredDistance(numeric, nominal, row, bound));
+			}
+			return;
+		}
+
+		int first = m_Left[node];
+		int second = m_Right[node];
+		double firstBound = lowerBound(first, numeric, nominal);
+		double secondBound = lowerBound(second, numeric, nominal);
+		if (secondBound < firstBound) {
+			int child = first;
+			first = second;
+			second = child;
+			double bound = firstBound;
+			firstBound = secondBound;
+			secondBound = bound;
+		}
+
+		if (firstBound <= candidates.worstDistance()) {
+			search(first, numeric, nominal, query);
+		}
+		if (secondBound <= candidates.worstDistance()) {
+			search(second, numeric, nominal, query);
+		}
+	}
+
+	/**
+	 * Lower bound of the squared distance between the query and any row of a
+	 * node. The terms are accumulated in the same order as in
+	 * KnnModel.squaredDistance and each one is no greater than the
+	 * corresponding exact term, so rounding cannot make the bound exceed the
+	 * distance of a row of the node.
+	 */
+	private double lowerBound(int node, double[] numeric, int[] nominal) {
+		double[] weights = m_Model.m_Weights;
+		double sum = 0;
+		int offset = node * numeric.length;
+		for (int j = 0; j < numeric.length; j++) {
+			double diff = 0;
+			if (numeric[j] < m_Lower[offset + j]) {
+				diff = numeric[j] - m_Lower[offset + j];
+			} else if (numeric[j] > m_Upper[offset + j]) {
+				diff = numeric[j] - m_Upper[offset + j];
+			}
+			sum += weights == null ? diff * diff : weights[j] * diff * diff;
+		}
+		offset = node * nominal.length;
+		for (int j = 0; j < nominal.length; j++) {
+			int value = m_NominalValues[offset + j];
+			if (value != MIXED && value != nominal[j]) {
+				sum += 1;
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,416 @@
+package weka.classifiers.lazy;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Metrics of the predictions, builds and updates of a MyKnn, collected only
+ * while MyKnn.getCollectMetrics() is true. <p>
+ *
+ * Counters are LongAdders, which threads increment without contending, and
+ * durations go to lock-free LatencyHistograms. The counts of a search are
+ * accumulated in plain fields of its candidates (see NeighbourCandidates)
+ * and added here once per query, so the search itself pays no more than
+ * without metrics. Without metrics, a prediction only reads a null field. <p>
+ *
+ * The metrics are published in the platform MBean server under the name
+ * weka.classifiers.lazy:type=MyKnn,name=MyKnn-n, n numbering the metrics
+ * created, until they stop or the classifier is closed, rebuilt or garbage
+ * collected. They only hold a weak reference to the classifier, so that an
+ * MBean left published does not keep it reachable.
+ */
+final class KnnMetrics implements KnnMetricsMBean {
+
+	/** Domain and type of the names of the MBeans. */
+	static final String NAME_PREFIX = "weka.classifiers.lazy:type=MyKnn,name=MyKnn-";
+
+	/** Number of metrics created, numbering their names. */
+	private static final AtomicInteger s_Created = new AtomicInteger();
+
+	/** Unpublishes the metrics of the classifiers garbage collected without being closed. */
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	/** Classifier the metrics describe, whose prediction cache is read. */
+	private final WeakReference<MyKnn> m_Knn;
+
+	/** Name under which the metrics are published, or null if they are not. */
+	private ObjectName m_Name;
+
+	/** Unpublishes the metrics, once, or null if they are not published. */
+	private Cleaner.Cleanable m_Unregister;
+
+	private final LongAdder m_Queries = new LongAdder();
+
+	/** Number of queries searched, whose counts were added. */
+	private final LongAdder m_Searches = new LongAdder();
+
+	private final LongAdder m_Evaluations = new LongAdder();
+
+	private final LongAdder m_Rejected = new LongAdder();
+
+	private final LongAdder m_Pruned = new LongAdder();
+
+	private final LongAdder m_Budgeted = new LongAdder();
+
+	private final LongAdder m_Exact = new LongAdder();
+
+	private final LongAdder m_Overruns = new LongAdder();
+
+	private final LongAdder m_Builds = new LongAdder();
+
+	private final LongAdder m_Updates = new LongAdder();
+
+	private final LatencyHistogram m_Normalise = new LatencyHistogram();
+
+	private final LatencyHistogram m_Search = new LatencyHistogram();
+
+	private final LatencyHistogram m_Aggregate = new LatencyHistogram();
+
+	/** Time by which the predictions exceeding their time budget exceeded it. */
+	private final LatencyHistogram m_Overshoot = new LatencyHistogram();
+
+	private volatile long m_LastBuildNanos;
+
+	private volatile long m_ModelRows;
+
+	private volatile long m_ModelBytes;
+
+	/**
+	 * @param knn classifier the metrics describe
+	 */
+	KnnMetrics(MyKnn knn) {
+		m_Knn = new WeakReference<MyKnn>(knn);
+	}
+
+	/**
+	 * Publishes the metrics in the platform MBean server, until unregister
+	 * is called or the classifier is garbage collected. The metrics are
+	 * still collected if they cannot be published.
+	 */
+	void register() {
+		MyKnn knn = m_Knn.get();
+		if (knn == null) {
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName(NAME_PREFIX + s_Created.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, KnnMetricsMBean.class), name);
+			m_Name = name;
+			m_Unregister = CLEANER.register(knn, new Unregister(name));
+		} catch (JMException e) {
+			System.err.println("Warning: the metrics of MyKnn cannot be published: " + e);
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server.
+	 */
+	void unregister() {
+		if (m_Unregister == null) {
+			return;
+		}
+		m_Unregister.clean();
+		m_Unregister = null;
+		m_Name = null;
+	}
+
+	/**
+	 * Removes an MBean from the platform MBean server. It must not refer to
+	 * the classifier, which the cleaner waits to become unreachable.
+	 */
+	private static final class Unregister implements Runnable {
+
+		private final ObjectName m_Name;
+
+		Unregister(ObjectName name) {
+			m_Name = name;
+		}
+
+		@Override
+		public void run() {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			try {
+				server.unregisterMBean(m_Name);
+			} catch (JMException e) {
+				// already removed
+			}
+		}
+	}
+
+	/**
+	 * @return the name under which the metrics are published, or null
+	 */
+	ObjectName name() {
+		return m_Name;
+	}
+
+	/**
+	 * Records a prediction that searched the model.
+	 *
+	 * @param normaliseNanos time spent normalising the inputs
+	 * @param searchNanos time spent searching the nearest neighbours
+	 * @param aggregateNanos time spent averaging their outputs
+	 * @param candidates candidates of the search, holding its counts
+	 * @param numRows number of rows of the model
+	 */
+	void recordQuery(long normaliseNanos, long searchNanos, long aggregateNanos, NeighbourCandidates candidates,
+			int numRows) {
+		m_Normalise.record(normaliseNanos);
+		m_Search.record(searchNanos);
+		m_Aggregate.record(aggregateNanos);
+		recordSearch(candidates, numRows);
+	}
+
+	/**
+	 * Records a prediction found in the prediction cache.
+	 *
+	 * @param normaliseNanos time spent normalising the inputs
+	 * @param lookupNanos time spent looking the prediction up
+	 */
+	void recordCached(long normaliseNanos, long lookupNanos) {
+		m_Queries.increment();
+		m_Normalise.record(normaliseNanos);
+		m_Search.record(lookupNanos);
+	}
+
+	/**
+	 * Records a prediction of a batch found in the prediction cache, whose
+	 * duration is not measured.
+	 */
+	void recordCachedBatch() {
+		m_Queries.increment();
+	}
+
+	/**
+	 * Records the counts of a prediction that searched the model, without
+	 * durations, as the ones of a batch are not measured one by one.
+	 *
+	 * @param candidates candidates of the search, holding its counts
+	 * @param numRows number of rows of the model
+	 */
+	void recordSearch(NeighbourCandidates candidates, int numRows) {
+		m_Queries.increment();
+		m_Searches.increment();
+		m_Evaluations.add(candidates.evaluated());
+		m_Rejected.add(candidates.rejected());
+		m_Pruned.add(Math.max(0, numRows - candidates.evaluated()));
+	}
+
+	/**
+	 * Records the outcome of a prediction made with a budget, in addition to
+	 * the prediction itself.
+	 *
+	 * @param exact whether its neighbours are provably the exact ones
+	 * @param overrun whether it took longer or computed more distances than
+	 * its budget
+	 * @param overshootNanos time by which it exceeded its time budget, 0 if it did not
+	 */
+	void recordBudgeted(boolean exact, boolean overrun, long overshootNanos) {
+		m_Budgeted.increment();
+		if (exact) {
+			m_Exact.increment();
+		}
+		if (overrun) {
+			m_Overruns.increment();
+		}
+		if (overshootNanos > 0) {
+			m_Overshoot.record(overshootNanos);
+		}
+	}
+
+	/**
+	 * @param nanos time the build took
+	 * @param model model built
+	 */
+	void recordBuild(long nanos, KnnModel model) {
+		m_Builds.increment();
+		m_LastBuildNanos = nanos;
+		recordModel(model);
+	}
+
+	/**
+	 * @param model model a training instance was added to
+	 */
+	void recordUpdate(KnnModel model) {
+		m_Updates.increment();
+		recordModel(model);
+	}
+
+	/**
+	 * @param model current model, or null once closed
+	 */
+	void recordModel(KnnModel model) {
+		m_ModelRows = model == null ? 0 : model.m_NumRows;
+		m_ModelBytes = model == null ? 0 : model.footprint();
+	}
+
+	@Override
+	public long getQueries() {
+		return m_Queries.sum();
+	}
+
+	@Override
+	public long getCacheHits() {
+		MyKnn knn = m_Knn.get();
+		return knn == null ? 0 : knn.getCacheHits();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		MyKnn knn = m_Knn.get();
+		return knn == null ? 0 : knn.getCacheMisses();
+	}
+
+	@Override
+	public long getDistanceEvaluations() {
+		return m_Evaluations.sum();
+	}
+
+	@Override
+	public double getDistanceEvaluationsPerQuery() {
+		long searches = m_Searches.sum();
+		return searches == 0 ? 0 : (double) m_Evaluations.sum() / searches;
+	}
+
+	@Override
+	public long getRejectedCandidates() {
+		return m_Rejected.sum();
+	}
+
+	@Override
+	public long getPrunedRows() {
+		return m_Pruned.sum();
+	}
+
+	@Override
+	public long getBudgetedQueries() {
+		return m_Budgeted.sum();
+	}
+
+	@Override
+	public long getExactBudgetedQueries() {
+		return m_Exact.sum();
+	}
+
+	@Override
+	public double getExactnessRate() {
+		long budgeted = m_Budgeted.sum();
+		return budgeted == 0 ? 1 : (double) m_Exact.sum() / budgeted;
+	}
+
+	@Override
+	public long getBudgetOverruns() {
+		return m_Overruns.sum();
+	}
+
+	@Override
+	public long getBudgetOverrunP99Nanos() {
+		return m_Overshoot.percentile(0.99);
+	}
+
+	@Override
+	public long getBudgetOverrunMaxNanos() {
+		return m_Overshoot.max();
+	}
+
+	@Override
+	public double getNormaliseMeanNanos() {
+		return m_Normalise.mean();
+	}
+
+	@Override
+	public long getNormaliseP50Nanos() {
+		return m_Normalise.percentile(0.5);
+	}
+
+	@Override
+	public long getNormaliseP99Nanos() {
+		return m_Normalise.percentile(0.99);
+	}
+
+	@Override
+	public double getSearchMeanNanos() {
+		return m_Search.mean();
+	}
+
+	@Override
+	public long getSearchP50Nanos() {
+		return m_Search.percentile(0.5);
+	}
+
+	@Override
+	public long getSearchP99Nanos() {
+		return m_Search.percentile(0.99);
+	}
+
+	@Override
+	public long getSearchMaxNanos() {
+		return m_Search.max();
+	}
+
+	@Override
+	public double getAggregateMeanNanos() {
+		return m_Aggregate.mean();
+	}
+
+	@Override
+	public long getAggregateP50Nanos() {
+		return m_Aggregate.percentile(0.5);
+	}
+
+	@Override
+	public long getAggregateP99Nanos() {
+		return m_Aggregate.percentile(0.99);
+	}
+
+	@Override
+	public long getBuilds() {
+		return m_Builds.sum();
+	}
+
+	@Override
+	public long getLastBuildNanos() {
+		return m_LastBuildNanos;
+	}
+
+	@Override
+	public long getUpdates() {
+		return m_Updates.sum();
+	}
+
+	@Override
+	public long getModelRows() {
+		return m_ModelRows;
+	}
+
+	@Override
+	public long getModelBytes() {
+		return m_ModelBytes;
+	}
+
+	@Override
+	public void reset() {
+		m_Queries.reset();
+		m_Searches.reset();
+		m_Evaluations.reset();
+		m_Rejected.reset();
+		m_Pruned.reset();
+		m_Budgeted.reset();
+		m_Exact.reset();
+		m_Overruns.reset();
+		m_Builds.reset();
+		m_Updates.reset();
+		m_Normalise.reset();
+		m_Search.reset();
+		m_Aggregate.reset();
+		m_Overshoot.reset();
+	}
+}
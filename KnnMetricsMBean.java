@@ -0,0 +1,168 @@
+package weka.classifiers.lazy;
+
+/**
+ * Management interface of the metrics of a MyKnn, published through JMX
+ * when metrics are collected (see MyKnn.setCollectMetrics). Durations are
+ * in nanoseconds, and percentiles are within 12.5% of the exact ones.
+ */
+public interface KnnMetricsMBean {
+
+	/**
+	 * @return the number of predictions made by classifyInstance and
+	 * classifyInstances
+	 */
+	long getQueries();
+
+	/**
+	 * @return the number of predictions found in the prediction cache
+	 */
+	long getCacheHits();
+
+	/**
+	 * @return the number of predictions not found in the prediction cache
+	 */
+	long getCacheMisses();
+
+	/**
+	 * @return the number of distances computed by the searches, including
+	 * the abandoned ones
+	 */
+	long getDistanceEvaluations();
+
+	/**
+	 * @return the mean number of distances computed per search
+	 */
+	double getDistanceEvaluationsPerQuery();
+
+	/**
+	 * @return the number of rows whose distance was computed but which were
+	 * not kept as candidates, most of them with an abandoned distance
+	 */
+	long getRejectedCandidates();
+
+	/**
+	 * @return the number of rows skipped by the searches without computing
+	 * their distance
+	 */
+	long getPrunedRows();
+
+	/**
+	 * @return the number of predictions made with a budget of time or of
+	 * distance evaluations
+	 */
+	long getBudgetedQueries();
+
+	/**
+	 * @return the number of predictions made with a budget whose neighbours
+	 * are provably the exact ones
+	 */
+	long getExactBudgetedQueries();
+
+	/**
+	 * @return the fraction of the predictions made with a budget whose
+	 * neighbours are provably the exact ones
+	 */
+	double getExactnessRate();
+
+	/**
+	 * @return the number of predictions made with a budget that took longer
+	 * or computed more distances than their budget
+	 */
+	long getBudgetOverruns();
+
+	/**
+	 * @return the 99th percentile of the time by which the predictions that
+	 * took longer than their time budget exceeded it
+	 */
+	long getBudgetOverrunP99Nanos();
+
+	/**
+	 * @return the longest time by which a prediction exceeded its time budget
+	 */
+	long getBudgetOverrunMaxNanos();
+
+	/**
+	 * @return the mean time spent normalising the inputs of a query
+	 */
+	double getNormaliseMeanNanos();
+
+	/**
+	 * @return the median time spent normalising the inputs of a query
+	 */
+	long getNormaliseP50Nanos();
+
+	/**
+	 * @return the 99th percentile of the time spent normalising the inputs
+	 * of a query
+	 */
+	long getNormaliseP99Nanos();
+
+	/**
+	 * @return the mean time spent searching the nearest neighbours of a
+	 * query, or looking it up in the cache
+	 */
+	double getSearchMeanNanos();
+
+	/**
+	 * @return the median time spent searching a query
+	 */
+	long getSearchP50Nanos();
+
+	/**
+	 * @return the 99th percentile of the time spent searching a query
+	 */
+	long getSearchP99Nanos();
+
+	/**
+	 * @return the longest time spent searching a query
+	 */
+	long getSearchMaxNanos();
+
+	/**
+	 * @return the mean time spent averaging the outputs of the neighbours
+	 */
+	double getAggregateMeanNanos();
+
+	/**
+	 * @return the median time spent averaging the outputs of the neighbours
+	 */
+	long getAggregateP50Nanos();
+
+	/**
+	 * @return the 99th percentile of the time spent averaging the outputs
+	 * of the neighbours
+	 */
+	long getAggregateP99Nanos();
+
+	/**
+	 * @return the number of times the classifier was built
+	 */
+	long getBuilds();
+
+	/**
+	 * @return the time the last build took
+	 */
+	long getLastBuildNanos();
+
+	/**
+	 * @return the number of training instances added by updateClassifier
+	 */
+	long getUpdates();
+
+	/**
+	 * @return the number of training rows of the model
+	 */
+	long getModelRows();
+
+	/**
+	 * @return the estimated memory held by the rows of the model, on and
+	 * off the heap, excluding the search structure
+	 */
+	long getModelBytes();
+
+	/**
+	 * Forgets all counts and durations, except the ones describing the
+	 * current model.
+	 */
+	void reset();
+}
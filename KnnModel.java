@@ -0,0 +1,1108 @@
+package weka.classifiers.lazy;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Compact representation of a normalised k-NN training set. <p>
+ *
+ * The numerical inputs are held in one flat row-major matrix, the categorical
+ * inputs in a flat row-major matrix of value codes and the outputs in their
+ * own array, so that the distance computations run over primitive arrays
+ * instead of going through WEKA's Instance objects. <p>
+ *
+ * Rows can be appended after the model is built. The rows are normalised
+ * with the min and max values in force when the model was built or last
+ * rebased (its frame), so that they do not need to be rewritten when the
+ * range of a numerical input widens. Instead, the squared difference of each
+ * numerical input is weighted by (frame range / current range)^2, which
+ * gives the distance between the rows normalised with the current range.
+ * Queries must be normalised with normaliseInputs, which uses the frame. <p>
+ *
+ * The rows are held in a ring buffer: the oldest row can be evicted in O(1)
+ * and its slot is reused by a later row once the buffer is full, so a row
+ * index is a slot of the buffer. The live rows are the m_NumRows slots from
+ * m_Start onwards, wrapping around the end of the arrays. <p>
+ *
+ * The inputs may instead be held outside the heap (see OffHeapRows), in
+ * direct buffers or in the mapping of a model file. Such a model is searched
+ * and updated in the same way, through numeric and nominal, except that a
+ * mapped model cannot be modified. It is copied to the heap when serialised,
+ * and moved back to direct buffers when deserialised. <p>
+ *
+ * A quantised copy of the numerical inputs (see QuantisedRows) may be kept
+ * on the heap, and is updated whenever they are written. With the exact
+ * re-rank, it is kept next to the inputs, wherever they are held, and
+ * linear scans read the compact copy first, through quantisedDistance, and
+ * only read the inputs of the rows it cannot discard. Without it, the
+ * inputs held on the heap are dropped and the quantised ones stand for them
+ * everywhere, so that every distance is approximate. <p>
+ *
+ * A condensed model (see PrototypeCondenser) holds prototypes rather than
+ * training instances, each standing for the number of instances given by
+ * its row weight, by which the outputs of the neighbours are weighted.
+ */
+final class KnnModel implements Serializable {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Layout of the attributes of the training data. */
+	final AttributeLayout m_Layout;
+
+	/** Number of training instances. */
+	int m_NumRows;
+
+	/** Slot of the oldest training instance. */
+	int m_Start;
+
+	/** Normalised numerical inputs, capacity x layout.numNumeric(). */
+	double[] m_Numeric;
+
+	/** Codes of the categorical inputs, capacity x layout.numNominal(). */
+	int[] m_Nominal;
+
+	/** Output of each training instance. */
+	double[] m_ClassValues;
+
+	/** Number of training instances each row stands for, or null if each stands for one. */
+	double[] m_RowWeights;
+
+	/** Minimum value of each numerical input in the frame the rows are normalised with. */
+	private double[] m_FrameMin;
+
+	/** Maximum value of each numerical input in the frame the rows are normalised with. */
+	private double[] m_FrameMax;
+
+	/** Weight of the squared difference of each numerical input, or null if they are all 1. */
+	double[] m_Weights;
+
+	/** Square root of the largest weight, or 1 if greater. */
+	double m_WeightScale = 1;
+
+	/** Number of rows when the frame stopped matching the current range, or -1. */
+	private int m_StaleRows = -1;
+
+	/** Number of rows appended since the frame stopped matching the current range. */
+	private int m_StaleAppended;
+
+	/** Inputs of the rows when they are held outside the heap, or null. */
+	private transient OffHeapRows m_OffHeap;
+
+	/** Whether the inputs are to be moved outside the heap once deserialised. */
+	private boolean m_MoveOffHeap;
+
+	/** Whether the vectorised distance kernel is to be used when available. */
+	private boolean m_Vectorised;
+
+	/** Kernel discarding rows before their exact distance is computed, or null. */
+	private transient DistanceKernel m_Kernel;
+
+	/**
+	 * Factor bringing a distance computed by m_Kernel below the exact
+	 * distance, whatever the order in which the kernel accumulates it.
+	 */
+	private double m_KernelScale;
+
+	/** Quantisation of the numerical inputs, one of the types of QuantisedRows. */
+	private int m_Quantisation = QuantisedRows.NONE;
+
+	/** Whether the distances of the rows not discarded by the quantised inputs are exact. */
+	private boolean m_Rerank = true;
+
+	/** Quantised copy of the numerical inputs, or null. */
+	private QuantisedRows m_Quantised;
+
+	/**
+	 * Factor bringing a lower bound computed from m_Quantised below the
+	 * exact distance despite rounding errors.
+	 */
+	private double m_QuantisedScale;
+
+	private KnnModel(AttributeLayout layout, int numRows, double[] min, double[] max) {
+		m_Layout = layout;
+		m_NumRows = numRows;
+		m_Numeric = new double[numRows * layout.numNumeric()];
+		m_Nominal = new int[numRows * layout.numNominal()];
+		m_ClassValues = new double[numRows];
+		m_FrameMin = Arrays.copyOf(min, layout.numNumeric());
+		m_FrameMax = Arrays.copyOf(max, layout.numNumeric());
+	}
+
+	/**
+	 * Creates a model of a number of rows, all 0, to be filled by setRow.
+	 *
+	 * @param layout layout of the attributes of the training data
+	 * @param numRows number of rows
+	 * @param min minimum value of each numerical input used for the normalisation
+	 * @param max maximum value of each numerical input used for the normalisation
+	 * @param offHeap true to hold the inputs in direct buffers outside the heap
+	 * @return the model
+	 */
+	static KnnModel allocate(AttributeLayout layout, int numRows, double[] min, double[] max, boolean offHeap) {
+		KnnModel model = new KnnModel(layout, offHeap ? 0 : numRows, min, max);
+		if (offHeap) {
+			model.m_NumRows = numRows;
+			model.m_ClassValues = new double[numRows];
+			model.m_OffHeap = OffHeapRows.allocate(numRows, layout.numNumeric(), layout.numNominal());
+		}
+		return model;
+	}
+
+	/**
+	 * Creates a model of prototypes whose inputs are already normalised with
+	 * the given min and max values.
+	 *
+	 * @param layout layout of the attributes of the training data
+	 * @param min minimum value of each numerical input used for the normalisation
+	 * @param max maximum value of each numerical input used for the normalisation
+	 * @param numeric normalised numerical inputs, numRows x numNumeric
+	 * @param nominal categorical input codes, numRows x numNominal
+	 * @param classValues output of each prototype
+	 * @param rowWeights number of training instances each prototype stands for
+	 * @param offHeap true to hold the inputs in direct buffers outside the heap
+	 * @return the model
+	 */
+	static KnnModel prototypes(AttributeLayout layout, double[] min, double[] max, double[] numeric, int[] nominal,
+			double[] classValues, double[] rowWeights, boolean offHeap) {
+		KnnModel model = new KnnModel(layout, 0, min, max);
+		model.m_NumRows = classValues.length;
+		model.m_Numeric = numeric;
+		model.m_Nominal = nominal;
+		model.m_ClassValues = classValues;
+		model.m_RowWeights = rowWeights;
+		if (offHeap) {
+			model.moveOffHeap();
+		}
+		return model;
+	}
+
+	/**
+	 * Sets a row to a training instance, normalising it with the frame of
+	 * the model. Different rows may be set by different threads at once.
+	 *
+	 * @param row slot of the row
+	 * @param instance raw training instance, left unchanged
+	 */
+	void setRow(int row, Instance instance) {
+		for (int j = 0; j < m_Layout.numNumeric(); j++) {
+			double value = instance.value(m_Layout.m_NumericAttributes[j]);
+			setNumeric(row, j, AttributeLayout.normalise(value, m_FrameMin[j], m_FrameMax[j]));
+		}
+		for (int j = 0; j < m_Layout.numNominal(); j++) {
+			setNominal(row, j, (int) instance.value(m_Layout.m_NominalAttributes[j]));
+		}
+		m_ClassValues[row] = instance.classValue();
+		if (m_RowWeights != null) {
+			m_RowWeights[row] = 1;
+		}
+	}
+
+	/**
+	 * Creates a model without rows, to which raw rows are appended by
+	 * appendRaw before they are all normalised by normalise.
+	 *
+	 * @param layout layout of the attributes of the training data
+	 * @param offHeap true to hold the inputs in direct buffers outside the heap
+	 * @return the model
+	 */
+	static KnnModel empty(AttributeLayout layout, boolean offHeap) {
+		double[] frame = new double[layout.numNumeric()];
+		KnnModel model = new KnnModel(layout, 0, frame, frame);
+		if (offHeap) {
+			model.m_OffHeap = OffHeapRows.allocate(0, layout.numNumeric(), layout.numNominal());
+		}
+		return model;
+	}
+
+	/**
+	 * Appends a row whose numerical inputs are not normalised yet.
+	 *
+	 * @param numeric raw numerical inputs
+	 * @param nominal codes of the categorical inputs
+	 * @param classValue output
+	 * @return the slot of the row
+	 */
+	int appendRaw(double[] numeric, int[] nominal, double classValue) {
+		if (m_NumRows == capacity()) {
+			reserve(Math.max(16, 2 * m_NumRows));
+		}
+		int row = slot(m_NumRows);
+		for (int j = 0; j < numeric.length; j++) {
+			setNumeric(row, j, numeric[j]);
+		}
+		for (int j = 0; j < nominal.length; j++) {
+			setNominal(row, j, nominal[j]);
+		}
+		m_ClassValues[row] = classValue;
+		if (m_RowWeights != null) {
+			m_RowWeights[row] = 1;
+		}
+		m_NumRows++;
+		return row;
+	}
+
+	/**
+	 * Normalises the rows appended by appendRaw with the formula of
+	 * MyKnn.normaliseNumericInputAttributes, and makes min and max the
+	 * frame of the model.
+	 *
+	 * @param min minimum value of each numerical input
+	 * @param max maximum value of each numerical input
+	 */
+	void normalise(double[] min, double[] max) {
+		for (int i = 0; i < m_NumRows; i++) {
+			int row = slot(i);
+			for (int j = 0; j < m_Layout.numNumeric(); j++) {
+				setNumeric(row, j, AttributeLayout.normalise(exactNumeric(row, j), min[j], max[j]));
+			}
+		}
+		m_FrameMin = Arrays.copyOf(min, m_Layout.numNumeric());
+		m_FrameMax = Arrays.copyOf(max, m_Layout.numNumeric());
+		m_Weights = null;
+		m_WeightScale = 1;
+		m_StaleRows = -1;
+		m_StaleAppended = 0;
+	}
+
+	/**
+	 * Creates a model whose inputs are held outside the heap. The rows must
+	 * be normalised with the given min and max values.
+	 *
+	 * @param layout layout of the attributes of the training data
+	 * @param min minimum value of each numerical input used for the normalisation
+	 * @param max maximum value of each numerical input used for the normalisation
+	 * @param rows inputs of the rows
+	 * @param classValues output of each row
+	 * @return the model
+	 */
+	static KnnModel offHeap(AttributeLayout layout, double[] min, double[] max, OffHeapRows rows, double[] classValues) {
+		KnnModel model = new KnnModel(layout, 0, min, max);
+		model.m_NumRows = classValues.length;
+		model.m_ClassValues = classValues;
+		model.m_OffHeap = rows;
+		return model;
+	}
+
+	/**
+	 * Copies the model to the heap, with its rows in order of age so that
+	 * the oldest row is at index 0. The frame and weights are kept, but the
+	 * copy is not quantised.
+	 *
+	 * @return the copy
+	 */
+	KnnModel copy() {
+		int numNumeric = m_Layout.numNumeric();
+		int numNominal = m_Layout.numNominal();
+		KnnModel copy = new KnnModel(m_Layout, m_NumRows, m_FrameMin, m_FrameMax);
+		for (int i = 0; i < m_NumRows; i++) {
+			int row = slot(i);
+			for (int j = 0; j < numNumeric; j++) {
+				copy.m_Numeric[i * numNumeric + j] = exactNumeric(row, j);
+			}
+			for (int j = 0; j < numNominal; j++) {
+				copy.m_Nominal[i * numNominal + j] = nominal(row, j);
+			}
+			copy.m_ClassValues[i] = m_ClassValues[row];
+		}
+		if (m_RowWeights != null) {
+			copy.m_RowWeights = new double[m_NumRows];
+			for (int i = 0; i < m_NumRows; i++) {
+				copy.m_RowWeights[i] = m_RowWeights[slot(i)];
+			}
+		}
+		copy.m_Weights = m_Weights == null ? null : m_Weights.clone();
+		copy.m_WeightScale = m_WeightScale;
+		copy.m_StaleRows = m_StaleRows;
+		copy.m_StaleAppended = m_StaleAppended;
+		copy.setVectorised(m_Vectorised);
+		return copy;
+	}
+
+	/**
+	 * Moves the inputs of all slots to direct buffers outside the heap,
+	 * keeping the slot of every row.
+	 */
+	void moveOffHeap() {
+		if (m_OffHeap != null) {
+			return;
+		}
+		int numNumeric = m_Layout.numNumeric();
+		int numNominal = m_Layout.numNominal();
+		OffHeapRows rows = OffHeapRows.allocate(capacity(), numNumeric, numNominal);
+		for (int row = 0; row < capacity(); row++) {
+			for (int j = 0; j < numNumeric; j++) {
+				rows.setNumeric(row, j, m_Numeric[row * numNumeric + j]);
+			}
+			for (int j = 0; j < numNominal; j++) {
+				rows.setNominal(row, j, m_Nominal[row * numNominal + j]);
+			}
+		}
+		m_OffHeap = rows;
+		m_Numeric = new double[0];
+		m_Nominal = new int[0];
+	}
+
+	/**
+	 * @return true if the inputs are held outside the heap
+	 */
+	boolean isOffHeap() {
+		return m_OffHeap != null;
+	}
+
+	/**
+	 * @return true if the inputs are held in the read-only mapping of a
+	 * model file, in which case the model cannot be modified
+	 */
+	boolean isReadOnly() {
+		return m_OffHeap != null && m_OffHeap.isReadOnly();
+	}
+
+	/**
+	 * Releases the inputs of the model, including the buffers outside the
+	 * heap (see OffHeapRows.close). The model must not be used afterwards.
+	 */
+	void close() {
+		if (m_OffHeap != null) {
+			m_OffHeap.close();
+			m_OffHeap = null;
+		}
+		m_Numeric = new double[0];
+		m_Nominal = new int[0];
+		m_ClassValues = new double[0];
+		m_RowWeights = null;
+		m_Quantised = null;
+		m_NumRows = 0;
+		m_Start = 0;
+	}
+
+	/**
+	 * @param row index of the training instance
+	 * @param j position of the numerical input
+	 * @return the normalised value of the input, as given by the quantised
+	 * inputs if the distances are approximated from them
+	 */
+	double numeric(int row, int j) {
+		if (isApproximate()) {
+			return m_Quantised.value(row, j);
+		}
+		return m_OffHeap != null ? m_OffHeap.numeric(row, j) : m_Numeric[row * m_Layout.numNumeric() + j];
+	}
+
+	/**
+	 * @param row index of the training instance
+	 * @param j position of the numerical input
+	 * @return the normalised value of the input, or the value given by the
+	 * quantised inputs if the exact one was dropped
+	 */
+	private double exactNumeric(int row, int j) {
+		if (m_OffHeap != null) {
+			return m_OffHeap.numeric(row, j);
+		}
+		return hasExactInputs() ? m_Numeric[row * m_Layout.numNumeric() + j] : m_Quantised.value(row, j);
+	}
+
+	/**
+	 * @param row index of the training instance
+	 * @param j position of the categorical input
+	 * @return the code of the value of the input
+	 */
+	int nominal(int row, int j) {
+		return m_OffHeap != null ? m_OffHeap.nominal(row, j) : m_Nominal[row * m_Layout.numNominal() + j];
+	}
+
+	private void setNumeric(int row, int j, double value) {
+		if (m_OffHeap != null) {
+			m_OffHeap.setNumeric(row, j, value);
+		} else if (hasExactInputs()) {
+			m_Numeric[row * m_Layout.numNumeric() + j] = value;
+		}
+		if (m_Quantised != null) {
+			m_Quantised.set(row, j, value);
+		}
+	}
+
+	private void setNominal(int row, int j, int value) {
+		if (m_OffHeap != null) {
+			m_OffHeap.setNominal(row, j, value);
+		} else {
+			m_Nominal[row * m_Layout.numNominal() + j] = value;
+		}
+	}
+
+	/**
+	 * @param j position of the numerical input
+	 * @return the minimum value of the input in the frame of the model
+	 */
+	double frameMin(int j) {
+		return m_FrameMin[j];
+	}
+
+	/**
+	 * @param j position of the numerical input
+	 * @return the maximum value of the input in the frame of the model
+	 */
+	double frameMax(int j) {
+		return m_FrameMax[j];
+	}
+
+	/**
+	 * Normalises the input attributes of a query with the frame of the
+	 * model, without modifying the instance.
+	 *
+	 * @param instance instance to be normalised, left unchanged
+	 * @param query buffers receiving the normalised inputs
+	 */
+	void normaliseInputs(Instance instance, KnnQuery query) {
+		m_Layout.normaliseInputs(instance, m_FrameMin, m_FrameMax, query.m_Numeric, query.m_Nominal);
+	}
+
+	/**
+	 * Appends a training instance to the model, normalising it with the
+	 * frame of the model. The range of its numerical inputs must already
+	 * have been given to setRange.
+	 *
+	 * @param instance training instance, left unchanged
+	 */
+	int append(Instance instance) {
+		if (m_NumRows == capacity()) {
+			reserve(Math.max(16, 2 * m_NumRows));
+		}
+
+		int row = slot(m_NumRows);
+		setRow(row, instance);
+		m_NumRows++;
+		m_StaleAppended++;
+		return row;
+	}
+
+	/**
+	 * Evicts the oldest row of the model, whose slot will be reused once the
+	 * buffer is full. Search structures must have removed it already.
+	 *
+	 * @return the slot of the evicted row
+	 */
+	int evict() {
+		int row = m_Start;
+		m_Start = slot(1);
+		m_NumRows--;
+		return row;
+	}
+
+	/**
+	 * Grows the buffer so that it can hold a number of rows without
+	 * reallocating, keeping the slot of every row.
+	 *
+	 * @param capacity number of rows
+	 * @throws IllegalStateException if the live rows wrap around the end of the buffer
+	 */
+	void reserve(int capacity) {
+		if (capacity <= capacity()) {
+			return;
+		}
+		if (m_Start + m_NumRows > capacity()) {
+			throw new IllegalStateException("Cannot grow a model whose rows wrap around");
+		}
+		if (m_OffHeap != null) {
+			m_OffHeap.reserve(capacity);
+		} else {
+			if (hasExactInputs()) {
+				m_Numeric = Arrays.copyOf(m_Numeric, capacity * m_Layout.numNumeric());
+			}
+			m_Nominal = Arrays.copyOf(m_Nominal, capacity * m_Layout.numNominal());
+		}
+		if (m_Quantised != null) {
+			m_Quantised.reserve(capacity);
+		}
+		m_ClassValues = Arrays.copyOf(m_ClassValues, capacity);
+		if (m_RowWeights != null) {
+			m_RowWeights = Arrays.copyOf(m_RowWeights, capacity);
+		}
+	}
+
+	/**
+	 * @return the number of rows the buffer holds without reallocating
+	 */
+	int capacity() {
+		return m_ClassValues.length;
+	}
+
+	/**
+	 * Estimates the memory held by the rows, on and off the heap, from the
+	 * sizes of their arrays and buffers, excluding the search structure.
+	 *
+	 * @return the number of bytes
+	 */
+	long footprint() {
+		long bytes = 8L * m_Numeric.length + 4L * m_Nominal.length + 8L * m_ClassValues.length;
+		if (m_RowWeights != null) {
+			bytes += 8L * m_RowWeights.length;
+		}
+		if (m_OffHeap != null) {
+			bytes += (long) capacity() * (8 * m_Layout.numNumeric() + 4 * m_Layout.numNominal());
+		}
+		if (m_Quantised != null) {
+			int inputBytes = m_Quantisation == QuantisedRows.FLOAT32 ? 4 : m_Quantisation == QuantisedRows.INT16 ? 2 : 1;
+			bytes += (long) capacity() * m_Layout.numNumeric() * inputBytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param i age of a row, 0 for the oldest one
+	 * @return the slot of the row
+	 */
+	int slot(int i) {
+		int slot = m_Start + i;
+		return slot < capacity() ? slot : slot - capacity();
+	}
+
+	/**
+	 * @return the slot after the last live row before the end of the buffer;
+	 * the live rows are [m_Start, firstEnd()) then [0, secondEnd())
+	 */
+	int firstEnd() {
+		return Math.min(m_Start + m_NumRows, capacity());
+	}
+
+	/**
+	 * @return the slot after the last live row that wrapped around the end of the buffer
+	 */
+	int secondEnd() {
+		return Math.max(0, m_Start + m_NumRows - capacity());
+	}
+
+	/**
+	 * Sets the current range of the numerical inputs, which the distances
+	 * must reflect. The rows are not rewritten, except for the inputs that
+	 * were constant in the frame of the model and no longer are.
+	 *
+	 * @param min current minimum value of each numerical input
+	 * @param max current maximum value of each numerical input
+	 * @return true if rows were rewritten, in which case search structures
+	 * built over the model must be rebuilt
+	 */
+	boolean setRange(double[] min, double[] max) {
+		int numNumeric = m_Layout.numNumeric();
+		double[] weights = new double[numNumeric];
+		boolean weighted = false;
+		double largest = 1;
+		boolean rewritten = false;
+		for (int j = 0; j < numNumeric; j++) {
+			double frameRange = m_FrameMax[j] - m_FrameMin[j];
+			double range = max[j] - min[j];
+			if (frameRange == 0 && range != 0) {
+				// the rows hold no information about the range of a
+				// constant input, they can only be rewritten
+				rebase(j, min[j], max[j]);
+				frameRange = range;
+				rewritten = true;
+			}
+			// an input constant over the current rows no longer separates them
+			double scale = range == frameRange ? 1 : range == 0 ? 0 : frameRange / range;
+			weights[j] = scale * scale;
+			weighted |= weights[j] != 1;
+			largest = Math.max(largest, weights[j]);
+		}
+
+		m_Weights = weighted ? weights : null;
+		m_WeightScale = Math.sqrt(largest);
+		if (!weighted) {
+			m_StaleRows = -1;
+		} else if (m_StaleRows < 0) {
+			m_StaleRows = m_NumRows;
+			m_StaleAppended = 0;
+		}
+		return rewritten;
+	}
+
+	/**
+	 * Converts numerical inputs normalised with the current range into the
+	 * frame of the model.
+	 *
+	 * @param numeric numerical inputs, converted in place
+	 * @param min current minimum value of each numerical input
+	 * @param max current maximum value of each numerical input
+	 */
+	void toFrame(double[] numeric, double[] min, double[] max) {
+		for (int j = 0; j < numeric.length; j++) {
+			if (min[j] != m_FrameMin[j] || max[j] != m_FrameMax[j]) {
+				double value = numeric[j] * (max[j] - min[j]) + min[j];
+				numeric[j] = AttributeLayout.normalise(value, m_FrameMin[j], m_FrameMax[j]);
+			}
+		}
+	}
+
+	/**
+	 * @param row index of the row
+	 * @return the number of training instances the row stands for
+	 */
+	double rowWeight(int row) {
+		return m_RowWeights == null ? 1 : m_RowWeights[row];
+	}
+
+	/**
+	 * Averages the outputs of some rows, weighting each by the number of
+	 * training instances it stands for.
+	 *
+	 * @param candidates rows whose outputs are averaged, which must have been sorted
+	 * @return the weighted average output
+	 */
+	double meanOutput(NeighbourCandidates candidates) {
+		double runningTotal = 0;
+		if (m_RowWeights == null) {
+			for (int i = 0; i < candidates.size(); i++) {
+				runningTotal += m_ClassValues[candidates.row(i)];
+			}
+			return runningTotal / candidates.size();
+		}
+
+		double totalWeight = 0;
+		for (int i = 0; i < candidates.size(); i++) {
+			int row = candidates.row(i);
+			runningTotal += m_RowWeights[row] * m_ClassValues[row];
+			totalWeight += m_RowWeights[row];
+		}
+		return runningTotal / totalWeight;
+	}
+
+	/**
+	 * @return true if the rows are weighted prototypes
+	 */
+	boolean isCondensed() {
+		return m_RowWeights != null;
+	}
+
+	/**
+	 * @return true if the frame of the model no longer matches the current range
+	 */
+	boolean isWeighted() {
+		return m_Weights != null;
+	}
+
+	/**
+	 * Returns whether the rows should be renormalised with the current
+	 * range, which is the case once at least as many rows have been appended
+	 * since the frame stopped matching the current range as there were rows
+	 * at that time. Rebasing then costs O(d) per appended row.
+	 *
+	 * @return true if rebase should be called
+	 */
+	boolean needsRebase() {
+		return m_Weights != null && m_StaleAppended >= m_StaleRows;
+	}
+
+	/**
+	 * Renormalises all rows with the current range, which becomes the frame
+	 * of the model, except for the inputs that are constant over the current
+	 * rows. Search structures built over the model must be rebuilt.
+	 *
+	 * @param min current minimum value of each numerical input
+	 * @param max current maximum value of each numerical input
+	 */
+	void rebase(double[] min, double[] max) {
+		for (int j = 0; j < m_Layout.numNumeric(); j++) {
+			if ((min[j] != m_FrameMin[j] || max[j] != m_FrameMax[j]) && min[j] != max[j]) {
+				rebase(j, min[j], max[j]);
+			}
+		}
+		m_StaleRows = -1;
+		setRange(min, max);
+	}
+
+	private void rebase(int attribute, double min, double max) {
+		double frameMin = m_FrameMin[attribute];
+		double frameRange = m_FrameMax[attribute] - frameMin;
+		for (int i = 0; i < m_NumRows; i++) {
+			int row = slot(i);
+			double value = exactNumeric(row, attribute) * frameRange + frameMin;
+			if (frameRange == 0 || Double.isNaN(value)) {
+				value = frameMin;
+			}
+			setNumeric(row, attribute, (value - min) / (max - min));
+		}
+		m_FrameMin[attribute] = min;
+		m_FrameMax[attribute] = max;
+	}
+
+	/**
+	 * Sets whether the numerical part of the distances should be computed
+	 * with the kernel built on the JDK Vector API. If the jdk.incubator.vector
+	 * module is not available, the scalar loops are used instead.
+	 *
+	 * @param vectorised true to use the vectorised kernel when available
+	 */
+	void setVectorised(boolean vectorised) {
+		m_Vectorised = vectorised;
+		m_Kernel = vectorised ? DistanceKernel.vectorised() : null;
+
+		// both the kernel and the scalar loop have a relative error below
+		// (n + 1) units in the last place, as they only add non-negative terms
+		m_KernelScale = 1 - 4 * (m_Layout.numNumeric() + 1) * Math.ulp(1.0);
+	}
+
+	/**
+	 * @return true if distances are computed with the vectorised kernel
+	 */
+	boolean isVectorised() {
+		return m_Kernel != null;
+	}
+
+	/**
+	 * Sets how the numerical inputs are quantised, encoding the inputs of
+	 * all slots into a new quantised copy. With the re-rank, the inputs stay
+	 * where they are held; without it, the inputs held on the heap are
+	 * dropped.
+	 *
+	 * @param quantisation one of the types of QuantisedRows
+	 * @param rerank true to compute the exact distance of the rows that the
+	 * quantised inputs cannot discard, false to approximate all distances
+	 * from the quantised inputs
+	 * @throws IllegalStateException if the exact inputs were dropped already
+	 */
+	void setQuantisation(int quantisation, boolean rerank) {
+		if (!hasExactInputs()) {
+			throw new IllegalStateException("The exact inputs of the model were dropped");
+		}
+		m_Quantisation = quantisation;
+		m_Rerank = rerank;
+		m_QuantisedScale = 1 - 4 * (m_Layout.numNumeric() + 1) * Math.ulp(1.0);
+		if (quantisation == QuantisedRows.NONE) {
+			m_Quantised = null;
+			return;
+		}
+		int numNumeric = m_Layout.numNumeric();
+		QuantisedRows quantised = new QuantisedRows(quantisation, capacity(), numNumeric);
+		for (int row = 0; row < capacity(); row++) {
+			for (int j = 0; j < numNumeric; j++) {
+				quantised.set(row, j, exactNumeric(row, j));
+			}
+		}
+		m_Quantised = quantised;
+		if (!rerank && m_OffHeap == null) {
+			m_Numeric = new double[0];
+		}
+	}
+
+	/**
+	 * @return true if all distances are approximated from quantised inputs
+	 */
+	boolean isApproximate() {
+		return m_Quantised != null && !m_Rerank;
+	}
+
+	/**
+	 * @return false if the exact numerical inputs were dropped from the heap
+	 * for the quantised ones, in which case the quantisation cannot change
+	 */
+	boolean hasExactInputs() {
+		return m_OffHeap != null || !isApproximate();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		setVectorised(m_Vectorised);
+		if (m_MoveOffHeap) {
+			m_MoveOffHeap = false;
+			moveOffHeap();
+		}
+		if (m_Quantised == null) {
+			setQuantisation(m_Quantisation, m_Rerank);
+		}
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		if (m_OffHeap == null) {
+			return this;
+		}
+
+		// a copy keeping the slot of every row, which search structures refer to
+		KnnModel copy = new KnnModel(m_Layout, capacity(), m_FrameMin, m_FrameMax);
+		for (int row = 0; row < capacity(); row++) {
+			for (int j = 0; j < m_Layout.numNumeric(); j++) {
+				copy.m_Numeric[row * m_Layout.numNumeric() + j] = exactNumeric(row, j);
+			}
+			for (int j = 0; j < m_Layout.numNominal(); j++) {
+				copy.m_Nominal[row * m_Layout.numNominal() + j] = nominal(row, j);
+			}
+		}
+		copy.m_NumRows = m_NumRows;
+		copy.m_Start = m_Start;
+		copy.m_ClassValues = m_ClassValues;
+		copy.m_RowWeights = m_RowWeights;
+		copy.m_Weights = m_Weights;
+		copy.m_WeightScale = m_WeightScale;
+		copy.m_StaleRows = m_StaleRows;
+		copy.m_StaleAppended = m_StaleAppended;
+		copy.m_Vectorised = m_Vectorised;
+		copy.m_Quantisation = m_Quantisation;
+		copy.m_Rerank = m_Rerank;
+		copy.m_MoveOffHeap = true;
+		return copy;
+	}
+
+	/**
+	 * Squared Euclidean distance between a query and a training row, using
+	 * the same difference between categorical values as
+	 * MyKnn.euclideanDistance (0 if equal, 1 otherwise).
+	 *
+	 * @param numeric normalised numerical inputs of the query
+	 * @param nominal categorical input codes of the query
+	 * @param row index of the training instance
+	 * @return the squared distance
+	 */
+	double squaredDistance(double[] numeric, int[] nominal, int row) {
+		return squaredDistance(numeric, 0, nominal, 0, row);
+	}
+
+	/**
+	 * Squared distance between a query and a training row, abandoned as soon
+	 * as it is known to be strictly greater than a bound. <p>
+	 *
+	 * The categorical mismatches are counted first, as each one adds 1 to
+	 * the distance, and the numerical differences are then accumulated in the
+	 * same order as in squaredDistance, so that a distance that is not
+	 * abandoned is exactly the same. If a vectorised kernel is set, it is
+	 * used first to discard the rows that are certainly too far.
+	 *
+	 * @param numeric normalised numerical inputs of the query
+	 * @param nominal categorical input codes of the query
+	 * @param row index of the training instance
+	 * @param bound distance above which the computation can be abandoned
+	 * @return the squared distance, or a partial sum strictly greater than
+	 * bound if the computation was abandoned
+	 */
+	double squaredDistance(double[] numeric, int[] nominal, int row, double bound) {
+		if (m_OffHeap != null) {
+			int mismatches = m_OffHeap.mismatches(nominal, row);
+			if (mismatches > bound) {
+				return mismatches;
+			}
+			return squaredDistance(numeric, row, mismatches, bound);
+		}
+		int mismatches = 0;
+		int offset = row * nominal.length;
+		for (int j = 0; j < nominal.length; j++) {
+			if (nominal[j] != m_Nominal[offset + j]) {
+				mismatches++;
+			}
+		}
+		if (mismatches > bound) {
+			return mismatches;
+		}
+		return squaredDistance(numeric, row, mismatches, bound);
+	}
+
+	/**
+	 * Prepares a query for quantisedDistance, once per query and model.
+	 *
+	 * @param query normalised query
+	 */
+	void prepareQuantised(KnnQuery query) {
+		m_Quantised.prepare(query, m_Weights, m_Rerank);
+	}
+
+	/**
+	 * Squared distance between a prepared query and a training row whose
+	 * number of categorical mismatches with the query is already known,
+	 * computed first from the quantised inputs. With the re-rank, rows whose
+	 * lower bound is strictly greater than the bound are discarded and the
+	 * others get their exact distance, as squaredDistance would; without it,
+	 * the distance is approximated from the quantised inputs.
+	 *
+	 * @param query normalised query, prepared by prepareQuantised
+	 * @param row index of the training instance
+	 * @param mismatches number of categorical inputs of the row differing from the query
+	 * @param bound distance above which the computation can be abandoned
+	 * @return the squared distance, or a value strictly greater than bound
+	 * if the row was discarded
+	 */
+	double quantisedDistance(KnnQuery query, int row, int mismatches, double bound) {
+		QuantisedRows quantised = m_Quantised;
+		if (!m_Rerank) {
+			return quantised.squaredDistance(query, row, bound - mismatches, m_Weights) + mismatches;
+		}
+		if (bound != Double.POSITIVE_INFINITY) {
+			// rows discarded here are certainly too far, the others are
+			// computed exactly below so that ties are resolved as usual
+			double lowerBound = quantised.lowerBound(query, row, bound - mismatches, m_Weights) + mismatches;
+			if (m_QuantisedScale * lowerBound > bound) {
+				return lowerBound;
+			}
+		}
+		return squaredDistance(query.m_Numeric, row, mismatches, bound);
+	}
+
+	/**
+	 * @param nominal categorical input codes of the query
+	 * @param row index of the training instance
+	 * @return the number of categorical inputs of the row differing from the query
+	 */
+	int mismatches(int[] nominal, int row) {
+		if (m_OffHeap != null) {
+			return m_OffHeap.mismatches(nominal, row);
+		}
+		int offset = row * nominal.length;
+		int mismatches = 0;
+		for (int j = 0; j < nominal.length; j++) {
+			if (nominal[j] != m_Nominal[offset + j]) {
+				mismatches++;
+			}
+		}
+		return mismatches;
+	}
+
+	/**
+	 * @return true if linear scans read the quantised inputs first
+	 */
+	boolean isQuantised() {
+		return m_Quantised != null;
+	}
+
+	/**
+	 * Squared distance between a query and a training row whose number of
+	 * categorical mismatches with the query is already known, abandoned as
+	 * soon as it is known to be strictly greater than a bound. It is
+	 * approximated from the quantised inputs, as by quantisedDistance, if
+	 * the model is approximate.
+	 *
+	 * @param numeric normalised numerical inputs of the query
+	 * @param row index of the training instance
+	 * @param mismatches number of categorical inputs of the row differing from the query
+	 * @param bound distance above which the computation can be abandoned
+	 * @return the squared distance, or a partial sum strictly greater than
+	 * bound if the computation was abandoned
+	 */
+	double squaredDistance(double[] numeric, int row, int mismatches, double bound) {
+		if (isApproximate()) {
+			return m_Quantised.squaredDistance(numeric, row, bound - mismatches, m_Weights) + mismatches;
+		}
+		if (m_OffHeap != null) {
+			return m_OffHeap.squaredDistance(numeric, row, mismatches, bound, m_Weights);
+		}
+		int offset = row * numeric.length;
+		double[] weights = m_Weights;
+		if (weights != null) {
+			double sum = 0;
+			for (int j = 0; j < numeric.length; j++) {
+				double diff = numeric[j] - m_Numeric[offset + j];
+				sum += weights[j] * diff * diff;
+				if (sum > bound) {
+					return sum;
+				}
+			}
+			for (int j = 0; j < mismatches; j++) {
+				sum += 1;
+			}
+			return sum;
+		}
+		if (m_Kernel != null && bound != Double.POSITIVE_INFINITY) {
+			// rows discarded by the kernel are certainly too far, the others
+			// are computed exactly below so that ties are resolved as usual
+			double estimate = m_KernelScale * m_Kernel.squaredDistance(numeric, m_Numeric, offset, numeric.length);
+			for (int j = 0; j < mismatches; j++) {
+				estimate += 1;
+			}
+			if (estimate > bound) {
+				return estimate;
+			}
+		}
+
+		double sum = 0;
+		for (int j = 0; j < numeric.length; j++) {
+			double diff = numeric[j] - m_Numeric[offset + j];
+			sum += diff * diff;
+			if (sum > bound) {
+				return sum;
+			}
+		}
+		for (int j = 0; j < mismatches; j++) {
+			sum += 1;
+		}
+		return sum;
+	}
+
+	/**
+	 * Squared distance between a point held at some offset of primitive
+	 * arrays, such as the centre of a ball tree node, and a training row, in
+	 * the frame of the model: the weights are not applied.
+	 *
+	 * @param numeric array holding the normalised numerical inputs of the point
+	 * @param numericOffset position of the first numerical input in numeric
+	 * @param nominal array holding the categorical input codes of the point
+	 * @param nominalOffset position of the first categorical input in nominal
+	 * @param row index of the training instance
+	 * @return the squared distance
+	 */
+	double squaredDistance(double[] numeric, int numericOffset, int[] nominal, int nominalOffset, int row) {
+		int numNumeric = m_Layout.numNumeric();
+		int numNominal = m_Layout.numNominal();
+		double sum = 0;
+		for (int j = 0; j < numNumeric; j++) {
+			double diff = numeric[numericOffset + j] - numeric(row, j);
+			sum += diff * diff;
+		}
+		for (int j = 0; j < numNominal; j++) {
+			if (nominal[nominalOffset + j] != nominal(row, j)) {
+				sum += 1;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Squared distance between two training rows, in the frame of the model.
+	 *
+	 * @param row1 index of the first training instance
+	 * @param row2 index of the second training instance
+	 * @return the squared distance
+	 */
+	double squaredDistance(int row1, int row2) {
+		double sum = 0;
+		for (int j = 0; j < m_Layout.numNumeric(); j++) {
+			double diff = numeric(row1, j) - numeric(row2, j);
+			sum += diff * diff;
+		}
+		for (int j = 0; j < m_Layout.numNominal(); j++) {
+			if (nominal(row1, j) != nominal(row2, j)) {
+				sum += 1;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Recreates a training instance from the compact model, with its
+	 * numerical inputs normalised with the frame of the model and the
+	 * number of training instances it stands for as weight.
+	 *
+	 * @param row index of the training instance
+	 * @param header data set the instance should belong to
+	 * @return the instance
+	 */
+	Instance instance(int row, Instances header) {
+		double[] values = new double[m_Layout.m_NumAttributes];
+		int numNumeric = m_Layout.numNumeric();
+		int numNominal = m_Layout.numNominal();
+		for (int j = 0; j < numNumeric; j++) {
+			values[m_Layout.m_NumericAttributes[j]] = numeric(row, j);
+		}
+		for (int j = 0; j < numNominal; j++) {
+			values[m_Layout.m_NominalAttributes[j]] = nominal(row, j);
+		}
+		values[m_Layout.m_ClassIndex] = m_ClassValues[row];
+
+		Instance instance = new DenseInstance(rowWeight(row), values);
+		instance.setDataset(header);
+		return instance;
+	}
+}
@@ -0,0 +1,382 @@
+package weka.classifiers.lazy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Compact, versioned binary file holding a built MyKnn, which can be opened
+ * without parsing or copying the training data. <p>
+ *
+ * All values are little-endian. The file starts with a fixed header:
+ * <pre>
+ * int    magic ("KNNM") and format version
+ * int    numRows, numNumeric, numNominal, classIndex, rowsPerChunk, flags
+ * long   offsets of the numeric, nominal, output and index sections
+ * long   length of the index section
+ * int    lengths of the options and attribute header strings
+ * </pre>
+ * followed by the options of the classifier and the ARFF header of the
+ * training data (UTF-8), the min and max values the rows are normalised
+ * with, then, each aligned on 8 bytes, the normalised numerical inputs
+ * (numRows x numNumeric doubles), the categorical input codes (numRows x
+ * numNominal ints), the outputs (numRows doubles), the row weights (numRows
+ * doubles) if the ROW_WEIGHTS flag is set, and the serialised search
+ * structure, if the classifier does not scan its rows linearly. Version 1
+ * files, written before the row weights, have no flags and are still read. <p>
+ *
+ * When opened, the numeric and nominal sections are mapped read-only and
+ * searched in place, in chunks of rowsPerChunk rows so that each mapping
+ * stays below 2GB. Several processes opening the same file therefore share
+ * one copy of the rows in the page cache. Only the outputs, the row weights
+ * and the search structure are read onto the heap.
+ */
+final class KnnModelFile {
+
+	/** First four bytes of a model file, "KNNM". */
+	static final int MAGIC = 0x4D4E4E4B;
+
+	/** Version of the format written. */
+	static final int VERSION = 2;
+
+	/** Flag of the rows of a condensed model, followed by their weights. */
+	static final int ROW_WEIGHTS = 1;
+
+	/** Size of the fixed header. */
+	private static final int FIXED_HEADER = 80;
+
+	/** Classes the serialised search structure may be made of. */
+	private static final String INDEX_FILTER = "weka.classifiers.lazy.*;java.base/*;!*";
+
+	private KnnModelFile() {
+	}
+
+	/**
+	 * Writes a built classifier to a model file. The rows are written in
+	 * order of age and normalised with the current min and max values, and
+	 * the search structure is rebuilt over them.
+	 *
+	 * @param knn built classifier, left unchanged
+	 * @param file file to be written
+	 * @throws IOException if the file cannot be written
+	 */
+	static void write(MyKnn knn, File file) throws IOException {
+		KnnModel model = knn.m_Model.copy();
+		if (model.isWeighted()) {
+			model.rebase(knn.min, knn.max);
+		}
+		NeighbourSearch search = knn.createSearch(model);
+
+		int numRows = model.m_NumRows;
+		int numNumeric = model.m_Layout.numNumeric();
+		int numNominal = model.m_Layout.numNominal();
+		byte[] options = Utils.joinOptions(knn.getOptions()).getBytes(StandardCharsets.UTF_8);
+		byte[] header = knn.m_TrainingData.stringFreeStructure().toString().getBytes(StandardCharsets.UTF_8);
+		byte[] index = search instanceof LinearSearch ? new byte[0] : serialise(search, model);
+
+		long numericOffset = align(FIXED_HEADER + options.length + header.length + 16L * numNumeric);
+		long nominalOffset = align(numericOffset + 8L * numRows * numNumeric);
+		long classOffset = align(nominalOffset + 4L * numRows * numNominal);
+		long weightOffset = classOffset + 8L * numRows;
+		long indexOffset = align(weightOffset + (model.isCondensed() ? 8L * numRows : 0));
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				SectionWriter out = new SectionWriter(channel)) {
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(numRows);
+			out.putInt(numNumeric);
+			out.putInt(numNominal);
+			out.putInt(model.m_Layout.m_ClassIndex);
+			out.putInt(OffHeapRows.rowsPerChunk(numNumeric, numNominal, OffHeapRows.CHUNK_BYTES));
+			out.putInt(model.isCondensed() ? ROW_WEIGHTS : 0);
+			out.putLong(numericOffset);
+			out.putLong(nominalOffset);
+			out.putLong(classOffset);
+			out.putLong(indexOffset);
+			out.putLong(index.length);
+			out.putInt(options.length);
+			out.putInt(header.length);
+			out.put(options);
+			out.put(header);
+			for (int j = 0; j < numNumeric; j++) {
+				out.putDouble(model.frameMin(j));
+			}
+			for (int j = 0; j < numNumeric; j++) {
+				out.putDouble(model.frameMax(j));
+			}
+
+			out.padTo(numericOffset);
+			for (int i = 0; i < numRows * numNumeric; i++) {
+				out.putDouble(model.m_Numeric[i]);
+			}
+			out.padTo(nominalOffset);
+			for (int i = 0; i < numRows * numNominal; i++) {
+				out.putInt(model.m_Nominal[i]);
+			}
+			out.padTo(classOffset);
+			for (int row = 0; row < numRows; row++) {
+				out.putDouble(model.m_ClassValues[row]);
+			}
+			if (model.isCondensed()) {
+				for (int row = 0; row < numRows; row++) {
+					out.putDouble(model.m_RowWeights[row]);
+				}
+			}
+			out.padTo(indexOffset);
+			out.put(index);
+		}
+	}
+
+	/**
+	 * Opens a model file, mapping its rows rather than reading them. The
+	 * classifier returned can predict at once, but cannot be updated.
+	 *
+	 * @param file model file
+	 * @return the classifier held by the file
+	 * @throws Exception if the file cannot be read or is not a model file
+	 */
+	static MyKnn open(File file) throws Exception {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer fixed = read(channel, 0, FIXED_HEADER);
+			if (channel.size() < FIXED_HEADER || fixed.getInt() != MAGIC) {
+				throw new IOException(file + " is not a k-NN model file");
+			}
+			int version = fixed.getInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Unsupported k-NN model file version " + version);
+			}
+			int numRows = fixed.getInt();
+			int numNumeric = fixed.getInt();
+			int numNominal = fixed.getInt();
+			int classIndex = fixed.getInt();
+			int rowsPerChunk = fixed.getInt();
+			int flags = fixed.getInt();
+			long numericOffset = fixed.getLong();
+			long nominalOffset = fixed.getLong();
+			long classOffset = fixed.getLong();
+			long indexOffset = fixed.getLong();
+			long indexLength = fixed.getLong();
+			int optionsLength = fixed.getInt();
+			int headerLength = fixed.getInt();
+
+			ByteBuffer strings = read(channel, FIXED_HEADER, optionsLength + headerLength + 16 * numNumeric);
+			String options = string(strings, optionsLength);
+			Instances header = new Instances(new StringReader(string(strings, headerLength)));
+			header.setClassIndex(classIndex);
+			AttributeLayout layout = new AttributeLayout(header);
+			if (layout.numNumeric() != numNumeric || layout.numNominal() != numNominal) {
+				throw new IOException("The attribute header of " + file + " does not match its rows");
+			}
+			double[] min = new double[header.numAttributes()];
+			double[] max = new double[header.numAttributes()];
+			for (int j = 0; j < numNumeric; j++) {
+				min[j] = strings.getDouble();
+			}
+			for (int j = 0; j < numNumeric; j++) {
+				max[j] = strings.getDouble();
+			}
+
+			int numChunks = (int) ((numRows + (long) rowsPerChunk - 1) / rowsPerChunk);
+			ByteBuffer[] numeric = new ByteBuffer[numChunks];
+			ByteBuffer[] nominal = new ByteBuffer[numChunks];
+			for (int c = 0; c < numChunks; c++) {
+				long firstRow = (long) c * rowsPerChunk;
+				long rows = Math.min(rowsPerChunk, numRows - firstRow);
+				numeric[c] = channel.map(FileChannel.MapMode.READ_ONLY, numericOffset + 8 * firstRow * numNumeric,
+						8 * rows * numNumeric).order(ByteOrder.LITTLE_ENDIAN);
+				nominal[c] = channel.map(FileChannel.MapMode.READ_ONLY, nominalOffset + 4 * firstRow * numNominal,
+						4 * rows * numNominal).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			double[] classValues = new double[numRows];
+			read(channel, classOffset, 8 * numRows).asDoubleBuffer().get(classValues);
+			double[] rowWeights = null;
+			if ((flags & ROW_WEIGHTS) != 0) {
+				rowWeights = new double[numRows];
+				read(channel, classOffset + 8L * numRows, 8 * numRows).asDoubleBuffer().get(rowWeights);
+			}
+
+			KnnModel model = KnnModel.offHeap(layout, min, max,
+					new OffHeapRows(numeric, nominal, rowsPerChunk, numNumeric, numNominal), classValues);
+			model.m_RowWeights = rowWeights;
+
+			MyKnn knn = new MyKnn();
+			String[] knnOptions = Utils.splitOptions(options);
+			// metrics are only collected by the classifier they were turned on for
+			Utils.getFlag("metrics", knnOptions);
+			knn.setOptions(knnOptions);
+			knn.m_TrainingData = header;
+			knn.min = min;
+			knn.max = max;
+			knn.m_Model = model;
+			// the mapped rows stay the exact inputs, only the codes are on the heap
+			model.setQuantisation(knn.m_Quantisation, knn.m_Rerank);
+			if (model.isApproximate()) {
+				// the index written was built with the exact distances
+				knn.m_Search = knn.createSearch();
+			} else {
+				knn.m_Search = indexLength > 0
+						? deserialise(read(channel, indexOffset, (int) indexLength), model)
+						: new LinearSearch(model);
+			}
+			return knn;
+		}
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Truncated k-NN model file");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static String string(ByteBuffer buffer, int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Serialises a search structure, writing a reference in place of the
+	 * model it searches, whose rows are written separately.
+	 */
+	private static byte[] serialise(NeighbourSearch search, KnnModel model) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (IndexOutputStream out = new IndexOutputStream(bytes, model)) {
+			out.writeObject(search);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static NeighbourSearch deserialise(ByteBuffer buffer, KnnModel model) throws Exception {
+		try (IndexInputStream in = new IndexInputStream(new ByteArrayInputStream(buffer.array()), model)) {
+			in.setObjectInputFilter(ObjectInputFilter.Config.createFilter(INDEX_FILTER));
+			return (NeighbourSearch) in.readObject();
+		}
+	}
+
+	/** Stands for the model in a serialised search structure. */
+	private enum ModelReference {
+		MODEL
+	}
+
+	private static final class IndexOutputStream extends ObjectOutputStream {
+
+		private final KnnModel m_Model;
+
+		IndexOutputStream(OutputStream out, KnnModel model) throws IOException {
+			super(out);
+			m_Model = model;
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(Object object) {
+			return object == m_Model ? ModelReference.MODEL : object;
+		}
+	}
+
+	private static final class IndexInputStream extends ObjectInputStream {
+
+		private final KnnModel m_Model;
+
+		IndexInputStream(InputStream in, KnnModel model) throws IOException {
+			super(in);
+			m_Model = model;
+			enableResolveObject(true);
+		}
+
+		@Override
+		protected Object resolveObject(Object object) {
+			return object == ModelReference.MODEL ? m_Model : object;
+		}
+	}
+
+	/**
+	 * Writes little-endian values to a file channel through a buffer.
+	 */
+	private static final class SectionWriter implements AutoCloseable {
+
+		private final FileChannel m_Channel;
+
+		private final ByteBuffer m_Buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+		private long m_Position;
+
+		SectionWriter(FileChannel channel) {
+			m_Channel = channel;
+		}
+
+		void putInt(int value) throws IOException {
+			reserve(4).putInt(value);
+			m_Position += 4;
+		}
+
+		void putLong(long value) throws IOException {
+			reserve(8).putLong(value);
+			m_Position += 8;
+		}
+
+		void putDouble(double value) throws IOException {
+			reserve(8).putDouble(value);
+			m_Position += 8;
+		}
+
+		void put(byte[] bytes) throws IOException {
+			flush();
+			m_Channel.write(ByteBuffer.wrap(bytes));
+			m_Position += bytes.length;
+		}
+
+		void padTo(long position) throws IOException {
+			while (m_Position < position) {
+				reserve(1).put((byte) 0);
+				m_Position++;
+			}
+		}
+
+		private ByteBuffer reserve(int length) throws IOException {
+			if (m_Buffer.remaining() < length) {
+				flush();
+			}
+			return m_Buffer;
+		}
+
+		private void flush() throws IOException {
+			m_Buffer.flip();
+			while (m_Buffer.hasRemaining()) {
+				m_Channel.write(m_Buffer);
+			}
+			m_Buffer.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -242,16 +242,27 @@ public abstract class KnnParent extends AbstractClassifier implements Classifier
 			return "MyKnn: no model built yet.";
 		}
 
-		if (m_TrainingData.numInstances() == 0) {
+		if (numTrainingInstances() == 0) {
 			return "Warning: no training instances in k-NN's model.";
 		}
 
 		String result = "MyKnn classifier using k=" + m_k + ".\n" +
-				"Trained on " + m_TrainingData.numInstances() + " examples.\n";
+				"Trained on " + numTrainingInstances() + " examples.\n";
 
 		return result;
 	}
 	
+	/**
+	 * Returns the number of training instances held by the model.
+	 * Subclasses that keep the training data in another form than
+	 * m_TrainingData should override this method.
+	 *
+	 * @return the number of training instances
+	 */
+	protected int numTrainingInstances() {
+		return m_TrainingData.numInstances();
+	}
+
 	/**
 	 * Build a k-NN model. <p>
 	 * 
@@ -297,6 +308,28 @@ public abstract class KnnParent extends AbstractClassifier implements Classifier
 		return determinePredictedOutput(nearestNeighbours);
 	}
 	
+	/**
+	 * Predict the outputs of all instances of a data set. <p>
+	 * 
+	 * The instances are left unchanged: each one is copied before being
+	 * passed to classifyInstance. Subclasses may override this method
+	 * to predict several instances at once more efficiently, but must return
+	 * exactly the same predictions as classifyInstance. <p>
+	 * 
+	 * @param instances to be predicted.
+	 * @return the predicted output of each instance, in the same order
+	 * @throws Exception if the predictions could not be made
+	 */
+	public double[] classifyInstances(Instances instances) throws Exception {
+
+		double[] predictions = new double[instances.numInstances()];
+		for (int i = 0; i < predictions.length; i++) {
+			predictions[i] = classifyInstance((Instance) instances.instance(i).copy());
+		}
+
+		return predictions;
+	}
+	
 	/**
 	 * Find the k nearest neighbours of a given instance and store them
 	 * in an Instance[] array. <p>
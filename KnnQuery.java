@@ -0,0 +1,199 @@
+package weka.classifiers.lazy;
+
+/**
+ * Scratch buffers of a single nearest neighbour query: the normalised
+ * inputs of the query and the candidates found so far. <p>
+ *
+ * MyKnn keeps one instance per thread and reuses it from one query to the
+ * next, so that the query path does not allocate once it is warmed up. <p>
+ *
+ * A query may be given a budget of time or of distance evaluations. The
+ * searches then call outOfBudget before each further block of work they
+ * cannot prune, and stop as soon as it returns true, leaving the best
+ * neighbours found so far in the candidates, and cut each block of rows to
+ * the evaluations left with budgetedRows. Since the budget is only checked
+ * before work an exact search would do, a search that was never stopped
+ * found the exact neighbours.
+ */
+final class KnnQuery {
+
+	/** Layout the buffers were sized for. */
+	final AttributeLayout m_Layout;
+
+	/** Normalised numerical inputs of the query. */
+	final double[] m_Numeric;
+
+	/** Categorical input codes of the query. */
+	final int[] m_Nominal;
+
+	/** Nearest neighbours found so far. */
+	final NeighbourCandidates m_Candidates;
+
+	/** Work array of the search structures, grown on demand. */
+	private int[] m_Work = new int[0];
+
+	/** Table of the distance kernels, grown on demand. */
+	private double[] m_Table = new double[0];
+
+	/** Intervals of the search structures, grown on demand. */
+	private double[] m_Intervals = new double[0];
+
+	/** Whether the search of the query is bounded by a budget. */
+	private boolean m_Budgeted;
+
+	/** Whether the budget includes a deadline. */
+	private boolean m_Timed;
+
+	/** Value of System.nanoTime() at which the search stops. */
+	private long m_Deadline;
+
+	/** Number of distance evaluations after which the search stops. */
+	private int m_MaxEvaluations;
+
+	/** Whether the search was stopped by the budget. */
+	private boolean m_Stopped;
+
+	/**
+	 * @param layout layout of the attributes of the model to be queried
+	 * @param k largest number of neighbours to be found
+	 */
+	KnnQuery(AttributeLayout layout, int k) {
+		m_Layout = layout;
+		m_Numeric = new double[layout.numNumeric()];
+		m_Nominal = new int[layout.numNominal()];
+		m_Candidates = new NeighbourCandidates(k);
+	}
+
+	/**
+	 * @param layout layout of the attributes of the model to be queried
+	 * @param k number of neighbours to be found
+	 * @return true if these buffers can be used for such a query
+	 */
+	boolean fits(AttributeLayout layout, int k) {
+		return m_Layout == layout && m_Candidates.maxCapacity() >= k;
+	}
+
+	/**
+	 * Bounds the next searches of the query until clearBudget is called.
+	 *
+	 * @param deadline value of System.nanoTime() at which the search stops,
+	 * ignored unless timed
+	 * @param timed whether the deadline applies
+	 * @param maxEvaluations number of distance evaluations after which the
+	 * search stops, Integer.MAX_VALUE for no limit
+	 */
+	void setBudget(long deadline, boolean timed, int maxEvaluations) {
+		m_Budgeted = true;
+		m_Timed = timed;
+		m_Deadline = deadline;
+		m_MaxEvaluations = maxEvaluations;
+		m_Stopped = false;
+	}
+
+	/**
+	 * Removes the budget, so that the next searches are complete.
+	 */
+	void clearBudget() {
+		m_Budgeted = false;
+		m_Stopped = false;
+	}
+
+	/**
+	 * Called by the searches before each further block of work they cannot
+	 * prune: checks whether the budget is spent, in which case the search
+	 * must stop at once. A search is not stopped before it has found as
+	 * many candidates as it keeps, so that a prediction always averages k
+	 * neighbours.
+	 *
+	 * @return true if the search must stop
+	 */
+	boolean outOfBudget() {
+		if (!m_Budgeted) {
+			return false;
+		}
+		if (!m_Stopped && m_Candidates.isFull() && (m_Candidates.evaluated() >= m_MaxEvaluations
+				|| m_Timed && System.nanoTime() - m_Deadline >= 0)) {
+			m_Stopped = true;
+		}
+		return m_Stopped;
+	}
+
+	/**
+	 * Called by the searches before evaluating a block of rows they cannot
+	 * prune: cuts the block to the distance evaluations left, stopping the
+	 * search if it is cut. As for outOfBudget, the rows needed to fill the
+	 * candidates are always left.
+	 *
+	 * @param rows number of rows of the block
+	 * @return number of rows of the block to be evaluated
+	 */
+	int budgetedRows(int rows) {
+		if (!m_Budgeted) {
+			return rows;
+		}
+		int left = Math.max(m_MaxEvaluations - m_Candidates.evaluated(), m_Candidates.capacity() - m_Candidates.size());
+		if (left < rows) {
+			m_Stopped = true;
+			return Math.max(0, left);
+		}
+		return rows;
+	}
+
+	/**
+	 * @return number of distance evaluations the budget leaves, possibly
+	 * negative, or Integer.MAX_VALUE without a budget
+	 */
+	int evaluationsLeft() {
+		return m_Budgeted ? m_MaxEvaluations - m_Candidates.evaluated() : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @return true if the last search was stopped by the budget, so that
+	 * its neighbours may not be the exact ones
+	 */
+	boolean stopped() {
+		return m_Stopped;
+	}
+
+	/**
+	 * Returns a work array for the search structures, whose content is
+	 * undefined.
+	 *
+	 * @param size minimum number of elements
+	 * @return the work array
+	 */
+	int[] work(int size) {
+		if (m_Work.length < size) {
+			m_Work = new int[Math.max(size, 2 * m_Work.length)];
+		}
+		return m_Work;
+	}
+
+	/**
+	 * Returns a table for the distance kernels, whose content is undefined
+	 * until filled.
+	 *
+	 * @param size minimum number of elements
+	 * @return the table
+	 */
+	double[] table(int size) {
+		if (m_Table.length < size) {
+			m_Table = new double[size];
+		}
+		return m_Table;
+	}
+
+	/**
+	 * Returns an array for the intervals of the search structures, whose
+	 * content is undefined until filled. It is distinct from the table.
+	 *
+	 * @param size minimum number of elements
+	 * @return the array
+	 */
+	double[] intervals(int size) {
+		if (m_Intervals.length < size) {
+			m_Intervals = new double[size];
+		}
+		return m_Intervals;
+	}
+}
@@ -0,0 +1,129 @@
+package weka.classifiers.lazy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, recorded concurrently by
+ * any number of threads. <p>
+ *
+ * Durations below 2^SUB_BITS have a bucket each. Longer ones share a bucket
+ * with the durations having the same highest bit and the same SUB_BITS bits
+ * below it, so a bucket is at most 1 / 2^SUB_BITS of its lower end wide
+ * and the percentiles are within 12.5% of the exact ones. Recording costs an
+ * atomic increment of the bucket, of two LongAdders, and of the maximum
+ * only when it grows.
+ */
+final class LatencyHistogram {
+
+	/** Number of bits below the highest one distinguishing the buckets. */
+	private static final int SUB_BITS = 3;
+
+	/** Number of buckets per power of two. */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/** Number of durations recorded in each bucket. */
+	private final AtomicLongArray m_Buckets = new AtomicLongArray(bucket(Long.MAX_VALUE) + 1);
+
+	/** Number of durations recorded. */
+	private final LongAdder m_Count = new LongAdder();
+
+	/** Sum of the durations recorded. */
+	private final LongAdder m_Sum = new LongAdder();
+
+	/** Longest duration recorded. */
+	private final AtomicLong m_Max = new AtomicLong();
+
+	/**
+	 * @param nanos duration to be recorded, clamped to 0 if negative
+	 */
+	void record(long nanos) {
+		long value = Math.max(0, nanos);
+		m_Buckets.incrementAndGet(bucket(value));
+		m_Count.increment();
+		m_Sum.add(value);
+		long max = m_Max.get();
+		while (value > max && !m_Max.compareAndSet(max, value)) {
+			max = m_Max.get();
+		}
+	}
+
+	/**
+	 * @return the number of durations recorded
+	 */
+	long count() {
+		return m_Count.sum();
+	}
+
+	/**
+	 * @return the mean duration recorded, 0 if there is none
+	 */
+	double mean() {
+		long count = m_Count.sum();
+		return count == 0 ? 0 : (double) m_Sum.sum() / count;
+	}
+
+	/**
+	 * @return the longest duration recorded
+	 */
+	long max() {
+		return m_Max.get();
+	}
+
+	/**
+	 * Estimates a percentile of the durations recorded, as the upper end of
+	 * the bucket holding it. The buckets are read one at a time, so
+	 * durations recorded meanwhile may or may not be included.
+	 *
+	 * @param fraction fraction of the durations below the percentile, such
+	 * as 0.99
+	 * @return the percentile, 0 if no duration has been recorded
+	 */
+	long percentile(double fraction) {
+		long total = 0;
+		for (int i = 0; i < m_Buckets.length(); i++) {
+			total += m_Buckets.get(i);
+		}
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < m_Buckets.length(); i++) {
+			seen += m_Buckets.get(i);
+			if (seen >= rank && seen > 0) {
+				return Math.min(upperEnd(i), max());
+			}
+		}
+		return max();
+	}
+
+	/**
+	 * Forgets all durations recorded. Durations recorded meanwhile may be
+	 * partly forgotten.
+	 */
+	void reset() {
+		for (int i = 0; i < m_Buckets.length(); i++) {
+			m_Buckets.set(i, 0);
+		}
+		m_Count.reset();
+		m_Sum.reset();
+		m_Max.set(0);
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int highest = 63 - Long.numberOfLeadingZeros(value);
+		int shift = highest - SUB_BITS;
+		return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	private static long upperEnd(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket >>> SUB_BITS) - 1;
+		long lower = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,132 @@
+package weka.classifiers.lazy;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork/join task summing the leave-one-out errors of a built MyKnn over a
+ * range of training rows, for every k from 1 to a largest k at once. <p>
+ *
+ * The nearest neighbours of each row are searched once, for one more
+ * neighbour than the largest k, in the search structure of the classifier,
+ * and the row itself is dropped from them. The prediction for k is then the
+ * prefix sum of the outputs of the first k neighbours divided by k, or of
+ * their weighted outputs divided by their weights for a condensed model,
+ * which is the prediction of determinePredictedOutput, so the errors of all
+ * k cost a single search per row. The error of a prototype counts as many
+ * times as the training instances it stands for. The other rows keep their order of distance and row
+ * index, so the neighbours are the ones of a classifier built without the
+ * row, except that the min and max values still include it. <p>
+ *
+ * Ranges longer than CHUNK_ROWS are split in two halves processed in
+ * parallel, and the sums of the halves are added in order, so the result
+ * does not depend on the number of threads.
+ */
+final class LeaveOneOutTask extends RecursiveTask<double[]> {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Largest number of rows evaluated by a single task. */
+	static final int CHUNK_ROWS = 256;
+
+	/** Classifier whose training rows are evaluated. */
+	private final MyKnn m_Knn;
+
+	/** Largest k evaluated. */
+	private final int m_MaxK;
+
+	/** Whether the squared errors are summed rather than the absolute errors. */
+	private final boolean m_Squared;
+
+	/** First row of the range, in age order. */
+	private final int m_Begin;
+
+	/** Row after the last one of the range, in age order. */
+	private final int m_End;
+
+	/**
+	 * @param knn built classifier whose training rows are evaluated
+	 * @param maxK largest k evaluated, less than the number of training rows
+	 * @param squared whether the squared errors are summed rather than the
+	 * absolute errors
+	 * @param begin first row of the range, in age order
+	 * @param end row after the last one of the range, in age order
+	 */
+	LeaveOneOutTask(MyKnn knn, int maxK, boolean squared, int begin, int end) {
+		m_Knn = knn;
+		m_MaxK = maxK;
+		m_Squared = squared;
+		m_Begin = begin;
+		m_End = end;
+	}
+
+	/**
+	 * @return the sum of the errors over the rows of the range for each k,
+	 * weighted by the row weights, the one of k at index k - 1
+	 */
+	@Override
+	protected double[] compute() {
+		if (m_End - m_Begin <= CHUNK_ROWS) {
+			return sumErrors();
+		}
+
+		int middle = (m_Begin + m_End) >>> 1;
+		LeaveOneOutTask right = new LeaveOneOutTask(m_Knn, m_MaxK, m_Squared, middle, m_End);
+		right.fork();
+		double[] errors = new LeaveOneOutTask(m_Knn, m_MaxK, m_Squared, m_Begin, middle).compute();
+		double[] rightErrors = right.join();
+		for (int k = 0; k < m_MaxK; k++) {
+			errors[k] += rightErrors[k];
+		}
+		return errors;
+	}
+
+	private double[] sumErrors() {
+		KnnModel model = m_Knn.m_Model;
+		int numNumeric = model.m_Layout.numNumeric();
+		int numNominal = model.m_Layout.numNominal();
+		KnnQuery query = new KnnQuery(model.m_Layout, m_MaxK + 1);
+		NeighbourCandidates candidates = query.m_Candidates;
+		double[] errors = new double[m_MaxK];
+
+		for (int i = m_Begin; i < m_End; i++) {
+			int row = model.slot(i);
+			for (int j = 0; j < numNumeric; j++) {
+				query.m_Numeric[j] = model.numeric(row, j);
+			}
+			for (int j = 0; j < numNominal; j++) {
+				query.m_Nominal[j] = model.nominal(row, j);
+			}
+			candidates.reset(m_MaxK + 1);
+			m_Knn.m_Search.search(query);
+			candidates.sort();
+
+			// duplicates of the row with a smaller index may push it out of the candidates
+			double actual = model.m_ClassValues[row];
+			double weight = model.rowWeight(row);
+			double runningTotal = 0;
+			double totalWeight = 0;
+			int k = 0;
+			for (int c = 0; c < candidates.size() && k < m_MaxK; c++) {
+				int neighbour = candidates.row(c);
+				if (neighbour == row) {
+					continue;
+				}
+				double error;
+				k++;
+				if (model.m_RowWeights == null) {
+					runningTotal += model.m_ClassValues[neighbour];
+					error = runningTotal / k - actual;
+				} else {
+					runningTotal += model.m_RowWeights[neighbour] * model.m_ClassValues[neighbour];
+					totalWeight += model.m_RowWeights[neighbour];
+					error = runningTotal / totalWeight - actual;
+				}
+				errors[k - 1] += weight * (m_Squared ? error * error : Math.abs(error));
+			}
+		}
+		return errors;
+	}
+}
@@ -0,0 +1,111 @@
+package weka.classifiers.lazy;
+
+/**
+ * Brute-force search computing the distance between the query and every
+ * training row. The rows are scanned in blocks of BUDGET_ROWS, between
+ * which the budget of the query, if any, is checked.
+ */
+final class LinearSearch implements NeighbourSearch {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Number of rows scanned between two checks of the budget of a query. */
+	static final int BUDGET_ROWS = 256;
+
+	/** Model to be searched. */
+	private final KnnModel m_Model;
+
+	/**
+	 * @param model model to be searched
+	 */
+	LinearSearch(KnnModel model) {
+		m_Model = model;
+	}
+
+	@Override
+	public void search(KnnQuery query) {
+		prepare(query);
+		if (searchBudgeted(query, m_Model.m_Start, m_Model.firstEnd())) {
+			searchBudgeted(query, 0, m_Model.secondEnd());
+		}
+	}
+
+	/**
+	 * Offers consecutive training rows to the candidates of a query in
+	 * blocks of BUDGET_ROWS, until its budget is spent.
+	 *
+	 * @return false if the budget was spent before the last row
+	 */
+	private boolean searchBudgeted(KnnQuery query, int begin, int end) {
+		for (int block = begin; block < end; block += BUDGET_ROWS) {
+			if (query.outOfBudget()) {
+				return false;
+			}
+			search(query, block, block + query.budgetedRows(Math.min(end - block, BUDGET_ROWS)));
+		}
+		return !query.stopped();
+	}
+
+	@Override
+	public void add(int row) {
+		// the live rows of the model are scanned
+	}
+
+	@Override
+	public void remove(int row) {
+		// the live rows of the model are scanned
+	}
+
+	/**
+	 * Prepares a query for the blocks of rows, once per query, when the
+	 * model reads quantised inputs first.
+	 *
+	 * @param query normalised query
+	 */
+	void prepare(KnnQuery query) {
+		if (m_Model.isQuantised()) {
+			m_Model.prepareQuantised(query);
+		}
+	}
+
+	/**
+	 * Offers a block of consecutive training rows to the candidates of a query.
+	 *
+	 * @param query normalised query, prepared, whose candidates receive the nearest neighbours
+	 * @param begin first row of the block
+	 * @param end row after the last row of the block
+	 */
+	void search(KnnQuery query, int begin, int end) {
+		if (m_Model.isQuantised()) {
+			searchQuantised(query, begin, end);
+			return;
+		}
+		double[] numeric = query.m_Numeric;
+		int[] nominal = query.m_Nominal;
+		NeighbourCandidates candidates = query.m_Candidates;
+		for (int row = begin; row < end; row++) {
+			double bound = candidates.worstDistance();
+			candidates.offer(row, m_Model.squaredDistance(numeric, nominal, row, bound));
+		}
+	}
+
+	/**
+	 * Offers a block of consecutive training rows to the candidates of a
+	 * query, reading the quantised inputs of the model first.
+	 */
+	private void searchQuantised(KnnQuery query, int begin, int end) {
+		int[] nominal = query.m_Nominal;
+		NeighbourCandidates candidates = query.m_Candidates;
+		for (int row = begin; row < end; row++) {
+			double bound = candidates.worstDistance();
+			int mismatches = m_Model.mismatches(nominal, row);
+			if (mismatches > bound) {
+				continue;
+			}
+			candidates.offer(row, m_Model.quantisedDistance(query, row, mismatches, bound));
+		}
+	}
+}
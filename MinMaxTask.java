@@ -0,0 +1,109 @@
+package weka.classifiers.lazy;
+
+import java.util.concurrent.RecursiveTask;
+
+import weka.core.Instances;
+
+/**
+ * Fork/join task finding the min and max values of the numerical inputs of
+ * a range of instances in a single pass over the rows. <p>
+ *
+ * Ranges longer than CHUNK_ROWS are split in two halves processed in
+ * parallel. Each chunk scans its rows once for all inputs, skipping missing
+ * values, and the results of the halves are merged in order with strict
+ * comparisons, so that of two equal values (such as 0.0 and -0.0) the first
+ * one is kept, as in the sequential scan of
+ * MyKnn.determineMinMaxAttributeValues.
+ */
+final class MinMaxTask extends RecursiveTask<double[]> {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Largest number of rows scanned by a single task. */
+	static final int CHUNK_ROWS = 4096;
+
+	/** Instances whose min and max values are to be found. */
+	private final Instances m_Data;
+
+	/** Layout of the attributes of the instances. */
+	private final AttributeLayout m_Layout;
+
+	/** First instance of the range. */
+	private final int m_Begin;
+
+	/** Instance after the last one of the range. */
+	private final int m_End;
+
+	/**
+	 * @param data instances whose min and max values are to be found
+	 * @param layout layout of the attributes of the instances
+	 * @param begin first instance of the range
+	 * @param end instance after the last one of the range
+	 */
+	MinMaxTask(Instances data, AttributeLayout layout, int begin, int end) {
+		m_Data = data;
+		m_Layout = layout;
+		m_Begin = begin;
+		m_End = end;
+	}
+
+	/**
+	 * Gives the min and max values found by a task over all instances the
+	 * values determineMinMaxAttributeValues would give: an input whose
+	 * first value is missing has a missing min and max.
+	 *
+	 * @param minMax result of the task over all instances
+	 * @param min receives the minimum value of each numerical input
+	 * @param max receives the maximum value of each numerical input
+	 */
+	void copyResult(double[] minMax, double[] min, double[] max) {
+		int numNumeric = m_Layout.numNumeric();
+		for (int j = 0; j < numNumeric; j++) {
+			boolean missing = Double.isNaN(m_Data.instance(0).value(m_Layout.m_NumericAttributes[j]));
+			min[j] = missing ? Double.NaN : minMax[j];
+			max[j] = missing ? Double.NaN : minMax[numNumeric + j];
+		}
+	}
+
+	@Override
+	protected double[] compute() {
+		int numNumeric = m_Layout.numNumeric();
+		if (m_End - m_Begin <= CHUNK_ROWS) {
+			double[] minMax = new double[2 * numNumeric];
+			for (int j = 0; j < numNumeric; j++) {
+				minMax[j] = Double.POSITIVE_INFINITY;
+				minMax[numNumeric + j] = Double.NEGATIVE_INFINITY;
+			}
+			for (int i = m_Begin; i < m_End; i++) {
+				for (int j = 0; j < numNumeric; j++) {
+					double value = m_Data.instance(i).value(m_Layout.m_NumericAttributes[j]);
+					if (value < minMax[j]) {
+						minMax[j] = value;
+					}
+					if (value > minMax[numNumeric + j]) {
+						minMax[numNumeric + j] = value;
+					}
+				}
+			}
+			return minMax;
+		}
+
+		int middle = (m_Begin + m_End) >>> 1;
+		MinMaxTask right = new MinMaxTask(m_Data, m_Layout, middle, m_End);
+		right.fork();
+		double[] minMax = new MinMaxTask(m_Data, m_Layout, m_Begin, middle).compute();
+		double[] rightMinMax = right.join();
+		for (int j = 0; j < numNumeric; j++) {
+			if (rightMinMax[j] < minMax[j]) {
+				minMax[j] = rightMinMax[j];
+			}
+			if (rightMinMax[numNumeric + j] > minMax[numNumeric + j]) {
+				minMax[numNumeric + j] = rightMinMax[numNumeric + j];
+			}
+		}
+		return minMax;
+	}
+}
@@ -1,57 +1,2572 @@
 package weka.classifiers.lazy;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import weka.classifiers.UpdateableClassifier;
 import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.SelectedTag;
+import weka.core.Tag;
+import weka.core.Utils;
+
+/**
+ * k-NN class to be implemented by you as part of CO3091's coursework2. <p>
+ *
+ * The normalised training data is copied into a compact primitive model
+ * (see KnnModel), searched by the structure selected with -I: a linear scan,
+ * a KD-tree, a ball tree, groups of rows sharing their categorical values,
+ * an approximate HNSW graph or a pivot table (see the classes implementing
+ * NeighbourSearch). <p>
+ *
+ * Once built, a MyKnn can be shared by several threads: classifyInstance
+ * neither modifies the instance passed to it nor the model, so many threads
+ * may predict with the same MyKnn at once without copying the instances.
+ * updateClassifier may run concurrently with predictions, which wait for it
+ * to complete. Building the classifier or changing its options while
+ * predictions are running is not supported.
+ */
+
+public class MyKnn extends KnnParent implements UpdateableClassifier, AutoCloseable {
+
+	/**
+	 * Compact primitive copy of the normalised training data, searched
+	 * when finding the nearest neighbours.
+	 */
+	protected KnnModel m_Model;
+
+	/** Linear scan of the training data. */
+	public static final int INDEX_LINEAR = 0;
+
+	/** KD-tree over the numerical input attributes. */
+	public static final int INDEX_KDTREE = 1;
+
+	/** Ball tree over all input attributes. */
+	public static final int INDEX_BALLTREE = 2;
+
+	/** Groups of training rows sharing the same categorical input values. */
+	public static final int INDEX_PARTITION = 3;
+
+	/** Approximate search in a hierarchical navigable small-world graph. */
+	public static final int INDEX_HNSW = 4;
+
+	/** Table of the distances to a few pivot rows, pruned with the triangle inequality. */
+	public static final int INDEX_PIVOT = 5;
+
+	/** Structures available for finding the nearest neighbours. */
+	public static final Tag[] TAGS_INDEX = {
+			new Tag(INDEX_LINEAR, "linear", "Linear scan"),
+			new Tag(INDEX_KDTREE, "kdtree", "KD-tree"),
+			new Tag(INDEX_BALLTREE, "balltree", "Ball tree"),
+			new Tag(INDEX_PARTITION, "partition", "Partition by categorical values"),
+			new Tag(INDEX_HNSW, "hnsw", "Approximate HNSW graph"),
+			new Tag(INDEX_PIVOT, "pivot", "Pivot table (LAESA)") };
+
+	/** Structure used for finding the nearest neighbours. */
+	protected int m_Index = INDEX_LINEAR;
+
+	/** Pivots chosen farthest-first, each one furthest from those before. */
+	public static final int PIVOTS_MAXMIN = PivotSearch.SELECT_MAXMIN;
+
+	/** Pivots chosen at random with a fixed seed. */
+	public static final int PIVOTS_RANDOM = PivotSearch.SELECT_RANDOM;
+
+	/** Choices of the pivots of the pivot index. */
+	public static final Tag[] TAGS_PIVOT_SELECTION = {
+			new Tag(PIVOTS_MAXMIN, "maxmin", "Farthest-first"),
+			new Tag(PIVOTS_RANDOM, "random", "Random") };
+
+	/** Number of pivots of the pivot index. */
+	protected int m_Pivots = 16;
+
+	/** Choice of the pivots of the pivot index. */
+	protected int m_PivotSelection = PIVOTS_MAXMIN;
+
+	/** Numerical inputs read as doubles only. */
+	public static final int QUANTISE_NONE = QuantisedRows.NONE;
+
+	/** Numerical inputs scanned as float32 values. */
+	public static final int QUANTISE_FLOAT32 = QuantisedRows.FLOAT32;
+
+	/** Numerical inputs scanned as 16-bit fixed-point codes. */
+	public static final int QUANTISE_INT16 = QuantisedRows.INT16;
+
+	/** Numerical inputs scanned as 8-bit fixed-point codes. */
+	public static final int QUANTISE_INT8 = QuantisedRows.INT8;
+
+	/** Quantisations available for the numerical inputs. */
+	public static final Tag[] TAGS_QUANTISATION = {
+			new Tag(QUANTISE_NONE, "none", "No quantisation"),
+			new Tag(QUANTISE_FLOAT32, "float32", "float32 values"),
+			new Tag(QUANTISE_INT16, "int16", "16-bit fixed-point codes"),
+			new Tag(QUANTISE_INT8, "int8", "8-bit fixed-point codes") };
+
+	/** Quantisation of the numerical inputs scanned before the exact ones. */
+	protected int m_Quantisation = QUANTISE_NONE;
+
+	/** Whether the rows not discarded by the quantised inputs are compared exactly. */
+	protected boolean m_Rerank = true;
+
+	/** Search structure built over m_Model. */
+	protected NeighbourSearch m_Search;
+
+	/** Largest number of links of a row in the upper layers of the HNSW graph. */
+	protected int m_MaxConnections = 16;
+
+	/** Number of closest rows kept while inserting a row into the HNSW graph. */
+	protected int m_ConstructionBreadth = 200;
+
+	/** Number of closest rows kept while searching the HNSW graph. */
+	protected int m_SearchBreadth = 50;
+
+	/** Held for reading by predictions and for writing by updates. */
+	private final ReentrantReadWriteLock m_Lock = new ReentrantReadWriteLock();
+
+	/** Number of threads building the classifier or predicting a batch of instances, 0 for all processors. */
+	protected int m_NumThreads = 0;
+
+	/** Largest number of instances of a batch predicted by a single task. */
+	protected int m_ParallelCutoff = 256;
+
+	/** Number of training rows compared at once with a tile of instances, 0 for no tiling. */
+	protected int m_BlockRows = 0;
+
+	/** Whether batches are predicted with the blocked matrix-multiply distance kernel. */
+	protected boolean m_BatchGemm = false;
+
+	/** Blocked distance kernel over m_Model, created by the first batch needing it. */
+	transient BlockedDistanceKernel m_BlockedKernel;
+
+	/** Whether distances are computed with the JDK Vector API when available. */
+	protected boolean m_Vectorised = false;
+
+	/** Whether the inputs of the compact model are held outside the Java heap. */
+	protected boolean m_OffHeap = false;
+
+	/** Whether k is selected by leave-one-out evaluation when building. */
+	protected boolean m_CrossValidate = false;
+
+	/** Whether k is selected by the mean squared rather than absolute error. */
+	protected boolean m_MeanSquared = false;
+
+	/** Largest k considered by cross-validation, the k last set, 0 for m_k. */
+	protected int m_MaxK = 0;
+
+	/** Number of prototypes the training rows are condensed into, 0 for no fixed number. */
+	protected int m_Prototypes = 0;
+
+	/** Largest relative difference between the condensed and full models, 0 for no condensation by tolerance. */
+	protected double m_PrototypeTolerance = 0;
+
+	/** Report of the last condensation, or null if the model was not condensed. */
+	protected String m_CondensationReport;
+
+	/** Largest number of training instances kept, 0 for no limit. */
+	protected int m_WindowSize = 0;
+
+	/** Attribute (starting at 1) ordering the instances in time, 0 for none. */
+	protected int m_WindowAttribute = 0;
+
+	/** Largest difference in the window attribute between the newest and oldest instances kept. */
+	protected double m_WindowSpan = 0;
+
+	/** Min and max values over the window, null without a window size. */
+	protected SlidingRange m_Range;
+
+	/** Value of the window attribute of each row of m_Model, null without a window attribute. */
+	protected double[] m_WindowTimes;
+
+	/** Query buffers reused by each thread. */
+	private transient volatile ThreadLocal<KnnQuery> m_Scratch;
+
+	/** Threads running the tasks when getNumThreads() is positive, created on first use. */
+	private transient ForkJoinPool m_Pool;
+
+	/** Largest number of predictions cached, 0 for no cache. */
+	protected int m_CacheSize = 0;
+
+	/** Cache of the predictions, created by the first prediction needing it. */
+	private transient volatile PredictionCache m_Cache;
+
+	/** Time a prediction of classifyInstance may take, in microseconds, 0 for no limit. */
+	protected long m_TimeBudget = 0;
+
+	/** Number of distances a prediction of classifyInstance may compute, 0 for no limit. */
+	protected int m_EvaluationBudget = 0;
+
+	/**
+	 * Whether metrics of the predictions, builds and updates are collected,
+	 * which copies of the classifier do not inherit.
+	 */
+	protected transient boolean m_CollectMetrics = false;
+
+	/** Metrics being collected, or null. */
+	private transient volatile KnnMetrics m_Metrics;
+
+	public MyKnn(int k) {
+		super(k);
+
+	}
+
+	public MyKnn() {
+		super();
+	}
+
+	/**
+	 * Builds the classifier as KnnParent.buildClassifier does, but without
+	 * copying or modifying the training data. The min and max values are
+	 * found in a single parallel pass over the instances (see MinMaxTask),
+	 * then the instances are normalised in parallel straight into the
+	 * compact model (see NormaliseTask), on getNumThreads() threads. Only
+	 * the header of the training data is kept, for the attribute information.
+	 *
+	 * @param trainingData to be used for building the model, left unchanged
+	 * @throws Exception if the training data holds no instance or does not
+	 * suit the window options
+	 */
+	@Override
+	public void buildClassifier(Instances trainingData) throws Exception {
+		build(trainingData, null, null);
+	}
+
+	/**
+	 * Builds the classifier as a shard of a larger training set (see
+	 * ShardedKnn), normalising its rows with the min and max values of the
+	 * whole set rather than its own, so that its distances are the ones of a
+	 * classifier built on the whole set. Row i of the shard is then row i of
+	 * the compact model.
+	 *
+	 * @param trainingData rows of the shard, left unchanged
+	 * @param minValues minimum value of each numerical input over the whole set
+	 * @param maxValues maximum value of each numerical input over the whole set
+	 * @throws Exception if the shard holds no instance, or a window, the
+	 * selection of k or a condensation is set, which only make sense over
+	 * the whole set
+	 */
+	void buildShard(Instances trainingData, double[] minValues, double[] maxValues) throws Exception {
+		checkShard();
+		build(trainingData, minValues, maxValues);
+	}
+
+	/**
+	 * Builds the classifier as a shard of a larger training set from rows
+	 * read by the worker holding it (see ShardWorker), normalising them in
+	 * place with the min and max values of the whole set. The classifier is
+	 * the same as the one built by buildShard from the instances of the rows.
+	 *
+	 * @param header attributes of the training data, with the class index set
+	 * @param model rows of the shard, appended by appendRaw and not yet normalised
+	 * @param minValues minimum value of each numerical input over the whole set
+	 * @param maxValues maximum value of each numerical input over the whole set
+	 * @throws Exception if the shard holds no row, or a window, the selection
+	 * of k or a condensation is set
+	 */
+	void buildShard(Instances header, KnnModel model, double[] minValues, double[] maxValues) throws Exception {
+		checkShard();
+		if (model.m_NumRows == 0) {
+			throw new Exception("No training instances");
+		}
+		long start = System.nanoTime();
+		model.normalise(minValues, maxValues);
+		model.setVectorised(m_Vectorised);
+		model.setQuantisation(m_Quantisation, m_Rerank);
+
+		m_Lock.writeLock().lock();
+		try {
+			if (m_Model != null) {
+				m_Model.close();
+			}
+			m_TrainingData = new Instances(header, 0);
+			min = minValues.clone();
+			max = maxValues.clone();
+			m_Model = model;
+			m_Range = null;
+			m_WindowTimes = null;
+			m_Search = createSearch();
+			m_BlockedKernel = null;
+			invalidateCache();
+			recordBuild(start);
+		} finally {
+			m_Lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks that the options suit a shard.
+	 *
+	 * @throws Exception if a window, the selection of k or a condensation is
+	 * set, which only make sense over the whole set
+	 */
+	void checkShard() throws Exception {
+		if (m_WindowSize > 0 || m_WindowAttribute > 0 || m_CrossValidate || condenses()) {
+			throw new Exception("A shard cannot have a window, select k or be condensed");
+		}
+	}
+
+	private void build(Instances trainingData, double[] minValues, double[] maxValues) throws Exception {
+		m_Lock.writeLock().lock();
+		try {
+			long start = System.nanoTime();
+			checkWindowAttribute(trainingData);
+			checkCondensation();
+			int timeIndex = m_WindowAttribute - 1;
+			Instances window = window(trainingData);
+			if (window.numInstances() == 0) {
+				throw new Exception("No training instances");
+			}
+
+			m_TrainingData = new Instances(window, 0);
+			AttributeLayout layout = new AttributeLayout(window);
+			if (minValues == null) {
+				determineMinMaxAttributeValues(window, layout);
+			} else {
+				min = minValues.clone();
+				max = maxValues.clone();
+			}
+			if (m_Model != null) {
+				m_Model.close();
+			}
+			m_Model = KnnModel.allocate(layout, window.numInstances(), min, max, m_OffHeap);
+			invoke(new NormaliseTask(m_Model, window, 0, window.numInstances()));
+			m_Model.setVectorised(m_Vectorised);
+			m_Model.setQuantisation(m_Quantisation, m_Rerank);
+			m_Range = null;
+			m_WindowTimes = null;
+			if (m_WindowSize > 0) {
+				m_Model.reserve(m_WindowSize);
+				m_Range = new SlidingRange(m_Model.m_Layout.numNumeric(), m_WindowSize);
+				if (timeIndex >= 0) {
+					m_WindowTimes = new double[m_WindowSize];
+				}
+				for (int i = 0; i < window.numInstances(); i++) {
+					m_Range.add(numericInputs(window.instance(i)));
+					if (m_WindowTimes != null) {
+						m_WindowTimes[i] = window.instance(i).value(timeIndex);
+					}
+				}
+			}
+			m_Search = createSearch();
+			m_BlockedKernel = null;
+			if (m_CrossValidate) {
+				selectK();
+			}
+			condense();
+			invalidateCache();
+			recordBuild(start);
+		} finally {
+			m_Lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Builds the classifier straight from an ARFF file, in a single pass
+	 * over the file and without creating any Instance. The rows are parsed
+	 * by ArffColumnReader into the compact model, whose numerical inputs are
+	 * normalised in place once the min and max values are known, so the
+	 * memory needed is about the size of the model. With a window size, only
+	 * the rows of the window are kept while reading. The classifier is the
+	 * same as the one built from the instances of the file.
+	 *
+	 * @param file dense ARFF file holding the training data
+	 * @param classIndex index of the output attribute, or -1 for the last one
+	 * @throws Exception if the file cannot be read or holds no rows
+	 */
+	public void buildClassifier(File file, int classIndex) throws Exception {
+		long start = System.nanoTime();
+		try (ArffColumnReader reader = new ArffColumnReader(file)) {
+			Instances header = reader.header();
+			header.setClassIndex(classIndex < 0 ? header.numAttributes() - 1 : classIndex);
+			checkWindowAttribute(header);
+			checkCondensation();
+			int timeIndex = m_WindowAttribute - 1;
+
+			AttributeLayout layout = new AttributeLayout(header);
+			int numNumeric = layout.numNumeric();
+			KnnModel model = KnnModel.empty(layout, m_OffHeap);
+			SlidingRange range = null;
+			double[] times = null;
+			if (m_WindowSize > 0) {
+				model.reserve(m_WindowSize);
+				range = new SlidingRange(numNumeric, m_WindowSize);
+				if (timeIndex >= 0) {
+					times = new double[m_WindowSize];
+				}
+			}
+
+			// min and max values of the rows, found as determineMinMaxAttributeValues does
+			double[] minValues = new double[header.numAttributes()];
+			double[] maxValues = new double[header.numAttributes()];
+			double[] values = new double[header.numAttributes()];
+			double[] numeric = new double[numNumeric];
+			int[] nominal = new int[layout.numNominal()];
+			while (reader.next(values)) {
+				if (m_WindowSize > 0 && model.m_NumRows >= m_WindowSize) {
+					model.evict();
+					range.evict();
+				}
+				for (int j = 0; j < numNumeric; j++) {
+					numeric[j] = values[layout.m_NumericAttributes[j]];
+				}
+				for (int j = 0; j < nominal.length; j++) {
+					nominal[j] = (int) values[layout.m_NominalAttributes[j]];
+				}
+				int row = model.appendRaw(numeric, nominal, values[layout.m_ClassIndex]);
+
+				if (range != null) {
+					range.add(numeric);
+				} else {
+					updateMinMax(numeric, model.m_NumRows == 1, minValues, maxValues);
+				}
+				if (times != null) {
+					double newest = values[timeIndex];
+					times[row] = newest;
+					while (model.m_NumRows > 1 && times[model.m_Start] < newest - m_WindowSpan) {
+						model.evict();
+						range.evict();
+					}
+				}
+			}
+			if (model.m_NumRows == 0) {
+				throw new Exception("No training instances in " + file);
+			}
+			if (range != null) {
+				// the rows left in the window, in the order of the file
+				for (int i = 0; i < model.m_NumRows; i++) {
+					for (int j = 0; j < numNumeric; j++) {
+						numeric[j] = model.numeric(model.slot(i), j);
+					}
+					updateMinMax(numeric, i == 0, minValues, maxValues);
+				}
+			}
+			model.normalise(minValues, maxValues);
+			model.setVectorised(m_Vectorised);
+			model.setQuantisation(m_Quantisation, m_Rerank);
+
+			m_Lock.writeLock().lock();
+			try {
+				if (m_Model != null) {
+					m_Model.close();
+				}
+				m_TrainingData = header;
+				min = minValues;
+				max = maxValues;
+				m_Model = model;
+				m_Range = range;
+				m_WindowTimes = times;
+				m_Search = createSearch();
+				m_BlockedKernel = null;
+				if (m_CrossValidate) {
+					selectK();
+				}
+				condense();
+				invalidateCache();
+				recordBuild(start);
+			} finally {
+				m_Lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Includes a row in the min and max values of the numerical inputs with
+	 * the comparisons of determineMinMaxAttributeValues, which give the same
+	 * values for missing values too.
+	 *
+	 * @param numeric raw numerical inputs of the row
+	 * @param first true for the first row, whose values become the min and max
+	 * @param min minimum value of each numerical input, updated
+	 * @param max maximum value of each numerical input, updated
+	 */
+	private static void updateMinMax(double[] numeric, boolean first, double[] min, double[] max) {
+		for (int j = 0; j < numeric.length; j++) {
+			if (first) {
+				min[j] = numeric[j];
+				max[j] = numeric[j];
+			} else if (numeric[j] > max[j]) {
+				max[j] = numeric[j];
+			} else if (numeric[j] < min[j]) {
+				min[j] = numeric[j];
+			}
+		}
+	}
+
+	/**
+	 * Finds the min and max values of the numerical inputs of a data set
+	 * with a MinMaxTask, which gives the values of a sequential scan.
+	 *
+	 * @param data data set
+	 * @param layout layout of the attributes of the data set
+	 */
+	private void determineMinMaxAttributeValues(Instances data, AttributeLayout layout) {
+		min = new double[data.numAttributes()];
+		max = new double[data.numAttributes()];
+		MinMaxTask task = new MinMaxTask(data, layout, 0, data.numInstances());
+		task.copyResult(invoke(task), min, max);
+	}
+
+	/**
+	 * @return true if the training rows are to be condensed into prototypes
+	 */
+	private boolean condenses() {
+		return m_Prototypes > 0 || m_PrototypeTolerance > 0;
+	}
+
+	/**
+	 * Checks that the condensation options, if any, can be used.
+	 *
+	 * @throws Exception if a condensation is combined with a window
+	 */
+	private void checkCondensation() throws Exception {
+		if (condenses() && m_WindowSize > 0) {
+			throw new Exception("A condensed classifier cannot have a window");
+		}
+	}
+
+	/**
+	 * Replaces the full model by its condensation into the number of
+	 * prototypes set, or into the fewest prototypes within the tolerance set
+	 * (see PrototypeCondenser), with the write lock held. The model is left
+	 * unchanged if it is not condensed into fewer rows.
+	 */
+	private void condense() {
+		m_CondensationReport = null;
+		if (!condenses()) {
+			return;
+		}
+		PrototypeCondenser condenser = new PrototypeCondenser(this);
+		KnnModel condensed = m_Prototypes > 0 ? condenser.condense(m_Prototypes)
+				: condenser.condense(m_PrototypeTolerance);
+		m_CondensationReport = condenser.report();
+		if (condensed == null) {
+			return;
+		}
+		if (m_OffHeap) {
+			condensed.moveOffHeap();
+		}
+		condensed.setVectorised(m_Vectorised);
+		condensed.setQuantisation(m_Quantisation, m_Rerank);
+		m_Model.close();
+		m_Model = condensed;
+		m_Search = createSearch();
+	}
+
+	/**
+	 * Runs a fork/join task on getNumThreads() threads.
+	 *
+	 * @param task task to be run
+	 * @return the result of the task
+	 */
+	<T> T invoke(ForkJoinTask<T> task) {
+		if (m_NumThreads <= 0) {
+			return ForkJoinPool.commonPool().invoke(task);
+		}
+		return pool().invoke(task);
+	}
+
+	/**
+	 * Gets the pool of getNumThreads() threads, kept from one task to the
+	 * next until the classifier is closed. A pool of another size is
+	 * replaced but not shut down, as tasks may still be submitted to it;
+	 * its idle threads end by themselves.
+	 *
+	 * @return the pool
+	 */
+	synchronized ForkJoinPool pool() {
+		if (m_Pool == null || m_Pool.getParallelism() != m_NumThreads) {
+			m_Pool = new ForkJoinPool(m_NumThreads);
+		}
+		return m_Pool;
+	}
+
+	/**
+	 * Finds the leave-one-out error of the built classifier on its training
+	 * rows for every k from 1 to maxK, in a single search for the maxK + 1
+	 * nearest neighbours of each row, in parallel on getNumThreads() threads.
+	 * The error of a row is the one of its prediction from its nearest
+	 * neighbours other than itself; the min and max values are not found
+	 * again without it. The classifier is left unchanged.
+	 *
+	 * @param maxK largest k evaluated, reduced to the number of training
+	 * rows minus one
+	 * @return the mean absolute error for each k, or the mean squared error
+	 * with getMeanSquared(), the one of k at index k - 1
+	 * @throws IllegalStateException if the classifier has not been built
+	 */
+	public double[] leaveOneOutErrors(int maxK) {
+		m_Lock.readLock().lock();
+		try {
+			checkBuilt();
+			return leaveOneOutErrorsLocked(maxK);
+		} finally {
+			m_Lock.readLock().unlock();
+		}
+	}
+
+	private double[] leaveOneOutErrorsLocked(int maxK) {
+		int numRows = m_Model.m_NumRows;
+		maxK = Math.min(maxK, numRows - 1);
+		if (maxK < 1) {
+			return new double[0];
+		}
+		double[] errors = invoke(new LeaveOneOutTask(this, maxK, m_MeanSquared, 0, numRows));
+		double totalWeight = numRows;
+		if (m_Model.isCondensed()) {
+			totalWeight = 0;
+			for (int i = 0; i < numRows; i++) {
+				totalWeight += m_Model.rowWeight(m_Model.slot(i));
+			}
+		}
+		for (int k = 0; k < maxK; k++) {
+			errors[k] /= totalWeight;
+		}
+		return errors;
+	}
+
+	/**
+	 * Sets k to the one with the smallest leave-one-out error between 1 and
+	 * the k last set, the smallest of them on ties. With fewer than two
+	 * training rows, k is left unchanged.
+	 */
+	private void selectK() {
+		double[] errors = leaveOneOutErrorsLocked(m_MaxK > 0 ? m_MaxK : m_k);
+		if (errors.length == 0) {
+			return;
+		}
+		int best = 0;
+		for (int k = 1; k < errors.length; k++) {
+			if (errors[k] < errors[best]) {
+				best = k;
+			}
+		}
+		m_k = best + 1;
+	}
+
+	/**
+	 * Measures the fraction of the exact k nearest neighbours of some
+	 * instances found by the search structure, which is 1 unless it is
+	 * approximate. The exact neighbours are found by a linear scan of the
+	 * training data with the same tie-break rule, and with the distances of
+	 * the model, which are approximate without the re-rank of the quantised
+	 * inputs.
+	 *
+	 * @param instances held-out instances, left unchanged
+	 * @return the recall averaged over the instances
+	 * @throws IllegalStateException if the classifier has not been built
+	 */
+	public double recall(Instances instances) {
+		m_Lock.readLock().lock();
+		try {
+			checkBuilt();
+			int k = Math.min(getK(), m_Model.m_NumRows);
+			KnnQuery query = new KnnQuery(m_Model.m_Layout, k);
+			double total = 0;
+			for (int i = 0; i < instances.numInstances(); i++) {
+				m_Model.normaliseInputs(instances.instance(i), query);
+				query.m_Candidates.reset(k);
+				m_Search.search(query);
+				int[] found = query.m_Candidates.rows();
+				query.m_Candidates.reset(k);
+				for (int j = 0; j < m_Model.m_NumRows; j++) {
+					int row = m_Model.slot(j);
+					query.m_Candidates.offer(row, m_Model.squaredDistance(query.m_Numeric, query.m_Nominal, row, Double.POSITIVE_INFINITY));
+				}
+				int[] nearest = query.m_Candidates.rows();
+
+				int matches = 0;
+				for (int row : nearest) {
+					for (int other : found) {
+						if (row == other) {
+							matches++;
+							break;
+						}
+					}
+				}
+				total += (double) matches / nearest.length;
+			}
+			return instances.numInstances() == 0 ? 1 : total / instances.numInstances();
+		} finally {
+			m_Lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks that the window attribute, if any, can be used with some data.
+	 *
+	 * @param data data set the classifier is to be built from
+	 * @throws Exception if the window attribute cannot be used
+	 */
+	private void checkWindowAttribute(Instances data) throws Exception {
+		int timeIndex = m_WindowAttribute - 1;
+		if (timeIndex >= 0) {
+			if (m_WindowSize <= 0) {
+				throw new Exception("A window attribute requires a window size");
+			}
+			if (timeIndex >= data.numAttributes() || !data.attribute(timeIndex).isNumeric()) {
+				throw new Exception("The window attribute must be a numeric attribute");
+			}
+		}
+	}
+
+	/**
+	 * Adds a training instance to the built classifier. The min and max
+	 * values are updated to include the instance, which is appended to the
+	 * compact model and inserted into the search structure, after evicting
+	 * the oldest instance if the window is full. This costs O(d) plus the
+	 * insertion into the search structure, apart from a renormalisation of
+	 * all rows and rebuild of the structure once as many instances have been
+	 * added since the range changed as there were rows then. Until then, the
+	 * stored rows keep their normalisation and the distances weight each
+	 * numerical input instead (see KnnModel), so predictions after an update
+	 * that widens a range may differ from the ones of a classifier rebuilt
+	 * from scratch in the last bits of the distances, and so in rare ties.
+	 * Instances with a missing output are ignored.
+	 *
+	 * @param instance training instance, left unchanged
+	 * @throws Exception if the classifier has not been built or the
+	 * instance does not match the training data
+	 */
+	@Override
+	public void updateClassifier(Instance instance) throws Exception {
+		m_Lock.writeLock().lock();
+		try {
+			if (m_Model == null) {
+				throw new Exception("The classifier must be built before being updated");
+			}
+			if (m_Model.isReadOnly()) {
+				throw new Exception("A classifier opened from a model file cannot be updated");
+			}
+			if (!m_TrainingData.equalHeaders(instance.dataset())) {
+				throw new Exception("Incompatible instance types\n" + m_TrainingData.equalHeadersMsg(instance.dataset()));
+			}
+			if (instance.classIsMissing()) {
+				return;
+			}
+			invalidateCache();
+
+			if (m_WindowSize > 0 && m_Model.m_NumRows >= m_WindowSize) {
+				evictOldest();
+			}
+			double[] values = numericInputs(instance);
+			boolean rewritten;
+			if (m_Range != null) {
+				m_Range.add(values);
+				m_Range.copyRange(min, max);
+				rewritten = m_Model.setRange(min, max);
+			} else {
+				boolean widened = false;
+				for (int j = 0; j < values.length; j++) {
+					if (values[j] < min[j]) {
+						min[j] = values[j];
+						widened = true;
+					}
+					if (values[j] > max[j]) {
+						max[j] = values[j];
+						widened = true;
+					}
+				}
+				rewritten = widened && m_Model.setRange(min, max);
+			}
+			int row = m_Model.append(instance);
+			m_Search.add(row);
+			m_BlockedKernel = null;
+
+			if (m_WindowTimes != null) {
+				double newest = instance.value(m_WindowAttribute - 1);
+				m_WindowTimes[row] = newest;
+				boolean evicted = false;
+				while (m_Model.m_NumRows > 1 && m_WindowTimes[m_Model.m_Start] < newest - m_WindowSpan) {
+					evictOldest();
+					evicted = true;
+				}
+				if (evicted) {
+					m_Range.copyRange(min, max);
+					rewritten |= m_Model.setRange(min, max);
+				}
+			}
+
+			if (m_Model.needsRebase()) {
+				m_Model.rebase(min, max);
+				rewritten = true;
+			}
+			if (rewritten) {
+				m_Search = createSearch();
+			}
+			KnnMetrics metrics = m_Metrics;
+			if (metrics != null) {
+				metrics.recordUpdate(m_Model);
+			}
+		} finally {
+			m_Lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the built classifier to a binary model file (see KnnModelFile),
+	 * which can be opened with openModel. The classifier is left unchanged
+	 * and may keep predicting while it is written.
+	 *
+	 * @param file model file to be written
+	 * @throws IOException if the classifier has not been built or the file
+	 * cannot be written
+	 */
+	public void writeModel(File file) throws IOException {
+		m_Lock.readLock().lock();
+		try {
+			if (m_Model == null) {
+				throw new IOException("The classifier must be built before being written");
+			}
+			KnnModelFile.write(this, file);
+		} finally {
+			m_Lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Opens a classifier written by writeModel. Its rows are mapped from the
+	 * file rather than read, and stay valid until the classifier is closed or
+	 * rebuilt, even if the file is deleted; close unmaps them at once.
+	 *
+	 * @param file model file
+	 * @return the classifier, ready to predict but not to be updated
+	 * @throws Exception if the file cannot be read or is not a model file
+	 */
+	public static MyKnn openModel(File file) throws Exception {
+		return KnnModelFile.open(file);
+	}
+
+	/**
+	 * Releases the training data of the classifier, including the buffers
+	 * held outside the heap, once the predictions running have completed.
+	 * The classifier must be built again before predicting.
+	 */
+	@Override
+	public void close() {
+		m_Lock.writeLock().lock();
+		try {
+			if (m_Model != null) {
+				m_Model.close();
+			}
+			m_Model = null;
+			m_Search = null;
+			m_BlockedKernel = null;
+			m_Range = null;
+			m_WindowTimes = null;
+			invalidateCache();
+			stopMetrics();
+			synchronized (this) {
+				if (m_Pool != null) {
+					m_Pool.shutdown();
+					m_Pool = null;
+				}
+			}
+		} finally {
+			m_Lock.writeLock().unlock();
+		}
+	}
+
+	private void checkBuilt() {
+		if (m_Model == null) {
+			throw new IllegalStateException("The classifier has not been built or has been closed");
+		}
+	}
+
+	/**
+	 * Evicts the oldest row of the compact model.
+	 */
+	private void evictOldest() {
+		m_Search.remove(m_Model.m_Start);
+		m_Model.evict();
+		m_Range.evict();
+	}
+
+	/**
+	 * Keeps the most recent training instances that fit in the window.
+	 *
+	 * @param data training data, in order of arrival
+	 * @return the instances kept
+	 */
+	private Instances window(Instances data) {
+		int numInstances = data.numInstances();
+		int begin = m_WindowSize > 0 ? Math.max(0, numInstances - m_WindowSize) : 0;
+		if (m_WindowAttribute > 0 && numInstances > 0) {
+			double newest = data.instance(numInstances - 1).value(m_WindowAttribute - 1);
+			while (begin < numInstances - 1 && data.instance(begin).value(m_WindowAttribute - 1) < newest - m_WindowSpan) {
+				begin++;
+			}
+		}
+		return begin == 0 ? data : new Instances(data, begin, numInstances - begin);
+	}
+
+	/**
+	 * @param instance raw instance
+	 * @return the values of its numerical inputs, in the order of min[] and max[]
+	 */
+	private double[] numericInputs(Instance instance) {
+		AttributeLayout layout = m_Model.m_Layout;
+		double[] values = new double[layout.numNumeric()];
+		for (int j = 0; j < values.length; j++) {
+			values[j] = instance.value(layout.m_NumericAttributes[j]);
+		}
+		return values;
+	}
+
+	/**
+	 * Sets the largest number of training instances kept, the most recent
+	 * ones. Takes effect the next time the classifier is built. Adding an
+	 * instance to a full model evicts the oldest one in O(1) from the ring
+	 * buffer of the compact model, and the search structure is updated
+	 * incrementally, so the cost of a prediction depends on the window
+	 * rather than on the number of instances seen. Ties between equally
+	 * distant neighbours then favour the instance held in the lowest slot of
+	 * the ring buffer rather than the oldest.
+	 *
+	 * @param windowSize the number of instances, 0 for no limit
+	 */
+	public void setWindowSize(int windowSize) {
+		m_WindowSize = windowSize;
+	}
+
+	/**
+	 * Gets the largest number of training instances kept.
+	 *
+	 * @return the number of instances, 0 for no limit
+	 */
+	public int getWindowSize() {
+		return m_WindowSize;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String windowSizeTipText() {
+		return "Largest number of training instances kept, the most recent ones (0 for no limit).";
+	}
+
+	/**
+	 * Sets the numeric attribute ordering the instances in time, which
+	 * requires a window size. The instances whose value of that attribute is
+	 * more than the window span below the one of the newest instance are
+	 * evicted, assuming the instances arrive in non-decreasing order of that
+	 * attribute. Takes effect the next time the classifier is built.
+	 *
+	 * @param windowAttribute index of the attribute starting at 1, 0 for none
+	 */
+	public void setWindowAttribute(int windowAttribute) {
+		m_WindowAttribute = windowAttribute;
+	}
+
+	/**
+	 * Gets the numeric attribute ordering the instances in time.
+	 *
+	 * @return index of the attribute starting at 1, 0 for none
+	 */
+	public int getWindowAttribute() {
+		return m_WindowAttribute;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String windowAttributeTipText() {
+		return "Numeric attribute (starting at 1) ordering the instances in time, 0 for none.";
+	}
+
+	/**
+	 * Sets the largest difference in the window attribute between the
+	 * newest instance and the instances kept.
+	 *
+	 * @param windowSpan the difference
+	 */
+	public void setWindowSpan(double windowSpan) {
+		m_WindowSpan = windowSpan;
+	}
+
+	/**
+	 * Gets the largest difference in the window attribute between the
+	 * newest instance and the instances kept.
+	 *
+	 * @return the difference
+	 */
+	public double getWindowSpan() {
+		return m_WindowSpan;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String windowSpanTipText() {
+		return "Instances whose window attribute is more than this below the newest one are evicted.";
+	}
+
+	/**
+	 * Sets whether the inputs of the training data are held outside the Java
+	 * heap, which takes effect when the classifier is next built. The buffers
+	 * are released when the classifier is closed or rebuilt, where the JVM
+	 * allows it, rather than when the garbage collector runs.
+	 *
+	 * @param offHeap true to hold the inputs in direct buffers
+	 */
+	public void setOffHeap(boolean offHeap) {
+		m_OffHeap = offHeap;
+	}
+
+	/**
+	 * Gets whether the inputs of the training data are held outside the Java heap.
+	 *
+	 * @return true if the inputs are held in direct buffers
+	 */
+	public boolean getOffHeap() {
+		return m_OffHeap;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String offHeapTipText() {
+		return "Whether the normalised inputs of the training data are held in direct buffers "
+				+ "outside the Java heap, released when the classifier is closed or rebuilt.";
+	}
+
+	/**
+	 * Sets the number of neighbours to use, which is also the largest k
+	 * considered by cross-validation.
+	 *
+	 * @param k the number of neighbours
+	 */
+	@Override
+	public void setK(int k) {
+		super.setK(k);
+		m_MaxK = m_k;
+		invalidateCache();
+	}
+
+	/**
+	 * Sets whether k is selected by leave-one-out evaluation on the training
+	 * data, between 1 and the k set, when the classifier is next built, as
+	 * -X of IBk does. The errors of every k are found in a single search
+	 * (see leaveOneOutErrors), and k is not selected again by
+	 * updateClassifier.
+	 *
+	 * @param crossValidate true to select k when building
+	 */
+	public void setCrossValidate(boolean crossValidate) {
+		m_CrossValidate = crossValidate;
+	}
+
+	/**
+	 * Gets whether k is selected by leave-one-out evaluation when building.
+	 *
+	 * @return true if k is selected when building
+	 */
+	public boolean getCrossValidate() {
+		return m_CrossValidate;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String crossValidateTipText() {
+		return "Whether k is selected between 1 and the k set by leave-one-out evaluation "
+				+ "on the training data when building the classifier.";
+	}
+
+	/**
+	 * Sets the number of prototypes the training rows are condensed into
+	 * when the classifier is next built, raised to the number of distinct
+	 * combinations of categorical values if there are more.
+	 *
+	 * @param prototypes the number of prototypes, 0 for no fixed number
+	 */
+	public void setPrototypes(int prototypes) {
+		m_Prototypes = prototypes;
+	}
+
+	/**
+	 * Gets the number of prototypes the training rows are condensed into.
+	 *
+	 * @return the number of prototypes, 0 for no fixed number
+	 */
+	public int getPrototypes() {
+		return m_Prototypes;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String prototypesTipText() {
+		return "Number of weighted prototypes the training instances are condensed into when "
+				+ "building the classifier (0 for no fixed number).";
+	}
+
+	/**
+	 * Sets the largest mean absolute difference between the predictions of
+	 * the condensed and full models on a sample of training rows held out of
+	 * both (see PrototypeCondenser), relative to the mean absolute deviation
+	 * of the outputs, within which the training rows are condensed into the
+	 * fewest prototypes when the classifier is next built. Only used without
+	 * a number of prototypes.
+	 *
+	 * @param prototypeTolerance the relative difference, 0 for no condensation
+	 * by tolerance
+	 */
+	public void setPrototypeTolerance(double prototypeTolerance) {
+		m_PrototypeTolerance = prototypeTolerance;
+	}
+
+	/**
+	 * Gets the largest relative difference between the condensed and full
+	 * models.
+	 *
+	 * @return the relative difference, 0 for no condensation by tolerance
+	 */
+	public double getPrototypeTolerance() {
+		return m_PrototypeTolerance;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String prototypeToleranceTipText() {
+		return "Condense the training instances into the fewest prototypes whose predictions differ from "
+				+ "the full model's by at most this fraction of the mean absolute deviation of the outputs "
+				+ "(0 for none; ignored with a number of prototypes).";
+	}
+
+	/**
+	 * Gets the report of the last condensation of the training rows: the
+	 * number of prototypes, the mean absolute difference from the full model
+	 * and the error of each condensed model tried, measured on a sample of
+	 * training rows held out of the models compared.
+	 *
+	 * @return the report, or null if the classifier was not condensed
+	 */
+	public String getCondensationReport() {
+		return m_CondensationReport;
+	}
+
+	/**
+	 * Sets whether leave-one-out evaluation uses the mean squared error
+	 * rather than the mean absolute error.
+	 *
+	 * @param meanSquared true for the mean squared error
+	 */
+	public void setMeanSquared(boolean meanSquared) {
+		m_MeanSquared = meanSquared;
+	}
+
+	/**
+	 * Gets whether leave-one-out evaluation uses the mean squared error.
+	 *
+	 * @return true for the mean squared error
+	 */
+	public boolean getMeanSquared() {
+		return m_MeanSquared;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String meanSquaredTipText() {
+		return "Whether leave-one-out evaluation minimises the mean squared error rather than "
+				+ "the mean absolute error.";
+	}
+
+	/**
+	 * Sets the structure used for finding the nearest neighbours.
+	 * Takes effect the next time the classifier is built.
+	 *
+	 * @param index one of the tags in TAGS_INDEX
+	 */
+	public void setIndex(SelectedTag index) {
+		if (index.getTags() == TAGS_INDEX) {
+			m_Index = index.getSelectedTag().getID();
+		}
+	}
+
+	/**
+	 * Gets the structure used for finding the nearest neighbours.
+	 *
+	 * @return the selected structure
+	 */
+	public SelectedTag getIndex() {
+		return new SelectedTag(m_Index, TAGS_INDEX);
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String indexTipText() {
+		return "Structure used for finding the nearest neighbours.";
+	}
+
+	/**
+	 * Sets the largest number of links of a row in the upper layers of the
+	 * HNSW graph, twice as many in the bottom layer. Takes effect the next
+	 * time the classifier is built.
+	 *
+	 * @param maxConnections the number of links
+	 */
+	public void setMaxConnections(int maxConnections) {
+		m_MaxConnections = maxConnections;
+	}
+
+	/**
+	 * Gets the largest number of links of a row in the upper layers of the
+	 * HNSW graph.
+	 *
+	 * @return the number of links
+	 */
+	public int getMaxConnections() {
+		return m_MaxConnections;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String maxConnectionsTipText() {
+		return "Largest number of links of a row in the upper layers of the HNSW graph, "
+				+ "twice as many in the bottom layer.";
+	}
+
+	/**
+	 * Sets the number of closest rows kept while inserting a row into the
+	 * HNSW graph. Takes effect the next time the classifier is built.
+	 *
+	 * @param constructionBreadth the number of rows
+	 */
+	public void setConstructionBreadth(int constructionBreadth) {
+		m_ConstructionBreadth = constructionBreadth;
+	}
+
+	/**
+	 * Gets the number of closest rows kept while inserting a row into the
+	 * HNSW graph.
+	 *
+	 * @return the number of rows
+	 */
+	public int getConstructionBreadth() {
+		return m_ConstructionBreadth;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String constructionBreadthTipText() {
+		return "Number of closest rows kept while inserting a row into the HNSW graph.";
+	}
+
+	/**
+	 * Sets the number of closest rows kept while searching the HNSW graph,
+	 * at least k. Takes effect at once on a built graph.
+	 *
+	 * @param searchBreadth the number of rows
+	 */
+	public void setSearchBreadth(int searchBreadth) {
+		m_Lock.writeLock().lock();
+		try {
+			m_SearchBreadth = searchBreadth;
+			if (m_Search instanceof HnswSearch) {
+				((HnswSearch) m_Search).setSearchBreadth(searchBreadth);
+				invalidateCache();
+			}
+		} finally {
+			m_Lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of closest rows kept while searching the HNSW graph.
+	 *
+	 * @return the number of rows
+	 */
+	public int getSearchBreadth() {
+		return m_SearchBreadth;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String searchBreadthTipText() {
+		return "Number of closest rows kept while searching the HNSW graph, at least k: "
+				+ "larger values find more of the exact neighbours but take longer.";
+	}
+
+	/**
+	 * Sets the number of pivots of the pivot index, at most the number of
+	 * training rows. Takes effect the next time the classifier is built.
+	 *
+	 * @param pivots the number of pivots
+	 */
+	public void setPivots(int pivots) {
+		m_Pivots = pivots;
+	}
+
+	/**
+	 * Gets the number of pivots of the pivot index.
+	 *
+	 * @return the number of pivots
+	 */
+	public int getPivots() {
+		return m_Pivots;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String pivotsTipText() {
+		return "Number of pivots of the pivot index: more pivots skip more rows but cost "
+				+ "more distances per query and 8 bytes per training row each.";
+	}
+
+	/**
+	 * Sets how the pivots of the pivot index are chosen. Takes effect the
+	 * next time the classifier is built.
+	 *
+	 * @param selection one of the tags in TAGS_PIVOT_SELECTION
+	 */
+	public void setPivotSelection(SelectedTag selection) {
+		if (selection.getTags() == TAGS_PIVOT_SELECTION) {
+			m_PivotSelection = selection.getSelectedTag().getID();
+		}
+	}
+
+	/**
+	 * Gets how the pivots of the pivot index are chosen.
+	 *
+	 * @return the selected choice
+	 */
+	public SelectedTag getPivotSelection() {
+		return new SelectedTag(m_PivotSelection, TAGS_PIVOT_SELECTION);
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String pivotSelectionTipText() {
+		return "How the pivots of the pivot index are chosen: farthest-first, which spreads "
+				+ "them over the data, or at random.";
+	}
+
+	/**
+	 * Sets the number of threads building the classifier or predicting a
+	 * batch of instances.
+	 *
+	 * @param numThreads the number of threads, 0 or less for all processors
+	 */
+	public void setNumThreads(int numThreads) {
+		m_NumThreads = numThreads;
+	}
+
+	/**
+	 * Gets the number of threads building the classifier or predicting a
+	 * batch of instances.
+	 *
+	 * @return the number of threads, 0 or less for all processors
+	 */
+	public int getNumThreads() {
+		return m_NumThreads;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String numThreadsTipText() {
+		return "Number of threads building the classifier or predicting a batch of instances "
+				+ "(0 for all processors).";
+	}
+
+	/**
+	 * Sets the largest number of instances of a batch that are predicted
+	 * by a single task rather than split between two parallel tasks.
+	 *
+	 * @param parallelCutoff the number of instances
+	 */
+	public void setParallelCutoff(int parallelCutoff) {
+		m_ParallelCutoff = parallelCutoff;
+	}
 
-/**
- * k-NN class to be implemented by you as part of CO3091's coursework2.
- */
+	/**
+	 * Gets the largest number of instances of a batch predicted by a single task.
+	 *
+	 * @return the number of instances
+	 */
+	public int getParallelCutoff() {
+		return m_ParallelCutoff;
+	}
 
-public class MyKnn extends KnnParent {
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String parallelCutoffTipText() {
+		return "Largest number of instances of a batch predicted by a single task.";
+	}
 
-	public MyKnn(int k) {
-		super(k);
+	/**
+	 * Sets the number of training rows compared at once with a tile of
+	 * instances when predicting a batch with a linear scan.
+	 *
+	 * @param blockRows the number of training rows, 0 for no tiling
+	 */
+	public void setBlockRows(int blockRows) {
+		m_BlockRows = blockRows;
+	}
 
+	/**
+	 * Gets the number of training rows compared at once with a tile of instances.
+	 *
+	 * @return the number of training rows, 0 for no tiling
+	 */
+	public int getBlockRows() {
+		return m_BlockRows;
 	}
 
-	public MyKnn() {
-		super();
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String blockRowsTipText() {
+		return "Number of training rows compared at once with a tile of instances "
+				+ "when predicting a batch with a linear scan (0 for no tiling).";
+	}
+
+	/**
+	 * Sets whether batches are predicted with the blocked matrix-multiply
+	 * distance kernel, when the training data is scanned linearly.
+	 *
+	 * @param batchGemm true to use the blocked kernel
+	 */
+	public void setBatchGemm(boolean batchGemm) {
+		m_BatchGemm = batchGemm;
+	}
+
+	/**
+	 * Gets whether batches are predicted with the blocked matrix-multiply
+	 * distance kernel.
+	 *
+	 * @return true if the blocked kernel is used
+	 */
+	public boolean getBatchGemm() {
+		return m_BatchGemm;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String batchGemmTipText() {
+		return "Whether batches are predicted with the blocked matrix-multiply distance kernel "
+				+ "when the training data is scanned linearly.";
+	}
+
+	/**
+	 * Sets whether distances are first bounded with the JDK Vector API. This
+	 * requires the jdk.incubator.vector module (java --add-modules
+	 * jdk.incubator.vector); without it, the scalar loops are used. The
+	 * vectorised sum, scaled below the exact distance, only discards the
+	 * rows that are certainly too far: the others are computed again with
+	 * the scalar loop, so the neighbours are the same either way, and the
+	 * gain depends on the fraction of rows discarded. Takes effect at once
+	 * on a built classifier.
+	 *
+	 * @param vectorised true to use the JDK Vector API when available
+	 */
+	public void setVectorised(boolean vectorised) {
+		m_Lock.writeLock().lock();
+		try {
+			m_Vectorised = vectorised;
+			if (m_Model != null) {
+				m_Model.setVectorised(vectorised);
+			}
+		} finally {
+			m_Lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets whether distances are computed with the JDK Vector API when available.
+	 *
+	 * @return true if the JDK Vector API is used when available
+	 */
+	public boolean getVectorised() {
+		return m_Vectorised;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String vectorisedTipText() {
+		return "Whether rows are discarded with a lower bound of their distance computed with the "
+				+ "JDK Vector API before the exact scalar distance of the others "
+				+ "(requires --add-modules jdk.incubator.vector).";
+	}
+
+	/**
+	 * Sets the quantisation of the numerical inputs scanned before the
+	 * exact ones. With the re-rank, the quantised inputs are held next to
+	 * the exact ones, which adds to the memory unless the exact ones are
+	 * held outside the heap (see setOffHeap), and only int8 scans faster
+	 * than the exact inputs, once they do not fit in the caches. Without
+	 * the re-rank, the quantised inputs replace the exact ones on the heap,
+	 * with 2 to 8 times less memory but approximate distances. Takes effect
+	 * at once on a built classifier, whose inputs are then encoded, unless
+	 * its exact inputs were replaced, in which case it takes effect when it
+	 * is next built.
+	 *
+	 * @param quantisation one of the tags in TAGS_QUANTISATION
+	 */
+	public void setQuantisation(SelectedTag quantisation) {
+		if (quantisation.getTags() == TAGS_QUANTISATION) {
+			m_Quantisation = quantisation.getSelectedTag().getID();
+			updateQuantisation();
+		}
+	}
+
+	/**
+	 * Gets the quantisation of the numerical inputs.
+	 *
+	 * @return the selected quantisation
+	 */
+	public SelectedTag getQuantisation() {
+		return new SelectedTag(m_Quantisation, TAGS_QUANTISATION);
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String quantisationTipText() {
+		return "Compact copy of the normalised numerical inputs scanned before the exact ones. "
+				+ "With the re-rank, it adds to the memory unless the exact inputs are off the heap, and only "
+				+ "int8 is faster than no quantisation, on data larger than the caches (int16 is slower); "
+				+ "without it, it replaces the exact inputs, with 2 to 8 times less memory but approximate "
+				+ "distances.";
+	}
+
+	/**
+	 * Sets whether the rows that the quantised inputs cannot discard are
+	 * compared with their exact inputs, which keeps the neighbours exact.
+	 * Without the re-rank, the exact inputs held on the heap are dropped.
+	 * Takes effect as setQuantisation does.
+	 *
+	 * @param rerank false to approximate all distances from the quantised inputs
+	 */
+	public void setRerank(boolean rerank) {
+		m_Rerank = rerank;
+		updateQuantisation();
+	}
+
+	/**
+	 * Gets whether the rows not discarded by the quantised inputs are
+	 * compared with their exact inputs.
+	 *
+	 * @return true if the neighbours are exact
+	 */
+	public boolean getRerank() {
+		return m_Rerank;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String rerankTipText() {
+		return "Whether the rows not discarded by the quantised inputs are compared with their "
+				+ "exact inputs; otherwise all distances are approximate and the exact inputs are dropped "
+				+ "from the heap.";
+	}
+
+	private void updateQuantisation() {
+		m_Lock.writeLock().lock();
+		try {
+			if (m_Model != null && m_Model.hasExactInputs()) {
+				boolean approximate = m_Model.isApproximate();
+				m_Model.setQuantisation(m_Quantisation, m_Rerank);
+				if (approximate || m_Model.isApproximate()) {
+					// the search structure was built with other distances
+					m_Search = createSearch();
+				}
+				m_BlockedKernel = null;
+				invalidateCache();
+			}
+		} finally {
+			m_Lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets the largest number of predictions cached. The counters of the
+	 * cache are reset. The cache is cleared whenever the model is built,
+	 * updated or closed, or k or the search options change.
+	 *
+	 * @param cacheSize the number of predictions, 0 for no cache
+	 */
+	public void setCacheSize(int cacheSize) {
+		m_CacheSize = cacheSize;
+		m_Cache = null;
+	}
+
+	/**
+	 * Gets the largest number of predictions cached.
+	 *
+	 * @return the number of predictions, 0 for no cache
+	 */
+	public int getCacheSize() {
+		return m_CacheSize;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String cacheSizeTipText() {
+		return "Largest number of predictions cached for repeated instances, "
+				+ "evicting the least recently used (0 for no cache).";
+	}
+
+	/**
+	 * @return the number of predictions found in the cache since its size
+	 * was last set
+	 */
+	public long getCacheHits() {
+		PredictionCache cache = m_Cache;
+		return cache == null ? 0 : cache.hits();
+	}
+
+	/**
+	 * @return the number of predictions not found in the cache since its
+	 * size was last set
+	 */
+	public long getCacheMisses() {
+		PredictionCache cache = m_Cache;
+		return cache == null ? 0 : cache.misses();
+	}
+
+	/**
+	 * @return the number of predictions evicted from the full cache since
+	 * its size was last set
+	 */
+	public long getCacheEvictions() {
+		PredictionCache cache = m_Cache;
+		return cache == null ? 0 : cache.evictions();
+	}
+
+	/**
+	 * Returns the cache of the predictions, creating it the first time.
+	 *
+	 * @return the cache, or null without a cache size
+	 */
+	PredictionCache predictionCache() {
+		PredictionCache cache = m_Cache;
+		if (cache == null && m_CacheSize > 0) {
+			synchronized (this) {
+				if (m_Cache == null && m_CacheSize > 0) {
+					m_Cache = new PredictionCache(m_CacheSize);
+				}
+				cache = m_Cache;
+			}
+		}
+		return cache;
+	}
+
+	private void invalidateCache() {
+		PredictionCache cache = m_Cache;
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Sets the time a prediction of classifyInstance may take before its
+	 * search stops with the best neighbours found so far. Budgets longer
+	 * than Long.MAX_VALUE nanoseconds are cut to that.
+	 *
+	 * @param timeBudget the time, in microseconds, 0 for no limit
+	 */
+	public void setTimeBudget(long timeBudget) {
+		m_TimeBudget = timeBudget;
 	}
 
+	/**
+	 * Gets the time a prediction of classifyInstance may take.
+	 *
+	 * @return the time, in microseconds, 0 for no limit
+	 */
+	public long getTimeBudget() {
+		return m_TimeBudget;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String timeBudgetTipText() {
+		return "Time in microseconds after which classifyInstance stops searching and averages the best "
+				+ "neighbours found so far (0 for no limit; batches are always searched completely).";
+	}
+
+	/**
+	 * Sets the number of distances a prediction of classifyInstance may
+	 * compute before its search stops with the best neighbours found so far.
+	 *
+	 * @param evaluationBudget the number of distances, 0 for no limit
+	 */
+	public void setEvaluationBudget(int evaluationBudget) {
+		m_EvaluationBudget = evaluationBudget;
+	}
+
+	/**
+	 * Gets the number of distances a prediction of classifyInstance may
+	 * compute.
+	 *
+	 * @return the number of distances, 0 for no limit
+	 */
+	public int getEvaluationBudget() {
+		return m_EvaluationBudget;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String evaluationBudgetTipText() {
+		return "Number of distances after which classifyInstance stops searching and averages the best "
+				+ "neighbours found so far (0 for no limit; batches are always searched completely).";
+	}
+
+	/**
+	 * Sets whether metrics of the predictions, builds and updates are
+	 * collected and published through JMX. Takes effect at once; the
+	 * metrics start from zero each time they are turned on or the classifier
+	 * is rebuilt. Only this instance collects them: serialised copies do
+	 * not, nor do the classifiers opened from a model file it writes.
+	 *
+	 * @param collectMetrics true to collect metrics
+	 */
+	public void setCollectMetrics(boolean collectMetrics) {
+		m_CollectMetrics = collectMetrics;
+		if (collectMetrics) {
+			m_Lock.readLock().lock();
+			try {
+				startMetrics();
+			} finally {
+				m_Lock.readLock().unlock();
+			}
+		} else {
+			stopMetrics();
+		}
+	}
+
+	/**
+	 * Gets whether metrics are collected.
+	 *
+	 * @return true if metrics are collected
+	 */
+	public boolean getCollectMetrics() {
+		return m_CollectMetrics;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String collectMetricsTipText() {
+		return "Count and time the predictions, builds and updates, and publish the metrics through JMX.";
+	}
+
+	/**
+	 * Gets the metrics being collected, which are also published through
+	 * JMX.
+	 *
+	 * @return the metrics, or null if they are not collected
+	 */
+	public KnnMetricsMBean getMetrics() {
+		return m_Metrics;
+	}
+
+	/**
+	 * @return the metrics being collected, or null
+	 */
+	KnnMetrics metrics() {
+		return m_Metrics;
+	}
+
+	/**
+	 * Creates and publishes the metrics if they are not already, with the
+	 * read or write lock held.
+	 */
+	private synchronized void startMetrics() {
+		if (m_Metrics == null) {
+			KnnMetrics metrics = new KnnMetrics(this);
+			metrics.recordModel(m_Model);
+			metrics.register();
+			m_Metrics = metrics;
+		}
+	}
+
+	private synchronized void stopMetrics() {
+		KnnMetrics metrics = m_Metrics;
+		if (metrics != null) {
+			m_Metrics = null;
+			metrics.unregister();
+		}
+	}
+
+	/**
+	 * Replaces the metrics of the previous model, if any, by metrics of the
+	 * model just built, with the write lock held.
+	 */
+	private void recordBuild(long start) {
+		stopMetrics();
+		if (m_CollectMetrics) {
+			startMetrics();
+			m_Metrics.recordBuild(System.nanoTime() - start, m_Model);
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
-	protected Instance[] findNearestNeighbours(Instance instance) {
-		Instance[] nearest = null;
-		int smallest = getK();
-		double distances[] = new double[Math.min(smallest,
-				m_TrainingData.size())];
-		nearest = new Instance[Math.min(smallest, m_TrainingData.size())];
+	public Enumeration listOptions() {
+
+		Vector newVector = new Vector();
+
+		newVector.addElement(new Option(
+				"\tStructure used for finding the nearest neighbours:\n"
+				+ "\t" + Tag.toOptionList(TAGS_INDEX) + " (default linear).\n",
+				"I", 1, "-I " + Tag.toOptionSynopsis(TAGS_INDEX)));
+
+		newVector.addElement(new Option(
+				"\tLargest number of links of a row in the upper layers of the\n"
+				+ "\tHNSW graph (default 16).\n",
+				"max-connections", 1, "-max-connections <num>"));
+
+		newVector.addElement(new Option(
+				"\tNumber of closest rows kept while inserting a row into the\n"
+				+ "\tHNSW graph (default 200).\n",
+				"construction-breadth", 1, "-construction-breadth <num>"));
+
+		newVector.addElement(new Option(
+				"\tNumber of closest rows kept while searching the HNSW graph\n"
+				+ "\t(default 50).\n",
+				"search-breadth", 1, "-search-breadth <num>"));
+
+		newVector.addElement(new Option(
+				"\tNumber of pivots of the pivot index (default 16).\n",
+				"pivots", 1, "-pivots <num>"));
+
+		newVector.addElement(new Option(
+				"\tChoice of the pivots of the pivot index:\n"
+				+ "\t" + Tag.toOptionList(TAGS_PIVOT_SELECTION) + " (default maxmin).\n",
+				"pivot-selection", 1, "-pivot-selection " + Tag.toOptionSynopsis(TAGS_PIVOT_SELECTION)));
+
+		newVector.addElement(new Option(
+				"\tNumber of threads building the classifier or predicting a batch\n"
+				+ "\tof instances (default 0 = all processors).\n",
+				"num-threads", 1, "-num-threads <num>"));
+
+		newVector.addElement(new Option(
+				"\tLargest number of instances of a batch predicted by a single task\n"
+				+ "\t(default 256).\n",
+				"parallel-cutoff", 1, "-parallel-cutoff <num>"));
+
+		newVector.addElement(new Option(
+				"\tNumber of training rows compared at once with a tile of instances\n"
+				+ "\twhen predicting a batch with a linear scan (default 0 = no tiling).\n",
+				"block-rows", 1, "-block-rows <num>"));
+
+		newVector.addElement(new Option(
+				"\tPredict batches with the blocked matrix-multiply distance kernel\n"
+				+ "\twhen the training data is scanned linearly.\n",
+				"batch-gemm", 0, "-batch-gemm"));
+
+		newVector.addElement(new Option(
+				"\tDiscard rows with a lower bound of their distance computed with\n"
+				+ "\tthe JDK Vector API when the jdk.incubator.vector module is\n"
+				+ "\tavailable; the other distances are still computed exactly.\n",
+				"simd", 0, "-simd"));
+
+		newVector.addElement(new Option(
+				"\tQuantisation of the numerical inputs scanned before the exact ones,\n"
+				+ "\tadding to the memory unless they are held off the heap, and only\n"
+				+ "\tfaster with int8 on data larger than the caches:\n"
+				+ "\t" + Tag.toOptionList(TAGS_QUANTISATION) + " (default none).\n",
+				"quantise", 1, "-quantise " + Tag.toOptionSynopsis(TAGS_QUANTISATION)));
+
+		newVector.addElement(new Option(
+				"\tApproximate all distances from the quantised inputs instead of\n"
+				+ "\tcomparing the remaining rows with their exact inputs, which are\n"
+				+ "\tthen dropped from the heap.\n",
+				"no-rerank", 0, "-no-rerank"));
+
+		newVector.addElement(new Option(
+				"\tHold the normalised inputs of the training data outside the\n"
+				+ "\tJava heap, in direct buffers.\n",
+				"off-heap", 0, "-off-heap"));
+
+		newVector.addElement(new Option(
+				"\tLargest number of predictions cached for repeated instances\n"
+				+ "\t(default 0, no cache).\n",
+				"cache-size", 1, "-cache-size <num>"));
+
+		newVector.addElement(new Option(
+				"\tTime in microseconds after which a single prediction stops\n"
+				+ "\tsearching with the best neighbours found (default 0 = no limit).\n",
+				"time-budget", 1, "-time-budget <num>"));
+
+		newVector.addElement(new Option(
+				"\tNumber of distances after which a single prediction stops\n"
+				+ "\tsearching with the best neighbours found (default 0 = no limit).\n",
+				"evaluation-budget", 1, "-evaluation-budget <num>"));
+
+		newVector.addElement(new Option(
+				"\tCollect metrics of the predictions, builds and updates,\n"
+				+ "\tpublished through JMX.\n",
+				"metrics", 0, "-metrics"));
+
+		newVector.addElement(new Option(
+				"\tNumber of weighted prototypes the training instances are condensed\n"
+				+ "\tinto (default 0 = no fixed number).\n",
+				"prototypes", 1, "-prototypes <num>"));
+
+		newVector.addElement(new Option(
+				"\tCondense the training instances into the fewest prototypes whose\n"
+				+ "\tpredictions differ from the full model's by at most this fraction\n"
+				+ "\tof the mean absolute deviation of the outputs (default 0 = none).\n",
+				"prototype-tolerance", 1, "-prototype-tolerance <num>"));
+
+		newVector.addElement(new Option(
+				"\tLargest number of training instances kept, the most recent ones\n"
+				+ "\t(default 0 = no limit).\n",
+				"W", 1, "-W <num>"));
+
+		newVector.addElement(new Option(
+				"\tNumeric attribute ordering the instances in time, which requires -W\n"
+				+ "\t(default 0 = none, first is 1).\n",
+				"window-attribute", 1, "-window-attribute <index>"));
+
+		newVector.addElement(new Option(
+				"\tEvict the instances whose window attribute is more than this\n"
+				+ "\tbelow the newest one (default 0).\n",
+				"window-span", 1, "-window-span <num>"));
+
+		newVector.addElement(new Option(
+				"\tSelect the number of nearest neighbours between 1 and the k\n"
+				+ "\tspecified by leave-one-out evaluation on the training data.\n",
+				"X", 0, "-X"));
+
+		newVector.addElement(new Option(
+				"\tMinimise the mean squared error rather than the mean absolute\n"
+				+ "\terror when using -X.\n",
+				"E", 0, "-E"));
+
+		Enumeration enu = super.listOptions();
+		while (enu.hasMoreElements()) {
+			newVector.addElement(enu.nextElement());
+		}
+
+		return newVector.elements();
+	}
+
+	@Override
+	public void setOptions(String[] options) throws Exception {
 
-		// finds the nearest distances up to k and the number of instances
-		for (int i = 0; i < smallest && i < m_TrainingData.numInstances(); ++i) {
-			distances[i] = euclideanDistance(instance, m_TrainingData.get(i));
-			nearest[i] = m_TrainingData.get(i);
+		String index = Utils.getOption('I', options);
+		if (index.length() != 0) {
+			setIndex(new SelectedTag(index, TAGS_INDEX));
+		} else {
+			setIndex(new SelectedTag(INDEX_LINEAR, TAGS_INDEX));
 		}
-		// finds the nearest distances from k
-		for (int i = smallest; i < m_TrainingData.numInstances(); ++i) {
-			double distance = euclideanDistance(instance, m_TrainingData.get(i));
-			int furthestNearestNeighbourIndex = 0;
-			double maxDistance = distances[0];
 
-			// max index, if it appears twice, will take the smallest index
-			for (int j = 1; j < distances.length; ++j) {
-				if (distances[j] > maxDistance) {
-					furthestNearestNeighbourIndex = j;
-					maxDistance = distances[j];
+		String maxConnections = Utils.getOption("max-connections", options);
+		setMaxConnections(maxConnections.length() != 0 ? Integer.parseInt(maxConnections) : 16);
+
+		String constructionBreadth = Utils.getOption("construction-breadth", options);
+		setConstructionBreadth(constructionBreadth.length() != 0 ? Integer.parseInt(constructionBreadth) : 200);
+
+		String searchBreadth = Utils.getOption("search-breadth", options);
+		setSearchBreadth(searchBreadth.length() != 0 ? Integer.parseInt(searchBreadth) : 50);
+
+		String pivots = Utils.getOption("pivots", options);
+		setPivots(pivots.length() != 0 ? Integer.parseInt(pivots) : 16);
+
+		String pivotSelection = Utils.getOption("pivot-selection", options);
+		if (pivotSelection.length() != 0) {
+			setPivotSelection(new SelectedTag(pivotSelection, TAGS_PIVOT_SELECTION));
+		} else {
+			setPivotSelection(new SelectedTag(PIVOTS_MAXMIN, TAGS_PIVOT_SELECTION));
+		}
+
+		String numThreads = Utils.getOption("num-threads", options);
+		setNumThreads(numThreads.length() != 0 ? Integer.parseInt(numThreads) : 0);
+
+		String parallelCutoff = Utils.getOption("parallel-cutoff", options);
+		setParallelCutoff(parallelCutoff.length() != 0 ? Integer.parseInt(parallelCutoff) : 256);
+
+		String blockRows = Utils.getOption("block-rows", options);
+		setBlockRows(blockRows.length() != 0 ? Integer.parseInt(blockRows) : 0);
+
+		setBatchGemm(Utils.getFlag("batch-gemm", options));
+
+		setVectorised(Utils.getFlag("simd", options));
+
+		String quantisation = Utils.getOption("quantise", options);
+		if (quantisation.length() != 0) {
+			setQuantisation(new SelectedTag(quantisation, TAGS_QUANTISATION));
+		} else {
+			setQuantisation(new SelectedTag(QUANTISE_NONE, TAGS_QUANTISATION));
+		}
+
+		setRerank(!Utils.getFlag("no-rerank", options));
+
+		setOffHeap(Utils.getFlag("off-heap", options));
+
+		String cacheSize = Utils.getOption("cache-size", options);
+		setCacheSize(cacheSize.length() != 0 ? Integer.parseInt(cacheSize) : 0);
+
+		String timeBudget = Utils.getOption("time-budget", options);
+		setTimeBudget(timeBudget.length() != 0 ? Long.parseLong(timeBudget) : 0);
+
+		String evaluationBudget = Utils.getOption("evaluation-budget", options);
+		setEvaluationBudget(evaluationBudget.length() != 0 ? Integer.parseInt(evaluationBudget) : 0);
+
+		setCollectMetrics(Utils.getFlag("metrics", options));
+
+		String prototypes = Utils.getOption("prototypes", options);
+		setPrototypes(prototypes.length() != 0 ? Integer.parseInt(prototypes) : 0);
+
+		String prototypeTolerance = Utils.getOption("prototype-tolerance", options);
+		setPrototypeTolerance(prototypeTolerance.length() != 0 ? Double.parseDouble(prototypeTolerance) : 0);
+
+		String windowSize = Utils.getOption('W', options);
+		setWindowSize(windowSize.length() != 0 ? Integer.parseInt(windowSize) : 0);
+
+		String windowAttribute = Utils.getOption("window-attribute", options);
+		setWindowAttribute(windowAttribute.length() != 0 ? Integer.parseInt(windowAttribute) : 0);
+
+		String windowSpan = Utils.getOption("window-span", options);
+		setWindowSpan(windowSpan.length() != 0 ? Double.parseDouble(windowSpan) : 0);
+
+		setCrossValidate(Utils.getFlag('X', options));
+
+		setMeanSquared(Utils.getFlag('E', options));
+
+		super.setOptions(options);
+
+	}
+
+	@Override
+	public String[] getOptions() {
+
+		Vector<String> options = new Vector<String>();
+
+		options.add("-I");
+		options.add(TAGS_INDEX[m_Index].getIDStr());
+		options.add("-max-connections");
+		options.add(Integer.toString(m_MaxConnections));
+		options.add("-construction-breadth");
+		options.add(Integer.toString(m_ConstructionBreadth));
+		options.add("-search-breadth");
+		options.add(Integer.toString(m_SearchBreadth));
+		options.add("-pivots");
+		options.add(Integer.toString(m_Pivots));
+		options.add("-pivot-selection");
+		options.add(TAGS_PIVOT_SELECTION[m_PivotSelection].getIDStr());
+		options.add("-num-threads");
+		options.add(Integer.toString(m_NumThreads));
+		options.add("-parallel-cutoff");
+		options.add(Integer.toString(m_ParallelCutoff));
+		options.add("-block-rows");
+		options.add(Integer.toString(m_BlockRows));
+		if (m_BatchGemm) {
+			options.add("-batch-gemm");
+		}
+		if (m_Vectorised) {
+			options.add("-simd");
+		}
+		options.add("-quantise");
+		options.add(TAGS_QUANTISATION[m_Quantisation].getIDStr());
+		if (!m_Rerank) {
+			options.add("-no-rerank");
+		}
+		if (m_OffHeap) {
+			options.add("-off-heap");
+		}
+		options.add("-cache-size");
+		options.add(Integer.toString(m_CacheSize));
+		options.add("-time-budget");
+		options.add(Long.toString(m_TimeBudget));
+		options.add("-evaluation-budget");
+		options.add(Integer.toString(m_EvaluationBudget));
+		if (m_CollectMetrics) {
+			options.add("-metrics");
+		}
+		options.add("-prototypes");
+		options.add(Integer.toString(m_Prototypes));
+		options.add("-prototype-tolerance");
+		options.add(Double.toString(m_PrototypeTolerance));
+		options.add("-W");
+		options.add(Integer.toString(m_WindowSize));
+		options.add("-window-attribute");
+		options.add(Integer.toString(m_WindowAttribute));
+		options.add("-window-span");
+		options.add(Double.toString(m_WindowSpan));
+		if (m_CrossValidate) {
+			options.add("-X");
+		}
+		if (m_MeanSquared) {
+			options.add("-E");
+		}
+
+		// -K is the largest k considered rather than the k selected, as for
+		// -X of IBk, so that the options select k again over the same range
+		String[] superOptions = super.getOptions();
+		int k = Utils.getOptionPos('K', superOptions);
+		if (m_CrossValidate && m_MaxK > 0 && k >= 0) {
+			superOptions[k + 1] = Integer.toString(m_MaxK);
+		}
+		Collections.addAll(options, superOptions);
+
+		return options.toArray(new String[0]);
+	}
+
+	@Override
+	protected int numTrainingInstances() {
+		return m_Model == null ? 0 : m_Model.m_NumRows;
+	}
+
+	/**
+	 * Predicts the output of a given instance, as described in
+	 * KnnParent.classifyInstance. <p>
+	 *
+	 * Unlike KnnParent.classifyInstance, the instance is not modified: its
+	 * input attributes are normalised into buffers owned by the calling
+	 * thread, and the outputs of the nearest neighbours are averaged straight
+	 * from the compact model. Once warmed up, this does not allocate any
+	 * object, and many threads may call it at once on the same built model.
+	 * With a time or evaluation budget, the prediction is the one of
+	 * classifyInstance(instance, budget, evaluations).
+	 *
+	 * @param instance to be predicted.
+	 */
+	@Override
+	public double classifyInstance(Instance instance) {
+
+		if (m_TimeBudget > 0 || m_EvaluationBudget > 0) {
+			// saturates rather than overflowing for budgets of centuries
+			return classifyInstance(instance, TimeUnit.MICROSECONDS.toNanos(m_TimeBudget), m_EvaluationBudget)
+					.getPrediction();
+		}
+		m_Lock.readLock().lock();
+		try {
+			checkBuilt();
+			return predict(instance);
+		} finally {
+			m_Lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Predicts the output of a given instance within a budget of time or of
+	 * distance evaluations, for callers with a deadline. The search visits
+	 * the rows most likely to be near the instance first, as far as the
+	 * search structure tells, and stops once the budget is spent, the
+	 * prediction then averaging the best k neighbours found so far. The
+	 * budget is checked between blocks of rows, and not before k candidates
+	 * have been found, so it may be slightly exceeded. <p>
+	 *
+	 * The prediction is exact, identical to the one of classifyInstance
+	 * without a budget, if the search completed within the budget over an
+	 * exact search structure with exact distances. Only exact predictions are
+	 * cached.
+	 *
+	 * @param instance to be predicted, left unchanged
+	 * @param timeBudget time the prediction may take from this call, in
+	 * nanoseconds, 0 for no limit
+	 * @param evaluationBudget number of distances the search may compute, 0
+	 * for no limit
+	 * @return the prediction, whether it is exact and the budget it used
+	 * @throws IllegalStateException if the classifier has not been built
+	 */
+	public BudgetedPrediction classifyInstance(Instance instance, long timeBudget, int evaluationBudget) {
+		long start = System.nanoTime();
+		m_Lock.readLock().lock();
+		try {
+			checkBuilt();
+			return predictBudgeted(instance, start, timeBudget, evaluationBudget);
+		} finally {
+			m_Lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Predicts the output of a given instance within a budget, with the read
+	 * lock held, as classifyInstance(Instance, long, int) does.
+	 *
+	 * @param start value of System.nanoTime() the time budget starts from
+	 */
+	private BudgetedPrediction predictBudgeted(Instance instance, long start, long timeBudget, int evaluationBudget) {
+		KnnMetrics metrics = m_Metrics;
+		long begin = System.nanoTime();
+		KnnQuery query = scratchQuery();
+		m_Model.normaliseInputs(instance, query);
+		long normalised = System.nanoTime();
+		boolean exactSearch = !m_Model.isApproximate() && !(m_Search instanceof HnswSearch);
+
+		PredictionCache cache = predictionCache();
+		long generation = 0;
+		long hash = 0;
+		if (cache != null) {
+			generation = cache.generation();
+			hash = PredictionCache.hash(query);
+			double prediction = cache.get(query, hash);
+			if (!Double.isNaN(prediction)) {
+				long elapsed = System.nanoTime() - start;
+				boolean overrun = timeBudget > 0 && elapsed > timeBudget;
+				if (metrics != null) {
+					metrics.recordCached(normalised - begin, System.nanoTime() - normalised);
+					metrics.recordBudgeted(exactSearch, overrun, overrun ? elapsed - timeBudget : 0);
 				}
+				return new BudgetedPrediction(prediction, exactSearch, 0, elapsed, overrun);
+			}
+		}
+
+		query.setBudget(start + timeBudget, timeBudget > 0, evaluationBudget > 0 ? evaluationBudget : Integer.MAX_VALUE);
+		boolean stopped;
+		try {
+			search(query);
+			stopped = query.stopped();
+		} finally {
+			query.clearBudget();
+		}
+		long searched = System.nanoTime();
+		double prediction = determinePredictedOutput(query.m_Candidates);
+		long aggregated = System.nanoTime();
+		if (cache != null && !stopped) {
+			cache.put(query, hash, generation, prediction);
+		}
+
+		int evaluations = query.m_Candidates.evaluated();
+		long elapsed = System.nanoTime() - start;
+		boolean exact = exactSearch && !stopped;
+		long overshoot = timeBudget > 0 ? Math.max(0, elapsed - timeBudget) : 0;
+		boolean overrun = overshoot > 0 || evaluationBudget > 0 && evaluations > evaluationBudget;
+		if (metrics != null) {
+			metrics.recordQuery(normalised - begin, searched - normalised, aggregated - searched, query.m_Candidates,
+					m_Model.m_NumRows);
+			metrics.recordBudgeted(exact, overrun, overshoot);
+		}
+		return new BudgetedPrediction(prediction, exact, evaluations, elapsed, overrun);
+	}
+
+	/**
+	 * Predicts the output of a given instance, with the read lock already
+	 * held by the calling thread or the batch it is part of.
+	 *
+	 * @param instance to be predicted, left unchanged
+	 * @return predicted output
+	 */
+	double predict(Instance instance) {
+		KnnMetrics metrics = m_Metrics;
+		if (metrics != null) {
+			return predictMeasured(instance, metrics);
+		}
+		KnnQuery query = scratchQuery();
+		m_Model.normaliseInputs(instance, query);
+		PredictionCache cache = predictionCache();
+		if (cache == null) {
+			search(query);
+			return determinePredictedOutput(query.m_Candidates);
+		}
+
+		long generation = cache.generation();
+		long hash = PredictionCache.hash(query);
+		double prediction = cache.get(query, hash);
+		if (Double.isNaN(prediction)) {
+			search(query);
+			prediction = determinePredictedOutput(query.m_Candidates);
+			cache.put(query, hash, generation, prediction);
+		}
+		return prediction;
+	}
+
+	/**
+	 * Predicts the output of a given instance as predict does, timing the
+	 * normalisation, the search and the aggregation into the metrics.
+	 */
+	private double predictMeasured(Instance instance, KnnMetrics metrics) {
+		long start = System.nanoTime();
+		KnnQuery query = scratchQuery();
+		m_Model.normaliseInputs(instance, query);
+		long normalised = System.nanoTime();
+
+		PredictionCache cache = predictionCache();
+		long generation = 0;
+		long hash = 0;
+		if (cache != null) {
+			generation = cache.generation();
+			hash = PredictionCache.hash(query);
+			double prediction = cache.get(query, hash);
+			if (!Double.isNaN(prediction)) {
+				metrics.recordCached(normalised - start, System.nanoTime() - normalised);
+				return prediction;
+			}
+		}
+		search(query);
+		long searched = System.nanoTime();
+		double prediction = determinePredictedOutput(query.m_Candidates);
+		long aggregated = System.nanoTime();
+		if (cache != null) {
+			cache.put(query, hash, generation, prediction);
+		}
+
+		metrics.recordQuery(normalised - start, searched - normalised, aggregated - searched, query.m_Candidates,
+				m_Model.m_NumRows);
+		return prediction;
+	}
+
+	/**
+	 * Predicts the outputs of all instances of a data set in parallel, on a
+	 * fork/join pool of getNumThreads() threads. The instances are left
+	 * unchanged and the predictions are identical to the ones of
+	 * classifyInstance.
+	 *
+	 * @param instances to be predicted.
+	 * @return the predicted output of each instance, in the same order
+	 */
+	@Override
+	public double[] classifyInstances(Instances instances) throws Exception {
+
+		// the tasks predict without locking, on behalf of this thread
+		m_Lock.readLock().lock();
+		try {
+			return classifyInstancesLocked(instances);
+		} finally {
+			m_Lock.readLock().unlock();
+		}
+	}
+
+	private double[] classifyInstancesLocked(Instances instances) {
+		checkBuilt();
+
+		if (m_BatchGemm && m_BlockedKernel == null && m_Search instanceof LinearSearch && !m_Model.isOffHeap()
+				&& !m_Model.isApproximate()) {
+			m_BlockedKernel = new BlockedDistanceKernel(m_Model);
+		}
+
+		double[] predictions = new double[instances.numInstances()];
+		invoke(new BatchClassifyTask(this, instances, predictions, 0, predictions.length));
+
+		return predictions;
+	}
+
+	@Override
+	public boolean implementsMoreEfficientBatchPrediction() {
+		return true;
+	}
+
+	@Override
+	public double[][] distributionsForInstances(Instances instances) throws Exception {
+
+		double[] predictions = classifyInstances(instances);
+		double[][] distributions = new double[predictions.length][];
+		for (int i = 0; i < predictions.length; i++) {
+			distributions[i] = new double[] { predictions[i] };
+		}
+
+		return distributions;
+	}
+
+	@Override
+	protected Instance[] findNearestNeighbours(Instance instance) {
+		m_Lock.readLock().lock();
+		try {
+			checkBuilt();
+			NeighbourCandidates candidates = findNearestRows(instance).m_Candidates;
+
+			Instance[] nearest = new Instance[candidates.size()];
+			for (int i = 0; i < nearest.length; i++) {
+				nearest[i] = m_Model.instance(candidates.row(i), m_TrainingData);
 			}
+			return nearest;
+		} finally {
+			m_Lock.readLock().unlock();
+		}
+	}
 
-			int furthestNearestNeighbour = furthestNearestNeighbourIndex;
+	/**
+	 * Finds the rows of the compact model holding the k nearest neighbours of
+	 * a normalised instance, favouring the smallest row index on ties.
+	 *
+	 * @param instance normalised instance whose nearest neighbours are to be found
+	 * @return this thread's query buffers, whose candidates hold the nearest
+	 * neighbours sorted by distance
+	 */
+	KnnQuery findNearestRows(Instance instance) {
+		KnnQuery query = scratchQuery();
+		m_Model.m_Layout.copyInputs(instance, query.m_Numeric, query.m_Nominal);
+		if (m_Model.isWeighted()) {
+			m_Model.toFrame(query.m_Numeric, min, max);
+		}
+		search(query);
+		return query;
+	}
+
+	/**
+	 * Finds the k nearest neighbours of a normalised query and sorts them by
+	 * distance.
+	 *
+	 * @param query query whose candidates receive the nearest neighbours
+	 */
+	void search(KnnQuery query) {
+		query.m_Candidates.reset(Math.min(getK(), m_Model.m_NumRows));
+		m_Search.search(query);
+		query.m_Candidates.sort();
+	}
 
-			if (distance < distances[furthestNearestNeighbour]) {
-				distances[furthestNearestNeighbour] = distance;
-				nearest[furthestNearestNeighbour] = m_TrainingData.get(i);
+	/**
+	 * Returns the query buffers of the calling thread, allocating them the
+	 * first time or after the model or k have changed.
+	 *
+	 * @return the query buffers
+	 */
+	KnnQuery scratchQuery() {
+		ThreadLocal<KnnQuery> scratch = m_Scratch;
+		if (scratch == null) {
+			synchronized (this) {
+				if (m_Scratch == null) {
+					m_Scratch = new ThreadLocal<KnnQuery>();
+				}
+				scratch = m_Scratch;
 			}
 		}
-		return nearest;
+		int k = Math.min(getK(), m_Model.m_NumRows);
+		KnnQuery query = scratch.get();
+		if (query == null || !query.fits(m_Model.m_Layout, k)) {
+			query = new KnnQuery(m_Model.m_Layout, k);
+			scratch.set(query);
+		}
+		return query;
+	}
+
+	/**
+	 * Determines the predicted output as the average output of the nearest
+	 * neighbours held by the candidates, which must have been sorted. The
+	 * prototypes of a condensed model are weighted by the number of training
+	 * instances they stand for.
+	 *
+	 * @param candidates nearest neighbours in the compact model
+	 * @return predicted output
+	 */
+	double determinePredictedOutput(NeighbourCandidates candidates) {
+		return m_Model.meanOutput(candidates);
+	}
+
+	/**
+	 * Creates the neighbour search structure selected by m_Index over the
+	 * compact model.
+	 *
+	 * @return the search structure
+	 */
+	protected NeighbourSearch createSearch() {
+		return createSearch(m_Model);
+	}
+
+	/**
+	 * Creates the neighbour search structure selected by m_Index over a
+	 * compact model.
+	 *
+	 * @param model model to be searched
+	 * @return the search structure
+	 */
+	NeighbourSearch createSearch(KnnModel model) {
+		switch (m_Index) {
+		case INDEX_KDTREE:
+			return new KDTreeSearch(model);
+		case INDEX_BALLTREE:
+			return new BallTreeSearch(model);
+		case INDEX_PARTITION:
+			return new NominalPartitionSearch(model);
+		case INDEX_HNSW:
+			return new HnswSearch(model, m_MaxConnections, m_ConstructionBreadth, m_SearchBreadth);
+		case INDEX_PIVOT:
+			return new PivotSearch(model, m_Pivots, m_PivotSelection, this);
+		default:
+			return new LinearSearch(model);
+		}
 	}
 
 	@Override
@@ -73,8 +2588,7 @@ public class MyKnn extends KnnParent {
 			if (m_TrainingData.attribute(i).isNumeric()
 					&& i != m_TrainingData.classIndex()) {
 				//Calculation for normalisation
-				double normalised = (instance.value(i) - min[index])
-						/ (max[index] - min[index]);
+				double normalised = AttributeLayout.normalise(instance.value(i), min[index], max[index]);
 				instance.setValue(i, normalised);
 				index++;
 			}
@@ -85,43 +2599,7 @@ public class MyKnn extends KnnParent {
 
 	@Override
 	protected void determineMinMaxAttributeValues() {
-		min = new double[m_TrainingData.instance(0).numAttributes()];
-		max = new double[m_TrainingData.instance(0).numAttributes()];
-
-		int index = 0;
-		for (int i = 0; i < m_TrainingData.instance(0).numAttributes(); i++) {
-			if (i != m_TrainingData.classIndex()) {
-				if (m_TrainingData.attribute(i).isNumeric()) {
-					double[] attributeArr = new double[m_TrainingData
-							.numInstances()];
-					for (int n = 0; n < m_TrainingData.numInstances(); n++) {
-						attributeArr[n] = m_TrainingData.instance(n).value(i);
-					}
-
-					// assign temp values to test for min and max attribute
-					// values
-					double maxTemp = attributeArr[0];
-					double minTemp = attributeArr[0];
-
-					// sorts the array for min and max values to order
-					for (int j = 1; j < attributeArr.length; j++) {
-						if (attributeArr[j] > maxTemp) {
-							maxTemp = attributeArr[j];
-						} else if (attributeArr[j] < minTemp) {
-							minTemp = attributeArr[j];
-						}
-					}
-					min[index] = minTemp;
-					max[index] = maxTemp;
-
-					// loop counter incremented
-					index++;
-				} else {
-					min[index] = 0;
-					max[index] = 0;
-				}
-			}
-		}
+		determineMinMaxAttributeValues(m_TrainingData, new AttributeLayout(m_TrainingData));
 	}
 
 	@Override
@@ -157,4 +2635,4 @@ public class MyKnn extends KnnParent {
 
 		return avg;
 	}
-}
\ No newline at end of file
+}
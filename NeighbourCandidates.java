@@ -0,0 +1,221 @@
+package weka.classifiers.lazy;
+
+/**
+ * The k best training rows found so far while searching for the nearest
+ * neighbours of a query. <p>
+ *
+ * Rows are ordered by their squared distance to the query and, for equal
+ * distances, by their row index, so that the row with the smallest index is
+ * favoured on ties (see KnnParent.findNearestNeighbours). Rows can therefore
+ * be offered in any order and the result is the same as the one of a linear
+ * scan over the training data. <p>
+ *
+ * The rows are kept in a bounded max-heap whose root is the current k-th
+ * nearest neighbour, so offering a row costs O(log k). The arrays are
+ * allocated once and reused by reset, so that a query does not allocate.
+ */
+final class NeighbourCandidates {
+
+	/** Maximum number of rows kept by the current query. */
+	private int m_Capacity;
+
+	/** Number of rows currently kept. */
+	private int m_Size;
+
+	/** Rows kept, as a max-heap on (distance, row). */
+	private final int[] m_Rows;
+
+	/** Squared distances of the rows kept. */
+	private final double[] m_Distances;
+
+	/** Number of rows offered since the last reset, for the metrics. */
+	private int m_Evaluated;
+
+	/** Number of rows offered but not kept since the last reset, for the metrics. */
+	private int m_Rejected;
+
+	/**
+	 * @param maxCapacity largest number of rows that may be kept (the k of k-NN)
+	 */
+	NeighbourCandidates(int maxCapacity) {
+		m_Capacity = maxCapacity;
+		m_Rows = new int[maxCapacity];
+		m_Distances = new double[maxCapacity];
+	}
+
+	/**
+	 * Removes all rows so that the candidates can be reused for a new query.
+	 *
+	 * @param capacity number of rows to keep, no greater than the maximum
+	 * capacity given at construction
+	 */
+	void reset(int capacity) {
+		m_Capacity = capacity;
+		m_Size = 0;
+		m_Evaluated = 0;
+		m_Rejected = 0;
+	}
+
+	/**
+	 * @return number of rows kept by the current query
+	 */
+	int capacity() {
+		return m_Capacity;
+	}
+
+	/**
+	 * @return largest number of rows that may be kept
+	 */
+	int maxCapacity() {
+		return m_Rows.length;
+	}
+
+	/**
+	 * @return true if k rows have been kept already
+	 */
+	boolean isFull() {
+		return m_Size == m_Capacity;
+	}
+
+	/**
+	 * @return the number of rows kept
+	 */
+	int size() {
+		return m_Size;
+	}
+
+	/**
+	 * Returns the squared distance of the k-th best row, or positive
+	 * infinity while fewer than k rows have been kept. A row (or a group of
+	 * rows) whose squared distance is known to be strictly greater than this
+	 * value cannot become one of the nearest neighbours.
+	 *
+	 * @return the squared distance any new row has to match or beat
+	 */
+	double worstDistance() {
+		return m_Size < m_Capacity ? Double.POSITIVE_INFINITY : m_Distances[0];
+	}
+
+	/**
+	 * Offers a row to the candidates.
+	 *
+	 * @param row index of the training row
+	 * @param distance squared distance between the row and the query
+	 * @return true if the row was kept
+	 */
+	boolean offer(int row, double distance) {
+		m_Evaluated++;
+		if (m_Size < m_Capacity) {
+			siftUp(m_Size++, row, distance);
+			return true;
+		}
+		if (m_Capacity == 0 || !precedes(distance, row, m_Distances[0], m_Rows[0])) {
+			m_Rejected++;
+			return false;
+		}
+		siftDown(0, m_Size, row, distance);
+		return true;
+	}
+
+	/**
+	 * Counts distances computed by a search without offering their rows.
+	 *
+	 * @param evaluated number of distances
+	 */
+	void addEvaluated(int evaluated) {
+		m_Evaluated += evaluated;
+	}
+
+	/**
+	 * @return the number of distances computed since the last reset, which
+	 * includes the abandoned ones
+	 */
+	int evaluated() {
+		return m_Evaluated;
+	}
+
+	/**
+	 * @return the number of rows offered since the last reset that were not
+	 * kept, most of them with an abandoned distance
+	 */
+	int rejected() {
+		return m_Rejected;
+	}
+
+	/**
+	 * Sorts the rows kept in ascending order of distance and row index.
+	 * No row may be offered afterwards until the next reset.
+	 */
+	void sort() {
+		for (int last = m_Size - 1; last > 0; last--) {
+			int row = m_Rows[last];
+			double distance = m_Distances[last];
+			m_Rows[last] = m_Rows[0];
+			m_Distances[last] = m_Distances[0];
+			siftDown(0, last, row, distance);
+		}
+	}
+
+	/**
+	 * @param i position of a row, in ascending order of distance after sort
+	 * @return the row kept at that position
+	 */
+	int row(int i) {
+		return m_Rows[i];
+	}
+
+	/**
+	 * @param i position of a row, in ascending order of distance after sort
+	 * @return the squared distance of the row kept at that position
+	 */
+	double distance(int i) {
+		return m_Distances[i];
+	}
+
+	/**
+	 * Sorts and copies the rows kept.
+	 *
+	 * @return the rows kept, in ascending order of distance
+	 */
+	int[] rows() {
+		sort();
+		int[] rows = new int[m_Size];
+		System.arraycopy(m_Rows, 0, rows, 0, m_Size);
+		return rows;
+	}
+
+	private void siftUp(int position, int row, double distance) {
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (!precedes(m_Distances[parent], m_Rows[parent], distance, row)) {
+				break;
+			}
+			m_Rows[position] = m_Rows[parent];
+			m_Distances[position] = m_Distances[parent];
+			position = parent;
+		}
+		m_Rows[position] = row;
+		m_Distances[position] = distance;
+	}
+
+	private void siftDown(int position, int size, int row, double distance) {
+		int child;
+		while ((child = 2 * position + 1) < size) {
+			if (child + 1 < size && precedes(m_Distances[child], m_Rows[child], m_Distances[child + 1], m_Rows[child + 1])) {
+				child++;
+			}
+			if (!precedes(distance, row, m_Distances[child], m_Rows[child])) {
+				break;
+			}
+			m_Rows[position] = m_Rows[child];
+			m_Distances[position] = m_Distances[child];
+			position = child;
+		}
+		m_Rows[position] = row;
+		m_Distances[position] = distance;
+	}
+
+	private static boolean precedes(double distance1, int row1, double distance2, int row2) {
+		return distance1 < distance2 || (distance1 == distance2 && row1 < row2);
+	}
+}
@@ -0,0 +1,44 @@
+package weka.classifiers.lazy;
+
+import java.io.Serializable;
+
+/**
+ * Strategy used by MyKnn to find the nearest neighbours of a normalised
+ * query in the compact model. <p>
+ *
+ * Implementations are built once, after the training data has been
+ * normalised, and must find exactly the same neighbours as a linear scan of
+ * the training data, including the tie-break rule of
+ * KnnParent.findNearestNeighbours, except HnswSearch, which is approximate.
+ * They are then kept up to date as rows are appended to or evicted from the
+ * model, without being rebuilt. <p>
+ *
+ * The search of a query with a budget (see KnnQuery.setBudget) visits the
+ * rows most likely to be near the query first, as far as the structure
+ * tells, and stops once KnnQuery.outOfBudget returns true.
+ */
+interface NeighbourSearch extends Serializable {
+
+	/**
+	 * Offers to the candidates of the query every training row that may be
+	 * one of its nearest neighbours, or the ones visited before its budget
+	 * is spent.
+	 *
+	 * @param query normalised query, whose candidates receive the nearest neighbours
+	 */
+	void search(KnnQuery query);
+
+	/**
+	 * Adds a row that has just been appended to the model.
+	 *
+	 * @param row index of the training row
+	 */
+	void add(int row);
+
+	/**
+	 * Removes a row that is about to be evicted from the model.
+	 *
+	 * @param row index of the training row
+	 */
+	void remove(int row);
+}
@@ -0,0 +1,223 @@
+package weka.classifiers.lazy;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Search grouping the training rows by their combination of categorical
+ * input values. <p>
+ *
+ * Each categorical input that differs from the query adds exactly 1 to the
+ * squared distance, so the number of mismatches between the query and the
+ * combination of a group is a lower bound of the squared distance of all
+ * rows of the group. The groups are visited in ascending order of mismatches,
+ * starting with the group matching the query exactly, and the search stops
+ * at the first group whose mismatches alone are strictly greater than the
+ * distance of the current k-th nearest neighbour. Within a group the rows are
+ * visited with their mismatches already known. Rows appended to the model
+ * join their group, which is created if needed, and removed rows leave it.
+ * The budget of a query, if any, is checked before each group and every
+ * LinearSearch.BUDGET_ROWS rows of a group.
+ */
+final class NominalPartitionSearch implements NeighbourSearch {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Model to be searched. */
+	private final KnnModel m_Model;
+
+	/** Group of each combination of categorical values. */
+	private final HashMap<Combination, Integer> m_Groups = new HashMap<Combination, Integer>();
+
+	/** Number of groups. */
+	private int m_NumGroups;
+
+	/** Categorical input values of each group, group x numNominal. */
+	private int[] m_GroupValues;
+
+	/** Rows of each group. */
+	private int[][] m_GroupRows;
+
+	/** Number of rows of each group. */
+	private int[] m_GroupSize;
+
+	/** Group of each row of the model. */
+	private int[] m_GroupOf;
+
+	/** Position of each row of the model in its group. */
+	private int[] m_PositionOf;
+
+	/** Categorical input values of the row being added. */
+	private final int[] m_RowValues;
+
+	/**
+	 * Builds the groups of all rows of a model.
+	 *
+	 * @param model model to be searched
+	 */
+	NominalPartitionSearch(KnnModel model) {
+		m_Model = model;
+		int numNominal = model.m_Layout.numNominal();
+		m_GroupValues = new int[16 * numNominal];
+		m_GroupRows = new int[16][];
+		m_GroupSize = new int[16];
+		m_GroupOf = new int[model.capacity()];
+		m_PositionOf = new int[model.capacity()];
+		m_RowValues = new int[numNominal];
+
+		for (int i = 0; i < model.m_NumRows; i++) {
+			add(model.slot(i));
+		}
+	}
+
+	/**
+	 * @return the number of distinct combinations of categorical values
+	 */
+	int numGroups() {
+		return m_NumGroups;
+	}
+
+	@Override
+	public void add(int row) {
+		if (row >= m_GroupOf.length) {
+			m_GroupOf = Arrays.copyOf(m_GroupOf, m_Model.capacity());
+			m_PositionOf = Arrays.copyOf(m_PositionOf, m_Model.capacity());
+		}
+
+		// group of the row, numbered in order of first appearance
+		int numNominal = m_Model.m_Layout.numNominal();
+		for (int j = 0; j < numNominal; j++) {
+			m_RowValues[j] = m_Model.nominal(row, j);
+		}
+		Integer group = m_Groups.get(new Combination(m_RowValues, 0, numNominal));
+		if (group == null) {
+			group = m_NumGroups++;
+			if (m_NumGroups > m_GroupSize.length) {
+				m_GroupValues = Arrays.copyOf(m_GroupValues, 2 * m_GroupSize.length * numNominal);
+				m_GroupRows = Arrays.copyOf(m_GroupRows, 2 * m_GroupSize.length);
+				m_GroupSize = Arrays.copyOf(m_GroupSize, 2 * m_GroupSize.length);
+			}
+			System.arraycopy(m_RowValues, 0, m_GroupValues, group * numNominal, numNominal);
+			m_Groups.put(new Combination(m_GroupValues, group * numNominal, numNominal), group);
+			m_GroupRows[group] = new int[4];
+		}
+
+		int[] rows = m_GroupRows[group];
+		int size = m_GroupSize[group];
+		if (size == rows.length) {
+			rows = Arrays.copyOf(rows, 2 * size);
+			m_GroupRows[group] = rows;
+		}
+		rows[size] = row;
+		m_GroupSize[group] = size + 1;
+		m_GroupOf[row] = group;
+		m_PositionOf[row] = size;
+	}
+
+	@Override
+	public void remove(int row) {
+		int group = m_GroupOf[row];
+		int position = m_PositionOf[row];
+		int last = m_GroupRows[group][--m_GroupSize[group]];
+		m_GroupRows[group][position] = last;
+		m_PositionOf[last] = position;
+	}
+
+	@Override
+	public void search(KnnQuery query) {
+		int numNominal = query.m_Nominal.length;
+		int[] work = query.work(2 * m_NumGroups + numNominal + 2);
+		int mismatchesOffset = 0;
+		int orderOffset = m_NumGroups;
+		int countOffset = 2 * m_NumGroups;
+
+		// mismatches of each group, and groups sorted by mismatches
+		Arrays.fill(work, countOffset, countOffset + numNominal + 2, 0);
+		for (int group = 0; group < m_NumGroups; group++) {
+			int mismatches = 0;
+			for (int j = 0; j < numNominal; j++) {
+				if (query.m_Nominal[j] != m_GroupValues[group * numNominal + j]) {
+					mismatches++;
+				}
+			}
+			work[mismatchesOffset + group] = mismatches;
+			work[countOffset + mismatches + 1]++;
+		}
+		for (int mismatches = 0; mismatches < numNominal; mismatches++) {
+			work[countOffset + mismatches + 1] += work[countOffset + mismatches];
+		}
+		for (int group = 0; group < m_NumGroups; group++) {
+			work[orderOffset + work[countOffset + work[mismatchesOffset + group]]++] = group;
+		}
+
+		NeighbourCandidates candidates = query.m_Candidates;
+		for (int i = 0; i < m_NumGroups; i++) {
+			int group = work[orderOffset + i];
+			int mismatches = work[mismatchesOffset + group];
+			if (mismatches > candidates.worstDistance()) {
+				break;
+			}
+			int[] rows = m_GroupRows[group];
+			for (int position = 0; position < m_GroupSize[group];) {
+				if (query.outOfBudget()) {
+					return;
+				}
+				int block = Math.min(m_GroupSize[group] - position, LinearSearch.BUDGET_ROWS);
+				int end = position + query.budgetedRows(block);
+				for (; position < end; position++) {
+					int row = rows[position];
+					double bound = candidates.worstDistance();
+					candidates.offer(row, m_Model.squaredDistance(query.m_Numeric, row, mismatches, bound));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Combination of categorical values held at some offset of an array,
+	 * used as a key of the groups.
+	 */
+	private static final class Combination implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] m_Values;
+
+		private final int m_Offset;
+
+		private final int m_Length;
+
+		private final int m_Hash;
+
+		Combination(int[] values, int offset, int length) {
+			m_Values = values;
+			m_Offset = offset;
+			m_Length = length;
+			int hash = 1;
+			for (int j = 0; j < m_Length; j++) {
+				hash = 31 * hash + m_Values[offset + j];
+			}
+			m_Hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return m_Hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			Combination combination = (Combination) other;
+			for (int j = 0; j < m_Length; j++) {
+				if (m_Values[m_Offset + j] != combination.m_Values[combination.m_Offset + j]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
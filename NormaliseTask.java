@@ -0,0 +1,64 @@
+package weka.classifiers.lazy;
+
+import java.util.concurrent.RecursiveAction;
+
+import weka.core.Instances;
+
+/**
+ * Fork/join task copying a range of instances into the rows of a compact
+ * model, normalising their numerical inputs with the frame of the model. <p>
+ *
+ * Ranges longer than CHUNK_ROWS are split in two halves copied in parallel.
+ * Each row is written by a single task, into its own part of the arrays or
+ * buffers of the model, so the tasks need no synchronisation beyond the
+ * final join.
+ */
+final class NormaliseTask extends RecursiveAction {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Largest number of rows copied by a single task. */
+	static final int CHUNK_ROWS = 4096;
+
+	/** Model receiving the rows. */
+	private final KnnModel m_Model;
+
+	/** Raw instances to be copied. */
+	private final Instances m_Data;
+
+	/** First instance of the range, copied into the row of the same index. */
+	private final int m_Begin;
+
+	/** Instance after the last one of the range. */
+	private final int m_End;
+
+	/**
+	 * @param model model receiving the rows, with as many rows as instances
+	 * @param data raw instances to be copied, left unchanged
+	 * @param begin first instance of the range
+	 * @param end instance after the last one of the range
+	 */
+	NormaliseTask(KnnModel model, Instances data, int begin, int end) {
+		m_Model = model;
+		m_Data = data;
+		m_Begin = begin;
+		m_End = end;
+	}
+
+	@Override
+	protected void compute() {
+		if (m_End - m_Begin <= CHUNK_ROWS) {
+			for (int i = m_Begin; i < m_End; i++) {
+				m_Model.setRow(i, m_Data.instance(i));
+			}
+			return;
+		}
+
+		int middle = (m_Begin + m_End) >>> 1;
+		invokeAll(new NormaliseTask(m_Model, m_Data, m_Begin, middle),
+				new NormaliseTask(m_Model, m_Data, middle, m_End));
+	}
+}
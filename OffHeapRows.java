@@ -0,0 +1,298 @@
+package weka.classifiers.lazy;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Numerical and categorical inputs of the rows of a compact model held
+ * outside the Java heap, either in direct buffers allocated by allocate or in
+ * read-only buffers such as the sections of a memory-mapped model file. <p>
+ *
+ * A buffer is indexed by int, so the rows are split into chunks of
+ * rowsPerChunk rows, each with its own numeric and nominal buffer. Only the
+ * last chunk may be smaller; it is reallocated as the rows grow and further
+ * chunks are added, so the other rows are never copied. The distances are
+ * accumulated in the same order as in KnnModel, so they are exactly the ones
+ * of the same rows held on the heap. Only absolute gets and puts are used, so
+ * the buffers may be read by several threads at once. <p>
+ *
+ * The garbage collector only sees the small buffer objects, not the memory
+ * they hold, so close and reserve release the memory of the buffers they
+ * drop at once, direct or mapped, with sun.misc.Unsafe.invokeCleaner when
+ * the JVM provides it. Otherwise, and for a model dropped without close,
+ * the memory is released once the buffers are garbage collected;
+ * -XX:MaxDirectMemorySize bounds the total held by direct buffers.
+ */
+final class OffHeapRows {
+
+	/** Largest size of the buffer of a chunk allocated by allocate. */
+	static final long CHUNK_BYTES = 1L << 30;
+
+	/** Unsafe.invokeCleaner, or null if this JVM does not provide it. */
+	private static final Method INVOKE_CLEANER;
+
+	/** Instance of sun.misc.Unsafe INVOKE_CLEANER is called on. */
+	private static final Object UNSAFE;
+
+	static {
+		Method invokeCleaner = null;
+		Object unsafe = null;
+		try {
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+			invokeCleaner = null;
+			unsafe = null;
+		}
+		INVOKE_CLEANER = invokeCleaner;
+		UNSAFE = unsafe;
+	}
+
+	/** Buffers holding the numerical inputs of each chunk, released by close. */
+	private ByteBuffer[] m_NumericBytes;
+
+	/** Buffers holding the categorical input codes of each chunk, released by close. */
+	private ByteBuffer[] m_NominalBytes;
+
+	/** Numerical inputs of each chunk, rowsPerChunk x numNumeric. */
+	private DoubleBuffer[] m_Numeric;
+
+	/** Categorical input codes of each chunk, rowsPerChunk x numNominal. */
+	private IntBuffer[] m_Nominal;
+
+	/** Number of rows in each chunk but the last. */
+	private final int m_RowsPerChunk;
+
+	/** Number of numerical inputs of a row. */
+	private final int m_NumNumeric;
+
+	/** Number of categorical inputs of a row. */
+	private final int m_NumNominal;
+
+	/**
+	 * @param numeric buffer holding the numerical inputs of each chunk, in its byte order
+	 * @param nominal buffer holding the categorical input codes of each chunk, in its byte order
+	 * @param rowsPerChunk number of rows in each chunk but the last
+	 * @param numNumeric number of numerical inputs of a row
+	 * @param numNominal number of categorical inputs of a row
+	 */
+	OffHeapRows(ByteBuffer[] numeric, ByteBuffer[] nominal, int rowsPerChunk, int numNumeric, int numNominal) {
+		m_NumericBytes = numeric;
+		m_NominalBytes = nominal;
+		m_Numeric = new DoubleBuffer[numeric.length];
+		m_Nominal = new IntBuffer[nominal.length];
+		for (int c = 0; c < numeric.length; c++) {
+			m_Numeric[c] = numeric[c].asDoubleBuffer();
+			m_Nominal[c] = nominal[c].asIntBuffer();
+		}
+		m_RowsPerChunk = rowsPerChunk;
+		m_NumNumeric = numNumeric;
+		m_NumNominal = numNominal;
+	}
+
+	/**
+	 * Allocates direct buffers for a number of rows.
+	 *
+	 * @param capacity number of rows
+	 * @param numNumeric number of numerical inputs of a row
+	 * @param numNominal number of categorical inputs of a row
+	 * @return the rows, all of whose inputs are 0
+	 */
+	static OffHeapRows allocate(int capacity, int numNumeric, int numNominal) {
+		OffHeapRows rows = new OffHeapRows(new ByteBuffer[0], new ByteBuffer[0],
+				rowsPerChunk(numNumeric, numNominal, CHUNK_BYTES), numNumeric, numNominal);
+		rows.reserve(capacity);
+		return rows;
+	}
+
+	/**
+	 * Grows the direct buffers so that they hold a number of rows, keeping
+	 * the inputs of the rows already held and releasing the buffers replaced.
+	 *
+	 * @param capacity number of rows
+	 */
+	void reserve(int capacity) {
+		int numChunks = (int) ((capacity + (long) m_RowsPerChunk - 1) / m_RowsPerChunk);
+		int oldChunks = m_Numeric.length;
+		if (numChunks > oldChunks) {
+			m_NumericBytes = Arrays.copyOf(m_NumericBytes, numChunks);
+			m_NominalBytes = Arrays.copyOf(m_NominalBytes, numChunks);
+			m_Numeric = Arrays.copyOf(m_Numeric, numChunks);
+			m_Nominal = Arrays.copyOf(m_Nominal, numChunks);
+		}
+		for (int c = Math.max(0, oldChunks - 1); c < numChunks; c++) {
+			int rows = (int) Math.min(m_RowsPerChunk, capacity - (long) c * m_RowsPerChunk);
+			if (m_Numeric[c] != null && m_Numeric[c].capacity() >= rows * m_NumNumeric
+					&& m_Nominal[c].capacity() >= rows * m_NumNominal) {
+				continue;
+			}
+			ByteBuffer numericBytes = ByteBuffer.allocateDirect(8 * rows * m_NumNumeric).order(ByteOrder.nativeOrder());
+			ByteBuffer nominalBytes = ByteBuffer.allocateDirect(4 * rows * m_NumNominal).order(ByteOrder.nativeOrder());
+			DoubleBuffer numeric = numericBytes.asDoubleBuffer();
+			IntBuffer nominal = nominalBytes.asIntBuffer();
+			if (m_Numeric[c] != null) {
+				numeric.put(0, m_Numeric[c], 0, m_Numeric[c].capacity());
+				nominal.put(0, m_Nominal[c], 0, m_Nominal[c].capacity());
+				release(m_NumericBytes[c]);
+				release(m_NominalBytes[c]);
+			}
+			m_NumericBytes[c] = numericBytes;
+			m_NominalBytes[c] = nominalBytes;
+			m_Numeric[c] = numeric;
+			m_Nominal[c] = nominal;
+		}
+	}
+
+	/**
+	 * @return true if the rows are held in read-only buffers, such as the
+	 * sections of a memory-mapped file
+	 */
+	boolean isReadOnly() {
+		return m_Numeric.length > 0 && m_Numeric[0].isReadOnly();
+	}
+
+	/**
+	 * Releases the memory of the buffers at once, or once they are garbage
+	 * collected if the JVM does not provide Unsafe.invokeCleaner. The rows
+	 * must not be accessed afterwards, by any thread: reading a released
+	 * buffer may crash the JVM.
+	 */
+	void close() {
+		ByteBuffer[] numeric = m_NumericBytes;
+		ByteBuffer[] nominal = m_NominalBytes;
+		m_NumericBytes = new ByteBuffer[0];
+		m_NominalBytes = new ByteBuffer[0];
+		m_Numeric = new DoubleBuffer[0];
+		m_Nominal = new IntBuffer[0];
+		for (int c = 0; c < numeric.length; c++) {
+			release(numeric[c]);
+			release(nominal[c]);
+		}
+	}
+
+	/**
+	 * @return true if close and reserve release the memory of the buffers at
+	 * once rather than when they are garbage collected
+	 */
+	static boolean releasesAtOnce() {
+		return INVOKE_CLEANER != null;
+	}
+
+	/**
+	 * Releases the memory of a direct or mapped buffer at once, if the JVM
+	 * allows it, leaving it to the garbage collector otherwise.
+	 */
+	private static void release(ByteBuffer buffer) {
+		if (INVOKE_CLEANER == null || buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// released when garbage collected
+		}
+	}
+
+	/**
+	 * Largest number of rows per chunk keeping each buffer below a size.
+	 *
+	 * @param numNumeric number of numerical inputs of a row
+	 * @param numNominal number of categorical inputs of a row
+	 * @param chunkBytes largest size of a buffer in bytes
+	 * @return the number of rows
+	 */
+	static int rowsPerChunk(int numNumeric, int numNominal, long chunkBytes) {
+		long rowBytes = Math.max(1, Math.max(8L * numNumeric, 4L * numNominal));
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, chunkBytes / rowBytes));
+	}
+
+	/**
+	 * @param row index of the training instance
+	 * @param j position of the numerical input
+	 * @return the normalised value of the input
+	 */
+	double numeric(int row, int j) {
+		return m_Numeric[row / m_RowsPerChunk].get((row % m_RowsPerChunk) * m_NumNumeric + j);
+	}
+
+	/**
+	 * @param row index of the training instance
+	 * @param j position of the categorical input
+	 * @return the code of the value of the input
+	 */
+	int nominal(int row, int j) {
+		return m_Nominal[row / m_RowsPerChunk].get((row % m_RowsPerChunk) * m_NumNominal + j);
+	}
+
+	/**
+	 * @param row index of the training instance
+	 * @param j position of the numerical input
+	 * @param value normalised value of the input
+	 */
+	void setNumeric(int row, int j, double value) {
+		m_Numeric[row / m_RowsPerChunk].put((row % m_RowsPerChunk) * m_NumNumeric + j, value);
+	}
+
+	/**
+	 * @param row index of the training instance
+	 * @param j position of the categorical input
+	 * @param value code of the value of the input
+	 */
+	void setNominal(int row, int j, int value) {
+		m_Nominal[row / m_RowsPerChunk].put((row % m_RowsPerChunk) * m_NumNominal + j, value);
+	}
+
+	/**
+	 * @param nominal categorical input codes of the query
+	 * @param row index of the training instance
+	 * @return the number of categorical inputs of the row differing from the query
+	 */
+	int mismatches(int[] nominal, int row) {
+		IntBuffer buffer = m_Nominal[row / m_RowsPerChunk];
+		int offset = (row % m_RowsPerChunk) * m_NumNominal;
+		int mismatches = 0;
+		for (int j = 0; j < m_NumNominal; j++) {
+			if (nominal[j] != buffer.get(offset + j)) {
+				mismatches++;
+			}
+		}
+		return mismatches;
+	}
+
+	/**
+	 * Squared distance between a query and a training row, as
+	 * KnnModel.squaredDistance.
+	 *
+	 * @param numeric normalised numerical inputs of the query
+	 * @param row index of the training instance
+	 * @param mismatches number of categorical inputs of the row differing from the query
+	 * @param bound distance above which the computation can be abandoned
+	 * @param weights weight of each numerical input, or null
+	 * @return the squared distance, or a partial sum strictly greater than
+	 * bound if the computation was abandoned
+	 */
+	double squaredDistance(double[] numeric, int row, int mismatches, double bound, double[] weights) {
+		DoubleBuffer buffer = m_Numeric[row / m_RowsPerChunk];
+		int offset = (row % m_RowsPerChunk) * m_NumNumeric;
+		double sum = 0;
+		for (int j = 0; j < m_NumNumeric; j++) {
+			double diff = numeric[j] - buffer.get(offset + j);
+			sum += weights == null ? diff * diff : weights[j] * diff * diff;
+			if (sum > bound) {
+				return sum;
+			}
+		}
+		for (int j = 0; j < mismatches; j++) {
+			sum += 1;
+		}
+		return sum;
+	}
+}
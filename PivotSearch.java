@@ -0,0 +1,316 @@
+package weka.classifiers.lazy;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Metric-space search over a table of the distances between every row of
+ * the compact model and a few pivots, as in LAESA. <p>
+ *
+ * The distance used by MyKnn.euclideanDistance is a metric, so by the
+ * triangle inequality no row x can be closer to the query q than
+ * |d(q, p) - d(x, p)| for any pivot p. A query computes its distances to
+ * the pivots once, then scans the rows and computes the exact distance of a
+ * row only if no pivot bounds it strictly above the distance of the current
+ * k-th nearest neighbour. The neighbours are therefore the ones of a linear
+ * scan, ties included. <p>
+ *
+ * The pivots are either chosen farthest-first, each one the row furthest
+ * from the pivots already chosen, which spreads them over the data, or at
+ * random with a fixed seed. The table is held in a single primitive array,
+ * 8 bytes per pivot and slot of the model, and filled in parallel by
+ * PivotTableTask. The inputs of the pivots are copied, so a pivot row may
+ * be evicted from the model and still serve as a pivot; appended rows have
+ * their distances to the pivots added to the table. The pivot rows are
+ * scanned as the other rows, so that the scan only reads the table and the
+ * rows it does not exclude. <p>
+ *
+ * The table is computed in the frame of the model, without the weights of
+ * the numerical inputs. When the model weights its inputs, the bounds are
+ * scaled by the square root of the smallest weight, at most 1, below which
+ * no weighted distance can fall. The budget of a query, if any, is checked
+ * before each distance computed and every LinearSearch.BUDGET_ROWS rows;
+ * the distances to the pivots count in it, and a query whose evaluation
+ * budget cannot pay for them and the k rows it needs scans the rows
+ * without the pivots.
+ */
+final class PivotSearch implements NeighbourSearch {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Pivots chosen farthest-first. */
+	static final int SELECT_MAXMIN = 0;
+
+	/** Pivots chosen at random. */
+	static final int SELECT_RANDOM = 1;
+
+	/** Seed of the random choice of the pivots. */
+	static final long SEED = 1;
+
+	/**
+	 * Relative tolerance added to the bounds, which are computed on
+	 * square-rooted distances and may therefore be off by a few ulps.
+	 */
+	private static final double SLACK = 1e-9;
+
+	/** Model to be searched. */
+	final KnnModel m_Model;
+
+	/** Number of pivots. */
+	final int m_NumPivots;
+
+	/** Normalised numerical inputs of the pivots, pivot x numNumeric. */
+	private final double[] m_PivotNumeric;
+
+	/** Categorical input codes of the pivots, pivot x numNominal. */
+	private final int[] m_PivotNominal;
+
+	/** Number of slots of the model covered by the table. */
+	int m_Slots;
+
+	/**
+	 * Distance between each slot of the model and each pivot, pivot x slot,
+	 * so that the distances to the first pivot, which exclude most rows, are
+	 * read in sequence.
+	 */
+	double[] m_Table;
+
+	/**
+	 * Chooses the pivots among the rows of a model and fills the table of
+	 * their distances to every row on the threads of a classifier.
+	 *
+	 * @param model model to be searched
+	 * @param numPivots number of pivots, reduced to the number of rows
+	 * @param selection SELECT_MAXMIN or SELECT_RANDOM
+	 * @param knn classifier whose threads fill the table
+	 */
+	PivotSearch(KnnModel model, int numPivots, int selection, MyKnn knn) {
+		m_Model = model;
+		m_NumPivots = Math.max(0, Math.min(numPivots, model.m_NumRows));
+		m_PivotNumeric = new double[m_NumPivots * model.m_Layout.numNumeric()];
+		m_PivotNominal = new int[m_NumPivots * model.m_Layout.numNominal()];
+		m_Slots = model.capacity();
+		m_Table = new double[m_Slots * m_NumPivots];
+		if (m_NumPivots == 0) {
+			return;
+		}
+
+		if (selection == SELECT_RANDOM) {
+			// a partial Fisher-Yates shuffle of the ages of the rows
+			Random random = new Random(SEED);
+			int[] ages = new int[model.m_NumRows];
+			for (int i = 0; i < ages.length; i++) {
+				ages[i] = i;
+			}
+			for (int p = 0; p < m_NumPivots; p++) {
+				int chosen = p + random.nextInt(ages.length - p);
+				int age = ages[chosen];
+				ages[chosen] = ages[p];
+				ages[p] = age;
+				setPivot(p, model.slot(age));
+			}
+			knn.invoke(new PivotTableTask(this, 0, m_NumPivots, null, 0, model.m_NumRows));
+			return;
+		}
+
+		// farthest-first: each pivot is the row furthest from the pivots
+		// before it, the oldest on ties, starting with the oldest row; the
+		// rows chosen are marked so that duplicated rows give distinct pivots
+		double[] nearest = new double[model.m_NumRows];
+		Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+		int age = 0;
+		for (int p = 0; p < m_NumPivots; p++) {
+			setPivot(p, model.slot(age));
+			nearest[age] = Double.NEGATIVE_INFINITY;
+			knn.invoke(new PivotTableTask(this, p, p + 1, nearest, 0, model.m_NumRows));
+			for (int i = 0; i < nearest.length; i++) {
+				if (nearest[i] > nearest[age]) {
+					age = i;
+				}
+			}
+		}
+	}
+
+	private void setPivot(int p, int row) {
+		int numNumeric = m_Model.m_Layout.numNumeric();
+		int numNominal = m_Model.m_Layout.numNominal();
+		for (int j = 0; j < numNumeric; j++) {
+			m_PivotNumeric[p * numNumeric + j] = m_Model.numeric(row, j);
+		}
+		for (int j = 0; j < numNominal; j++) {
+			m_PivotNominal[p * numNominal + j] = m_Model.nominal(row, j);
+		}
+	}
+
+	/**
+	 * Computes the distance between a row of the model and a pivot, in the
+	 * frame of the model and without weights.
+	 *
+	 * @param row slot of the row
+	 * @param p index of the pivot
+	 * @return the distance, not squared
+	 */
+	double pivotDistance(int row, int p) {
+		int numNumeric = m_Model.m_Layout.numNumeric();
+		int numNominal = m_Model.m_Layout.numNominal();
+		double sum = 0;
+		for (int j = 0; j < numNumeric; j++) {
+			double diff = m_Model.numeric(row, j) - m_PivotNumeric[p * numNumeric + j];
+			sum += diff * diff;
+		}
+		for (int j = 0; j < numNominal; j++) {
+			if (m_Model.nominal(row, j) != m_PivotNominal[p * numNominal + j]) {
+				sum += 1;
+			}
+		}
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * Computes the distance between a query and a pivot, as pivotDistance does.
+	 */
+	private double pivotDistance(double[] numeric, int[] nominal, int p) {
+		double sum = 0;
+		for (int j = 0; j < numeric.length; j++) {
+			double diff = numeric[j] - m_PivotNumeric[p * numeric.length + j];
+			sum += diff * diff;
+		}
+		for (int j = 0; j < nominal.length; j++) {
+			if (nominal[j] != m_PivotNominal[p * nominal.length + j]) {
+				sum += 1;
+			}
+		}
+		return Math.sqrt(sum);
+	}
+
+	@Override
+	public void add(int row) {
+		if (row >= m_Slots) {
+			int slots = m_Model.capacity();
+			double[] table = new double[slots * m_NumPivots];
+			for (int p = 0; p < m_NumPivots; p++) {
+				System.arraycopy(m_Table, p * m_Slots, table, p * slots, m_Slots);
+			}
+			m_Table = table;
+			m_Slots = slots;
+		}
+		for (int p = 0; p < m_NumPivots; p++) {
+			m_Table[p * m_Slots + row] = pivotDistance(row, p);
+		}
+	}
+
+	@Override
+	public void remove(int row) {
+		// the pivots keep their own copy of their inputs
+	}
+
+	@Override
+	public void search(KnnQuery query) {
+		double[] numeric = query.m_Numeric;
+		int[] nominal = query.m_Nominal;
+		NeighbourCandidates candidates = query.m_Candidates;
+		// a budget that cannot pay for the pivots and k rows is spent on the rows
+		int numPivots = query.evaluationsLeft() - candidates.capacity() >= m_NumPivots ? m_NumPivots : 0;
+		double[] toPivots = query.table(numPivots);
+		for (int p = 0; p < numPivots; p++) {
+			toPivots[p] = pivotDistance(numeric, nominal, p);
+		}
+		candidates.addEvaluated(numPivots);
+
+		// no weighted distance is below the unweighted one times this scale
+		double scale = 1;
+		double[] weights = m_Model.m_Weights;
+		if (weights != null) {
+			for (double weight : weights) {
+				scale = Math.min(scale, weight);
+			}
+			scale = Math.sqrt(scale);
+		}
+		double[] intervals = query.intervals(2 * numPivots);
+		if (search(query, numPivots, toPivots, intervals, scale, m_Model.m_Start, m_Model.firstEnd())) {
+			search(query, numPivots, toPivots, intervals, scale, 0, m_Model.secondEnd());
+		}
+	}
+
+	/**
+	 * Offers the rows of a range of slots that no pivot excludes, until the
+	 * budget of the query is spent, which is checked before each distance
+	 * and every LinearSearch.BUDGET_ROWS rows.
+	 * A row is excluded by a pivot if its distance to the pivot falls
+	 * outside the interval of the pivot, which is recomputed each time a
+	 * row is kept.
+	 *
+	 * @param numPivots number of pivots used, the first ones
+	 * @param intervals receives the interval of each pivot, see interval
+	 * @return false if the budget was spent before the last row
+	 */
+	private boolean search(KnnQuery query, int numPivots, double[] toPivots, double[] intervals, double scale,
+			int begin, int end) {
+		double[] numeric = query.m_Numeric;
+		int[] nominal = query.m_Nominal;
+		NeighbourCandidates candidates = query.m_Candidates;
+		double[] table = m_Table;
+		int slots = m_Slots;
+		double bound = candidates.worstDistance();
+		interval(toPivots, numPivots, scale, bound, intervals);
+		double firstLow = numPivots > 0 ? intervals[0] : Double.NEGATIVE_INFINITY;
+		double firstHigh = numPivots > 0 ? intervals[1] : Double.POSITIVE_INFINITY;
+		for (int block = begin; block < end; block += LinearSearch.BUDGET_ROWS) {
+			if (query.outOfBudget()) {
+				return false;
+			}
+			int blockEnd = Math.min(end, block + LinearSearch.BUDGET_ROWS);
+			rows: for (int row = block; row < blockEnd; row++) {
+				if (numPivots > 0) {
+					// the first pivot, read in sequence, excludes most rows
+					double toFirst = table[row];
+					if (toFirst < firstLow || toFirst > firstHigh) {
+						continue;
+					}
+					for (int p = 1; p < numPivots; p++) {
+						double toPivot = table[p * slots + row];
+						if (toPivot < intervals[2 * p] || toPivot > intervals[2 * p + 1]) {
+							continue rows;
+						}
+					}
+				}
+				if (query.outOfBudget()) {
+					return false;
+				}
+				if (candidates.offer(row, m_Model.squaredDistance(numeric, nominal, row, bound))) {
+					bound = candidates.worstDistance();
+					interval(toPivots, numPivots, scale, bound, intervals);
+					if (numPivots > 0) {
+						firstLow = intervals[0];
+						firstHigh = intervals[1];
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the distances to each pivot outside of which a row is
+	 * certainly further from the query than a threshold: those for which
+	 * |d(q, p) - d(x, p)| > threshold + SLACK * (1 + d(q, p) + d(x, p)).
+	 *
+	 * @param toPivots distance between the query and each pivot
+	 * @param numPivots number of pivots used, the first ones
+	 * @param scale smallest ratio of a weighted distance to the unweighted one
+	 * @param bound squared distance a row has to match or beat
+	 * @param intervals receives, for each pivot p, the smallest distance to
+	 * it not excluded at 2p and the largest at 2p + 1
+	 */
+	private void interval(double[] toPivots, int numPivots, double scale, double bound, double[] intervals) {
+		double threshold = scale > 0 ? Math.sqrt(bound) / scale : Double.POSITIVE_INFINITY;
+		for (int p = 0; p < numPivots; p++) {
+			double margin = threshold + SLACK * (1 + toPivots[p]);
+			intervals[2 * p] = (toPivots[p] - margin) / (1 + SLACK);
+			intervals[2 * p + 1] = (toPivots[p] + margin) / (1 - SLACK);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package weka.classifiers.lazy;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join task filling the distances between a range of rows of a
+ * compact model, taken from the oldest, and some pivots of a PivotSearch,
+ * and optionally lowering the distance of each row to its nearest pivot. <p>
+ *
+ * Ranges longer than CHUNK_ROWS are split in two halves filled in parallel.
+ * Each row is written by a single task, into its own part of the table, so
+ * the tasks need no synchronisation beyond the final join.
+ */
+final class PivotTableTask extends RecursiveAction {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Largest number of rows filled by a single task. */
+	static final int CHUNK_ROWS = 4096;
+
+	/** Search whose table is filled. */
+	private final PivotSearch m_Search;
+
+	/** First pivot whose distances are filled. */
+	private final int m_FirstPivot;
+
+	/** Pivot after the last one whose distances are filled. */
+	private final int m_EndPivot;
+
+	/** Distance of each row, by age, to its nearest pivot, or null. */
+	private final double[] m_Nearest;
+
+	/** Age of the first row of the range. */
+	private final int m_Begin;
+
+	/** Age of the row after the last one of the range. */
+	private final int m_End;
+
+	/**
+	 * @param search search whose table is filled, with its pivots set
+	 * @param firstPivot first pivot whose distances are filled
+	 * @param endPivot pivot after the last one whose distances are filled
+	 * @param nearest distance of each row, by age, to its nearest pivot,
+	 * lowered by the distances filled, or null
+	 * @param begin age of the first row of the range
+	 * @param end age of the row after the last one of the range
+	 */
+	PivotTableTask(PivotSearch search, int firstPivot, int endPivot, double[] nearest, int begin, int end) {
+		m_Search = search;
+		m_FirstPivot = firstPivot;
+		m_EndPivot = endPivot;
+		m_Nearest = nearest;
+		m_Begin = begin;
+		m_End = end;
+	}
+
+	@Override
+	protected void compute() {
+		if (m_End - m_Begin <= CHUNK_ROWS) {
+			KnnModel model = m_Search.m_Model;
+			int slots = model.capacity();
+			double[] table = m_Search.m_Table;
+			for (int i = m_Begin; i < m_End; i++) {
+				int row = model.slot(i);
+				for (int p = m_FirstPivot; p < m_EndPivot; p++) {
+					double distance = m_Search.pivotDistance(row, p);
+					table[p * slots + row] = distance;
+					if (m_Nearest != null && distance < m_Nearest[i]) {
+						m_Nearest[i] = distance;
+					}
+				}
+			}
+			return;
+		}
+
+		int middle = (m_Begin + m_End) >>> 1;
+		invokeAll(new PivotTableTask(m_Search, m_FirstPivot, m_EndPivot, m_Nearest, m_Begin, middle),
+				new PivotTableTask(m_Search, m_FirstPivot, m_EndPivot, m_Nearest, middle, m_End));
+	}
+}
@@ -0,0 +1,376 @@
+package weka.classifiers.lazy;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the predictions of MyKnn, keyed on the normalised inputs
+ * of the queries, so that a repeated query skips the search. <p>
+ *
+ * The cache is split into segments selected by the hash of the key, each
+ * guarded by its own monitor, so that threads predicting different queries
+ * rarely wait for each other. A segment holds its entries in primitive
+ * arrays: a chained hash table, and a doubly linked list in order of last
+ * use whose least recently used entry is evicted when the segment is full.
+ * Looking up or inserting an entry does not allocate. Keys are compared bit
+ * for bit, so a query hits the cache only if its normalised inputs are
+ * exactly the ones of an earlier query, and it then gets the same
+ * prediction. <p>
+ *
+ * clear invalidates all entries in O(1) by starting a new generation, and
+ * each segment drops its entries the next time it is used. A prediction
+ * computed while the cache was cleared is not inserted, as put is given the
+ * generation read before computing it.
+ */
+final class PredictionCache {
+
+	/** Largest number of segments. */
+	static final int MAX_SEGMENTS = 16;
+
+	/** Segments, a power of two of them. */
+	private final Segment[] m_Segments;
+
+	/** Largest number of entries. */
+	private final int m_Capacity;
+
+	/** Current generation, incremented by clear. */
+	private volatile long m_Generation;
+
+	/** Number of lookups finding their key. */
+	private final LongAdder m_Hits = new LongAdder();
+
+	/** Number of lookups not finding their key. */
+	private final LongAdder m_Misses = new LongAdder();
+
+	/** Number of entries evicted to make room for another. */
+	private final LongAdder m_Evictions = new LongAdder();
+
+	/**
+	 * @param capacity largest number of entries, at least 1
+	 */
+	PredictionCache(int capacity) {
+		m_Capacity = capacity;
+		int numSegments = Math.min(MAX_SEGMENTS, Integer.highestOneBit(capacity));
+		m_Segments = new Segment[numSegments];
+		for (int s = 0; s < numSegments; s++) {
+			m_Segments[s] = new Segment(capacity / numSegments + (s < capacity % numSegments ? 1 : 0));
+		}
+	}
+
+	/**
+	 * @return the largest number of entries
+	 */
+	int capacity() {
+		return m_Capacity;
+	}
+
+	/**
+	 * @return the current generation, to be given to put
+	 */
+	long generation() {
+		return m_Generation;
+	}
+
+	/**
+	 * Invalidates all entries, in O(1).
+	 */
+	void clear() {
+		m_Generation++;
+	}
+
+	/**
+	 * @return the number of lookups finding their key
+	 */
+	long hits() {
+		return m_Hits.sum();
+	}
+
+	/**
+	 * @return the number of lookups not finding their key
+	 */
+	long misses() {
+		return m_Misses.sum();
+	}
+
+	/**
+	 * @return the number of entries evicted to make room for another
+	 */
+	long evictions() {
+		return m_Evictions.sum();
+	}
+
+	/**
+	 * Hashes the normalised inputs of a query, mixing the bits of each
+	 * input into a 64-bit state with the finaliser of MurmurHash3.
+	 *
+	 * @param query normalised query
+	 * @return the hash of its inputs
+	 */
+	static long hash(KnnQuery query) {
+		long hash = 0;
+		for (double value : query.m_Numeric) {
+			hash = mix(hash + Double.doubleToLongBits(value));
+		}
+		for (int value : query.m_Nominal) {
+			hash = mix(hash + value);
+		}
+		return hash;
+	}
+
+	private static long mix(long hash) {
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return hash ^ (hash >>> 33);
+	}
+
+	/**
+	 * Looks up the prediction of a query, which becomes the most recently
+	 * used entry of its segment.
+	 *
+	 * @param query normalised query
+	 * @param hash hash of the query
+	 * @return the cached prediction, or NaN if there is none
+	 */
+	double get(KnnQuery query, long hash) {
+		Segment segment = segment(hash);
+		double value;
+		synchronized (segment) {
+			segment.validate(m_Generation, query.m_Layout);
+			int entry = segment.find(query, hash);
+			if (entry < 0) {
+				value = Double.NaN;
+			} else {
+				segment.touch(entry);
+				value = segment.m_Values[entry];
+			}
+		}
+		if (Double.isNaN(value)) {
+			m_Misses.increment();
+		} else {
+			m_Hits.increment();
+		}
+		return value;
+	}
+
+	/**
+	 * Inserts the prediction of a query as the most recently used entry of
+	 * its segment, evicting the least recently used entry of a full
+	 * segment. Nothing is inserted if the cache was cleared since the
+	 * generation was read, or if the prediction is NaN.
+	 *
+	 * @param query normalised query
+	 * @param hash hash of the query
+	 * @param generation generation read before computing the prediction
+	 * @param value prediction of the query
+	 */
+	void put(KnnQuery query, long hash, long generation, double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		Segment segment = segment(hash);
+		synchronized (segment) {
+			if (generation != m_Generation) {
+				return;
+			}
+			segment.validate(generation, query.m_Layout);
+			int entry = segment.find(query, hash);
+			if (entry < 0) {
+				if (segment.m_Size == segment.m_Capacity) {
+					entry = segment.evictOldest();
+					m_Evictions.increment();
+				} else {
+					entry = segment.m_Size++;
+				}
+				segment.insert(entry, query, hash);
+			}
+			segment.touch(entry);
+			segment.m_Values[entry] = value;
+		}
+	}
+
+	private Segment segment(long hash) {
+		return m_Segments[(int) (hash >>> 32) & (m_Segments.length - 1)];
+	}
+
+	/**
+	 * Entries of a part of the cache, guarded by the monitor of the segment.
+	 */
+	private static final class Segment {
+
+		/** Largest number of entries. */
+		final int m_Capacity;
+
+		/** Number of entries, which occupy the first slots. */
+		int m_Size;
+
+		/** Generation of the entries. */
+		private long m_Generation = -1;
+
+		/** Layout of the queries of the entries. */
+		private AttributeLayout m_Layout;
+
+		/** Normalised numerical inputs of each entry, capacity x numNumeric. */
+		private double[] m_Numeric = new double[0];
+
+		/** Categorical input codes of each entry, capacity x numNominal. */
+		private int[] m_Nominal = new int[0];
+
+		/** Hash of each entry. */
+		private final long[] m_Hashes;
+
+		/** Prediction of each entry. */
+		final double[] m_Values;
+
+		/** First entry of each bucket of the hash table, -1 for none. */
+		private final int[] m_Buckets;
+
+		/** Next entry of the same bucket, -1 for none. */
+		private final int[] m_Chain;
+
+		/** Entry used just after each entry, -1 for the most recently used. */
+		private final int[] m_Newer;
+
+		/** Entry used just before each entry, -1 for the least recently used. */
+		private final int[] m_Older;
+
+		/** Most recently used entry, -1 if there is none. */
+		private int m_Newest = -1;
+
+		/** Least recently used entry, -1 if there is none. */
+		private int m_Oldest = -1;
+
+		Segment(int capacity) {
+			m_Capacity = capacity;
+			m_Hashes = new long[capacity];
+			m_Values = new double[capacity];
+			m_Buckets = new int[Integer.highestOneBit(Math.max(1, 2 * capacity - 1)) << 1];
+			m_Chain = new int[capacity];
+			m_Newer = new int[capacity];
+			m_Older = new int[capacity];
+		}
+
+		/**
+		 * Drops the entries of an older generation or of queries of another
+		 * layout.
+		 */
+		void validate(long generation, AttributeLayout layout) {
+			if (generation == m_Generation && layout == m_Layout) {
+				return;
+			}
+			if (layout != m_Layout) {
+				m_Numeric = new double[m_Capacity * layout.numNumeric()];
+				m_Nominal = new int[m_Capacity * layout.numNominal()];
+				m_Layout = layout;
+			}
+			Arrays.fill(m_Buckets, -1);
+			m_Size = 0;
+			m_Newest = -1;
+			m_Oldest = -1;
+			m_Generation = generation;
+		}
+
+		/**
+		 * @return the entry of a query, or -1 if there is none
+		 */
+		int find(KnnQuery query, long hash) {
+			double[] numeric = query.m_Numeric;
+			int[] nominal = query.m_Nominal;
+			int entry = m_Buckets[(int) hash & (m_Buckets.length - 1)];
+			search: for (; entry >= 0; entry = m_Chain[entry]) {
+				if (m_Hashes[entry] != hash) {
+					continue;
+				}
+				int offset = entry * numeric.length;
+				for (int j = 0; j < numeric.length; j++) {
+					if (Double.doubleToLongBits(numeric[j]) != Double.doubleToLongBits(m_Numeric[offset + j])) {
+						continue search;
+					}
+				}
+				offset = entry * nominal.length;
+				for (int j = 0; j < nominal.length; j++) {
+					if (nominal[j] != m_Nominal[offset + j]) {
+						continue search;
+					}
+				}
+				return entry;
+			}
+			return -1;
+		}
+
+		/**
+		 * Stores the key of a query in a free entry and adds it to its
+		 * bucket, as the least recently used entry until touched.
+		 */
+		void insert(int entry, KnnQuery query, long hash) {
+			System.arraycopy(query.m_Numeric, 0, m_Numeric, entry * query.m_Numeric.length, query.m_Numeric.length);
+			System.arraycopy(query.m_Nominal, 0, m_Nominal, entry * query.m_Nominal.length, query.m_Nominal.length);
+			m_Hashes[entry] = hash;
+			int bucket = (int) hash & (m_Buckets.length - 1);
+			m_Chain[entry] = m_Buckets[bucket];
+			m_Buckets[bucket] = entry;
+			m_Newer[entry] = m_Oldest;
+			m_Older[entry] = -1;
+			if (m_Oldest >= 0) {
+				m_Older[m_Oldest] = entry;
+			} else {
+				m_Newest = entry;
+			}
+			m_Oldest = entry;
+		}
+
+		/**
+		 * Makes an entry the most recently used one.
+		 */
+		void touch(int entry) {
+			if (entry == m_Newest) {
+				return;
+			}
+			unlinkUse(entry);
+			m_Older[entry] = m_Newest;
+			m_Newer[entry] = -1;
+			if (m_Newest >= 0) {
+				m_Newer[m_Newest] = entry;
+			} else {
+				m_Oldest = entry;
+			}
+			m_Newest = entry;
+		}
+
+		/**
+		 * Removes the least recently used entry from its bucket and from the
+		 * order of use.
+		 *
+		 * @return the entry, free to be reused
+		 */
+		int evictOldest() {
+			int entry = m_Oldest;
+			unlinkUse(entry);
+			int bucket = (int) m_Hashes[entry] & (m_Buckets.length - 1);
+			if (m_Buckets[bucket] == entry) {
+				m_Buckets[bucket] = m_Chain[entry];
+			} else {
+				int previous = m_Buckets[bucket];
+				while (m_Chain[previous] != entry) {
+					previous = m_Chain[previous];
+				}
+				m_Chain[previous] = m_Chain[entry];
+			}
+			return entry;
+		}
+
+		private void unlinkUse(int entry) {
+			int newer = m_Newer[entry];
+			int older = m_Older[entry];
+			if (newer >= 0) {
+				m_Older[newer] = older;
+			} else {
+				m_Newest = older;
+			}
+			if (older >= 0) {
+				m_Newer[older] = newer;
+			} else {
+				m_Oldest = newer;
+			}
+		}
+	}
+}
@@ -0,0 +1,513 @@
+package weka.classifiers.lazy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Condensation of the compact model of a built MyKnn into fewer weighted
+ * prototypes, shrinking the model and the cost of every search. <p>
+ *
+ * The training rows are grouped by their categorical input values, and the
+ * prototypes shared between the groups in proportion to their number of
+ * rows, at least one each. Each group is then split recursively along its
+ * numerical input of widest range until each cell holds the rows of a
+ * single prototype (see PrototypeTask), whose numerical inputs are the
+ * centroid of the cell, whose output is the mean output of the cell and
+ * whose weight is the number of rows of the cell. A prototype therefore
+ * never mixes categorical values, and dense regions are condensed into more
+ * prototypes than sparse ones. <p>
+ *
+ * A condensation is evaluated on a sample of at most SAMPLE_ROWS training
+ * rows, and at most one row in HOLD_OUT, spread evenly over the model and
+ * held out: the other rows make a full model, and are condensed into a
+ * model of the same size, and the rows of the sample are predicted with
+ * both (see RowPredictionTask), so that neither model has seen them. The
+ * mean absolute difference between the two predictions, relative to the
+ * mean absolute deviation of the outputs of the sample, measures how much
+ * the condensation changes the predictions, and the errors of both are
+ * those of new instances. The model kept is then condensed from all the
+ * rows. With a tolerance rather than a number of prototypes, the sizes from
+ * 1/256 to 1/2 of the rows are tried in increasing order and the first whose
+ * relative difference is within the tolerance is kept. Each size tried adds
+ * a line to the report of the condensation. <p>
+ *
+ * The rows are condensed from the same order every time, so the prototypes
+ * of a size do not depend on the sizes tried before.
+ */
+final class PrototypeCondenser {
+
+	/** Largest number of training rows the condensed models are evaluated on. */
+	static final int SAMPLE_ROWS = 1000;
+
+	/** At most one row in HOLD_OUT is held out for the evaluation. */
+	static final int HOLD_OUT = 5;
+
+	/** Largest fraction of the rows tried with a tolerance is 1 / MIN_DIVISOR. */
+	static final int MIN_DIVISOR = 2;
+
+	/** Smallest fraction of the rows tried with a tolerance is 1 / MAX_DIVISOR. */
+	static final int MAX_DIVISOR = 256;
+
+	/** Classifier whose model is condensed. */
+	private final MyKnn m_Knn;
+
+	/** Full model being condensed. */
+	final KnnModel m_Model;
+
+	/** Slots of the rows of the full model, grouped by categorical values and partitioned by the cells. */
+	final int[] m_Order;
+
+	/** Slots of the rows grouped by categorical values, before any partition. */
+	private final int[] m_Grouped;
+
+	/** Position in m_Order of the first row of each group, followed by the number of rows. */
+	private final int[] m_GroupStarts;
+
+	/** Condensation of the rows other than the sample, null if there is no sample. */
+	private PrototypeCondenser m_Evaluation;
+
+	/** Slots of the rows of the sample, held out of the evaluation. */
+	private int[] m_Sample;
+
+	/** Prediction of the model of the other rows for each row of the sample. */
+	private double[] m_FullPredictions;
+
+	/** Time taken by the model of the other rows to predict the sample, in nanoseconds. */
+	private long m_FullNanos;
+
+	/** Mean absolute deviation of the outputs of the sample. */
+	private double m_Spread;
+
+	/** Normalised numerical inputs of the prototypes being created. */
+	private double[] m_Numeric;
+
+	/** Categorical input codes of the prototypes being created. */
+	private int[] m_Nominal;
+
+	/** Outputs of the prototypes being created. */
+	private double[] m_ClassValues;
+
+	/** Number of rows each prototype being created stands for, 0 for an unused slot. */
+	private double[] m_RowWeights;
+
+	/** Relative difference of the last model condensed. */
+	private double m_Relative;
+
+	/** Report of the sizes tried. */
+	private final StringBuilder m_Report = new StringBuilder();
+
+	/**
+	 * Groups the rows of a built classifier, holds out the sample and
+	 * predicts it with the model of the other rows.
+	 *
+	 * @param knn built classifier whose model is condensed, with the write lock held
+	 */
+	PrototypeCondenser(MyKnn knn) {
+		this(knn, knn.m_Model);
+		int numRows = m_Model.m_NumRows;
+		int sampleSize = Math.min(SAMPLE_ROWS, numRows / HOLD_OUT);
+		m_Sample = new int[sampleSize];
+		int numGroups = m_GroupStarts.length - 1;
+		if (sampleSize == 0) {
+			m_Report.append(String.format("Full model: %d rows, %d groups of categorical values, too few rows "
+					+ "to hold out a sample, so the condensations are not evaluated%n", numRows, numGroups));
+			return;
+		}
+
+		boolean[] heldOut = new boolean[numRows];
+		double meanOutput = 0;
+		for (int s = 0; s < sampleSize; s++) {
+			int i = (int) ((long) s * numRows / sampleSize);
+			heldOut[i] = true;
+			m_Sample[s] = m_Model.slot(i);
+			meanOutput += m_Model.m_ClassValues[m_Sample[s]];
+		}
+		meanOutput /= sampleSize;
+		double spread = 0;
+		for (int row : m_Sample) {
+			spread += Math.abs(m_Model.m_ClassValues[row] - meanOutput);
+		}
+		m_Spread = spread / sampleSize;
+
+		KnnModel others = without(heldOut);
+		m_Evaluation = new PrototypeCondenser(knn, others);
+		m_FullPredictions = new double[sampleSize];
+		long start = System.nanoTime();
+		predictSample(others, knn.createSearch(others), m_FullPredictions);
+		m_FullNanos = System.nanoTime() - start;
+		m_Report.append(String.format("Full model: %d rows, %d groups of categorical values; %d rows held out, "
+				+ "on which the model of the other rows has MAE %.6g%n", numRows, numGroups, sampleSize,
+				heldOutError(m_FullPredictions)));
+		m_Report.append(String.format("%12s %12s %12s %12s %12s %10s%n", "prototypes", "rows/proto", "mean |diff|",
+				"relative", "held-out MAE", "speed-up"));
+	}
+
+	/**
+	 * Groups the rows of a model by their categorical values.
+	 *
+	 * @param knn classifier whose options are used
+	 * @param model model whose rows are condensed
+	 */
+	private PrototypeCondenser(MyKnn knn, KnnModel model) {
+		m_Knn = knn;
+		m_Model = model;
+		int numRows = m_Model.m_NumRows;
+
+		// counting sort of the rows by group, the groups in order of first row
+		int numNominal = m_Model.m_Layout.numNominal();
+		HashMap<NominalKey, Integer> groups = new HashMap<NominalKey, Integer>();
+		int[] groupOf = new int[numRows];
+		List<Integer> counts = new ArrayList<Integer>();
+		NominalKey probe = new NominalKey(new int[numNominal]);
+		for (int i = 0; i < numRows; i++) {
+			int row = m_Model.slot(i);
+			for (int j = 0; j < numNominal; j++) {
+				probe.m_Codes[j] = m_Model.nominal(row, j);
+			}
+			probe.rehash();
+			Integer group = groups.get(probe);
+			if (group == null) {
+				group = counts.size();
+				groups.put(new NominalKey(probe.m_Codes.clone()), group);
+				counts.add(0);
+			}
+			groupOf[i] = group;
+			counts.set(group, counts.get(group) + 1);
+		}
+		m_GroupStarts = new int[counts.size() + 1];
+		for (int g = 0; g < counts.size(); g++) {
+			m_GroupStarts[g + 1] = m_GroupStarts[g] + counts.get(g);
+		}
+		int[] next = Arrays.copyOf(m_GroupStarts, counts.size());
+		m_Order = new int[numRows];
+		for (int i = 0; i < numRows; i++) {
+			m_Order[next[groupOf[i]]++] = m_Model.slot(i);
+		}
+		m_Grouped = m_Order.clone();
+	}
+
+	/**
+	 * Copies the rows of the model other than some into a model on the heap,
+	 * normalised with the same frame.
+	 *
+	 * @param excluded whether each row, in age order, is left out
+	 * @return the model of the other rows
+	 */
+	private KnnModel without(boolean[] excluded) {
+		int numNumeric = m_Model.m_Layout.numNumeric();
+		int numNominal = m_Model.m_Layout.numNominal();
+		int numRows = 0;
+		for (boolean exclude : excluded) {
+			if (!exclude) {
+				numRows++;
+			}
+		}
+		double[] numeric = new double[numRows * numNumeric];
+		int[] nominal = new int[numRows * numNominal];
+		double[] classValues = new double[numRows];
+		int r = 0;
+		for (int i = 0; i < excluded.length; i++) {
+			if (excluded[i]) {
+				continue;
+			}
+			int row = m_Model.slot(i);
+			for (int j = 0; j < numNumeric; j++) {
+				numeric[r * numNumeric + j] = m_Model.numeric(row, j);
+			}
+			for (int j = 0; j < numNominal; j++) {
+				nominal[r * numNominal + j] = m_Model.nominal(row, j);
+			}
+			classValues[r] = m_Model.m_ClassValues[row];
+			r++;
+		}
+		return KnnModel.prototypes(m_Model.m_Layout, frame(true), frame(false), numeric, nominal, classValues, null,
+				false);
+	}
+
+	/**
+	 * @param min true for the minimum values, false for the maximum values
+	 * @return the frame of the model
+	 */
+	private double[] frame(boolean min) {
+		double[] frame = new double[m_Model.m_Layout.numNumeric()];
+		for (int j = 0; j < frame.length; j++) {
+			frame[j] = min ? m_Model.frameMin(j) : m_Model.frameMax(j);
+		}
+		return frame;
+	}
+
+	/**
+	 * Condenses the full model into a number of prototypes, raised to the
+	 * number of groups if there are more, once the condensation of the
+	 * other rows into as many has been evaluated on the sample.
+	 *
+	 * @param size number of prototypes
+	 * @return the condensed model, on the heap, or null if the size is not
+	 * smaller than the number of rows
+	 */
+	KnnModel condense(int size) {
+		int numRows = m_Model.m_NumRows;
+		if (size >= numRows) {
+			m_Report.append(String.format("%d prototypes are not fewer than the %d rows, keeping the full model%n",
+					size, numRows));
+			return null;
+		}
+		evaluate(size);
+		return prototypes(size);
+	}
+
+	/**
+	 * Condenses the full model into the fewest prototypes, among the sizes
+	 * tried (see sizes), whose relative difference from the full model on
+	 * the sample is within a tolerance.
+	 *
+	 * @param tolerance largest mean absolute difference between the
+	 * predictions of the condensed and full models, relative to the mean
+	 * absolute deviation of the outputs
+	 * @return the condensed model, on the heap, or null if no size tried is
+	 * within the tolerance
+	 */
+	KnnModel condense(double tolerance) {
+		for (int size : sizes()) {
+			evaluate(size);
+			if (m_Relative <= tolerance) {
+				return prototypes(size);
+			}
+		}
+		m_Report.append(String.format("No size within a relative difference of %g, keeping the full model%n", tolerance));
+		return null;
+	}
+
+	/**
+	 * @return the sizes tried with a tolerance, in increasing order: the
+	 * fractions from 1/MAX_DIVISOR to 1/MIN_DIVISOR of the rows, skipping
+	 * those below the number of groups
+	 */
+	int[] sizes() {
+		List<Integer> sizes = new ArrayList<Integer>();
+		int previous = 0;
+		for (int divisor = MAX_DIVISOR; divisor >= MIN_DIVISOR; divisor /= 2) {
+			int size = m_Model.m_NumRows / divisor;
+			if (size > previous && size >= m_GroupStarts.length - 1) {
+				sizes.add(size);
+				previous = size;
+			}
+		}
+		int[] result = new int[sizes.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = sizes.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the relative difference of the last size evaluated, infinite
+	 * if there is no sample
+	 */
+	double relative() {
+		return m_Relative;
+	}
+
+	/**
+	 * Condenses the other rows into a number of prototypes, predicts the
+	 * sample with them and adds a line to the report.
+	 *
+	 * @param size number of prototypes
+	 */
+	private void evaluate(int size) {
+		if (m_Evaluation == null) {
+			m_Relative = Double.POSITIVE_INFINITY;
+			m_Report.append(String.format("%d prototypes, not evaluated%n", size));
+			return;
+		}
+		KnnModel condensed = m_Evaluation.prototypes(size);
+		double[] predictions = new double[m_Sample.length];
+		long start = System.nanoTime();
+		predictSample(condensed, m_Knn.createSearch(condensed), predictions);
+		long nanos = System.nanoTime() - start;
+		double difference = 0;
+		for (int s = 0; s < m_Sample.length; s++) {
+			difference += Math.abs(predictions[s] - m_FullPredictions[s]);
+		}
+		difference /= m_Sample.length;
+		m_Relative = m_Spread > 0 ? difference / m_Spread : difference > 0 ? Double.POSITIVE_INFINITY : 0;
+		m_Report.append(String.format("%12d %12.1f %12.6g %12.4f %12.6g %10.1f%n", condensed.m_NumRows,
+				(double) m_Evaluation.m_Model.m_NumRows / condensed.m_NumRows, difference, m_Relative,
+				heldOutError(predictions), (double) m_FullNanos / Math.max(1, nanos)));
+	}
+
+	/**
+	 * Condenses the rows of the model into a number of prototypes, starting
+	 * from the rows grouped but not yet partitioned.
+	 *
+	 * @param size number of prototypes
+	 * @return the condensed model, on the heap
+	 */
+	private KnnModel prototypes(int size) {
+		System.arraycopy(m_Grouped, 0, m_Order, 0, m_Order.length);
+		int[] budgets = budgets(size);
+		int numSlots = 0;
+		for (int budget : budgets) {
+			numSlots += budget;
+		}
+		int numNumeric = m_Model.m_Layout.numNumeric();
+		int numNominal = m_Model.m_Layout.numNominal();
+		m_Numeric = new double[numSlots * numNumeric];
+		m_Nominal = new int[numSlots * numNominal];
+		m_ClassValues = new double[numSlots];
+		m_RowWeights = new double[numSlots];
+		List<PrototypeTask> tasks = new ArrayList<PrototypeTask>();
+		int first = 0;
+		for (int g = 0; g < budgets.length; g++) {
+			tasks.add(new PrototypeTask(this, m_GroupStarts[g], m_GroupStarts[g + 1], budgets[g], first));
+			first += budgets[g];
+		}
+		m_Knn.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+		// drops the slots left unused by cells of identical rows
+		int numPrototypes = 0;
+		for (int slot = 0; slot < numSlots; slot++) {
+			if (m_RowWeights[slot] > 0) {
+				System.arraycopy(m_Numeric, slot * numNumeric, m_Numeric, numPrototypes * numNumeric, numNumeric);
+				System.arraycopy(m_Nominal, slot * numNominal, m_Nominal, numPrototypes * numNominal, numNominal);
+				m_ClassValues[numPrototypes] = m_ClassValues[slot];
+				m_RowWeights[numPrototypes] = m_RowWeights[slot];
+				numPrototypes++;
+			}
+		}
+		KnnModel condensed = KnnModel.prototypes(m_Model.m_Layout, frame(true), frame(false),
+				Arrays.copyOf(m_Numeric, numPrototypes * numNumeric), Arrays.copyOf(m_Nominal, numPrototypes * numNominal),
+				Arrays.copyOf(m_ClassValues, numPrototypes), Arrays.copyOf(m_RowWeights, numPrototypes), false);
+		m_Numeric = null;
+		m_Nominal = null;
+		m_ClassValues = null;
+		m_RowWeights = null;
+		return condensed;
+	}
+
+	/**
+	 * @return the report of the sizes tried, one line each
+	 */
+	String report() {
+		return m_Report.toString();
+	}
+
+	/**
+	 * Shares prototypes between the groups in proportion to their number of
+	 * rows, by largest remainder, giving each group at least one and at most
+	 * its number of rows.
+	 *
+	 * @param size number of prototypes
+	 * @return the number of prototypes of each group
+	 */
+	private int[] budgets(int size) {
+		int numGroups = m_GroupStarts.length - 1;
+		int numRows = m_Model.m_NumRows;
+		int[] budgets = new int[numGroups];
+		double[] remainders = new double[numGroups];
+		int total = 0;
+		for (int g = 0; g < numGroups; g++) {
+			int groupRows = m_GroupStarts[g + 1] - m_GroupStarts[g];
+			double share = (double) size * groupRows / numRows;
+			budgets[g] = Math.min(groupRows, Math.max(1, (int) share));
+			remainders[g] = budgets[g] < groupRows ? share - (int) share : -1;
+			total += budgets[g];
+		}
+		while (total < size) {
+			int best = -1;
+			for (int g = 0; g < numGroups; g++) {
+				if (remainders[g] >= 0 && (best < 0 || remainders[g] > remainders[best])) {
+					best = g;
+				}
+			}
+			if (best < 0) {
+				break;
+			}
+			budgets[best]++;
+			total++;
+			remainders[best] = -1;
+		}
+		return budgets;
+	}
+
+	/**
+	 * Sets a prototype slot to the centroid of some rows of m_Order, which
+	 * share their categorical values. Called by the PrototypeTask of the
+	 * cell holding the slot.
+	 *
+	 * @param slot slot of the prototype
+	 * @param begin first position of the rows in m_Order
+	 * @param end position after the last one of the rows
+	 */
+	void setPrototype(int slot, int begin, int end) {
+		int numNumeric = m_Model.m_Layout.numNumeric();
+		int numNominal = m_Model.m_Layout.numNominal();
+		int count = end - begin;
+		for (int j = 0; j < numNumeric; j++) {
+			double sum = 0;
+			for (int i = begin; i < end; i++) {
+				sum += m_Model.numeric(m_Order[i], j);
+			}
+			m_Numeric[slot * numNumeric + j] = sum / count;
+		}
+		for (int j = 0; j < numNominal; j++) {
+			m_Nominal[slot * numNominal + j] = m_Model.nominal(m_Order[begin], j);
+		}
+		double sum = 0;
+		for (int i = begin; i < end; i++) {
+			sum += m_Model.m_ClassValues[m_Order[i]];
+		}
+		m_ClassValues[slot] = sum / count;
+		m_RowWeights[slot] = count;
+	}
+
+	private void predictSample(KnnModel model, NeighbourSearch search, double[] predictions) {
+		int k = Math.min(m_Knn.getK(), model.m_NumRows);
+		m_Knn.invoke(new RowPredictionTask(m_Model, m_Sample, model, search, k, predictions, 0, m_Sample.length));
+	}
+
+	/**
+	 * @param predictions prediction of each row of the sample
+	 * @return the mean absolute error of the predictions
+	 */
+	private double heldOutError(double[] predictions) {
+		double error = 0;
+		for (int s = 0; s < m_Sample.length; s++) {
+			error += Math.abs(predictions[s] - m_Model.m_ClassValues[m_Sample[s]]);
+		}
+		return error / m_Sample.length;
+	}
+
+	/**
+	 * Categorical input values of a group, as a hash key.
+	 */
+	private static final class NominalKey {
+
+		final int[] m_Codes;
+
+		private int m_Hash;
+
+		NominalKey(int[] codes) {
+			m_Codes = codes;
+			rehash();
+		}
+
+		/** Updates the hash after m_Codes has been changed. */
+		void rehash() {
+			m_Hash = Arrays.hashCode(m_Codes);
+		}
+
+		@Override
+		public int hashCode() {
+			return m_Hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof NominalKey && Arrays.equals(m_Codes, ((NominalKey) other).m_Codes);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package weka.classifiers.lazy;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join task condensing a cell of training rows sharing the same
+ * categorical input values into a number of prototypes (see
+ * PrototypeCondenser). <p>
+ *
+ * A cell with a budget of one prototype, or whose rows all have the same
+ * numerical inputs, becomes a single prototype. A cell with no more rows
+ * than its budget keeps each row as a prototype. Otherwise the cell is
+ * split along its numerical input of widest range, at the position giving
+ * each half as many rows per prototype as the other, and each half is
+ * condensed with its share of the budget. The slots of the budget left
+ * unused keep a weight of 0. <p>
+ *
+ * Cells longer than CHUNK_ROWS are split into two tasks run in parallel.
+ * Each cell writes its own slots of the prototypes and the rows are
+ * partitioned in place within the cell, so the prototypes do not depend on
+ * the number of threads.
+ */
+final class PrototypeTask extends RecursiveAction {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Largest number of rows of a cell whose halves are condensed by the same task. */
+	static final int CHUNK_ROWS = 4096;
+
+	/** Condensation the cell belongs to. */
+	private final PrototypeCondenser m_Condenser;
+
+	/** First position of the cell in the row order of the condenser. */
+	private final int m_Begin;
+
+	/** Position after the last one of the cell. */
+	private final int m_End;
+
+	/** Number of prototypes the cell is condensed into. */
+	private final int m_Budget;
+
+	/** Slot of the first prototype of the cell. */
+	private final int m_First;
+
+	/**
+	 * @param condenser condensation the cell belongs to
+	 * @param begin first position of the cell in the row order of the condenser
+	 * @param end position after the last one of the cell
+	 * @param budget number of prototypes, at least 1
+	 * @param first slot of the first prototype of the cell
+	 */
+	PrototypeTask(PrototypeCondenser condenser, int begin, int end, int budget, int first) {
+		m_Condenser = condenser;
+		m_Begin = begin;
+		m_End = end;
+		m_Budget = budget;
+		m_First = first;
+	}
+
+	@Override
+	protected void compute() {
+		int numRows = m_End - m_Begin;
+		if (numRows <= m_Budget) {
+			for (int i = m_Begin; i < m_End; i++) {
+				m_Condenser.setPrototype(m_First + i - m_Begin, i, i + 1);
+			}
+			return;
+		}
+		int dimension = m_Budget == 1 ? -1 : widestInput();
+		if (dimension < 0) {
+			m_Condenser.setPrototype(m_First, m_Begin, m_End);
+			return;
+		}
+
+		// each half keeps at least as many rows as prototypes
+		int leftBudget = m_Budget / 2;
+		int middle = m_Begin + (int) ((long) numRows * leftBudget / m_Budget);
+		select(dimension, middle);
+		PrototypeTask left = new PrototypeTask(m_Condenser, m_Begin, middle, leftBudget, m_First);
+		PrototypeTask right = new PrototypeTask(m_Condenser, middle, m_End, m_Budget - leftBudget, m_First + leftBudget);
+		if (numRows > CHUNK_ROWS) {
+			invokeAll(left, right);
+		} else {
+			left.compute();
+			right.compute();
+		}
+	}
+
+	/**
+	 * @return the position of the numerical input whose values spread the
+	 * most over the rows of the cell, or -1 if none of them differ
+	 */
+	private int widestInput() {
+		KnnModel model = m_Condenser.m_Model;
+		int[] order = m_Condenser.m_Order;
+		int widest = -1;
+		double widestRange = 0;
+		for (int j = 0; j < model.m_Layout.numNumeric(); j++) {
+			double min = model.numeric(order[m_Begin], j);
+			double max = min;
+			for (int i = m_Begin + 1; i < m_End; i++) {
+				double value = model.numeric(order[i], j);
+				if (value < min) {
+					min = value;
+				} else if (value > max) {
+					max = value;
+				}
+			}
+			if (max - min > widestRange) {
+				widest = j;
+				widestRange = max - min;
+			}
+		}
+		return widest;
+	}
+
+	/**
+	 * Partitions the rows of the cell around position nth, so that no row
+	 * before it has a greater value of a numerical input than the row at nth,
+	 * and no row after it a smaller one, by quickselect.
+	 *
+	 * @param j position of the numerical input
+	 * @param nth position of the cell to be selected
+	 */
+	private void select(int j, int nth) {
+		KnnModel model = m_Condenser.m_Model;
+		int[] order = m_Condenser.m_Order;
+		int low = m_Begin;
+		int high = m_End - 1;
+		while (low < high) {
+			double pivot = model.numeric(order[(low + high) >>> 1], j);
+			int i = low;
+			int k = high;
+			while (i <= k) {
+				while (model.numeric(order[i], j) < pivot) {
+					i++;
+				}
+				while (model.numeric(order[k], j) > pivot) {
+					k--;
+				}
+				if (i <= k) {
+					int swap = order[i];
+					order[i++] = order[k];
+					order[k--] = swap;
+				}
+			}
+			if (nth <= k) {
+				high = k;
+			} else if (nth >= i) {
+				low = i;
+			} else {
+				return;
+			}
+		}
+	}
+}
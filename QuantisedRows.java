@@ -0,0 +1,330 @@
+package weka.classifiers.lazy;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Compact copy of the normalised numerical inputs of the rows of a
+ * KnnModel, as float32 values or as 16-bit or 8-bit fixed-point codes, so
+ * that a scan reads 2 to 8 times fewer bytes per row than from the doubles. <p>
+ *
+ * A code c stands for the cell [c / L, (c + 1) / L) of [0, 1], with L = 2^16
+ * or 2^8 codes, except that the first and last cells extend to minus and plus
+ * infinity, so that inputs outside [0, 1] (normalised with an older frame)
+ * still fall into a cell. A float32 value stands for the doubles it may
+ * have been rounded from. The distance from a query to the nearest point of
+ * the cells (or roundings) of a row is therefore a lower bound of its exact
+ * distance, which KnnModel uses to discard rows before computing their exact
+ * distance, so that the neighbours are exactly the ones found without the
+ * codes. Without this re-rank, the distance is computed to the centre of
+ * each cell (or to the float32 value) instead, which only approximates it,
+ * and the codes stand for the inputs themselves (see value). <p>
+ *
+ * Missing inputs get an arbitrary code: rows with a missing input have a
+ * NaN exact distance and are never kept once the candidates are full, which
+ * is the only time the lower bound is used.
+ */
+final class QuantisedRows implements Serializable {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** No quantisation: the doubles are read. */
+	static final int NONE = 0;
+
+	/** Inputs held as float32 values. */
+	static final int FLOAT32 = 1;
+
+	/** Inputs held as 16-bit fixed-point codes. */
+	static final int INT16 = 2;
+
+	/** Inputs held as 8-bit fixed-point codes. */
+	static final int INT8 = 3;
+
+	/** Number of inputs added to a lower bound between two checks of the bound. */
+	private static final int BLOCK = 8;
+
+	/** One of FLOAT32, INT16 or INT8. */
+	private final int m_Type;
+
+	/** Number of numerical inputs of a row. */
+	private final int m_NumNumeric;
+
+	/** Number of codes, 0 for float32 values. */
+	private final int m_Levels;
+
+	/** Width of the cell of a code, 1 / m_Levels. */
+	private final double m_Step;
+
+	/** Lower end of the cell of each 8-bit code, minus infinity for the first. */
+	private final double[] m_Low;
+
+	/** Upper end of the cell of each 8-bit code, plus infinity for the last. */
+	private final double[] m_High;
+
+	/** Float32 values, capacity x numNumeric, for FLOAT32. */
+	private float[] m_Floats;
+
+	/** Unsigned 16-bit codes, capacity x numNumeric, for INT16. */
+	private short[] m_Shorts;
+
+	/** Unsigned 8-bit codes, capacity x numNumeric, for INT8. */
+	private byte[] m_Bytes;
+
+	/**
+	 * @param type one of FLOAT32, INT16 or INT8
+	 * @param capacity number of rows
+	 * @param numNumeric number of numerical inputs of a row
+	 */
+	QuantisedRows(int type, int capacity, int numNumeric) {
+		m_Type = type;
+		m_NumNumeric = numNumeric;
+		m_Levels = type == INT16 ? 1 << 16 : type == INT8 ? 1 << 8 : 0;
+		m_Step = m_Levels == 0 ? 0 : 1.0 / m_Levels;
+		m_Low = type == INT8 ? new double[m_Levels] : null;
+		m_High = type == INT8 ? new double[m_Levels] : null;
+		for (int code = 0; m_Low != null && code < m_Levels; code++) {
+			m_Low[code] = code == 0 ? Double.NEGATIVE_INFINITY : code * m_Step;
+			m_High[code] = code == m_Levels - 1 ? Double.POSITIVE_INFINITY : (code + 1) * m_Step;
+		}
+		switch (type) {
+		case FLOAT32:
+			m_Floats = new float[capacity * numNumeric];
+			break;
+		case INT16:
+			m_Shorts = new short[capacity * numNumeric];
+			break;
+		case INT8:
+			m_Bytes = new byte[capacity * numNumeric];
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown quantisation " + type);
+		}
+	}
+
+	/**
+	 * Grows the arrays so that they hold a number of rows.
+	 *
+	 * @param capacity number of rows
+	 */
+	void reserve(int capacity) {
+		int length = capacity * m_NumNumeric;
+		if (m_Floats != null && m_Floats.length < length) {
+			m_Floats = Arrays.copyOf(m_Floats, length);
+		} else if (m_Shorts != null && m_Shorts.length < length) {
+			m_Shorts = Arrays.copyOf(m_Shorts, length);
+		} else if (m_Bytes != null && m_Bytes.length < length) {
+			m_Bytes = Arrays.copyOf(m_Bytes, length);
+		}
+	}
+
+	/**
+	 * @param row index of the training instance
+	 * @param j position of the numerical input
+	 * @param value normalised value of the input
+	 */
+	void set(int row, int j, double value) {
+		int position = row * m_NumNumeric + j;
+		if (m_Type == FLOAT32) {
+			m_Floats[position] = (float) value;
+			return;
+		}
+		// m_Levels is a power of two, so value * m_Levels is exact
+		int code = value >= 0 ? (int) Math.min(value * m_Levels, m_Levels - 1) : 0;
+		if (m_Type == INT16) {
+			m_Shorts[position] = (short) code;
+		} else {
+			m_Bytes[position] = (byte) code;
+		}
+	}
+
+	/**
+	 * Value an input stands for: the float32 value, or the centre of the
+	 * cell of the code.
+	 *
+	 * @param row index of the training instance
+	 * @param j position of the numerical input
+	 * @return the value of the input
+	 */
+	double value(int row, int j) {
+		return value(row * m_NumNumeric + j);
+	}
+
+	private double value(int position) {
+		switch (m_Type) {
+		case FLOAT32:
+			return m_Floats[position];
+		case INT16:
+			return ((m_Shorts[position] & 0xFFFF) + 0.5) * m_Step;
+		default:
+			return ((m_Bytes[position] & 0xFF) + 0.5) * m_Step;
+		}
+	}
+
+	/**
+	 * Prepares a query for lowerBound and squaredDistance. For 8-bit codes,
+	 * the weighted squared gap (or difference) between each input of the
+	 * query and each code is computed once into the table of the query, so
+	 * that each input of a row then costs a single lookup.
+	 *
+	 * @param query normalised query
+	 * @param weights weight of each numerical input, or null
+	 * @param rerank true to prepare for lowerBound, false for squaredDistance
+	 */
+	void prepare(KnnQuery query, double[] weights, boolean rerank) {
+		if (m_Type != INT8) {
+			return;
+		}
+		double[] table = query.table(m_NumNumeric * m_Levels);
+		for (int j = 0; j < m_NumNumeric; j++) {
+			double x = query.m_Numeric[j];
+			double weight = weights == null ? 1 : weights[j];
+			for (int code = 0; code < m_Levels; code++) {
+				double gap;
+				if (rerank) {
+					gap = Math.max(Math.max(m_Low[code] - x, x - m_High[code]), 0);
+				} else {
+					gap = x - (code + 0.5) * m_Step;
+				}
+				table[j * m_Levels + code] = weights == null ? gap * gap : weight * gap * gap;
+			}
+		}
+	}
+
+	/**
+	 * Lower bound of the numerical part of the squared distance between a
+	 * prepared query and a training row, which may be abandoned once it is
+	 * strictly greater than a bound. The bound holds up to rounding errors of
+	 * a few units in the last place. The bound is only checked every BLOCK
+	 * inputs, so that the loop costs less per input than the exact one.
+	 *
+	 * @param query normalised query, prepared with the re-rank
+	 * @param row index of the training instance
+	 * @param bound value above which the computation can be abandoned
+	 * @param weights weight of each numerical input, or null
+	 * @return the lower bound, or a partial sum strictly greater than bound
+	 */
+	double lowerBound(KnnQuery query, int row, double bound, double[] weights) {
+		switch (m_Type) {
+		case INT8:
+			return lowerBoundInt8(query.table(0), row, bound);
+		case FLOAT32:
+			return lowerBoundFloat32(query.m_Numeric, row, bound, weights);
+		default:
+			return lowerBoundInt16(query.m_Numeric, row, bound, weights);
+		}
+	}
+
+	private double lowerBoundInt8(double[] table, int row, double bound) {
+		byte[] bytes = m_Bytes;
+		int offset = row * m_NumNumeric;
+		double sum = 0;
+		int j = 0;
+		for (int end = BLOCK; end <= m_NumNumeric; end += BLOCK) {
+			for (; j < end; j++) {
+				sum += table[(j << 8) + (bytes[offset + j] & 0xFF)];
+			}
+			if (sum > bound) {
+				return sum;
+			}
+		}
+		for (; j < m_NumNumeric; j++) {
+			sum += table[(j << 8) + (bytes[offset + j] & 0xFF)];
+		}
+		return sum;
+	}
+
+	private double lowerBoundFloat32(double[] numeric, int row, double bound, double[] weights) {
+		float[] floats = m_Floats;
+		int offset = row * m_NumNumeric;
+		double sum = 0;
+		for (int j = 0; j < m_NumNumeric; j++) {
+			// the double a float was rounded from is within half an ulp of it
+			float value = floats[offset + j];
+			double gap = Math.abs(numeric[j] - value) - (Math.abs(value) * 0x1p-24 + Float.MIN_VALUE);
+			if (gap > 0) {
+				sum += weights == null ? gap * gap : weights[j] * gap * gap;
+			}
+			if ((j & (BLOCK - 1)) == BLOCK - 1 && sum > bound) {
+				return sum;
+			}
+		}
+		return sum;
+	}
+
+	private double lowerBoundInt16(double[] numeric, int row, double bound, double[] weights) {
+		short[] shorts = m_Shorts;
+		int offset = row * m_NumNumeric;
+		double sum = 0;
+		double half = 0.5 * m_Step;
+		for (int j = 0; j < m_NumNumeric; j++) {
+			// clamping the input to [0, 1] only brings it closer to the finite
+			// part of every cell, and to the open end of the first and last
+			double x = Math.min(Math.max(numeric[j], 0), 1);
+			double gap = Math.abs(x - ((shorts[offset + j] & 0xFFFF) * m_Step + half)) - half;
+			if (gap > 0) {
+				sum += weights == null ? gap * gap : weights[j] * gap * gap;
+			}
+			if ((j & (BLOCK - 1)) == BLOCK - 1 && sum > bound) {
+				return sum;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Approximate numerical part of the squared distance between a prepared
+	 * query and a training row, to the centre of the cell of each code or to
+	 * each float32 value, which may be abandoned once it is strictly greater
+	 * than a bound.
+	 *
+	 * @param query normalised query, prepared without the re-rank
+	 * @param row index of the training instance
+	 * @param bound value above which the computation can be abandoned
+	 * @param weights weight of each numerical input, or null
+	 * @return the approximate squared distance, or a partial sum strictly
+	 * greater than bound
+	 */
+	double squaredDistance(KnnQuery query, int row, double bound, double[] weights) {
+		if (m_Type != INT8) {
+			return squaredDistance(query.m_Numeric, row, bound, weights);
+		}
+		double[] table = query.table(0);
+		int offset = row * m_NumNumeric;
+		double sum = 0;
+		for (int j = 0; j < m_NumNumeric; j++) {
+			sum += table[(j << 8) + (m_Bytes[offset + j] & 0xFF)];
+			if ((j & (BLOCK - 1)) == BLOCK - 1 && sum > bound) {
+				return sum;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Approximate numerical part of the squared distance between a query
+	 * that was not prepared and a training row, the same as for a prepared
+	 * query.
+	 *
+	 * @param numeric normalised numerical inputs of the query
+	 * @param row index of the training instance
+	 * @param bound value above which the computation can be abandoned
+	 * @param weights weight of each numerical input, or null
+	 * @return the approximate squared distance, or a partial sum strictly
+	 * greater than bound
+	 */
+	double squaredDistance(double[] numeric, int row, double bound, double[] weights) {
+		int offset = row * m_NumNumeric;
+		double sum = 0;
+		for (int j = 0; j < m_NumNumeric; j++) {
+			double diff = numeric[j] - value(offset + j);
+			sum += weights == null ? diff * diff : weights[j] * diff * diff;
+			if ((j & (BLOCK - 1)) == BLOCK - 1 && sum > bound) {
+				return sum;
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,95 @@
+package weka.classifiers.lazy;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join task predicting the outputs of some rows of a compact model
+ * from the nearest neighbours found in another model, or in the same one,
+ * whose rows are normalised with the same frame. The rows themselves are
+ * not excluded from their neighbours. <p>
+ *
+ * Ranges longer than CHUNK_ROWS are split in two halves predicted in
+ * parallel, each writing its own predictions.
+ */
+final class RowPredictionTask extends RecursiveAction {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Largest number of rows predicted by a single task. */
+	static final int CHUNK_ROWS = 32;
+
+	/** Model holding the rows to be predicted. */
+	private final KnnModel m_Source;
+
+	/** Slots of the rows to be predicted in the source model. */
+	private final int[] m_Rows;
+
+	/** Model the neighbours are found in. */
+	private final KnnModel m_Model;
+
+	/** Search structure over m_Model. */
+	private final NeighbourSearch m_Search;
+
+	/** Number of nearest neighbours averaged. */
+	private final int m_K;
+
+	/** Receives the prediction of each row. */
+	private final double[] m_Predictions;
+
+	/** First position of the range in m_Rows. */
+	private final int m_Begin;
+
+	/** Position after the last one of the range. */
+	private final int m_End;
+
+	/**
+	 * @param source model holding the rows to be predicted
+	 * @param rows slots of the rows to be predicted in the source model
+	 * @param model model the neighbours are found in
+	 * @param search search structure over the model
+	 * @param k number of nearest neighbours averaged, at most the number of
+	 * rows of the model
+	 * @param predictions receives the prediction of each row, in the order of rows
+	 * @param begin first position of the range in rows
+	 * @param end position after the last one of the range
+	 */
+	RowPredictionTask(KnnModel source, int[] rows, KnnModel model, NeighbourSearch search, int k,
+			double[] predictions, int begin, int end) {
+		m_Source = source;
+		m_Rows = rows;
+		m_Model = model;
+		m_Search = search;
+		m_K = k;
+		m_Predictions = predictions;
+		m_Begin = begin;
+		m_End = end;
+	}
+
+	@Override
+	protected void compute() {
+		if (m_End - m_Begin > CHUNK_ROWS) {
+			int middle = (m_Begin + m_End) >>> 1;
+			invokeAll(new RowPredictionTask(m_Source, m_Rows, m_Model, m_Search, m_K, m_Predictions, m_Begin, middle),
+					new RowPredictionTask(m_Source, m_Rows, m_Model, m_Search, m_K, m_Predictions, middle, m_End));
+			return;
+		}
+
+		KnnQuery query = new KnnQuery(m_Model.m_Layout, m_K);
+		for (int i = m_Begin; i < m_End; i++) {
+			int row = m_Rows[i];
+			for (int j = 0; j < m_Model.m_Layout.numNumeric(); j++) {
+				query.m_Numeric[j] = m_Source.numeric(row, j);
+			}
+			for (int j = 0; j < m_Model.m_Layout.numNominal(); j++) {
+				query.m_Nominal[j] = m_Source.nominal(row, j);
+			}
+			query.m_Candidates.reset(m_K);
+			m_Search.search(query);
+			query.m_Candidates.sort();
+			m_Predictions[i] = m_Model.meanOutput(query.m_Candidates);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package weka.classifiers.lazy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import weka.core.Instance;
+
+/**
+ * Connection to a ScoringServer on the local machine, sending one request
+ * at a time. A client is not thread-safe: concurrent requests need a
+ * client each.
+ */
+public class ScoringClient implements AutoCloseable {
+
+	private final Socket m_Socket;
+
+	private final DataInputStream m_In;
+
+	private final DataOutputStream m_Out;
+
+	/** Number of attributes of the instances, including the output. */
+	private final int m_NumAttributes;
+
+	/** Index of the output attribute. */
+	private final int m_ClassIndex;
+
+	/**
+	 * Connects to a server.
+	 *
+	 * @param port port of the server on the loopback interface
+	 * @throws IOException if the server cannot be reached
+	 */
+	public ScoringClient(int port) throws IOException {
+		m_Socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			m_Socket.setTcpNoDelay(true);
+			m_In = new DataInputStream(new BufferedInputStream(m_Socket.getInputStream()));
+			m_Out = new DataOutputStream(new BufferedOutputStream(m_Socket.getOutputStream()));
+			m_NumAttributes = m_In.readInt();
+			m_ClassIndex = m_In.readInt();
+		} catch (IOException e) {
+			m_Socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of attributes of the instances, including the output
+	 */
+	public int numAttributes() {
+		return m_NumAttributes;
+	}
+
+	/**
+	 * @return the index of the output attribute
+	 */
+	public int classIndex() {
+		return m_ClassIndex;
+	}
+
+	/**
+	 * Predicts the output of an instance of the training data's format.
+	 *
+	 * @param instance to be predicted
+	 * @return predicted output
+	 * @throws BusyException if the server is overloaded and refused the request
+	 * @throws IOException if the server failed or the connection was closed
+	 */
+	public double predict(Instance instance) throws IOException {
+		return predict(instance.toDoubleArray());
+	}
+
+	/**
+	 * Predicts the output of an instance given by the value of each of its
+	 * attributes, a categorical value as its index and a missing value as
+	 * NaN. The value of the output attribute is ignored.
+	 *
+	 * @param values value of every attribute of the instance
+	 * @return predicted output
+	 * @throws BusyException if the server is overloaded and refused the request
+	 * @throws IOException if the server failed or the connection was closed
+	 */
+	public double predict(double[] values) throws IOException {
+		if (values.length != m_NumAttributes) {
+			throw new IllegalArgumentException("Expected " + m_NumAttributes + " values, got " + values.length);
+		}
+		for (double value : values) {
+			m_Out.writeDouble(value);
+		}
+		m_Out.flush();
+
+		byte status = m_In.readByte();
+		double prediction = m_In.readDouble();
+		switch (status) {
+		case ScoringServer.OK:
+			return prediction;
+		case ScoringServer.BUSY:
+			throw new BusyException();
+		default:
+			throw new IOException("The server failed to predict the instance");
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_Socket.close();
+	}
+
+	/**
+	 * Thrown when the server refuses a request because its queue is full.
+	 * The request may be sent again after backing off.
+	 */
+	public static class BusyException extends IOException {
+
+		/**
+		 * Default serial version
+		 */
+		private static final long serialVersionUID = 1L;
+
+		BusyException() {
+			super("The server is busy");
+		}
+	}
+}
@@ -0,0 +1,515 @@
+package weka.classifiers.lazy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Local scoring service predicting with a built MyKnn for clients connected
+ * through loopback sockets (see ScoringClient), combining the requests that
+ * arrive together into micro-batches predicted by a single call of
+ * MyKnn.classifyInstances. <p>
+ *
+ * Each connection is served by its own thread, a virtual thread when the JVM
+ * provides them (Java 21 and later), since a connection spends nearly all
+ * its time waiting for its client or its prediction. The requests go to a
+ * bounded queue, from which a single batcher thread takes the oldest one,
+ * then waits for more until the batch holds getMaxBatchSize() requests or
+ * the oldest one has waited getMaxBatchDelay() microseconds, and predicts
+ * the whole batch. The requests arriving meanwhile queue up for the next
+ * batch, so the batches grow with the load while the delay bounds the
+ * latency added when the load is light. When the queue is full, a request
+ * is refused at once with BUSY rather than waiting, so that an overloaded
+ * server keeps the latency of the requests it accepts and tells its
+ * clients to back off. <p>
+ *
+ * With a linear scan and a block size or the blocked kernel (-block-rows or
+ * -batch-gemm of MyKnn), the queries of a batch are compared a tile at a
+ * time with each block of training rows while it is in the processor caches
+ * (see BatchClassifyTask), which is where the batches pay off; with the
+ * other search structures, the queries of a batch are predicted in
+ * parallel. The predictions are the ones of classifyInstance. <p>
+ *
+ * Protocol, in the big-endian encoding of DataOutputStream: on connecting,
+ * the server writes the number of attributes and the index of the output
+ * attribute. Each request is then the value of every attribute of an
+ * instance as a double (a categorical value as its index, a missing value as
+ * NaN, the output being ignored), and each reply a status byte, OK, BUSY or
+ * FAILED, followed by the prediction, NaN unless OK. A connection has a
+ * single request in flight at a time: concurrent requests come from
+ * several connections.
+ */
+public class ScoringServer implements AutoCloseable {
+
+	/** Status of a request that was predicted. */
+	public static final byte OK = 0;
+
+	/** Status of a request refused because the queue was full. */
+	public static final byte BUSY = 1;
+
+	/** Status of a request whose prediction failed. */
+	public static final byte FAILED = 2;
+
+	/** Prefix of the line giving the port on the standard output of main. */
+	static final String PORT = "port ";
+
+	/** Classifier making the predictions. */
+	private final MyKnn m_Knn;
+
+	/** Header of the training data, which the requests are added to. */
+	private final Instances m_Header;
+
+	/** Largest number of requests predicted at once. */
+	private int m_MaxBatchSize = 256;
+
+	/** Longest time, in microseconds, the oldest request of a batch waits for more. */
+	private long m_MaxBatchDelay = 200;
+
+	/** Largest number of requests waiting for a batch. */
+	private int m_QueueSize = 4096;
+
+	/** Requests waiting for a batch, null until started. */
+	private BlockingQueue<Request> m_Queue;
+
+	private ServerSocket m_ServerSocket;
+
+	private Thread m_Acceptor;
+
+	private Thread m_Batcher;
+
+	/** Runs the thread of each connection. */
+	private ExecutorService m_Connections;
+
+	/** Sockets of the open connections, closed by close. */
+	private final Set<Socket> m_Sockets = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean m_Closed;
+
+	/** Number of requests received. */
+	private final LongAdder m_Requests = new LongAdder();
+
+	/** Number of requests refused with BUSY. */
+	private final LongAdder m_Refused = new LongAdder();
+
+	/** Number of batches predicted. */
+	private final LongAdder m_Batches = new LongAdder();
+
+	/** Number of requests predicted in batches. */
+	private final LongAdder m_Batched = new LongAdder();
+
+	/**
+	 * @param knn built classifier making the predictions, which should not
+	 * be built again while the server runs
+	 * @throws Exception if the classifier has not been built
+	 */
+	public ScoringServer(MyKnn knn) throws Exception {
+		if (knn.m_TrainingData == null) {
+			throw new Exception("The classifier has not been built");
+		}
+		m_Knn = knn;
+		m_Header = new Instances(knn.m_TrainingData, 0);
+	}
+
+	/**
+	 * Starts accepting connections on a port of the loopback interface.
+	 *
+	 * @param port port to listen on, 0 for any free port
+	 * @return the port listened on
+	 * @throws IOException if the port cannot be listened on
+	 */
+	public synchronized int start(int port) throws IOException {
+		if (m_ServerSocket != null || m_Closed) {
+			throw new IllegalStateException("The server has already been started");
+		}
+		m_ServerSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+		m_Queue = new ArrayBlockingQueue<Request>(m_QueueSize);
+		m_Connections = newThreadPerTaskExecutor("ScoringServer connection");
+		m_Batcher = new Thread(this::batch, "ScoringServer batcher");
+		m_Batcher.setDaemon(true);
+		m_Batcher.start();
+		m_Acceptor = new Thread(this::accept, "ScoringServer acceptor");
+		m_Acceptor.setDaemon(true);
+		m_Acceptor.start();
+		return m_ServerSocket.getLocalPort();
+	}
+
+	/**
+	 * Stops the server: closes its port and all connections, and fails the
+	 * requests waiting for a batch.
+	 */
+	@Override
+	public synchronized void close() {
+		if (m_Closed) {
+			return;
+		}
+		m_Closed = true;
+		if (m_ServerSocket == null) {
+			return;
+		}
+		try {
+			m_ServerSocket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		m_Batcher.interrupt();
+		for (Socket socket : m_Sockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+		m_Connections.shutdownNow();
+		fail(new ArrayList<Request>(m_Queue));
+	}
+
+	/**
+	 * Waits until the server is closed.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public void join() throws InterruptedException {
+		Thread acceptor;
+		synchronized (this) {
+			acceptor = m_Acceptor;
+		}
+		if (acceptor != null) {
+			acceptor.join();
+		}
+	}
+
+	/**
+	 * Returns a thread-per-task executor running each task on a virtual
+	 * thread when the JVM provides them (Java 21 and later), and on a new
+	 * daemon thread otherwise.
+	 *
+	 * @param name name of the threads, if they are not virtual
+	 * @return the executor
+	 */
+	static ExecutorService newThreadPerTaskExecutor(String name) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task, name);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	private void accept() {
+		while (!m_Closed) {
+			Socket socket;
+			try {
+				socket = m_ServerSocket.accept();
+			} catch (IOException e) {
+				// closed
+				return;
+			}
+			m_Sockets.add(socket);
+			try {
+				m_Connections.execute(() -> serve(socket));
+			} catch (RuntimeException e) {
+				// closed meanwhile
+				m_Sockets.remove(socket);
+				try {
+					socket.close();
+				} catch (IOException e2) {
+					// already closed
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serves the requests of a connection until it is closed.
+	 */
+	private void serve(Socket socket) {
+		try (Socket connection = socket) {
+			connection.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+			int numAttributes = m_Header.numAttributes();
+			out.writeInt(numAttributes);
+			out.writeInt(m_Header.classIndex());
+			out.flush();
+
+			while (true) {
+				double[] values = new double[numAttributes];
+				try {
+					values[0] = in.readDouble();
+				} catch (EOFException e) {
+					return;
+				}
+				for (int a = 1; a < numAttributes; a++) {
+					values[a] = in.readDouble();
+				}
+
+				m_Requests.increment();
+				Request request = new Request(values);
+				byte status = OK;
+				double prediction = Double.NaN;
+				if (!m_Queue.offer(request)) {
+					m_Refused.increment();
+					status = BUSY;
+				} else {
+					try {
+						prediction = request.m_Result.get();
+					} catch (ExecutionException e) {
+						status = FAILED;
+					}
+				}
+				out.writeByte(status);
+				out.writeDouble(prediction);
+				out.flush();
+			}
+		} catch (IOException e) {
+			// the client or close closed the connection
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			m_Sockets.remove(socket);
+		}
+	}
+
+	/**
+	 * Takes the requests from the queue in batches and predicts them, until
+	 * the server is closed.
+	 */
+	private void batch() {
+		long maxDelay = TimeUnit.MICROSECONDS.toNanos(m_MaxBatchDelay);
+		int maxSize = Math.max(1, m_MaxBatchSize);
+		List<Request> batch = new ArrayList<Request>(maxSize);
+		try {
+			while (true) {
+				Request first = m_Queue.take();
+				batch.add(first);
+				long deadline = first.m_Arrival + maxDelay;
+				while (batch.size() < maxSize) {
+					if (m_Queue.drainTo(batch, maxSize - batch.size()) > 0) {
+						continue;
+					}
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0) {
+						break;
+					}
+					Request next = m_Queue.poll(wait, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				predict(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// closed
+			fail(batch);
+		}
+	}
+
+	private void predict(List<Request> batch) {
+		Instances instances = new Instances(m_Header, batch.size());
+		for (Request request : batch) {
+			instances.add(new DenseInstance(1.0, request.m_Values));
+		}
+		try {
+			double[] predictions = m_Knn.classifyInstances(instances);
+			for (int i = 0; i < predictions.length; i++) {
+				batch.get(i).m_Result.complete(predictions[i]);
+			}
+		} catch (Exception e) {
+			for (Request request : batch) {
+				request.m_Result.completeExceptionally(e);
+			}
+		}
+		m_Batches.increment();
+		m_Batched.add(batch.size());
+	}
+
+	private static void fail(List<Request> requests) {
+		Exception closed = new IOException("The server has been closed");
+		for (Request request : requests) {
+			request.m_Result.completeExceptionally(closed);
+		}
+	}
+
+	/**
+	 * @return the number of requests received
+	 */
+	public long getRequests() {
+		return m_Requests.sum();
+	}
+
+	/**
+	 * @return the number of requests refused because the queue was full
+	 */
+	public long getRefused() {
+		return m_Refused.sum();
+	}
+
+	/**
+	 * @return the number of batches predicted
+	 */
+	public long getBatches() {
+		return m_Batches.sum();
+	}
+
+	/**
+	 * @return the mean number of requests of a batch, 0 if there is none
+	 */
+	public double getMeanBatchSize() {
+		long batches = m_Batches.sum();
+		return batches == 0 ? 0 : (double) m_Batched.sum() / batches;
+	}
+
+	/**
+	 * Sets the largest number of requests predicted at once, before the
+	 * server is started.
+	 *
+	 * @param maxBatchSize the largest batch, 1 to predict the requests one
+	 * at a time
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		m_MaxBatchSize = Math.max(1, maxBatchSize);
+	}
+
+	/**
+	 * @return the largest number of requests predicted at once
+	 */
+	public int getMaxBatchSize() {
+		return m_MaxBatchSize;
+	}
+
+	/**
+	 * Sets the longest time the oldest request of a batch waits for more
+	 * requests, before the server is started. With 0, a batch holds the
+	 * requests already waiting when the previous one was predicted.
+	 *
+	 * @param maxBatchDelay the delay, in microseconds
+	 */
+	public void setMaxBatchDelay(long maxBatchDelay) {
+		m_MaxBatchDelay = Math.max(0, maxBatchDelay);
+	}
+
+	/**
+	 * @return the longest time, in microseconds, the oldest request of a
+	 * batch waits for more requests
+	 */
+	public long getMaxBatchDelay() {
+		return m_MaxBatchDelay;
+	}
+
+	/**
+	 * Sets the largest number of requests waiting for a batch, beyond which
+	 * requests are refused with BUSY, before the server is started.
+	 *
+	 * @param queueSize the capacity of the queue
+	 */
+	public void setQueueSize(int queueSize) {
+		m_QueueSize = Math.max(1, queueSize);
+	}
+
+	/**
+	 * @return the largest number of requests waiting for a batch
+	 */
+	public int getQueueSize() {
+		return m_QueueSize;
+	}
+
+	/**
+	 * Serves a MyKnn opened from a model file or built from an ARFF file
+	 * until the process is stopped, printing the port on the standard
+	 * output. Options: <p>
+	 *
+	 * -l &lt;file&gt; model file written by MyKnn.writeModel, or <br>
+	 * -t &lt;file&gt; ARFF file of the training data, with <br>
+	 * -c &lt;index&gt; index of its output attribute, starting at 1 (default last) <br>
+	 * -port &lt;num&gt; port to listen on (default any free port) <br>
+	 * -batch-size &lt;num&gt; largest number of requests predicted at once (default 256) <br>
+	 * -batch-delay &lt;num&gt; longest wait of a batch for more requests, in microseconds (default 200) <br>
+	 * -queue-size &lt;num&gt; largest number of requests waiting (default 4096) <br>
+	 * -- options of MyKnn, for -t, such as -K 5 -block-rows 1024
+	 *
+	 * @param args the options
+	 * @throws Exception if the model cannot be opened or built, or the port
+	 * cannot be listened on
+	 */
+	public static void main(String[] args) throws Exception {
+		String modelFile = Utils.getOption('l', args);
+		String trainingFile = Utils.getOption('t', args);
+		String classIndex = Utils.getOption('c', args);
+		String port = Utils.getOption("port", args);
+		String batchSize = Utils.getOption("batch-size", args);
+		String batchDelay = Utils.getOption("batch-delay", args);
+		String queueSize = Utils.getOption("queue-size", args);
+
+		MyKnn knn;
+		if (modelFile.length() != 0) {
+			knn = MyKnn.openModel(new File(modelFile));
+		} else if (trainingFile.length() != 0) {
+			knn = new MyKnn();
+			knn.setOptions(Utils.partitionOptions(args));
+			knn.buildClassifier(new File(trainingFile), classIndex.length() != 0 ? Integer.parseInt(classIndex) - 1 : -1);
+		} else {
+			throw new Exception("A model file (-l) or a training file (-t) is needed");
+		}
+
+		ScoringServer server = new ScoringServer(knn);
+		if (batchSize.length() != 0) {
+			server.setMaxBatchSize(Integer.parseInt(batchSize));
+		}
+		if (batchDelay.length() != 0) {
+			server.setMaxBatchDelay(Long.parseLong(batchDelay));
+		}
+		if (queueSize.length() != 0) {
+			server.setQueueSize(Integer.parseInt(queueSize));
+		}
+		System.out.println(PORT + server.start(port.length() != 0 ? Integer.parseInt(port) : 0));
+		System.out.flush();
+		server.join();
+	}
+
+	/**
+	 * Request of a connection, completed by the batcher.
+	 */
+	private static final class Request {
+
+		/** Value of every attribute of the instance. */
+		final double[] m_Values;
+
+		/** Time the request was received, from System.nanoTime. */
+		final long m_Arrival = System.nanoTime();
+
+		/** Prediction of the instance. */
+		final CompletableFuture<Double> m_Result = new CompletableFuture<Double>();
+
+		Request(double[] values) {
+			m_Values = values;
+		}
+	}
+}
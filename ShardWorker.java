@@ -0,0 +1,310 @@
+package weka.classifiers.lazy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import weka.core.Instances;
+
+/**
+ * Worker process holding one shard of a ShardedKnn. <p>
+ *
+ * The worker listens on an ephemeral port of the loopback interface, prints
+ * the port on its standard output, and serves the connections of the
+ * coordinator, each on its own thread. The first connection builds the
+ * shard and ends the process when it is closed; the others only search it,
+ * so that the coordinator can search for several threads at once. Each
+ * request is a command byte followed by its arguments, written to an
+ * ObjectOutputStream, and each reply starts with null, or with the
+ * exception that made the request fail:
+ * <ul>
+ * <li> BUILD options, first row, shard, min, max: builds a MyKnn with the
+ * options over the rows of the shard (see MyKnn.buildShard), whose first
+ * row is the given row of the whole training set. </li>
+ * <li> READ options, file, class index: reads the rows of the shard from a
+ * dense ARFF file, without building it, and replies with the header of the
+ * file, the number of rows, the min and max values of each numerical input
+ * over the rows where it is not missing (infinite if there are none), and
+ * whether it is missing in the first row. </li>
+ * <li> BUILD_READ first row, min, max: builds a MyKnn with the options given
+ * to READ over the rows read, normalised with the given values, whose first
+ * row is the given row of the whole training set. </li>
+ * <li> SEARCH count, numeric, nominal: finds the nearest neighbours of count
+ * normalised queries, whose inputs are concatenated, and replies with the
+ * number of neighbours n of each query, then the row in the whole training
+ * set, the squared distance and the output of the n neighbours of each
+ * query in turn, in ascending order of distance and row. </li>
+ * <li> CLOSE: closes the connection, and ends the process if it is the
+ * first one. </li>
+ * </ul>
+ */
+public final class ShardWorker {
+
+	/** Closes the connection. */
+	static final byte CLOSE = 0;
+
+	/** Builds the shard. */
+	static final byte BUILD = 1;
+
+	/** Searches a batch of queries. */
+	static final byte SEARCH = 2;
+
+	/** Reads the rows of the shard from a file. */
+	static final byte READ = 3;
+
+	/** Builds the shard from the rows read. */
+	static final byte BUILD_READ = 4;
+
+	/** Prefix of the line giving the port on the standard output. */
+	static final String PORT = "port ";
+
+	/** Classifier over the rows of the shard, null until built. */
+	private volatile MyKnn m_Knn;
+
+	/** Row of the whole training set of the first row of the shard. */
+	private volatile int m_FirstRow;
+
+	/** Classifier configured by the last READ, to be built by BUILD_READ. */
+	private MyKnn m_ReadKnn;
+
+	/** Header of the file of the last READ. */
+	private Instances m_ReadHeader;
+
+	/** Rows read by the last READ, not normalised yet. */
+	private KnnModel m_ReadModel;
+
+	private ShardWorker() {
+	}
+
+	/**
+	 * Serves the coordinator.
+	 *
+	 * @param args ignored
+	 * @throws Exception if the first connection fails
+	 */
+	public static void main(String[] args) throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			System.out.println(PORT + server.getLocalPort());
+			System.out.flush();
+			// nothing reads the standard output any more
+			System.setOut(System.err);
+			ShardWorker worker = new ShardWorker();
+			Socket first = server.accept();
+			Thread acceptor = new Thread(() -> worker.accept(server), "ShardWorker acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+			worker.serve(first);
+		}
+		// the connections left are served by daemon threads, which end with the process
+	}
+
+	/**
+	 * Serves the other connections until the server socket is closed.
+	 */
+	private void accept(ServerSocket server) {
+		ExecutorService connections = ScoringServer.newThreadPerTaskExecutor("ShardWorker connection");
+		while (true) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				// closed
+				return;
+			}
+			connections.execute(() -> {
+				try {
+					serve(socket);
+				} catch (Exception e) {
+					// the coordinator sees the connection fail
+				}
+			});
+		}
+	}
+
+	private void serve(Socket socket) throws Exception {
+		try (Socket connection = socket) {
+			connection.setTcpNoDelay(true);
+			ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+			out.flush();
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(connection.getInputStream()));
+			serve(in, out);
+		}
+	}
+
+	private void serve(ObjectInputStream in, ObjectOutputStream out) throws Exception {
+		while (true) {
+			byte command;
+			try {
+				command = in.readByte();
+			} catch (EOFException e) {
+				return;
+			}
+			switch (command) {
+			case BUILD:
+				build(in, out);
+				break;
+			case READ:
+				read(in, out);
+				break;
+			case BUILD_READ:
+				buildRead(in, out);
+				break;
+			case SEARCH:
+				search(in, out);
+				break;
+			default:
+				return;
+			}
+			out.reset();
+			out.flush();
+		}
+	}
+
+	private void build(ObjectInputStream in, ObjectOutputStream out) throws Exception {
+		String[] options = (String[]) in.readObject();
+		int firstRow = in.readInt();
+		Instances shard = (Instances) in.readObject();
+		double[] min = (double[]) in.readObject();
+		double[] max = (double[]) in.readObject();
+		try {
+			MyKnn knn = new MyKnn();
+			knn.setOptions(options);
+			knn.buildShard(shard, min, max);
+			m_FirstRow = firstRow;
+			m_Knn = knn;
+			out.writeObject(null);
+		} catch (Exception e) {
+			out.writeObject(e);
+		}
+	}
+
+	private void read(ObjectInputStream in, ObjectOutputStream out) throws Exception {
+		String[] options = (String[]) in.readObject();
+		File file = (File) in.readObject();
+		int classIndex = in.readInt();
+		m_ReadModel = null;
+		Instances header;
+		KnnModel model;
+		double[] min;
+		double[] max;
+		boolean[] firstMissing;
+		try {
+			MyKnn knn = new MyKnn();
+			knn.setOptions(options);
+			knn.checkShard();
+			try (ArffColumnReader reader = new ArffColumnReader(file)) {
+				header = reader.header();
+				header.setClassIndex(classIndex < 0 ? header.numAttributes() - 1 : classIndex);
+				AttributeLayout layout = new AttributeLayout(header);
+				int numNumeric = layout.numNumeric();
+				model = KnnModel.empty(layout, knn.getOffHeap());
+				min = new double[numNumeric];
+				max = new double[numNumeric];
+				firstMissing = new boolean[numNumeric];
+				// the comparisons of MinMaxTask, which skip missing values
+				Arrays.fill(min, Double.POSITIVE_INFINITY);
+				Arrays.fill(max, Double.NEGATIVE_INFINITY);
+				double[] values = new double[header.numAttributes()];
+				double[] numeric = new double[numNumeric];
+				int[] nominal = new int[layout.numNominal()];
+				while (reader.next(values)) {
+					for (int j = 0; j < numNumeric; j++) {
+						double value = values[layout.m_NumericAttributes[j]];
+						numeric[j] = value;
+						if (model.m_NumRows == 0) {
+							firstMissing[j] = Double.isNaN(value);
+						}
+						if (value < min[j]) {
+							min[j] = value;
+						}
+						if (value > max[j]) {
+							max[j] = value;
+						}
+					}
+					for (int j = 0; j < nominal.length; j++) {
+						nominal[j] = (int) values[layout.m_NominalAttributes[j]];
+					}
+					model.appendRaw(numeric, nominal, values[layout.m_ClassIndex]);
+				}
+			}
+			m_ReadKnn = knn;
+			m_ReadHeader = header;
+			m_ReadModel = model;
+		} catch (Exception e) {
+			out.writeObject(e);
+			return;
+		}
+		out.writeObject(null);
+		out.writeObject(new Instances(header, 0));
+		out.writeInt(model.m_NumRows);
+		out.writeObject(min);
+		out.writeObject(max);
+		out.writeObject(firstMissing);
+	}
+
+	private void buildRead(ObjectInputStream in, ObjectOutputStream out) throws Exception {
+		int firstRow = in.readInt();
+		double[] min = (double[]) in.readObject();
+		double[] max = (double[]) in.readObject();
+		KnnModel model = m_ReadModel;
+		m_ReadModel = null;
+		if (model == null) {
+			out.writeObject(new IllegalStateException("The rows of the shard have not been read"));
+			return;
+		}
+		try {
+			m_ReadKnn.buildShard(m_ReadHeader, model, min, max);
+			m_FirstRow = firstRow;
+			m_Knn = m_ReadKnn;
+			out.writeObject(null);
+		} catch (Exception e) {
+			out.writeObject(e);
+		}
+	}
+
+	private void search(ObjectInputStream in, ObjectOutputStream out) throws Exception {
+		int count = in.readInt();
+		double[] numeric = (double[]) in.readObject();
+		int[] nominal = (int[]) in.readObject();
+		MyKnn knn = m_Knn;
+		if (knn == null) {
+			out.writeObject(new IllegalStateException("The shard has not been built"));
+			return;
+		}
+
+		// the query buffers are those of the thread serving the connection
+		KnnQuery query = knn.scratchQuery();
+		int firstRow = m_FirstRow;
+		int numNumeric = query.m_Numeric.length;
+		int numNominal = query.m_Nominal.length;
+		int k = Math.min(knn.getK(), knn.m_Model.m_NumRows);
+		int[] rows = new int[count * k];
+		double[] distances = new double[count * k];
+		double[] outputs = new double[count * k];
+		for (int q = 0; q < count; q++) {
+			System.arraycopy(numeric, q * numNumeric, query.m_Numeric, 0, numNumeric);
+			System.arraycopy(nominal, q * numNominal, query.m_Nominal, 0, numNominal);
+			knn.search(query);
+			NeighbourCandidates candidates = query.m_Candidates;
+			for (int i = 0; i < k; i++) {
+				rows[q * k + i] = firstRow + candidates.row(i);
+				distances[q * k + i] = candidates.distance(i);
+				outputs[q * k + i] = knn.m_Model.m_ClassValues[candidates.row(i)];
+			}
+		}
+		out.writeObject(null);
+		out.writeInt(k);
+		out.writeObject(rows);
+		out.writeObject(distances);
+		out.writeObject(outputs);
+	}
+}
@@ -0,0 +1,895 @@
+package weka.classifiers.lazy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import weka.classifiers.AbstractClassifier;
+import weka.core.Capabilities;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.Utils;
+
+/**
+ * k-NN regression over a training set split into shards held by worker
+ * processes (see ShardWorker). <p>
+ *
+ * buildClassifier(File[], int) builds the classifier from a training set
+ * already split into ARFF files, one per shard, each read by its own worker,
+ * so that only the workers hold the rows and the training set may be too
+ * large for one JVM. Each worker reads its rows and reports their min and
+ * max values, which the coordinator merges into those of the whole set as
+ * MyKnn would find them, and each worker then builds its rows into a MyKnn
+ * normalised with these global values. buildClassifier(Instances) instead
+ * finds the global min and max values itself and sends each worker a
+ * contiguous range of the training rows, so it needs the whole set in the
+ * coordinator. Either way, the shards are configured with the options of
+ * the shard classifier and their distances are the ones of a single MyKnn
+ * built over the whole set (see MyKnn.buildShard). <p>
+ *
+ * Queries are normalised once by the coordinator and sent to all shards in
+ * batches of getQueryBatchSize() queries. Each shard replies with its k nearest
+ * neighbours, identified by their row in the whole training set, with their
+ * squared distances and outputs. As the shards hold contiguous ranges of
+ * rows, the k nearest neighbours of the whole set, in ascending order of
+ * distance and row, are the first k of the merge of these lists in the same
+ * order, so the neighbours and predictions are the ones of a single MyKnn
+ * built over the whole set, lower rows winning ties, whenever the search of
+ * the shards is exact and the distances are not NaN. <p>
+ *
+ * The workers run on the local machine, connected through loopback sockets,
+ * which stands in for a transport between machines. A prediction holds one
+ * connection to each worker, taken from a pool that grows to the number of
+ * threads predicting at once, so that threads predict concurrently, each
+ * worker serving each connection on its own thread. The workers are stopped
+ * by close, or when the classifier is built again, both of which wait for
+ * the predictions running. The classifier cannot be updated, and does not
+ * survive serialisation.
+ */
+public class ShardedKnn extends AbstractClassifier implements AutoCloseable {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Number of shards the training set is split into. */
+	protected int m_NumShards = 2;
+
+	/** Largest number of queries sent to the shards at once. */
+	protected int m_QueryBatchSize = 256;
+
+	/** Largest heap of a worker, as given to -Xmx, empty for the JVM default. */
+	protected String m_WorkerHeap = "";
+
+	/** Classifier whose options configure each shard. */
+	protected MyKnn m_ShardClassifier = new MyKnn();
+
+	/** Header of the training data. */
+	protected Instances m_Header;
+
+	/** Layout of the attributes of the training data. */
+	private transient AttributeLayout m_Layout;
+
+	/** Minimum value of each numerical input over the whole training set. */
+	private double[] m_Min;
+
+	/** Maximum value of each numerical input over the whole training set. */
+	private double[] m_Max;
+
+	/** Number of training rows over all shards. */
+	private int m_NumRows;
+
+	/** Workers, null until built. */
+	private transient Shard[] m_Shards;
+
+	/**
+	 * Connections not in use, each holding one connection to every worker,
+	 * guarded by itself.
+	 */
+	private transient ArrayDeque<Connection[]> m_Idle;
+
+	/**
+	 * Lock held for reading by the predictions and for writing by the builds
+	 * and close.
+	 */
+	private final ReentrantReadWriteLock m_Lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Returns a string describing classifier.
+	 *
+	 * @return a description suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String globalInfo() {
+		return "K-nearest neighbours regression over a training set split into shards "
+				+ "held by worker processes, merging their nearest neighbours exactly.";
+	}
+
+	@Override
+	public Capabilities getCapabilities() {
+		return m_ShardClassifier.getCapabilities();
+	}
+
+	/**
+	 * Splits the training set into shards and builds each of them in its own
+	 * worker process, stopping the workers of a previous build. The rows of
+	 * each shard are sent from this process, which must therefore hold the
+	 * whole training set; see buildClassifier(File[], int) otherwise.
+	 *
+	 * @param trainingData to be used for building the model, left unchanged
+	 * @throws Exception if the training data holds no instance, or a worker
+	 * cannot be started or fails to build its shard
+	 */
+	@Override
+	public void buildClassifier(Instances trainingData) throws Exception {
+		m_Lock.writeLock().lock();
+		try {
+			close();
+			if (trainingData.numInstances() == 0) {
+				throw new Exception("No training instances");
+			}
+
+			m_Header = new Instances(trainingData, 0);
+			m_Layout = new AttributeLayout(trainingData);
+			m_Min = new double[m_Layout.numNumeric()];
+			m_Max = new double[m_Layout.numNumeric()];
+			MinMaxTask task = new MinMaxTask(trainingData, m_Layout, 0, trainingData.numInstances());
+			task.copyResult(ForkJoinPool.commonPool().invoke(task), m_Min, m_Max);
+			m_NumRows = trainingData.numInstances();
+
+			int numShards = Math.max(1, Math.min(m_NumShards, m_NumRows));
+			Shard[] shards = startWorkers(numShards);
+			try {
+				String[] options = m_ShardClassifier.getOptions();
+				for (int s = 0; s < numShards; s++) {
+					int begin = (int) ((long) m_NumRows * s / numShards);
+					int end = (int) ((long) m_NumRows * (s + 1) / numShards);
+					shards[s].m_Control.build(options, begin, new Instances(trainingData, begin, end - begin), m_Min,
+							m_Max);
+				}
+				// the shards are built in parallel, each by its own worker
+				for (Shard shard : shards) {
+					shard.m_Control.readReply();
+				}
+			} catch (Exception e) {
+				close();
+				throw e;
+			}
+		} finally {
+			m_Lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Builds the classifier from a training set split into dense ARFF files
+	 * with the same header, one per shard, whose rows follow each other in
+	 * the order of the files. Each file is read by its own worker, which
+	 * must be able to open it, and only the header and the min and max
+	 * values of the rows reach this process, so the training set may be too
+	 * large for it. The classifier is the same as the one built from the
+	 * instances of the files in turn, split at the same rows. The number of
+	 * shards set is ignored, and the workers of a previous build are
+	 * stopped.
+	 *
+	 * @param shardFiles the rows of each shard
+	 * @param classIndex index of the output attribute, or -1 for the last one
+	 * @throws Exception if there is no file, a file cannot be read, holds no
+	 * rows or has another header than the first file, or a worker cannot be
+	 * started or fails to build its shard
+	 */
+	public void buildClassifier(File[] shardFiles, int classIndex) throws Exception {
+		m_Lock.writeLock().lock();
+		try {
+			close();
+			if (shardFiles.length == 0) {
+				throw new Exception("No shard files");
+			}
+
+			Shard[] shards = startWorkers(shardFiles.length);
+			try {
+				String[] options = m_ShardClassifier.getOptions();
+				for (int s = 0; s < shards.length; s++) {
+					shards[s].m_Control.read(options, shardFiles[s].getAbsoluteFile(), classIndex);
+				}
+				// the files are read in parallel, each by its own worker
+				for (Shard shard : shards) {
+					shard.readRows();
+				}
+
+				// the min and max values over all rows, with the comparisons of MinMaxTask
+				Instances header = shards[0].m_Header;
+				int numNumeric = shards[0].m_Min.length;
+				double[] min = shards[0].m_Min.clone();
+				double[] max = shards[0].m_Max.clone();
+				int[] firstRows = new int[shards.length];
+				int numRows = 0;
+				for (int s = 0; s < shards.length; s++) {
+					Shard shard = shards[s];
+					if (!header.equalHeaders(shard.m_Header)) {
+						throw new Exception("The header of " + shardFiles[s] + " differs from the one of "
+								+ shardFiles[0] + ": " + header.equalHeadersMsg(shard.m_Header));
+					}
+					if (shard.m_NumRows == 0) {
+						throw new Exception("No training instances in " + shardFiles[s]);
+					}
+					firstRows[s] = numRows;
+					numRows += shard.m_NumRows;
+					for (int j = 0; j < numNumeric; j++) {
+						if (shard.m_Min[j] < min[j]) {
+							min[j] = shard.m_Min[j];
+						}
+						if (shard.m_Max[j] > max[j]) {
+							max[j] = shard.m_Max[j];
+						}
+					}
+				}
+				// as MinMaxTask.copyResult, a value missing in the first row leaves it missing
+				for (int j = 0; j < numNumeric; j++) {
+					if (shards[0].m_FirstMissing[j]) {
+						min[j] = Double.NaN;
+						max[j] = Double.NaN;
+					}
+				}
+
+				for (int s = 0; s < shards.length; s++) {
+					shards[s].m_Control.buildRead(firstRows[s], min, max);
+				}
+				for (Shard shard : shards) {
+					shard.m_Control.readReply();
+				}
+				m_Header = header;
+				m_Layout = new AttributeLayout(header);
+				m_Min = min;
+				m_Max = max;
+				m_NumRows = numRows;
+			} catch (Exception e) {
+				close();
+				throw e;
+			}
+		} finally {
+			m_Lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Predicts the output of an instance, as the average output of its k
+	 * nearest neighbours over all shards.
+	 *
+	 * @param instance to be predicted, left unchanged
+	 * @return predicted output
+	 * @throws Exception if the classifier has not been built or a worker fails
+	 */
+	@Override
+	public double classifyInstance(Instance instance) throws Exception {
+		return predict(Collections.singletonList(instance))[0];
+	}
+
+	@Override
+	public double[] distributionForInstance(Instance instance) throws Exception {
+		return new double[] { classifyInstance(instance) };
+	}
+
+	/**
+	 * Predicts the outputs of all instances of a data set, sending them to
+	 * the shards in batches.
+	 *
+	 * @param instances to be predicted, left unchanged
+	 * @return the predicted output of each instance, in the same order
+	 * @throws Exception if the classifier has not been built or a worker fails
+	 */
+	public double[] classifyInstances(Instances instances) throws Exception {
+		return predict(instances);
+	}
+
+	/**
+	 * Predicts the outputs of instances with connections of the pool, which
+	 * are closed rather than given back if they fail.
+	 */
+	private double[] predict(List<Instance> instances) throws Exception {
+		m_Lock.readLock().lock();
+		try {
+			checkBuilt();
+			Connection[] connections = borrow();
+			double[] predictions;
+			try {
+				predictions = predict(instances, connections);
+			} catch (Exception e) {
+				for (Connection connection : connections) {
+					connection.close();
+				}
+				throw e;
+			}
+			synchronized (m_Idle) {
+				m_Idle.push(connections);
+			}
+			return predictions;
+		} finally {
+			m_Lock.readLock().unlock();
+		}
+	}
+
+	private double[] predict(List<Instance> instances, Connection[] connections) throws Exception {
+		int numNumeric = m_Layout.numNumeric();
+		int numNominal = m_Layout.numNominal();
+		int k = Math.min(m_ShardClassifier.getK(), m_NumRows);
+		int batchSize = Math.max(1, m_QueryBatchSize);
+		double[] predictions = new double[instances.size()];
+		double[] numeric = new double[batchSize * numNumeric];
+		int[] nominal = new int[batchSize * numNominal];
+		double[] queryNumeric = new double[numNumeric];
+		int[] queryNominal = new int[numNominal];
+		int[] next = new int[connections.length];
+
+		for (int begin = 0; begin < predictions.length; begin += batchSize) {
+			int count = Math.min(batchSize, predictions.length - begin);
+			for (int q = 0; q < count; q++) {
+				m_Layout.normaliseInputs(instances.get(begin + q), m_Min, m_Max, queryNumeric, queryNominal);
+				System.arraycopy(queryNumeric, 0, numeric, q * numNumeric, numNumeric);
+				System.arraycopy(queryNominal, 0, nominal, q * numNominal, numNominal);
+			}
+			// the shards search the batch in parallel, each in its own worker
+			for (Connection connection : connections) {
+				connection.search(count, numeric, nominal);
+			}
+			for (Connection connection : connections) {
+				connection.readNeighbours();
+			}
+
+			for (int q = 0; q < count; q++) {
+				for (int s = 0; s < connections.length; s++) {
+					next[s] = q * connections[s].m_K;
+				}
+				double runningTotal = 0;
+				for (int i = 0; i < k; i++) {
+					Connection best = null;
+					int bestShard = -1;
+					for (int s = 0; s < connections.length; s++) {
+						Connection connection = connections[s];
+						if (next[s] < (q + 1) * connection.m_K
+								&& (best == null || precedes(connection, next[s], best, next[bestShard]))) {
+							best = connection;
+							bestShard = s;
+						}
+					}
+					runningTotal += best.m_Outputs[next[bestShard]++];
+				}
+				predictions[begin + q] = runningTotal / k;
+			}
+		}
+		return predictions;
+	}
+
+	/**
+	 * Takes connections to all workers from the pool, opening new ones if
+	 * every connection is in use.
+	 *
+	 * @return one connection to each worker, in the order of the shards
+	 * @throws IOException if a worker cannot be connected to
+	 */
+	private Connection[] borrow() throws IOException {
+		synchronized (m_Idle) {
+			if (!m_Idle.isEmpty()) {
+				return m_Idle.pop();
+			}
+		}
+		Shard[] shards = m_Shards;
+		Connection[] connections = new Connection[shards.length];
+		try {
+			for (int s = 0; s < shards.length; s++) {
+				connections[s] = shards[s].connect();
+			}
+		} catch (IOException e) {
+			for (Connection connection : connections) {
+				if (connection != null) {
+					connection.close();
+				}
+			}
+			throw e;
+		}
+		return connections;
+	}
+
+	private void checkBuilt() {
+		if (m_Shards == null) {
+			throw new IllegalStateException("The classifier has not been built or has been closed");
+		}
+	}
+
+	@Override
+	public boolean implementsMoreEfficientBatchPrediction() {
+		return true;
+	}
+
+	@Override
+	public double[][] distributionsForInstances(Instances instances) throws Exception {
+		double[] predictions = classifyInstances(instances);
+		double[][] distributions = new double[predictions.length][];
+		for (int i = 0; i < predictions.length; i++) {
+			distributions[i] = new double[] { predictions[i] };
+		}
+		return distributions;
+	}
+
+	/**
+	 * Ordering of NeighbourCandidates: by squared distance, then by row.
+	 */
+	private static boolean precedes(Connection connection1, int i1, Connection connection2, int i2) {
+		double distance1 = connection1.m_Distances[i1];
+		double distance2 = connection2.m_Distances[i2];
+		return distance1 < distance2
+				|| (distance1 == distance2 && connection1.m_Rows[i1] < connection2.m_Rows[i2]);
+	}
+
+	/**
+	 * Stops the workers, once the predictions running have completed. The
+	 * classifier must be built again before predicting.
+	 */
+	@Override
+	public void close() {
+		m_Lock.writeLock().lock();
+		try {
+			Shard[] shards = m_Shards;
+			m_Shards = null;
+			if (shards == null) {
+				return;
+			}
+			// no prediction is running, so every connection is idle
+			for (Connection[] connections : m_Idle) {
+				for (Connection connection : connections) {
+					connection.close();
+				}
+			}
+			m_Idle = null;
+			for (Shard shard : shards) {
+				if (shard != null) {
+					shard.close();
+				}
+			}
+		} finally {
+			m_Lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Starts the workers of a build, which close stops.
+	 *
+	 * @param numShards the number of workers
+	 * @return the workers, connected to
+	 * @throws IOException if a worker cannot be started
+	 */
+	private Shard[] startWorkers(int numShards) throws IOException {
+		Shard[] shards = new Shard[numShards];
+		m_Shards = shards;
+		m_Idle = new ArrayDeque<Connection[]>();
+		try {
+			for (int s = 0; s < numShards; s++) {
+				shards[s] = new Shard(startWorker());
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		return shards;
+	}
+
+	private Process startWorker() throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		if (m_WorkerHeap.length() != 0) {
+			command.add("-Xmx" + m_WorkerHeap);
+		}
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			command.add("--add-modules");
+			command.add("jdk.incubator.vector");
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ShardWorker.class.getName());
+		return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+	}
+
+	/**
+	 * Sets the number of shards the training set is split into when the
+	 * classifier is next built from instances; a build from files has one
+	 * shard per file.
+	 *
+	 * @param numShards the number of shards, each held by a worker process
+	 */
+	public void setNumShards(int numShards) {
+		m_NumShards = numShards;
+	}
+
+	/**
+	 * Gets the number of shards the training set is split into.
+	 *
+	 * @return the number of shards
+	 */
+	public int getNumShards() {
+		return m_NumShards;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String numShardsTipText() {
+		return "Number of shards the training set is split into, each held by a worker process.";
+	}
+
+	/**
+	 * Sets the largest number of queries sent to the shards at once.
+	 *
+	 * @param batchSize the number of queries
+	 */
+	public void setQueryBatchSize(int batchSize) {
+		m_QueryBatchSize = batchSize;
+	}
+
+	/**
+	 * Gets the largest number of queries sent to the shards at once.
+	 *
+	 * @return the number of queries
+	 */
+	public int getQueryBatchSize() {
+		return m_QueryBatchSize;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String queryBatchSizeTipText() {
+		return "Largest number of queries sent to the shards at once.";
+	}
+
+	/**
+	 * Sets the largest heap of each worker process when the classifier is
+	 * next built.
+	 *
+	 * @param workerHeap the heap size as given to -Xmx, such as 4g, or an
+	 * empty string for the default of the JVM
+	 */
+	public void setWorkerHeap(String workerHeap) {
+		m_WorkerHeap = workerHeap;
+	}
+
+	/**
+	 * Gets the largest heap of each worker process.
+	 *
+	 * @return the heap size as given to -Xmx, or an empty string
+	 */
+	public String getWorkerHeap() {
+		return m_WorkerHeap;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String workerHeapTipText() {
+		return "Largest heap of each worker process, as given to -Xmx (empty for the JVM default).";
+	}
+
+	/**
+	 * Sets the classifier whose options configure each shard, such as k and
+	 * the search structure. Windows and the selection of k are not supported.
+	 *
+	 * @param shardClassifier the classifier, which is not built
+	 */
+	public void setShardClassifier(MyKnn shardClassifier) {
+		m_ShardClassifier = shardClassifier;
+	}
+
+	/**
+	 * Gets the classifier whose options configure each shard.
+	 *
+	 * @return the classifier
+	 */
+	public MyKnn getShardClassifier() {
+		return m_ShardClassifier;
+	}
+
+	/**
+	 * Returns the tip text for this parameter.
+	 *
+	 * @return tip text for this property suitable for
+	 * displaying in the explorer/experimenter gui
+	 */
+	public String shardClassifierTipText() {
+		return "Classifier whose options configure each shard, such as k and the search structure.";
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public Enumeration listOptions() {
+
+		Vector newVector = new Vector();
+
+		newVector.addElement(new Option(
+				"\tNumber of shards, each held by a worker process (default 2).\n",
+				"shards", 1, "-shards <num>"));
+
+		newVector.addElement(new Option(
+				"\tLargest number of queries sent to the shards at once (default 256).\n",
+				"query-batch-size", 1, "-query-batch-size <num>"));
+
+		newVector.addElement(new Option(
+				"\tLargest heap of each worker process, as given to -Xmx\n"
+				+ "\t(default: the JVM default).\n",
+				"worker-heap", 1, "-worker-heap <size>"));
+
+		Enumeration enu = super.listOptions();
+		while (enu.hasMoreElements()) {
+			newVector.addElement(enu.nextElement());
+		}
+
+		newVector.addElement(new Option("", "", 0,
+				"\nOptions specific to the shard classifier " + MyKnn.class.getName() + ":"));
+		enu = m_ShardClassifier.listOptions();
+		while (enu.hasMoreElements()) {
+			newVector.addElement(enu.nextElement());
+		}
+
+		return newVector.elements();
+	}
+
+	@Override
+	public void setOptions(String[] options) throws Exception {
+
+		String numShards = Utils.getOption("shards", options);
+		setNumShards(numShards.length() != 0 ? Integer.parseInt(numShards) : 2);
+
+		String queryBatchSize = Utils.getOption("query-batch-size", options);
+		setQueryBatchSize(queryBatchSize.length() != 0 ? Integer.parseInt(queryBatchSize) : 256);
+
+		setWorkerHeap(Utils.getOption("worker-heap", options));
+
+		MyKnn shardClassifier = new MyKnn();
+		shardClassifier.setOptions(Utils.partitionOptions(options));
+		setShardClassifier(shardClassifier);
+
+		super.setOptions(options);
+
+	}
+
+	@Override
+	public String[] getOptions() {
+
+		Vector<String> options = new Vector<String>();
+
+		options.add("-shards");
+		options.add(Integer.toString(m_NumShards));
+		options.add("-query-batch-size");
+		options.add(Integer.toString(m_QueryBatchSize));
+		if (m_WorkerHeap.length() != 0) {
+			options.add("-worker-heap");
+			options.add(m_WorkerHeap);
+		}
+
+		Collections.addAll(options, super.getOptions());
+
+		options.add("--");
+		Collections.addAll(options, m_ShardClassifier.getOptions());
+
+		return options.toArray(new String[0]);
+	}
+
+	@Override
+	public String toString() {
+		if (m_Shards == null) {
+			return "ShardedKnn: no model built yet.";
+		}
+		return "ShardedKnn classifier using k=" + m_ShardClassifier.getK() + ".\n"
+				+ "Trained on " + m_NumRows + " examples in " + m_Shards.length + " shards.\n";
+	}
+
+	/**
+	 * Worker process, with the connection that builds its shard and what it
+	 * reported of the rows it read.
+	 */
+	private static final class Shard {
+
+		private final Process m_Process;
+
+		/** Port the worker listens on. */
+		private final int m_Port;
+
+		/** First connection, which builds the shard and ends the worker when closed. */
+		final Connection m_Control;
+
+		/** Header of the file read. */
+		Instances m_Header;
+
+		/** Number of rows read. */
+		int m_NumRows;
+
+		/** Minimum value of each numerical input over the rows where it is not missing. */
+		double[] m_Min;
+
+		/** Maximum value of each numerical input over the rows where it is not missing. */
+		double[] m_Max;
+
+		/** Whether each numerical input is missing in the first row read. */
+		boolean[] m_FirstMissing;
+
+		Shard(Process process) throws IOException {
+			m_Process = process;
+			try {
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+				String line = reader.readLine();
+				if (line == null || !line.startsWith(ShardWorker.PORT)) {
+					throw new IOException("The worker process did not start: " + line);
+				}
+				m_Port = Integer.parseInt(line.substring(ShardWorker.PORT.length()));
+				m_Control = connect();
+			} catch (IOException e) {
+				process.destroyForcibly();
+				throw e;
+			}
+		}
+
+		/**
+		 * Opens a connection to the worker.
+		 *
+		 * @return the connection
+		 * @throws IOException if the worker cannot be connected to
+		 */
+		Connection connect() throws IOException {
+			return new Connection(new Socket(InetAddress.getLoopbackAddress(), m_Port));
+		}
+
+		void readRows() throws Exception {
+			m_Control.readReply();
+			ObjectInputStream in = m_Control.m_In;
+			m_Header = (Instances) in.readObject();
+			m_NumRows = in.readInt();
+			m_Min = (double[]) in.readObject();
+			m_Max = (double[]) in.readObject();
+			m_FirstMissing = (boolean[]) in.readObject();
+		}
+
+		void close() {
+			m_Control.close();
+			try {
+				if (!m_Process.waitFor(10, TimeUnit.SECONDS)) {
+					m_Process.destroyForcibly();
+				}
+			} catch (InterruptedException e) {
+				m_Process.destroyForcibly();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Connection to a worker process, with the neighbours of the last batch
+	 * it searched.
+	 */
+	private static final class Connection {
+
+		private final Socket m_Socket;
+
+		private final ObjectOutputStream m_Out;
+
+		final ObjectInputStream m_In;
+
+		/** Number of neighbours of each query of the last batch. */
+		int m_K;
+
+		/** Rows in the whole training set of the neighbours of the last batch. */
+		int[] m_Rows;
+
+		/** Squared distances of the neighbours of the last batch. */
+		double[] m_Distances;
+
+		/** Outputs of the neighbours of the last batch. */
+		double[] m_Outputs;
+
+		Connection(Socket socket) throws IOException {
+			m_Socket = socket;
+			try {
+				m_Socket.setTcpNoDelay(true);
+				m_Out = new ObjectOutputStream(new BufferedOutputStream(m_Socket.getOutputStream()));
+				m_Out.flush();
+				m_In = new ObjectInputStream(new BufferedInputStream(m_Socket.getInputStream()));
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		void build(String[] options, int firstRow, Instances shard, double[] min, double[] max) throws IOException {
+			m_Out.writeByte(ShardWorker.BUILD);
+			m_Out.writeObject(options);
+			m_Out.writeInt(firstRow);
+			m_Out.writeObject(shard);
+			m_Out.writeObject(min);
+			m_Out.writeObject(max);
+			m_Out.reset();
+			m_Out.flush();
+		}
+
+		void read(String[] options, File file, int classIndex) throws IOException {
+			m_Out.writeByte(ShardWorker.READ);
+			m_Out.writeObject(options);
+			m_Out.writeObject(file);
+			m_Out.writeInt(classIndex);
+			m_Out.reset();
+			m_Out.flush();
+		}
+
+		void buildRead(int firstRow, double[] min, double[] max) throws IOException {
+			m_Out.writeByte(ShardWorker.BUILD_READ);
+			m_Out.writeInt(firstRow);
+			m_Out.writeObject(min);
+			m_Out.writeObject(max);
+			m_Out.reset();
+			m_Out.flush();
+		}
+
+		void search(int count, double[] numeric, int[] nominal) throws IOException {
+			m_Out.writeByte(ShardWorker.SEARCH);
+			m_Out.writeInt(count);
+			m_Out.writeObject(numeric);
+			m_Out.writeObject(nominal);
+			// the arrays are reused by the next batch, so they must be written again
+			m_Out.reset();
+			m_Out.flush();
+		}
+
+		void readReply() throws Exception {
+			Exception failure = (Exception) m_In.readObject();
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+		void readNeighbours() throws Exception {
+			readReply();
+			m_K = m_In.readInt();
+			m_Rows = (int[]) m_In.readObject();
+			m_Distances = (double[]) m_In.readObject();
+			m_Outputs = (double[]) m_In.readObject();
+		}
+
+		void close() {
+			try {
+				m_Out.writeByte(ShardWorker.CLOSE);
+				m_Out.flush();
+			} catch (IOException e) {
+				// the worker has closed the connection already
+			}
+			try {
+				m_Socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package weka.classifiers.lazy;
+
+import java.io.Serializable;
+
+/**
+ * Minimum and maximum of each numerical input over a sliding window of
+ * rows, which are added at the back and evicted from the front. <p>
+ *
+ * Each input keeps two monotonic deques of the rows that may still become
+ * its minimum or maximum: a row is dropped from the back of the minimum
+ * deque as soon as a newer row has a smaller or equal value, so the front of
+ * the deque is always the minimum of the window. Adding and evicting a row
+ * cost O(1) amortised per input.
+ */
+final class SlidingRange implements Serializable {
+
+	/**
+	 * Default serial version
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** Deques of the minimum of each input. */
+	private final MonotonicDeque[] m_Min;
+
+	/** Deques of the maximum of each input. */
+	private final MonotonicDeque[] m_Max;
+
+	/** Number of rows ever added. */
+	private long m_Added;
+
+	/** Number of rows ever evicted. */
+	private long m_Evicted;
+
+	/**
+	 * @param numAttributes number of numerical inputs
+	 * @param capacity largest number of rows in the window
+	 */
+	SlidingRange(int numAttributes, int capacity) {
+		m_Min = new MonotonicDeque[numAttributes];
+		m_Max = new MonotonicDeque[numAttributes];
+		for (int j = 0; j < numAttributes; j++) {
+			m_Min[j] = new MonotonicDeque(capacity, false);
+			m_Max[j] = new MonotonicDeque(capacity, true);
+		}
+	}
+
+	/**
+	 * Adds the newest row to the window.
+	 *
+	 * @param values value of each numerical input of the row
+	 */
+	void add(double[] values) {
+		for (int j = 0; j < m_Min.length; j++) {
+			m_Min[j].add(m_Added, values[j]);
+			m_Max[j].add(m_Added, values[j]);
+		}
+		m_Added++;
+	}
+
+	/**
+	 * Evicts the oldest row from the window.
+	 */
+	void evict() {
+		for (int j = 0; j < m_Min.length; j++) {
+			m_Min[j].evict(m_Evicted);
+			m_Max[j].evict(m_Evicted);
+		}
+		m_Evicted++;
+	}
+
+	/**
+	 * Copies the current minimum and maximum of each input, which are
+	 * undefined while the window is empty.
+	 *
+	 * @param min receives the minimum of each numerical input
+	 * @param max receives the maximum of each numerical input
+	 */
+	void copyRange(double[] min, double[] max) {
+		for (int j = 0; j < m_Min.length; j++) {
+			min[j] = m_Min[j].front();
+			max[j] = m_Max[j].front();
+		}
+	}
+
+	/**
+	 * Values of the rows that may still become the minimum (or maximum) of
+	 * an input, in a ring buffer, with values increasing (or decreasing)
+	 * from the front.
+	 */
+	private static final class MonotonicDeque implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long[] m_Rows;
+
+		private final double[] m_Values;
+
+		private final boolean m_Maximum;
+
+		private int m_Head;
+
+		private int m_Size;
+
+		MonotonicDeque(int capacity, boolean maximum) {
+			m_Rows = new long[capacity];
+			m_Values = new double[capacity];
+			m_Maximum = maximum;
+		}
+
+		void add(long row, double value) {
+			while (m_Size > 0) {
+				double back = m_Values[position(m_Size - 1)];
+				if (m_Maximum ? back > value : back < value) {
+					break;
+				}
+				m_Size--;
+			}
+			int position = position(m_Size++);
+			m_Rows[position] = row;
+			m_Values[position] = value;
+		}
+
+		void evict(long row) {
+			if (m_Size > 0 && m_Rows[m_Head] == row) {
+				m_Head = position(1);
+				m_Size--;
+			}
+		}
+
+		double front() {
+			return m_Values[m_Head];
+		}
+
+		private int position(int i) {
+			int position = m_Head + i;
+			return position < m_Rows.length ? position : position - m_Rows.length;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package weka.classifiers.lazy;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Distance kernel processing several numerical inputs per instruction with
+ * the JDK Vector API, using the widest vectors supported by the processor
+ * (four doubles with AVX2, eight with AVX-512). <p>
+ *
+ * This class must only be loaded through DistanceKernel.vectorised, which
+ * checks that the jdk.incubator.vector module is available.
+ */
+final class VectorDistanceKernel implements DistanceKernel {
+
+	/** Vector shape used by the kernel. */
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	public double squaredDistance(double[] query, double[] data, int offset, int length) {
+		DoubleVector sum = DoubleVector.zero(SPECIES);
+		int j = 0;
+		for (int upper = SPECIES.loopBound(length); j < upper; j += SPECIES.length()) {
+			DoubleVector diff = DoubleVector.fromArray(SPECIES, query, j)
+					.sub(DoubleVector.fromArray(SPECIES, data, offset + j));
+			sum = diff.fma(diff, sum);
+		}
+
+		double result = sum.reduceLanes(VectorOperators.ADD);
+		for (; j < length; j++) {
+			double diff = query[j] - data[offset + j];
+			result += diff * diff;
+		}
+		return result;
+	}
+}
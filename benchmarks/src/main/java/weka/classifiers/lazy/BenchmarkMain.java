@@ -0,0 +1,50 @@
+package weka.classifiers.lazy;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. <p>
+ *
+ * Runs DesharnaisCheck first, and the benchmarks only if MyKnn still gives
+ * the values documented in KnnParent. The arguments are the ones of the JMH
+ * runner, for example: <p>
+ *
+ * java -jar benchmarks/target/benchmarks.jar QueryBenchmark -p size=100000 -p k=5 <p>
+ *
+ * The GC profiler is always added, so that each benchmark reports its
+ * allocation rate (gc.alloc.rate.norm, in bytes per operation) besides its
+ * throughput and the percentiles of its latency.
+ */
+public final class BenchmarkMain {
+
+	private BenchmarkMain() {
+	}
+
+	/**
+	 * Checks MyKnn and runs the benchmarks.
+	 *
+	 * @param args options of the JMH runner
+	 * @throws Exception if the check fails or the benchmarks cannot be run
+	 */
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		if (commandLine.shouldHelp()) {
+			commandLine.showHelp();
+			return;
+		}
+		Options options = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build();
+		Runner runner = new Runner(options);
+		if (commandLine.shouldList()) {
+			runner.list();
+			return;
+		}
+
+		DesharnaisCheck.run();
+		System.out.println("MyKnn gives the values documented in KnnParent");
+		runner.run();
+	}
+}
@@ -0,0 +1,68 @@
+package weka.classifiers.lazy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Benchmark of MyKnn.buildClassifier over synthetic desharnais training
+ * sets (see SyntheticDesharnais) of 1k to 10M instances. The training set
+ * is generated once per trial and left unchanged by the builds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector", "-Xmx12g" })
+public class BuildBenchmark {
+
+	/** Number of training instances. */
+	@Param({ "1000", "10000", "100000", "1000000", "10000000" })
+	public int size;
+
+	/** Mix of numerical and categorical inputs (see SyntheticDesharnais). */
+	@Param({ SyntheticDesharnais.MIX_SCHEMA, SyntheticDesharnais.MIX_NUMERIC, SyntheticDesharnais.MIX_NOMINAL })
+	public String mix;
+
+	/** Options of MyKnn other than -K, such as -I kdtree. */
+	@Param({ "" })
+	public String options;
+
+	private Instances m_TrainingData;
+
+	private MyKnn m_Knn;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		m_TrainingData = new SyntheticDesharnais(mix).generate(size, 1);
+		m_Knn = new MyKnn();
+		m_Knn.setOptions(Utils.splitOptions("-K " + m_Knn.getK() + " " + options));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		m_Knn.close();
+	}
+
+	@Benchmark
+	public MyKnn buildClassifier() throws Exception {
+		m_Knn.buildClassifier(m_TrainingData);
+		return m_Knn;
+	}
+}
@@ -0,0 +1,129 @@
+package weka.classifiers.lazy;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Regression check of MyKnn against the values given in the Javadoc of
+ * KnnParent for the whole desharnais data set, run by BenchmarkMain before
+ * the benchmarks so that a change making MyKnn faster but wrong is not
+ * measured. <p>
+ *
+ * The check builds a 2-NN on the data set and compares the min and max
+ * values, the normalised inputs of the first and last instances, the
+ * distances between the first instance and the first, second and seventh
+ * ones, the 2 nearest neighbours of the first instance and the output
+ * predicted from the first three instances with the documented ones.
+ */
+public final class DesharnaisCheck {
+
+	/** Largest difference allowed with a documented value. */
+	static final double TOLERANCE = 1e-12;
+
+	private static final double[] MIN = { 0.0, 0.0, 82.0, 9.0, 7.0, 73.0, 5.0, 62.0 };
+
+	private static final double[] MAX = { 4.0, 7.0, 88.0, 886.0, 387.0, 1127.0, 52.0, 1116.0 };
+
+	private static final double[] FIRST = { 0.25, 0.5714285714285714, 0.5, 0.2782212086659065, 0.11842105263157894,
+			0.22011385199240988, 0.6170212765957447, 0.22770398481973433 };
+
+	private static final double[] LAST = { 1.0, 0.5714285714285714, 0.5, 1.0, 0.6157894736842106, 1.0,
+			0.6170212765957447, 1.0 };
+
+	private DesharnaisCheck() {
+	}
+
+	/**
+	 * Runs the check.
+	 *
+	 * @param args ignored
+	 * @throws Exception if MyKnn does not give the documented values
+	 */
+	public static void main(String[] args) throws Exception {
+		run();
+		System.out.println("MyKnn gives the values documented in KnnParent");
+	}
+
+	/**
+	 * Runs the check.
+	 *
+	 * @throws Exception if MyKnn does not give the documented values, the
+	 * first difference found being described by the message
+	 */
+	static void run() throws Exception {
+		Instances data = SyntheticDesharnais.desharnais();
+		MyKnn knn = new MyKnn(2);
+		try {
+			knn.buildClassifier(data);
+
+			check("min", knn.min, MIN);
+			check("max", knn.max, MAX);
+
+			Instance first = normalised(knn, data.instance(0));
+			Instance second = normalised(knn, data.instance(1));
+			Instance seventh = normalised(knn, data.instance(6));
+			Instance last = normalised(knn, data.instance(data.numInstances() - 1));
+			check("normalised first instance", numericInputs(first), FIRST);
+			check("normalised last instance", numericInputs(last), LAST);
+
+			check("distance between the first instance and itself", knn.euclideanDistance(first, first), 0.0);
+			check("distance between the first and second instances", knn.euclideanDistance(first, second),
+					0.6764771002541564);
+			check("distance between the first and seventh instances", knn.euclideanDistance(first, seventh),
+					1.160919346197088);
+
+			Instance[] nearest = knn.findNearestNeighbours(first);
+			check("number of nearest neighbours of the first instance", nearest.length, 2);
+			check("output of the nearest neighbour of the first instance", nearest[0].classValue(),
+					data.instance(0).classValue());
+			check("distance to the nearest neighbour of the first instance",
+					knn.euclideanDistance(first, nearest[0]), 0.0);
+			check("output of the second nearest neighbour of the first instance", nearest[1].classValue(), 14434.0);
+
+			Instance[] firstThree = { data.instance(0), data.instance(1), data.instance(2) };
+			check("output predicted from the first three instances", knn.determinePredictedOutput(firstThree), 3864.0);
+		} finally {
+			knn.close();
+		}
+	}
+
+	/**
+	 * @return a normalised copy of an instance
+	 */
+	private static Instance normalised(MyKnn knn, Instance instance) {
+		Instance copy = (Instance) instance.copy();
+		knn.normaliseNumericInputAttributes(copy);
+		return copy;
+	}
+
+	/**
+	 * @return the numerical input values of an instance, in attribute order
+	 */
+	private static double[] numericInputs(Instance instance) {
+		double[] values = new double[instance.numAttributes()];
+		int count = 0;
+		for (int i = 0; i < instance.numAttributes(); i++) {
+			if (instance.attribute(i).isNumeric() && i != instance.classIndex()) {
+				values[count++] = instance.value(i);
+			}
+		}
+		double[] numeric = new double[count];
+		System.arraycopy(values, 0, numeric, 0, count);
+		return numeric;
+	}
+
+	private static void check(String name, double[] actual, double[] expected) throws Exception {
+		if (actual == null || actual.length < expected.length) {
+			throw new Exception(name + ": expected " + expected.length + " values");
+		}
+		for (int i = 0; i < expected.length; i++) {
+			check(name + "[" + i + "]", actual[i], expected[i]);
+		}
+	}
+
+	private static void check(String name, double actual, double expected) throws Exception {
+		if (!(Math.abs(actual - expected) <= TOLERANCE)) {
+			throw new Exception(name + ": expected " + expected + " but was " + actual);
+		}
+	}
+}
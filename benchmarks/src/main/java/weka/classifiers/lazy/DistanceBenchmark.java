@@ -0,0 +1,83 @@
+package weka.classifiers.lazy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Benchmark of MyKnn.euclideanDistance between normalised synthetic
+ * desharnais instances (see SyntheticDesharnais). The cost of a distance
+ * does not depend on the size of the training set, which only sets the
+ * min and max values, so the benchmark is run for each mix of inputs only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class DistanceBenchmark {
+
+	/** Number of instances compared, a power of two. */
+	static final int INSTANCES = 1024;
+
+	/** Mix of numerical and categorical inputs (see SyntheticDesharnais). */
+	@Param({ SyntheticDesharnais.MIX_SCHEMA, SyntheticDesharnais.MIX_NUMERIC, SyntheticDesharnais.MIX_NOMINAL })
+	public String mix;
+
+	private MyKnn m_Knn;
+
+	private Instance[] m_Normalised;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Instances data = new SyntheticDesharnais(mix).generate(INSTANCES, 1);
+		m_Knn = new MyKnn();
+		m_Knn.buildClassifier(data);
+		m_Normalised = new Instance[INSTANCES];
+		for (int i = 0; i < INSTANCES; i++) {
+			m_Normalised[i] = (Instance) data.instance(i).copy();
+			m_Knn.normaliseNumericInputAttributes(m_Normalised[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		m_Knn.close();
+	}
+
+	@Benchmark
+	public double euclideanDistance(Cursor cursor) {
+		int i = cursor.next();
+		return m_Knn.euclideanDistance(m_Normalised[i], m_Normalised[(i + 1) & (INSTANCES - 1)]);
+	}
+
+	/**
+	 * Next pair of instances of a thread.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private int m_Next;
+
+		int next() {
+			m_Next = (m_Next + 1) & (INSTANCES - 1);
+			return m_Next;
+		}
+	}
+}
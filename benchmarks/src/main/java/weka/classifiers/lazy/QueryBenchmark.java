@@ -0,0 +1,109 @@
+package weka.classifiers.lazy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Benchmarks of MyKnn.findNearestNeighbours and MyKnn.classifyInstance over
+ * synthetic desharnais training sets (see SyntheticDesharnais) of 1k to 10M
+ * instances, for several k. <p>
+ *
+ * The queries are QUERIES other synthetic instances, predicted in turn by
+ * each thread, so that the benchmark does not measure a single query whose
+ * neighbours are in the cache. findNearestNeighbours is given the normalised
+ * copies of the queries, as classifyInstance gives it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector", "-Xmx12g" })
+public class QueryBenchmark {
+
+	/** Number of queries, a power of two. */
+	static final int QUERIES = 1024;
+
+	/** Number of training instances. */
+	@Param({ "1000", "10000", "100000", "1000000", "10000000" })
+	public int size;
+
+	/** Number of nearest neighbours. */
+	@Param({ "1", "5", "25" })
+	public int k;
+
+	/** Mix of numerical and categorical inputs (see SyntheticDesharnais). */
+	@Param({ SyntheticDesharnais.MIX_SCHEMA, SyntheticDesharnais.MIX_NUMERIC, SyntheticDesharnais.MIX_NOMINAL })
+	public String mix;
+
+	/** Options of MyKnn other than -K, such as -I kdtree. */
+	@Param({ "" })
+	public String options;
+
+	private MyKnn m_Knn;
+
+	private Instances m_Queries;
+
+	private Instance[] m_Normalised;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		SyntheticDesharnais generator = new SyntheticDesharnais(mix);
+		m_Knn = new MyKnn();
+		m_Knn.setOptions(Utils.splitOptions("-K " + k + " " + options));
+		m_Knn.buildClassifier(generator.generate(size, 1));
+
+		m_Queries = generator.generate(QUERIES, 2);
+		m_Normalised = new Instance[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			m_Normalised[i] = (Instance) m_Queries.instance(i).copy();
+			m_Knn.normaliseNumericInputAttributes(m_Normalised[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		m_Knn.close();
+	}
+
+	@Benchmark
+	public Instance[] findNearestNeighbours(Cursor cursor) {
+		return m_Knn.findNearestNeighbours(m_Normalised[cursor.next()]);
+	}
+
+	@Benchmark
+	public double classifyInstance(Cursor cursor) {
+		return m_Knn.classifyInstance(m_Queries.instance(cursor.next()));
+	}
+
+	/**
+	 * Next query of a thread.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private int m_Next;
+
+		int next() {
+			m_Next = (m_Next + 1) & (QUERIES - 1);
+			return m_Next;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package weka.classifiers.lazy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Load generator of ScoringServer, measuring the sustained requests per
+ * second and the latency percentiles of a server built over a synthetic
+ * desharnais training set (see SyntheticDesharnais). <p>
+ *
+ * The server runs in this JVM and is loaded by closed-loop clients, each
+ * on its own connection and thread (virtual if available), sending its
+ * next request as soon as the previous one is answered. A refused request
+ * is counted, and its client backs off for BACK_OFF microseconds. The run
+ * is repeated with batches of a single request, which predicts each request
+ * on its own as classifyInstance would, and with the micro-batches given by
+ * the options, after a warm-up of each. Options: <p>
+ *
+ * -size &lt;num&gt; number of training instances (default 100000) <br>
+ * -mix &lt;mix&gt; mix of inputs, schema, numeric or nominal (default schema) <br>
+ * -connections &lt;num&gt; number of clients (default 64) <br>
+ * -seconds &lt;num&gt; length of each measured run (default 10) <br>
+ * -warmup &lt;num&gt; length of each warm-up, in seconds (default 5) <br>
+ * -batch-size, -batch-delay, -queue-size: as for ScoringServer <br>
+ * -- options of MyKnn (default -K 5 -block-rows 1024)
+ */
+public final class ScoringLoadGenerator {
+
+	/** Number of distinct queries sent, a power of two. */
+	static final int QUERIES = 4096;
+
+	/** Time a client waits after a refused request, in microseconds. */
+	static final long BACK_OFF = 500;
+
+	private ScoringLoadGenerator() {
+	}
+
+	/**
+	 * Runs the load.
+	 *
+	 * @param args the options
+	 * @throws Exception if the server cannot be built or started
+	 */
+	public static void main(String[] args) throws Exception {
+		String size = Utils.getOption("size", args);
+		String mix = Utils.getOption("mix", args);
+		String connections = Utils.getOption("connections", args);
+		String seconds = Utils.getOption("seconds", args);
+		String warmup = Utils.getOption("warmup", args);
+		String batchSize = Utils.getOption("batch-size", args);
+		String batchDelay = Utils.getOption("batch-delay", args);
+		String queueSize = Utils.getOption("queue-size", args);
+		String[] knnOptions = Utils.partitionOptions(args);
+		if (knnOptions.length == 0) {
+			knnOptions = Utils.splitOptions("-K 5 -block-rows 1024");
+		}
+
+		SyntheticDesharnais generator = new SyntheticDesharnais(mix.length() != 0 ? mix : SyntheticDesharnais.MIX_SCHEMA);
+		MyKnn knn = new MyKnn();
+		knn.setOptions(knnOptions);
+		knn.buildClassifier(generator.generate(size.length() != 0 ? Integer.parseInt(size) : 100000, 1));
+		Instances queries = generator.generate(QUERIES, 2);
+		double[][] values = new double[QUERIES][];
+		for (int i = 0; i < QUERIES; i++) {
+			values[i] = queries.instance(i).toDoubleArray();
+		}
+
+		int numConnections = connections.length() != 0 ? Integer.parseInt(connections) : 64;
+		long measured = TimeUnit.SECONDS.toNanos(seconds.length() != 0 ? Long.parseLong(seconds) : 10);
+		long warmed = TimeUnit.SECONDS.toNanos(warmup.length() != 0 ? Long.parseLong(warmup) : 5);
+		System.out.println("MyKnn " + Utils.joinOptions(knn.getOptions()) + ", " + knn.numTrainingInstances()
+				+ " training instances, " + numConnections + " connections, "
+				+ Runtime.getRuntime().availableProcessors() + " processors");
+		System.out.println(String.format("%-24s %10s %10s %10s %10s %10s %10s", "", "req/s", "mean batch", "p50 us",
+				"p99 us", "max us", "refused"));
+
+		for (int run = 0; run < 2; run++) {
+			try (ScoringServer server = new ScoringServer(knn)) {
+				String name;
+				if (run == 0) {
+					server.setMaxBatchSize(1);
+					server.setMaxBatchDelay(0);
+					name = "one at a time";
+				} else {
+					if (batchSize.length() != 0) {
+						server.setMaxBatchSize(Integer.parseInt(batchSize));
+					}
+					if (batchDelay.length() != 0) {
+						server.setMaxBatchDelay(Long.parseLong(batchDelay));
+					}
+					name = "batches of " + server.getMaxBatchSize() + ", " + server.getMaxBatchDelay() + " us";
+				}
+				if (queueSize.length() != 0) {
+					server.setQueueSize(Integer.parseInt(queueSize));
+				}
+				int port = server.start(0);
+
+				load(port, values, numConnections, warmed, new LatencyHistogram(), new LongAdder());
+				long batches = server.getBatches();
+				long requests = server.getRequests() - server.getRefused();
+				LatencyHistogram latencies = new LatencyHistogram();
+				LongAdder refused = new LongAdder();
+				load(port, values, numConnections, measured, latencies, refused);
+				double meanBatch = (double) (server.getRequests() - server.getRefused() - requests)
+						/ Math.max(1, server.getBatches() - batches);
+
+				System.out.println(String.format("%-24s %10.0f %10.1f %10.1f %10.1f %10.1f %10d", name,
+						latencies.count() / (measured / 1e9), meanBatch, latencies.percentile(0.5) / 1e3,
+						latencies.percentile(0.99) / 1e3, latencies.max() / 1e3, refused.sum()));
+			}
+		}
+		knn.close();
+	}
+
+	/**
+	 * Loads a server with closed-loop clients for some time.
+	 *
+	 * @param latencies receives the latency of each request answered
+	 * @param refused counts the requests refused
+	 */
+	private static void load(int port, double[][] values, int numConnections, long duration,
+			LatencyHistogram latencies, LongAdder refused) throws Exception {
+		long end = System.nanoTime() + duration;
+		ExecutorService clients = ScoringServer.newThreadPerTaskExecutor("ScoringLoadGenerator client");
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int c = 0; c < numConnections; c++) {
+				int first = c * (QUERIES / numConnections + 1);
+				futures.add(clients.submit(() -> {
+					try (ScoringClient client = new ScoringClient(port)) {
+						for (int q = first; System.nanoTime() < end; q++) {
+							long start = System.nanoTime();
+							try {
+								client.predict(values[q & (QUERIES - 1)]);
+								latencies.record(System.nanoTime() - start);
+							} catch (ScoringClient.BusyException e) {
+								refused.increment();
+								LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(BACK_OFF));
+							}
+						}
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			clients.shutdownNow();
+		}
+	}
+}
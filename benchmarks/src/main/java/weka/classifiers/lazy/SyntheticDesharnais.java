@@ -0,0 +1,196 @@
+package weka.classifiers.lazy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Synthetic training sets of any size following the schema of the desharnais
+ * data set, for the benchmarks. <p>
+ *
+ * Each synthetic instance starts from a random instance of the real data
+ * set. Its numerical inputs are moved by Gaussian noise of a tenth of the
+ * standard deviation of their attribute, rounded, as all of them are
+ * integers, and kept within the range of the attribute; its categorical
+ * inputs are copied; and its effort is multiplied by a log-normal factor of
+ * about 10%. The instances thus follow the joint distribution of the real
+ * ones, with few exact duplicates, and the min and max values are the ones
+ * of the real data set. <p>
+ *
+ * The mix of attributes is one of:
+ * <ul>
+ * <li> schema: the 8 numerical inputs and the categorical Language of the
+ * real data set. </li>
+ * <li> numeric: the 8 numerical inputs only. </li>
+ * <li> nominal: TeamExp, ManagerExp and YearEnd, whose values are a few
+ * integers, made categorical, leaving 5 numerical and 4 categorical
+ * inputs. </li>
+ * </ul>
+ */
+final class SyntheticDesharnais {
+
+	/** Real data set, at the root of the class path. */
+	static final String RESOURCE = "/desharnais_edited_nomissing.arff";
+
+	/** Mix of the real data set. */
+	static final String MIX_SCHEMA = "schema";
+
+	/** Mix without categorical inputs. */
+	static final String MIX_NUMERIC = "numeric";
+
+	/** Mix with more categorical than usual inputs. */
+	static final String MIX_NOMINAL = "nominal";
+
+	/** Categorical attribute dropped by MIX_NUMERIC. */
+	private static final String CATEGORICAL = "Language";
+
+	/** Numerical attributes made categorical by MIX_NOMINAL. */
+	private static final String[] NOMINALISED = { "TeamExp", "ManagerExp", "YearEnd" };
+
+	/** Standard deviation of the noise, as a fraction of the one of the attribute. */
+	private static final double NOISE = 0.1;
+
+	/** Real data set the instances are drawn from. */
+	private final Instances m_Real;
+
+	/** Empty data set holding the attributes of the mix. */
+	private final Instances m_Header;
+
+	/** Attribute of the real data set of each attribute of the mix. */
+	private final int[] m_Source;
+
+	/** Standard deviation of each attribute of the real data set. */
+	private final double[] m_StdDev;
+
+	/** Minimum value of each attribute of the real data set. */
+	private final int[] m_Min;
+
+	/** Maximum value of each attribute of the real data set. */
+	private final int[] m_Max;
+
+	/**
+	 * @param mix attributes of the instances, one of the MIX constants
+	 * @throws IOException if the real data set cannot be read
+	 * @throws IllegalArgumentException if the mix is unknown
+	 */
+	SyntheticDesharnais(String mix) throws IOException {
+		if (!MIX_SCHEMA.equals(mix) && !MIX_NUMERIC.equals(mix) && !MIX_NOMINAL.equals(mix)) {
+			throw new IllegalArgumentException("Unknown mix of attributes: " + mix);
+		}
+		m_Real = desharnais();
+		m_StdDev = new double[m_Real.numAttributes()];
+		m_Min = new int[m_Real.numAttributes()];
+		m_Max = new int[m_Real.numAttributes()];
+		for (int a = 0; a < m_Real.numAttributes(); a++) {
+			if (m_Real.attribute(a).isNumeric()) {
+				m_StdDev[a] = Math.sqrt(m_Real.variance(a));
+				m_Min[a] = (int) m_Real.attributeStats(a).numericStats.min;
+				m_Max[a] = (int) m_Real.attributeStats(a).numericStats.max;
+			}
+		}
+
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		List<Integer> source = new ArrayList<Integer>();
+		for (int a = 0; a < m_Real.numAttributes(); a++) {
+			Attribute attribute = m_Real.attribute(a);
+			if (MIX_NUMERIC.equals(mix) && attribute.name().equals(CATEGORICAL)) {
+				continue;
+			}
+			if (MIX_NOMINAL.equals(mix) && isNominalised(attribute)) {
+				List<String> labels = new ArrayList<String>();
+				for (int value = m_Min[a]; value <= m_Max[a]; value++) {
+					labels.add(Integer.toString(value));
+				}
+				attribute = new Attribute(attribute.name(), labels);
+			} else {
+				attribute = attribute.copy(attribute.name());
+			}
+			attributes.add(attribute);
+			source.add(a);
+		}
+		m_Header = new Instances("synthetic-desharnais-" + mix, attributes, 0);
+		m_Header.setClassIndex(m_Header.numAttributes() - 1);
+		m_Source = new int[source.size()];
+		for (int i = 0; i < m_Source.length; i++) {
+			m_Source[i] = source.get(i);
+		}
+	}
+
+	/**
+	 * Reads the real desharnais data set, whose output is the last attribute.
+	 *
+	 * @return the real data set
+	 * @throws IOException if it cannot be read
+	 */
+	static Instances desharnais() throws IOException {
+		InputStream stream = SyntheticDesharnais.class.getResourceAsStream(RESOURCE);
+		if (stream == null) {
+			throw new IOException("Cannot find " + RESOURCE + " on the class path");
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+			Instances data = new Instances(reader);
+			data.setClassIndex(data.numAttributes() - 1);
+			return data;
+		}
+	}
+
+	/**
+	 * @return an empty data set holding the attributes of the mix, shared by
+	 * all instances generated
+	 */
+	Instances header() {
+		return m_Header;
+	}
+
+	/**
+	 * Generates synthetic instances, the same ones for the same seed.
+	 *
+	 * @param numInstances number of instances
+	 * @param seed seed of the random numbers
+	 * @return the instances, whose dataset is a copy of header()
+	 */
+	Instances generate(int numInstances, long seed) {
+		Random random = new Random(seed);
+		Instances data = new Instances(m_Header, numInstances);
+		int classIndex = m_Header.classIndex();
+		for (int i = 0; i < numInstances; i++) {
+			Instance template = m_Real.instance(random.nextInt(m_Real.numInstances()));
+			double[] values = new double[m_Source.length];
+			for (int a = 0; a < m_Source.length; a++) {
+				int source = m_Source[a];
+				double value = template.value(source);
+				if (a == classIndex) {
+					value = Math.rint(value * Math.exp(NOISE * random.nextGaussian()));
+				} else if (m_Real.attribute(source).isNumeric()) {
+					value = Math.rint(value + NOISE * m_StdDev[source] * random.nextGaussian());
+					value = Math.min(m_Max[source], Math.max(m_Min[source], value));
+					if (m_Header.attribute(a).isNominal()) {
+						value -= m_Min[source];
+					}
+				}
+				values[a] = value;
+			}
+			data.add(new DenseInstance(1.0, values));
+		}
+		return data;
+	}
+
+	private static boolean isNominalised(Attribute attribute) {
+		for (String name : NOMINALISED) {
+			if (attribute.name().equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,110 @@
+package weka.classifiers.lazy;
+
+import org.junit.Test;
+
+import weka.core.Instances;
+
+/**
+ * Checks that the blocked distance kernel finds the neighbours of the linear
+ * scan, ties included, for tiles of queries that do not fill a block of
+ * QUERY_BLOCK queries and for blocks of rows of any length, and that batch
+ * predictions through it are those of single predictions.
+ */
+public class BlockedDistanceKernelTest {
+
+	/** Numbers of queries per tile, some of them not multiples of QUERY_BLOCK. */
+	private static final int[] TILE_SIZES = { 1, 3, 4, 5, 9 };
+
+	/** Numbers of rows per block. */
+	private static final int[] BLOCK_ROWS = { 1, 7, 64, Integer.MAX_VALUE };
+
+	@Test
+	public void tilesMatchLinearScan() throws Exception {
+		Instances[] dataSets = KnnTestSupport.dataSets();
+		for (int set = 0; set < dataSets.length; set++) {
+			Instances data = dataSets[set];
+			Instances queries = KnnTestSupport.queries(data, 7, 99 + set, set == 1 ? 5 : 0);
+			for (int k : new int[] { 1, 7, 50 }) {
+				try (MyKnn linear = KnnTestSupport.build(data, "-K " + k)) {
+					KnnModel model = linear.m_Model;
+					BlockedDistanceKernel kernel = new BlockedDistanceKernel(model);
+					for (int tileSize : TILE_SIZES) {
+						for (int blockRows : BLOCK_ROWS) {
+							String message = "data set " + set + ", k=" + k + ", tile " + tileSize + ", block "
+									+ blockRows;
+							checkTiles(message, linear, kernel, queries, Math.min(k, model.m_NumRows), tileSize,
+									blockRows);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void batchMatchesSinglePredictions() throws Exception {
+		Instances[] dataSets = KnnTestSupport.dataSets();
+		for (int set = 0; set < dataSets.length; set++) {
+			Instances data = dataSets[set];
+			Instances queries = KnnTestSupport.queries(data, 3, 199 + set, set == 1 ? 5 : 0);
+			for (int k : new int[] { 1, 5, 30 }) {
+				try (MyKnn linear = KnnTestSupport.build(data, "-K " + k)) {
+					double[] expected = KnnTestSupport.predictions(linear, queries);
+					for (String options : new String[] { "-batch-gemm", "-batch-gemm -block-rows 13", "-block-rows 16" }) {
+						try (MyKnn knn = KnnTestSupport.build(data, options + " -K " + k)) {
+							KnnTestSupport.assertSamePredictions(options + ", data set " + set + ", k=" + k, expected,
+									knn.classifyInstances(queries));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Searches the queries tile by tile with the kernel, over the two ranges
+	 * of the ring as BatchClassifyTask does, and compares each of them with
+	 * the linear scan.
+	 */
+	private static void checkTiles(String message, MyKnn linear, BlockedDistanceKernel kernel, Instances queries,
+			int k, int tileSize, int blockRows) {
+		KnnModel model = linear.m_Model;
+		KnnQuery[] tile = new KnnQuery[tileSize];
+		for (int t = 0; t < tileSize; t++) {
+			tile[t] = new KnnQuery(model.m_Layout, k);
+		}
+		int[] mismatches = new int[tileSize * Math.min(blockRows, model.m_NumRows)];
+		for (int first = 0; first < queries.numInstances(); first += tileSize) {
+			int size = Math.min(tileSize, queries.numInstances() - first);
+			for (int t = 0; t < size; t++) {
+				model.normaliseInputs(queries.instance(first + t), tile[t]);
+				tile[t].m_Candidates.reset(k);
+			}
+			search(kernel, tile, size, model.m_Start, model.firstEnd(), blockRows, mismatches);
+			search(kernel, tile, size, 0, model.secondEnd(), blockRows, mismatches);
+			for (int t = 0; t < size; t++) {
+				NeighbourCandidates candidates = tile[t].m_Candidates;
+				candidates.sort();
+				int[] rows = new int[candidates.size()];
+				double[] distances = new double[candidates.size()];
+				for (int i = 0; i < rows.length; i++) {
+					rows[i] = candidates.row(i);
+					distances[i] = candidates.distance(i);
+				}
+				KnnTestSupport.assertSameNeighbours(message + ", query " + (first + t),
+						KnnTestSupport.neighbours(linear, queries.instance(first + t)),
+						new KnnTestSupport.Neighbours(rows, distances));
+			}
+		}
+	}
+
+	private static void search(BlockedDistanceKernel kernel, KnnQuery[] tile, int size, int begin, int end,
+			int blockRows, int[] mismatches) {
+		int blockBegin = begin;
+		while (blockBegin < end) {
+			int blockEnd = end - blockBegin > blockRows ? blockBegin + blockRows : end;
+			kernel.search(tile, size, blockBegin, blockEnd, mismatches);
+			blockBegin = blockEnd;
+		}
+	}
+}
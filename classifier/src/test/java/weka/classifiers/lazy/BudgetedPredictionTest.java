@@ -0,0 +1,143 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import weka.core.Instances;
+
+/**
+ * Checks the predictions made within a budget: without a limit they are the
+ * ones of classifyInstance and exact; whenever one is reported exact, it is
+ * the prediction of the full search, for every exact search structure,
+ * which computes no more distances than its budget, or than it needs to
+ * find k candidates; and the approximate searches are never reported
+ * exact. The results of short time budgets are checked as far as they are
+ * reported exact.
+ */
+public class BudgetedPredictionTest {
+
+	/** Exact search structures. */
+	private static final String[] INDEXES = { "", "-I kdtree", "-I balltree", "-I partition", "-I pivot" };
+
+	/** Number of neighbours averaged. */
+	private static final int K = 5;
+
+	/** Evaluation budgets checked, from not even k to about a tenth of the rows. */
+	private static final int[] EVALUATION_BUDGETS = { 1, K, 20, 100, 500 };
+
+	/** Time budgets checked, in nanoseconds. */
+	private static final long[] TIME_BUDGETS = { 1, 20000, 200000 };
+
+	@Test
+	public void unlimitedBudgetMatchesClassifyInstance() throws Exception {
+		Instances data = KnnTestSupport.random(101, 4000, 4, 2, 0);
+		Instances queries = KnnTestSupport.queries(data, 37, 102, 0);
+		for (String index : INDEXES) {
+			String options = index + " -K " + K;
+			try (MyKnn knn = KnnTestSupport.build(data, options)) {
+				double[] expected = KnnTestSupport.predictions(knn, queries);
+				for (int i = 0; i < queries.numInstances(); i++) {
+					for (long timeBudget : new long[] { 0, Long.MAX_VALUE }) {
+						for (int evaluationBudget : new int[] { 0, Integer.MAX_VALUE }) {
+							BudgetedPrediction prediction = knn.classifyInstance(queries.instance(i), timeBudget,
+									evaluationBudget);
+							String message = options + ", query " + i + ", " + prediction;
+							assertTrue(message, prediction.isExact());
+							assertFalse(message, prediction.isOverrun());
+							assertEquals(message, Double.doubleToLongBits(expected[i]),
+									Double.doubleToLongBits(prediction.getPrediction()));
+						}
+					}
+				}
+
+				// a budget of centuries in microseconds, which overflowed to 1 microsecond in nanoseconds
+				knn.setTimeBudget((1L << 61) + 1);
+				KnnTestSupport.assertSamePredictions(options + ", long time budget", expected,
+						KnnTestSupport.predictions(knn, queries));
+			}
+		}
+	}
+
+	@Test
+	public void exactPredictionsMatchFullSearch() throws Exception {
+		Instances[] dataSets = { KnnTestSupport.random(103, 5000, 4, 2, 0), KnnTestSupport.random(104, 3000, 3, 2, 5) };
+		for (int set = 0; set < dataSets.length; set++) {
+			Instances data = dataSets[set];
+			Instances queries = KnnTestSupport.queries(data, 41, 105 + set, set == 1 ? 5 : 0);
+			for (String index : INDEXES) {
+				String options = index + " -K " + K;
+				try (MyKnn knn = KnnTestSupport.build(data, options)) {
+					double[] expected = KnnTestSupport.predictions(knn, queries);
+					int exact = 0;
+					int approximate = 0;
+					// the linear scan is only exact with a budget of every row
+					int[] evaluationBudgets = Arrays.copyOf(EVALUATION_BUDGETS, EVALUATION_BUDGETS.length + 1);
+					evaluationBudgets[EVALUATION_BUDGETS.length] = data.numInstances();
+					for (int i = 0; i < queries.numInstances(); i++) {
+						for (int evaluationBudget : evaluationBudgets) {
+							BudgetedPrediction prediction = knn.classifyInstance(queries.instance(i), 0, evaluationBudget);
+							if (prediction.isExact()) {
+								exact++;
+								assertEquals(options + ", data set " + set + ", query " + i + ", " + prediction,
+										Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(prediction.getPrediction()));
+							} else {
+								approximate++;
+							}
+						}
+						for (long timeBudget : TIME_BUDGETS) {
+							BudgetedPrediction prediction = knn.classifyInstance(queries.instance(i), timeBudget, 0);
+							if (prediction.isExact()) {
+								assertEquals(options + ", data set " + set + ", query " + i + ", " + prediction,
+										Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(prediction.getPrediction()));
+							}
+						}
+					}
+					// a budget of 1 distance stops every search, one of every row none
+					assertTrue(options + ", data set " + set, exact > 0);
+					assertTrue(options + ", data set " + set, approximate > 0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void evaluationBudgetIsKept() throws Exception {
+		Instances data = KnnTestSupport.random(107, 5000, 4, 2, 0);
+		Instances queries = KnnTestSupport.queries(data, 41, 108, 0);
+		// the HNSW search is bounded by its breadth rather than by the budget
+		for (String index : INDEXES) {
+			String options = index + " -K " + K;
+			try (MyKnn knn = KnnTestSupport.build(data, options)) {
+				for (int i = 0; i < queries.numInstances(); i++) {
+					for (int evaluationBudget : EVALUATION_BUDGETS) {
+						BudgetedPrediction prediction = knn.classifyInstance(queries.instance(i), 0, evaluationBudget);
+						assertTrue(options + ", budget " + evaluationBudget + ", query " + i + ", " + prediction,
+								prediction.getDistanceEvaluations() <= Math.max(evaluationBudget, K));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void approximateSearchesAreNeverExact() throws Exception {
+		Instances data = KnnTestSupport.random(109, 2000, 4, 1, 0);
+		Instances queries = KnnTestSupport.queries(data, 23, 110, 0);
+		for (String options : new String[] { "-I hnsw -search-breadth 2000", "-quantise int8 -no-rerank",
+				"-I kdtree -quantise int16 -no-rerank" }) {
+			try (MyKnn knn = KnnTestSupport.build(data, options + " -K " + K)) {
+				for (int i = 0; i < queries.numInstances(); i++) {
+					for (int evaluationBudget : new int[] { 0, 50 }) {
+						BudgetedPrediction prediction = knn.classifyInstance(queries.instance(i), 0, evaluationBudget);
+						assertFalse(options + ", query " + i + ", " + prediction, prediction.isExact());
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package weka.classifiers.lazy;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Checks that a classifier built straight from an ARFF file finds the
+ * neighbours of the classifier built from the instances of the file, ties
+ * included, for several search structures, a window and rows held outside
+ * the heap.
+ */
+public class BuildFromFileTest {
+
+	/** Options of the configurations built both ways. */
+	private static final String[] CONFIGURATIONS = { "-K 1", "-K 7", "-K 1000", "-I kdtree -K 5", "-I pivot -K 5",
+			"-off-heap -K 5", "-W 100 -K 5" };
+
+	@Rule
+	public TemporaryFolder m_Folder = new TemporaryFolder();
+
+	@Test
+	public void fileMatchesInstances() throws Exception {
+		Instances[] dataSets = KnnTestSupport.dataSets();
+		for (int set = 0; set < dataSets.length; set++) {
+			// ARFF holds 6 decimals, so the instances are rounded to match the file
+			Instances data = rounded(dataSets[set]);
+			check("data set " + set, data, KnnTestSupport.queries(data, 7, 599 + set, 0), -1);
+		}
+	}
+
+	@Test
+	public void classInTheMiddle() throws Exception {
+		Instances data = KnnTestSupport.desharnais();
+		data.setClassIndex(2);
+		check("class 2", data, data, 2);
+	}
+
+	private void check(String message, Instances data, Instances queries, int classIndex) throws Exception {
+		File file = m_Folder.newFile("data.arff");
+		try (Writer out = new FileWriter(file)) {
+			out.write(data.toString());
+		}
+		for (String options : CONFIGURATIONS) {
+			try (MyKnn expected = KnnTestSupport.build(data, options); MyKnn actual = new MyKnn()) {
+				actual.setOptions(Utils.splitOptions(options));
+				actual.buildClassifier(file, classIndex);
+				KnnTestSupport.assertSameNeighbours(message + ", " + options, expected, actual, queries);
+				KnnTestSupport.assertSamePredictions(message + ", " + options,
+						KnnTestSupport.predictions(expected, queries), KnnTestSupport.predictions(actual, queries));
+			}
+		}
+		file.delete();
+	}
+
+	private static Instances rounded(Instances data) {
+		Instances rounded = new Instances(data);
+		for (Instance instance : rounded) {
+			for (int j = 0; j < rounded.numAttributes(); j++) {
+				if (rounded.attribute(j).isNumeric()) {
+					instance.setValue(j, Utils.roundDouble(instance.value(j), 4));
+				}
+			}
+		}
+		return rounded;
+	}
+}
@@ -0,0 +1,139 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Checks that many threads predicting with a shared MyKnn, while another
+ * thread updates it, get the predictions of a single thread and leave the
+ * instances unchanged. <p>
+ *
+ * The updates add copies of training instances with another value of a
+ * categorical input that all the training instances and queries share.
+ * They do not change the ranges, and are at a squared distance of at least
+ * 1 from every query, further than its k-th nearest neighbour, so they
+ * never become neighbours and the predictions are the same before, during
+ * and after the updates.
+ */
+public class ConcurrentPredictionTest {
+
+	/** Number of threads predicting at once. */
+	private static final int THREADS = 8;
+
+	/** Number of passes of each thread over the queries. */
+	private static final int PASSES = 5;
+
+	/** Categorical input shared by the training instances and the queries. */
+	private static final int SHARED = 6;
+
+	@Test
+	public void linearScan() throws Exception {
+		check("");
+	}
+
+	@Test
+	public void kdTree() throws Exception {
+		check("-I kdtree");
+	}
+
+	@Test
+	public void cached() throws Exception {
+		check("-cache-size 64");
+	}
+
+	private static void check(String options) throws Exception {
+		Instances data = KnnTestSupport.random(21, 3000, 4, 3, 0);
+		Instances queries = KnnTestSupport.queries(data, 13, 22, 0);
+		for (Instance instance : data) {
+			instance.setValue(SHARED, 0);
+		}
+		for (Instance instance : queries) {
+			instance.setValue(SHARED, 0);
+		}
+		Instances originals = new Instances(queries);
+		try (MyKnn knn = KnnTestSupport.build(data, options + " -K 5")) {
+			double[] expected = KnnTestSupport.predictions(knn, queries);
+			for (Instance query : queries) {
+				NeighbourCandidates candidates = knn.findNearestRows(normalised(knn, query)).m_Candidates;
+				assertTrue(candidates.distance(candidates.size() - 1) < 1);
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+			try {
+				CountDownLatch start = new CountDownLatch(1);
+				List<Future<double[]>> predictions = new ArrayList<Future<double[]>>();
+				for (int t = 0; t < THREADS; t++) {
+					int offset = t;
+					predictions.add(executor.submit(new Callable<double[]>() {
+						@Override
+						public double[] call() throws Exception {
+							start.await();
+							double[] predicted = new double[queries.numInstances()];
+							for (int pass = 0; pass < PASSES; pass++) {
+								// each thread visits the queries in its own order
+								for (int n = 0; n < predicted.length; n++) {
+									int i = (n + offset * 17) % predicted.length;
+									double prediction = knn.classifyInstance(queries.instance(i));
+									if (pass > 0 && Double.doubleToLongBits(prediction) != Double
+											.doubleToLongBits(predicted[i])) {
+										throw new AssertionError("query " + i + " changed between passes");
+									}
+									predicted[i] = prediction;
+								}
+							}
+							return predicted;
+						}
+					}));
+				}
+				Future<?> updates = executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						for (int i = 0; i < data.numInstances(); i += 3) {
+							Instance copy = (Instance) data.instance(i).copy();
+							copy.setValue(SHARED, 1);
+							knn.updateClassifier(copy);
+						}
+						return null;
+					}
+				});
+				start.countDown();
+
+				updates.get();
+				for (int t = 0; t < THREADS; t++) {
+					KnnTestSupport.assertSamePredictions(options + ", thread " + t, expected, predictions.get(t).get());
+				}
+			} finally {
+				executor.shutdown();
+			}
+
+			KnnTestSupport.assertSamePredictions(options + ", after the updates", expected,
+					KnnTestSupport.predictions(knn, queries));
+			assertEquals(data.numInstances() + (data.numInstances() + 2) / 3, knn.m_Model.m_NumRows);
+			for (int i = 0; i < queries.numInstances(); i++) {
+				assertArrayEquals("query " + i + " left unchanged", originals.instance(i).toDoubleArray(),
+						queries.instance(i).toDoubleArray(), 0);
+			}
+		}
+	}
+
+	private static Instance normalised(MyKnn knn, Instance instance) {
+		Instance copy = (Instance) instance.copy();
+		knn.normaliseNumericInputAttributes(copy);
+		return copy;
+	}
+}
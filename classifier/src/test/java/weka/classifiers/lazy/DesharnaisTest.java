@@ -0,0 +1,92 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Checks MyKnn against the values given in the Javadoc of KnnParent for the
+ * desharnais data set, as DesharnaisCheck does before the benchmarks, and
+ * checks that every search structure, distance kernel and the prediction
+ * cache give the neighbours and predictions of the linear scan on it.
+ */
+public class DesharnaisTest {
+
+	/** Largest difference allowed with a documented value. */
+	private static final double TOLERANCE = 1e-12;
+
+	private static final double[] MIN = { 0.0, 0.0, 82.0, 9.0, 7.0, 73.0, 5.0, 62.0 };
+
+	private static final double[] MAX = { 4.0, 7.0, 88.0, 886.0, 387.0, 1127.0, 52.0, 1116.0 };
+
+	/** Options of the configurations compared with the linear scan. */
+	private static final String[] CONFIGURATIONS = { "-I kdtree", "-I balltree", "-I partition", "-I pivot",
+			"-I pivot -pivot-selection random", "-simd", "-block-rows 16", "-batch-gemm", "-off-heap",
+			"-quantise float32", "-quantise int8", "-cache-size 64", "-num-threads 1" };
+
+	private static Instances s_Data;
+
+	@BeforeClass
+	public static void readData() throws Exception {
+		s_Data = KnnTestSupport.desharnais();
+	}
+
+	@Test
+	public void documentedValues() throws Exception {
+		try (MyKnn knn = new MyKnn(2)) {
+			knn.buildClassifier(s_Data);
+			assertArrayEquals(MIN, Arrays.copyOf(knn.min, MIN.length), TOLERANCE);
+			assertArrayEquals(MAX, Arrays.copyOf(knn.max, MAX.length), TOLERANCE);
+
+			Instance first = normalised(knn, s_Data.instance(0));
+			Instance second = normalised(knn, s_Data.instance(1));
+			Instance seventh = normalised(knn, s_Data.instance(6));
+			assertEquals(0.0, knn.euclideanDistance(first, first), TOLERANCE);
+			assertEquals(0.6764771002541564, knn.euclideanDistance(first, second), TOLERANCE);
+			assertEquals(1.160919346197088, knn.euclideanDistance(first, seventh), TOLERANCE);
+
+			Instance[] nearest = knn.findNearestNeighbours(first);
+			assertEquals(2, nearest.length);
+			assertEquals(s_Data.instance(0).classValue(), nearest[0].classValue(), 0);
+			assertEquals(14434.0, nearest[1].classValue(), 0);
+
+			Instance[] firstThree = { s_Data.instance(0), s_Data.instance(1), s_Data.instance(2) };
+			assertEquals(3864.0, knn.determinePredictedOutput(firstThree), TOLERANCE);
+		}
+	}
+
+	@Test
+	public void configurationsMatchLinearScan() throws Exception {
+		for (int k : new int[] { 1, 2, 5, 20 }) {
+			try (MyKnn linear = KnnTestSupport.build(s_Data, "-K " + k)) {
+				double[] expected = KnnTestSupport.predictions(linear, s_Data);
+				for (String options : CONFIGURATIONS) {
+					try (MyKnn knn = KnnTestSupport.build(s_Data, options + " -K " + k)) {
+						String message = options + ", k=" + k;
+						KnnTestSupport.assertSameNeighbours(message, linear, knn, s_Data);
+						KnnTestSupport.assertSamePredictions(message + ", single", expected,
+								KnnTestSupport.predictions(knn, s_Data));
+						KnnTestSupport.assertSamePredictions(message + ", batch", expected,
+								knn.classifyInstances(s_Data));
+						// again, from the cache if there is one
+						KnnTestSupport.assertSamePredictions(message + ", repeated", expected,
+								KnnTestSupport.predictions(knn, s_Data));
+					}
+				}
+			}
+		}
+	}
+
+	private static Instance normalised(MyKnn knn, Instance instance) {
+		Instance copy = (Instance) instance.copy();
+		knn.normaliseNumericInputAttributes(copy);
+		return copy;
+	}
+}
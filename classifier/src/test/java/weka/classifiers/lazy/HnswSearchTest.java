@@ -0,0 +1,128 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import weka.core.Instances;
+
+/**
+ * Checks the recall of the HNSW graph against the linear scan at fixed
+ * breadths, the links of the graph, and the graph kept under a sliding
+ * window, where rows are removed, including the entry point, and added
+ * again.
+ */
+public class HnswSearchTest {
+
+	/** Options of the graphs checked. */
+	private static final String GRAPH = "-I hnsw -max-connections 8 -construction-breadth 40 -K 10";
+
+	/** Search breadths checked, with the smallest recall of each. */
+	private static final int[] BREADTHS = { 10, 20, 50 };
+
+	private static final double[] RECALL_FLOORS = { 0.88, 0.93, 0.96 };
+
+	/** Smallest recall at breadth 50 after the window slid over all rows. */
+	private static final double WINDOW_RECALL_FLOOR = 0.94;
+
+	@Test
+	public void recallAtFixedBreadths() throws Exception {
+		Instances data = KnnTestSupport.random(61, 10000, 8, 1, 0);
+		Instances queries = KnnTestSupport.random(62, 300, 8, 1, 0);
+		try (MyKnn knn = KnnTestSupport.build(data, GRAPH + " -search-breadth " + BREADTHS[0])) {
+			checkLinks(knn);
+			double previous = 0;
+			for (int b = 0; b < BREADTHS.length; b++) {
+				// changed on the built graph
+				knn.setSearchBreadth(BREADTHS[b]);
+				double recall = knn.recall(queries);
+				assertTrue("breadth " + BREADTHS[b] + ": recall " + recall, recall >= RECALL_FLOORS[b]);
+				assertTrue("breadth " + BREADTHS[b], recall >= previous);
+				previous = recall;
+			}
+			knn.setSearchBreadth(data.numInstances());
+			assertEquals(1, knn.recall(queries), 0.002);
+		}
+	}
+
+	@Test
+	public void foundRowsAreExact() throws Exception {
+		Instances data = KnnTestSupport.random(63, 3000, 4, 2, 0);
+		Instances queries = KnnTestSupport.random(64, 100, 4, 2, 0);
+		try (MyKnn linear = KnnTestSupport.build(data, "-K 10");
+				MyKnn knn = KnnTestSupport.build(data, GRAPH + " -search-breadth " + data.numInstances())) {
+			// a breadth of all rows explores the whole connected graph
+			KnnTestSupport.assertSameNeighbours("full breadth", linear, knn, queries);
+		}
+	}
+
+	@Test
+	public void slidingWindowKeepsRecall() throws Exception {
+		Instances data = KnnTestSupport.random(65, 8000, 8, 1, 0);
+		Instances queries = KnnTestSupport.random(66, 200, 8, 1, 0);
+		int window = 2000;
+		try (MyKnn knn = KnnTestSupport.build(new Instances(data, 0, window),
+				GRAPH + " -search-breadth 50 -W " + window)) {
+			HnswSearch search = (HnswSearch) knn.m_Search;
+			int evictedEntries = 0;
+			for (int i = window; i < data.numInstances(); i++) {
+				int entry = search.entryPoint();
+				knn.updateClassifier(data.instance(i));
+				// the search is rebuilt once as many rows were removed as the model holds
+				search = (HnswSearch) knn.m_Search;
+				if (search.level(entry) < 0 || search.entryPoint() != entry) {
+					evictedEntries++;
+				}
+				checkEntryPoint(knn, search);
+				if (i % 1500 == 0) {
+					checkLinks(knn);
+				}
+			}
+			assertTrue("entry point evicted " + evictedEntries + " times", evictedEntries > 0);
+			checkLinks(knn);
+			double recall = knn.recall(queries);
+			assertTrue("recall " + recall, recall >= WINDOW_RECALL_FLOOR);
+		}
+	}
+
+	/**
+	 * Asserts that the entry point is a live row of the highest layer of the
+	 * live rows.
+	 */
+	private static void checkEntryPoint(MyKnn knn, HnswSearch search) {
+		KnnModel model = knn.m_Model;
+		int topLevel = -1;
+		for (int i = 0; i < model.m_NumRows; i++) {
+			topLevel = Math.max(topLevel, search.level(model.slot(i)));
+		}
+		int entry = search.entryPoint();
+		assertTrue("entry point " + entry, entry >= 0);
+		assertEquals(topLevel, search.level(entry));
+	}
+
+	/**
+	 * Asserts that every live row is in the graph, with no link to itself,
+	 * no link repeated and, on the upper layers, only links to rows on the
+	 * layer; links on layer 0 may point to slots freed since.
+	 */
+	private static void checkLinks(MyKnn knn) {
+		KnnModel model = knn.m_Model;
+		HnswSearch search = (HnswSearch) knn.m_Search;
+		for (int i = 0; i < model.m_NumRows; i++) {
+			int row = model.slot(i);
+			int level = search.level(row);
+			assertTrue("row " + row + " in the graph", level >= 0);
+			for (int l = 0; l <= level; l++) {
+				int[] links = search.links(row, l);
+				for (int a = 0; a < links.length; a++) {
+					assertFalse("row " + row + " linked to itself on layer " + l, links[a] == row);
+					for (int b = a + 1; b < links.length; b++) {
+						assertFalse("row " + row + " linked twice to " + links[a], links[a] == links[b]);
+					}
+				}
+			}
+		}
+	}
+}
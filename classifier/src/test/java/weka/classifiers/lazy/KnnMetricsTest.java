@@ -0,0 +1,109 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+/**
+ * Checks that only the classifier metrics were turned on for publishes an
+ * MBean, not its copies nor the classifiers opened from its model file, and
+ * that the MBean is removed when the classifier is rebuilt, closed or
+ * garbage collected.
+ */
+public class KnnMetricsTest {
+
+	/** Names of the MBeans of all the classifiers. */
+	private static final String PATTERN = "weka.classifiers.lazy:type=MyKnn,*";
+
+	/** Longest time a garbage collected classifier may keep its MBean, in milliseconds. */
+	private static final long GC_TIMEOUT = 30000;
+
+	@Rule
+	public TemporaryFolder m_Folder = new TemporaryFolder();
+
+	@Test
+	public void copiesDoNotPublish() throws Exception {
+		Instances data = KnnTestSupport.random(41, 500, 3, 1, 0);
+		int before = published();
+		MyKnn knn = KnnTestSupport.build(data, "-metrics -K 3");
+		try {
+			ObjectName name = knn.metrics().name();
+			assertNotNull(name);
+			assertEquals(before + 1, published());
+
+			Classifier[] copies = AbstractClassifier.makeCopies(knn, 3);
+			for (Classifier copy : copies) {
+				copy.buildClassifier(data);
+				assertFalse(((MyKnn) copy).getCollectMetrics());
+				assertNull(((MyKnn) copy).getMetrics());
+			}
+			assertEquals(before + 1, published());
+			for (Classifier copy : copies) {
+				((MyKnn) copy).close();
+			}
+
+			File file = m_Folder.newFile();
+			knn.writeModel(file);
+			try (MyKnn opened = MyKnn.openModel(file)) {
+				assertNull(opened.getMetrics());
+				assertEquals(before + 1, published());
+			}
+
+			// the metrics of the previous model are replaced
+			knn.buildClassifier(data);
+			assertFalse(server().isRegistered(name));
+			assertEquals(before + 1, published());
+			assertEquals(1, knn.getMetrics().getBuilds());
+		} finally {
+			knn.close();
+		}
+		assertEquals(before, published());
+	}
+
+	@Test
+	public void droppedClassifierIsUnpublished() throws Exception {
+		int before = published();
+		buildAndDrop(KnnTestSupport.random(42, 500, 3, 1, 0));
+		assertEquals(before + 1, published());
+		long deadline = System.currentTimeMillis() + GC_TIMEOUT;
+		while (published() > before && System.currentTimeMillis() < deadline) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertEquals(before, published());
+	}
+
+	/**
+	 * Builds a classifier collecting metrics and leaves it reachable only
+	 * from its MBean, without closing it.
+	 */
+	private static void buildAndDrop(Instances data) throws Exception {
+		MyKnn knn = KnnTestSupport.build(data, "-K 3");
+		knn.setCollectMetrics(true);
+		knn.classifyInstance(data.instance(0));
+		assertEquals(1, knn.getMetrics().getQueries());
+	}
+
+	private static MBeanServer server() {
+		return ManagementFactory.getPlatformMBeanServer();
+	}
+
+	private static int published() throws Exception {
+		return server().queryNames(new ObjectName(PATTERN), null).size();
+	}
+}
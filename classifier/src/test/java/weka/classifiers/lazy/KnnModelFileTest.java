@@ -0,0 +1,91 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Checks that a classifier written with writeModel and opened with openModel
+ * finds the neighbours of the classifier written, ties included, and of the
+ * linear scan, for every exact search structure.
+ */
+public class KnnModelFileTest {
+
+	/** Options of the configurations written. */
+	private static final String[] CONFIGURATIONS = { "", "-I kdtree", "-I balltree", "-I partition", "-I pivot",
+			"-simd" };
+
+	@Rule
+	public TemporaryFolder m_Folder = new TemporaryFolder();
+
+	@Test
+	public void openedMatchesWritten() throws Exception {
+		Instances[] dataSets = KnnTestSupport.dataSets();
+		for (int set = 0; set < dataSets.length; set++) {
+			Instances data = dataSets[set];
+			Instances queries = KnnTestSupport.queries(data, 7, 499 + set, set == 1 ? 5 : 0);
+			for (int k : new int[] { 1, 7, 1000 }) {
+				try (MyKnn linear = KnnTestSupport.build(data, "-K " + k)) {
+					double[] expected = KnnTestSupport.predictions(linear, queries);
+					for (String options : CONFIGURATIONS) {
+						String message = options + ", data set " + set + ", k=" + k;
+						File file = m_Folder.newFile();
+						try (MyKnn written = KnnTestSupport.build(data, options + " -K " + k)) {
+							written.writeModel(file);
+						}
+						try (MyKnn opened = MyKnn.openModel(file)) {
+							assertTrue(opened.m_Model.isReadOnly());
+							KnnTestSupport.assertSameNeighbours(message, linear, opened, queries);
+							KnnTestSupport.assertSamePredictions(message + ", single", expected,
+									KnnTestSupport.predictions(opened, queries));
+							KnnTestSupport.assertSamePredictions(message + ", batch", expected,
+									opened.classifyInstances(queries));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void openedMatchesUpdatedWindow() throws Exception {
+		// continuous inputs, so that rebasing the weighted rows when they are
+		// written cannot swap two neighbours
+		Instances data = KnnTestSupport.random(18, 2000, 4, 2, 0);
+		Instances queries = KnnTestSupport.queries(data, 19, 19, 0);
+		for (String options : new String[] { "", "-I kdtree " }) {
+			File file = m_Folder.newFile();
+			try (MyKnn updated = KnnTestSupport.build(new Instances(data, 0, 100), options + "-W 600 -K 5")) {
+				for (int i = 100; i < data.numInstances(); i++) {
+					updated.updateClassifier(data.instance(i));
+				}
+				updated.writeModel(file);
+				try (MyKnn opened = MyKnn.openModel(file)) {
+					KnnModel model = updated.m_Model;
+					assertEquals(model.m_NumRows, opened.m_Model.m_NumRows);
+					for (int i = 0; i < queries.numInstances(); i++) {
+						Instance query = queries.instance(i);
+						KnnTestSupport.Neighbours expected = KnnTestSupport.neighbours(updated, query);
+						KnnTestSupport.Neighbours actual = KnnTestSupport.neighbours(opened, query);
+						for (int n = 0; n < expected.m_Rows.length; n++) {
+							// the rows are written from the oldest to the newest
+							assertEquals(options + "query " + i, expected.m_Rows[n], model.slot(actual.m_Rows[n]));
+							assertEquals(options + "query " + i, expected.m_Distances[n], actual.m_Distances[n],
+									1e-12 * (1 + expected.m_Distances[n]));
+						}
+						assertEquals(options + "query " + i, updated.classifyInstance(query), opened.classifyInstance(query),
+								1e-9);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Data sets and assertions shared by the tests: the desharnais data set,
+ * seeded random data sets, and the comparison of the nearest neighbours
+ * found by two classifiers, row by row and distance by distance, so that the
+ * order of the neighbours at equal distances is compared too.
+ */
+final class KnnTestSupport {
+
+	/** Desharnais data set, at the root of the test class path. */
+	static final String DESHARNAIS = "/desharnais_edited_nomissing.arff";
+
+	private KnnTestSupport() {
+	}
+
+	/**
+	 * Nearest neighbours of a query: their rows in the compact model and
+	 * their squared distances, nearest first.
+	 */
+	static final class Neighbours {
+
+		final int[] m_Rows;
+
+		final double[] m_Distances;
+
+		Neighbours(int[] rows, double[] distances) {
+			m_Rows = rows;
+			m_Distances = distances;
+		}
+
+		@Override
+		public String toString() {
+			return "rows " + Arrays.toString(m_Rows) + " distances " + Arrays.toString(m_Distances);
+		}
+	}
+
+	/**
+	 * @return the desharnais data set, with its last attribute as class
+	 * @throws Exception if the data set cannot be read
+	 */
+	static Instances desharnais() throws Exception {
+		try (InputStream in = KnnTestSupport.class.getResourceAsStream(DESHARNAIS)) {
+			Instances data = new DataSource(in).getDataSet();
+			data.setClassIndex(data.numAttributes() - 1);
+			return data;
+		}
+	}
+
+	/**
+	 * Generates a data set of Gaussian numerical inputs, categorical inputs
+	 * of 3 values and a numerical class as last attribute.
+	 *
+	 * @param seed seed of the generator
+	 * @param numInstances number of instances
+	 * @param numNumeric number of numerical inputs
+	 * @param numNominal number of categorical inputs
+	 * @param grid if positive, the numerical inputs are integers between 0
+	 * and grid - 1, so that many rows are at equal distances from a query
+	 * @return the data set
+	 */
+	static Instances random(long seed, int numInstances, int numNumeric, int numNominal, int grid) {
+		Random random = new Random(seed);
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (int j = 0; j < numNumeric; j++) {
+			attributes.add(new Attribute("n" + j));
+		}
+		for (int j = 0; j < numNominal; j++) {
+			attributes.add(new Attribute("c" + j, Arrays.asList("a", "b", "c")));
+		}
+		attributes.add(new Attribute("y"));
+		Instances data = new Instances("random", attributes, numInstances);
+		data.setClassIndex(numNumeric + numNominal);
+		for (int i = 0; i < numInstances; i++) {
+			double[] values = new double[numNumeric + numNominal + 1];
+			for (int j = 0; j < numNumeric; j++) {
+				values[j] = grid > 0 ? random.nextInt(grid) : random.nextGaussian() * 10;
+			}
+			for (int j = 0; j < numNominal; j++) {
+				values[numNumeric + j] = random.nextInt(3);
+			}
+			values[numNumeric + numNominal] = random.nextInt(1000);
+			data.add(new DenseInstance(1, values));
+		}
+		return data;
+	}
+
+	/**
+	 * Picks queries for a data set: every step-th training instance, and as
+	 * many new instances drawn like the training ones when the numerical
+	 * inputs come first and the class last, some of them outside the ranges
+	 * of the training data.
+	 *
+	 * @param data training data
+	 * @param step step between the training instances picked
+	 * @param seed seed of the new instances
+	 * @param grid as for random
+	 * @return the queries, with the header of data
+	 */
+	static Instances queries(Instances data, int step, long seed, int grid) {
+		Instances queries = new Instances(data, 0);
+		for (int i = 0; i < data.numInstances(); i += step) {
+			queries.add((Instance) data.instance(i).copy());
+		}
+		int numNumeric = 0;
+		int numNominal = 0;
+		for (int j = 0; j < data.numAttributes(); j++) {
+			if (j != data.classIndex()) {
+				if (data.attribute(j).isNumeric()) {
+					numNumeric++;
+				} else {
+					numNominal++;
+				}
+			}
+		}
+		// new instances only when the numerical inputs come first, as in random
+		for (int j = 0; j < numNumeric + numNominal; j++) {
+			if (data.attribute(j).isNumeric() != j < numNumeric) {
+				return queries;
+			}
+		}
+		for (Instance instance : random(seed, queries.numInstances(), numNumeric, numNominal, grid)) {
+			boolean nominalFits = true;
+			for (int j = numNumeric; j < numNumeric + numNominal; j++) {
+				nominalFits &= instance.value(j) < data.attribute(j).numValues();
+			}
+			if (nominalFits) {
+				instance.setDataset(queries);
+				queries.add(instance);
+			}
+		}
+		return queries;
+	}
+
+	/**
+	 * @return data sets mixing numerical and categorical inputs in various
+	 * proportions, one of them with many ties and one with a constant input
+	 * @throws Exception if the desharnais data set cannot be read
+	 */
+	static Instances[] dataSets() throws Exception {
+		Instances constant = random(5, 900, 3, 2, 0);
+		for (Instance instance : constant) {
+			instance.setValue(1, 7.0);
+		}
+		return new Instances[] { desharnais(), random(1, 1500, 4, 2, 5), random(2, 2000, 6, 0, 0),
+				random(3, 800, 0, 3, 0), random(4, 1200, 3, 1, 0), constant };
+	}
+
+	/**
+	 * Asserts that classifiers built with some options find the same
+	 * neighbours as the linear scan on every data set of dataSets, for
+	 * several k, including one larger than some data sets.
+	 *
+	 * @param options options of the classifiers compared with the linear scan
+	 * @throws Exception if a classifier cannot be built
+	 */
+	static void assertMatchesLinearScan(String options) throws Exception {
+		Instances[] dataSets = dataSets();
+		for (int set = 0; set < dataSets.length; set++) {
+			Instances data = dataSets[set];
+			Instances queries = queries(data, 7, 99 + set, set == 1 ? 5 : 0);
+			for (int k : new int[] { 1, 2, 7, 50, 1000 }) {
+				try (MyKnn linear = build(data, "-K " + k); MyKnn knn = build(data, options + " -K " + k)) {
+					assertSameNeighbours(options + ", data set " + set + ", k=" + k, linear, knn, queries);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds a classifier.
+	 *
+	 * @param data training data
+	 * @param options options of the classifier, separated by spaces
+	 * @return the classifier
+	 * @throws Exception if the options are invalid or the build fails
+	 */
+	static MyKnn build(Instances data, String options) throws Exception {
+		MyKnn knn = new MyKnn();
+		knn.setOptions(Utils.splitOptions(options));
+		knn.buildClassifier(data);
+		return knn;
+	}
+
+	/**
+	 * Finds the nearest neighbours of an instance.
+	 *
+	 * @param knn built classifier
+	 * @param instance raw instance, left unchanged
+	 * @return the nearest neighbours
+	 */
+	static Neighbours neighbours(MyKnn knn, Instance instance) {
+		Instance copy = (Instance) instance.copy();
+		knn.normaliseNumericInputAttributes(copy);
+		NeighbourCandidates candidates = knn.findNearestRows(copy).m_Candidates;
+		int[] rows = new int[candidates.size()];
+		double[] distances = new double[candidates.size()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = candidates.row(i);
+			distances[i] = candidates.distance(i);
+		}
+		return new Neighbours(rows, distances);
+	}
+
+	/**
+	 * Asserts that two classifiers find the same nearest neighbours, in the
+	 * same order and at exactly the same distances, for every query.
+	 *
+	 * @param message description of the comparison
+	 * @param expected reference classifier, usually a linear scan
+	 * @param actual classifier compared with it
+	 * @param queries raw queries
+	 */
+	static void assertSameNeighbours(String message, MyKnn expected, MyKnn actual, Instances queries) {
+		for (int i = 0; i < queries.numInstances(); i++) {
+			assertSameNeighbours(message + ", query " + i, neighbours(expected, queries.instance(i)),
+					neighbours(actual, queries.instance(i)));
+		}
+	}
+
+	/**
+	 * Asserts that two sets of nearest neighbours are the same rows, in the
+	 * same order and at exactly the same distances.
+	 *
+	 * @param message description of the comparison
+	 * @param expected reference neighbours
+	 * @param actual neighbours compared with them
+	 */
+	static void assertSameNeighbours(String message, Neighbours expected, Neighbours actual) {
+		assertArrayEquals(message + ": rows", expected.m_Rows, actual.m_Rows);
+		assertArrayEquals(message + ": distances", expected.m_Distances, actual.m_Distances, 0);
+	}
+
+	/**
+	 * Asserts that two arrays of predictions are exactly equal.
+	 *
+	 * @param message description of the comparison
+	 * @param expected reference predictions
+	 * @param actual predictions compared with them
+	 */
+	static void assertSamePredictions(String message, double[] expected, double[] actual) {
+		assertEquals(message + ": number of predictions", expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(message + ", prediction " + i, Double.doubleToLongBits(expected[i]),
+					Double.doubleToLongBits(actual[i]));
+		}
+	}
+
+	/**
+	 * Predicts every query one at a time.
+	 *
+	 * @param knn built classifier
+	 * @param queries raw queries
+	 * @return the predictions
+	 * @throws Exception if a prediction fails
+	 */
+	static double[] predictions(MyKnn knn, Instances queries) throws Exception {
+		double[] predictions = new double[queries.numInstances()];
+		for (int i = 0; i < predictions.length; i++) {
+			predictions[i] = knn.classifyInstance(queries.instance(i));
+		}
+		return predictions;
+	}
+}
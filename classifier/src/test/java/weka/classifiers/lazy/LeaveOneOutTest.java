@@ -0,0 +1,129 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import weka.classifiers.AbstractClassifier;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Checks the leave-one-out errors of every k against a brute-force search of
+ * the neighbours of each training row among the other rows, ordered by
+ * distance and row as a linear scan orders them, and the selection of k
+ * with -X, also after the options are copied to another classifier.
+ */
+public class LeaveOneOutTest {
+
+	/** Largest k evaluated. */
+	private static final int MAX_K = 12;
+
+	@Test
+	public void errorsMatchBruteForce() throws Exception {
+		Instances[] dataSets = KnnTestSupport.dataSets();
+		for (int set = 0; set < dataSets.length; set++) {
+			for (String options : new String[] { "", "-I kdtree ", "-I pivot ", "-num-threads 1 ", "-E " }) {
+				try (MyKnn knn = KnnTestSupport.build(dataSets[set], options + "-K " + MAX_K)) {
+					double[] expected = bruteForceErrors(knn, MAX_K, options.contains("-E"));
+					double[] actual = knn.leaveOneOutErrors(MAX_K);
+					String message = options + "data set " + set;
+					assertEquals(message, expected.length, actual.length);
+					for (int k = 0; k < expected.length; k++) {
+						assertEquals(message + ", k=" + (k + 1), expected[k], actual[k], 1e-12 * (1 + expected[k]));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void selectsSmallestError() throws Exception {
+		Instances[] dataSets = KnnTestSupport.dataSets();
+		for (int set = 0; set < dataSets.length; set++) {
+			try (MyKnn knn = KnnTestSupport.build(dataSets[set], "-X -K " + MAX_K);
+					MyKnn fixed = KnnTestSupport.build(dataSets[set], "-K " + MAX_K)) {
+				double[] errors = fixed.leaveOneOutErrors(MAX_K);
+				int best = 0;
+				for (int k = 1; k < errors.length; k++) {
+					if (errors[k] < errors[best]) {
+						best = k;
+					}
+				}
+				assertEquals("data set " + set, best + 1, knn.getK());
+			}
+		}
+	}
+
+	@Test
+	public void optionsKeepLargestK() throws Exception {
+		// a smooth output selects a small k, a noisy one a larger k
+		Instances smooth = KnnTestSupport.random(41, 1500, 2, 0, 0);
+		for (int i = 0; i < smooth.numInstances(); i++) {
+			smooth.instance(i).setClassValue(smooth.instance(i).value(0) * 100);
+		}
+		Instances noisy = KnnTestSupport.random(42, 1500, 2, 0, 0);
+
+		try (MyKnn knn = KnnTestSupport.build(smooth, "-X -K 40")) {
+			assertTrue(knn.getK() < 40);
+			String[] options = knn.getOptions();
+			assertEquals(Utils.joinOptions(options), "40", Utils.getOption('K', options.clone()));
+
+			MyKnn copy = (MyKnn) AbstractClassifier.forName(MyKnn.class.getName(), knn.getOptions());
+			try (MyKnn expected = KnnTestSupport.build(noisy, "-X -K 40")) {
+				copy.buildClassifier(noisy);
+				assertTrue(expected.getK() > knn.getK());
+				assertEquals(expected.getK(), copy.getK());
+				assertEquals(Arrays.asList(expected.getOptions()), Arrays.asList(copy.getOptions()));
+			} finally {
+				copy.close();
+			}
+		}
+	}
+
+	/**
+	 * Finds the errors of every k by computing the distance between each row
+	 * and every other row.
+	 */
+	private static double[] bruteForceErrors(MyKnn knn, int maxK, boolean squared) {
+		KnnModel model = knn.m_Model;
+		int numRows = model.m_NumRows;
+		maxK = Math.min(maxK, numRows - 1);
+		double[] numeric = new double[model.m_Layout.numNumeric()];
+		int[] nominal = new int[model.m_Layout.numNominal()];
+		double[] errors = new double[maxK];
+		for (int i = 0; i < numRows; i++) {
+			int row = model.slot(i);
+			for (int j = 0; j < numeric.length; j++) {
+				numeric[j] = model.numeric(row, j);
+			}
+			for (int j = 0; j < nominal.length; j++) {
+				nominal[j] = model.nominal(row, j);
+			}
+			double[] distances = new double[numRows];
+			Integer[] others = new Integer[numRows - 1];
+			for (int n = 0, other = 0; n < numRows; n++) {
+				int neighbour = model.slot(n);
+				distances[neighbour] = model.squaredDistance(numeric, nominal, neighbour);
+				if (neighbour != row) {
+					others[other++] = neighbour;
+				}
+			}
+			Arrays.sort(others, (a, b) -> distances[a] != distances[b] ? Double.compare(distances[a], distances[b])
+					: Integer.compare(a, b));
+			double total = 0;
+			for (int k = 1; k <= maxK; k++) {
+				total += model.m_ClassValues[others[k - 1]];
+				double error = total / k - model.m_ClassValues[row];
+				errors[k - 1] += squared ? error * error : Math.abs(error);
+			}
+		}
+		for (int k = 0; k < maxK; k++) {
+			errors[k] /= numRows;
+		}
+		return errors;
+	}
+}
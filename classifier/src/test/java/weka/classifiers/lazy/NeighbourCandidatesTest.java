@@ -0,0 +1,122 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Checks the bounded heap of the nearest candidates and the early abandoning
+ * of distances against a full sort of every training row on (distance, row).
+ */
+public class NeighbourCandidatesTest {
+
+	@Test
+	public void keepsSmallestInAnyOrder() {
+		Random random = new Random(1);
+		for (int trial = 0; trial < 200; trial++) {
+			int numRows = 1 + random.nextInt(60);
+			int k = 1 + random.nextInt(numRows + 5);
+			double[] distances = new double[numRows];
+			for (int row = 0; row < numRows; row++) {
+				// few distinct distances, so that many rows tie
+				distances[row] = random.nextInt(5);
+			}
+			Integer[] order = new Integer[numRows];
+			for (int row = 0; row < numRows; row++) {
+				order[row] = row;
+			}
+			Collections.shuffle(Arrays.asList(order), random);
+
+			NeighbourCandidates candidates = new NeighbourCandidates(k);
+			candidates.reset(Math.min(k, numRows));
+			for (int row : order) {
+				candidates.offer(row, distances[row]);
+			}
+			candidates.sort();
+
+			Integer[] expected = order.clone();
+			Arrays.sort(expected, (a, b) -> distances[a] != distances[b] ? Double.compare(distances[a], distances[b])
+					: Integer.compare(a, b));
+			assertEquals(Math.min(k, numRows), candidates.size());
+			for (int i = 0; i < candidates.size(); i++) {
+				assertEquals("trial " + trial + ", position " + i, (int) expected[i], candidates.row(i));
+				assertEquals(distances[expected[i]], candidates.distance(i), 0);
+			}
+			assertEquals(numRows, candidates.evaluated());
+		}
+	}
+
+	@Test
+	public void linearScanMatchesFullSort() throws Exception {
+		for (Instances data : KnnTestSupport.dataSets()) {
+			for (int k : new int[] { 1, 3, 10 }) {
+				try (MyKnn knn = KnnTestSupport.build(data, "-K " + k)) {
+					KnnModel model = knn.m_Model;
+					Instances queries = KnnTestSupport.queries(data, 11, 7, 0);
+					for (Instance query : queries) {
+						Instance normalised = (Instance) query.copy();
+						knn.normaliseNumericInputAttributes(normalised);
+						double[] numeric = new double[model.m_Layout.numNumeric()];
+						int[] nominal = new int[model.m_Layout.numNominal()];
+						model.m_Layout.copyInputs(normalised, numeric, nominal);
+
+						double[] distances = new double[model.m_NumRows];
+						Integer[] rows = new Integer[model.m_NumRows];
+						for (int row = 0; row < rows.length; row++) {
+							rows[row] = row;
+							distances[row] = model.squaredDistance(numeric, nominal, row);
+						}
+						List<Integer> sorted = Arrays.asList(rows);
+						Collections.sort(sorted, (a, b) -> distances[a] != distances[b]
+								? Double.compare(distances[a], distances[b]) : Integer.compare(a, b));
+
+						KnnTestSupport.Neighbours neighbours = KnnTestSupport.neighbours(knn, query);
+						int size = Math.min(k, rows.length);
+						int[] expectedRows = new int[size];
+						double[] expectedDistances = new double[size];
+						for (int i = 0; i < size; i++) {
+							expectedRows[i] = sorted.get(i);
+							expectedDistances[i] = distances[sorted.get(i)];
+						}
+						assertArrayEquals(expectedRows, neighbours.m_Rows);
+						assertArrayEquals(expectedDistances, neighbours.m_Distances, 0);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void abandonedDistancesExceedBound() throws Exception {
+		Instances data = KnnTestSupport.random(8, 500, 5, 2, 0);
+		try (MyKnn knn = KnnTestSupport.build(data, "-K 1")) {
+			KnnModel model = knn.m_Model;
+			double[] numeric = new double[model.m_Layout.numNumeric()];
+			int[] nominal = new int[model.m_Layout.numNominal()];
+			Instance query = (Instance) data.instance(0).copy();
+			knn.normaliseNumericInputAttributes(query);
+			model.m_Layout.copyInputs(query, numeric, nominal);
+			for (int row = 0; row < model.m_NumRows; row++) {
+				double full = model.squaredDistance(numeric, nominal, row);
+				for (double bound : new double[] { 0, full / 2, full, full * 2, Double.POSITIVE_INFINITY }) {
+					double partial = model.squaredDistance(numeric, nominal, row, bound);
+					if (full <= bound) {
+						assertEquals(full, partial, 0);
+					} else {
+						assertTrue(partial > bound);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package weka.classifiers.lazy;
+
+import org.junit.Test;
+
+import weka.core.Instances;
+
+/**
+ * Checks that the search over the groups of categorical values finds the
+ * neighbours of the linear scan, ties included, also when the data has many
+ * more combinations of categorical values than rows per combination.
+ */
+public class NominalPartitionSearchTest {
+
+	@Test
+	public void matchesLinearScan() throws Exception {
+		KnnTestSupport.assertMatchesLinearScan("-I partition");
+	}
+
+	@Test
+	public void manyGroupsMatchLinearScan() throws Exception {
+		for (int grid : new int[] { 0, 3 }) {
+			Instances data = KnnTestSupport.random(30 + grid, 1500, 2, 6, grid);
+			Instances queries = KnnTestSupport.queries(data, 9, 40 + grid, grid);
+			for (int k : new int[] { 1, 4, 25, 2000 }) {
+				try (MyKnn linear = KnnTestSupport.build(data, "-K " + k);
+						MyKnn partition = KnnTestSupport.build(data, "-I partition -K " + k)) {
+					KnnTestSupport.assertSameNeighbours("grid " + grid + ", k=" + k, linear, partition, queries);
+				}
+			}
+		}
+	}
+}
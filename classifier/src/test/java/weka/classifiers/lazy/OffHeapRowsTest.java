@@ -0,0 +1,83 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import weka.core.Instances;
+
+/**
+ * Checks that the rows held outside the heap give the neighbours of the
+ * rows held on the heap as they grow, and that closing or rebuilding the
+ * classifier releases their direct or mapped buffers at once, without
+ * waiting for the garbage collector.
+ */
+public class OffHeapRowsTest {
+
+	@Rule
+	public TemporaryFolder m_Folder = new TemporaryFolder();
+
+	@Test
+	public void grownRowsMatchHeap() throws Exception {
+		Instances data = KnnTestSupport.random(25, 3000, 4, 2, 5);
+		Instances queries = KnnTestSupport.queries(data, 29, 26, 5);
+		try (MyKnn heap = KnnTestSupport.build(new Instances(data, 0, 10), "-K 5");
+				MyKnn offHeap = KnnTestSupport.build(new Instances(data, 0, 10), "-off-heap -K 5")) {
+			assertTrue(offHeap.m_Model.isOffHeap());
+			for (int i = 10; i < data.numInstances(); i++) {
+				heap.updateClassifier(data.instance(i));
+				offHeap.updateClassifier(data.instance(i));
+			}
+			KnnTestSupport.assertSameNeighbours("grown", heap, offHeap, queries);
+		}
+	}
+
+	@Test
+	public void closeReleasesDirectBuffers() throws Exception {
+		assumeTrue(OffHeapRows.releasesAtOnce());
+		Instances data = KnnTestSupport.random(27, 20000, 8, 2, 0);
+		long rowBytes = 20000L * (8 * 8 + 2 * 4);
+		BufferPoolMXBean direct = pool("direct");
+
+		long before = direct.getMemoryUsed();
+		MyKnn knn = KnnTestSupport.build(data, "-off-heap -K 3");
+		assertTrue(direct.getMemoryUsed() >= before + rowBytes);
+		knn.buildClassifier(data);
+		assertTrue("rebuilding releases the previous rows", direct.getMemoryUsed() < before + 2 * rowBytes);
+		knn.close();
+		assertTrue("closing releases the rows", direct.getMemoryUsed() < before + rowBytes);
+	}
+
+	@Test
+	public void closeUnmapsModelFile() throws Exception {
+		assumeTrue(OffHeapRows.releasesAtOnce());
+		File file = m_Folder.newFile();
+		try (MyKnn knn = KnnTestSupport.build(KnnTestSupport.desharnais(), "-K 3")) {
+			knn.writeModel(file);
+		}
+		BufferPoolMXBean mapped = pool("mapped");
+
+		long before = mapped.getCount();
+		MyKnn opened = MyKnn.openModel(file);
+		assertEquals("a numeric and a nominal section", before + 2, mapped.getCount());
+		opened.close();
+		assertEquals(before, mapped.getCount());
+	}
+
+	private static BufferPoolMXBean pool(String name) {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals(name)) {
+				return pool;
+			}
+		}
+		throw new AssertionError("no " + name + " buffer pool");
+	}
+}
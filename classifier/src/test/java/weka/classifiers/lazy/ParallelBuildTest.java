@@ -0,0 +1,114 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Checks that the parallel build, over more rows than a chunk of MinMaxTask
+ * and NormaliseTask, gives the min and max values of a sequential scan and
+ * the compact model, neighbours and predictions of a build on one thread,
+ * and that the threads are kept from one batch to the next.
+ */
+public class ParallelBuildTest {
+
+	/** Number of instances, several chunks of MinMaxTask and NormaliseTask. */
+	private static final int NUM_INSTANCES = 5 * MinMaxTask.CHUNK_ROWS + 123;
+
+	@Test
+	public void minMaxMatchesSequentialScan() throws Exception {
+		Instances data = KnnTestSupport.random(31, NUM_INSTANCES, 5, 1, 0);
+		// zeros of both signs on each side of the chunk boundaries, missing
+		// values, and an input whose first value is missing
+		for (int i = 0; i < NUM_INSTANCES; i++) {
+			Instance instance = data.instance(i);
+			instance.setValue(1, i % MinMaxTask.CHUNK_ROWS == 0 ? -0.0 : Math.abs(instance.value(1)));
+			if (i % 997 == 500) {
+				instance.setMissing(2);
+			}
+		}
+		data.instance(data.numInstances() - 1).setValue(1, 0.0);
+		data.instance(0).setMissing(3);
+
+		for (int numThreads : new int[] { 1, 2, 8 }) {
+			MyKnn knn = new MyKnn();
+			knn.setNumThreads(numThreads);
+			knn.m_TrainingData = data;
+			knn.determineMinMaxAttributeValues();
+			for (int j = 0; j < 5; j++) {
+				double min = data.instance(0).value(j);
+				double max = min;
+				for (int i = 1; i < NUM_INSTANCES; i++) {
+					double value = data.instance(i).value(j);
+					if (value > max) {
+						max = value;
+					} else if (value < min) {
+						min = value;
+					}
+				}
+				String message = numThreads + " threads, input " + j;
+				assertEquals(message + ": min", Double.doubleToLongBits(min), Double.doubleToLongBits(knn.min[j]));
+				assertEquals(message + ": max", Double.doubleToLongBits(max), Double.doubleToLongBits(knn.max[j]));
+			}
+		}
+	}
+
+	@Test
+	public void threadsMatchSingleThread() throws Exception {
+		Instances data = KnnTestSupport.random(32, NUM_INSTANCES, 4, 2, 6);
+		Instances queries = KnnTestSupport.queries(data, 211, 33, 6);
+		for (String options : new String[] { "-K 5", "-off-heap -K 5", "-I kdtree -K 5" }) {
+			try (MyKnn single = KnnTestSupport.build(data, "-num-threads 1 " + options)) {
+				double[] expected = KnnTestSupport.predictions(single, queries);
+				for (int numThreads : new int[] { 2, 8 }) {
+					String message = numThreads + " threads, " + options;
+					try (MyKnn knn = KnnTestSupport.build(data, "-num-threads " + numThreads + " -parallel-cutoff 16 "
+							+ options)) {
+						assertArrayEquals(message, single.min, knn.min, 0);
+						assertArrayEquals(message, single.max, knn.max, 0);
+						KnnModel model = knn.m_Model;
+						for (int row = 0; row < model.m_NumRows; row++) {
+							for (int j = 0; j < model.m_Layout.numNumeric(); j++) {
+								assertEquals(message + ", row " + row,
+										Double.doubleToLongBits(single.m_Model.numeric(row, j)),
+										Double.doubleToLongBits(model.numeric(row, j)));
+							}
+							for (int j = 0; j < model.m_Layout.numNominal(); j++) {
+								assertEquals(message + ", row " + row, single.m_Model.nominal(row, j),
+										model.nominal(row, j));
+							}
+						}
+						KnnTestSupport.assertSameNeighbours(message, single, knn, queries);
+						KnnTestSupport.assertSamePredictions(message, expected, knn.classifyInstances(queries));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void poolIsKeptUntilClosed() throws Exception {
+		Instances data = KnnTestSupport.random(34, 2000, 3, 1, 0);
+		Instances queries = KnnTestSupport.queries(data, 50, 35, 0);
+		MyKnn knn = KnnTestSupport.build(data, "-num-threads 2 -K 3");
+		ForkJoinPool pool = knn.pool();
+		for (int batch = 0; batch < 3; batch++) {
+			knn.classifyInstances(queries);
+			assertSame(pool, knn.pool());
+		}
+		knn.setNumThreads(3);
+		knn.classifyInstances(queries);
+		ForkJoinPool resized = knn.pool();
+		assertEquals(3, resized.getParallelism());
+		knn.close();
+		assertTrue(resized.isShutdown());
+	}
+}
@@ -0,0 +1,53 @@
+package weka.classifiers.lazy;
+
+import org.junit.Test;
+
+import weka.core.Instances;
+
+/**
+ * Checks that the pivot index finds the neighbours of the linear scan, ties
+ * included, whatever the number and choice of pivots, with the scratch
+ * intervals of a query reused from one search to the next, and after
+ * updates.
+ */
+public class PivotSearchTest {
+
+	@Test
+	public void matchesLinearScan() throws Exception {
+		KnnTestSupport.assertMatchesLinearScan("-I pivot");
+	}
+
+	@Test
+	public void randomPivotsMatchLinearScan() throws Exception {
+		KnnTestSupport.assertMatchesLinearScan("-I pivot -pivot-selection random");
+	}
+
+	@Test
+	public void anyNumberOfPivotsMatchesLinearScan() throws Exception {
+		// no pivot, one, and more pivots than rows
+		for (int pivots : new int[] { 0, 1, 5000 }) {
+			KnnTestSupport.assertMatchesLinearScan("-I pivot -pivots " + pivots);
+		}
+	}
+
+	@Test
+	public void updatesMatchLinearScan() throws Exception {
+		Instances data = KnnTestSupport.random(51, 1500, 4, 2, 5);
+		Instances queries = KnnTestSupport.queries(data, 11, 52, 5);
+		for (String window : new String[] { "", "-W 600 " }) {
+			String options = window + "-K 5";
+			try (MyKnn linear = KnnTestSupport.build(new Instances(data, 0, 100), options);
+					MyKnn pivot = KnnTestSupport.build(new Instances(data, 0, 100), "-I pivot " + options)) {
+				for (int i = 100; i < data.numInstances(); i++) {
+					linear.updateClassifier(data.instance(i));
+					pivot.updateClassifier(data.instance(i));
+					if (i % 350 == 0) {
+						KnnTestSupport.assertSameNeighbours(options + ", " + (i + 1) + " instances", linear, pivot,
+								queries);
+					}
+				}
+				KnnTestSupport.assertSameNeighbours(options, linear, pivot, queries);
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Checks the condensation of the training rows into weighted prototypes:
+ * the prototypes stand for every training instance once, the predictions
+ * of a condensed model are the same on and off the heap, from its model
+ * file and once serialised, condensation is refused with a window, and the
+ * tolerance search keeps the smallest size within the tolerance.
+ */
+public class PrototypeCondenserTest {
+
+	@Rule
+	public TemporaryFolder m_Folder = new TemporaryFolder();
+
+	@Test
+	public void prototypesStandForEveryRow() throws Exception {
+		Instances[] dataSets = { KnnTestSupport.desharnais(), KnnTestSupport.random(91, 3000, 4, 2, 0),
+				KnnTestSupport.random(92, 2000, 3, 1, 5) };
+		for (int set = 0; set < dataSets.length; set++) {
+			Instances data = dataSets[set];
+			for (int size : new int[] { 1, 20, 300 }) {
+				if (size >= data.numInstances()) {
+					continue;
+				}
+				String options = "-prototypes " + size + " -K 5";
+				try (MyKnn knn = KnnTestSupport.build(data, options)) {
+					KnnModel model = knn.m_Model;
+					String message = options + ", data set " + set;
+					assertTrue(message, model.isCondensed());
+					assertTrue(message + ": " + model.m_NumRows + " prototypes", model.m_NumRows < data.numInstances());
+					double totalWeight = 0;
+					for (int i = 0; i < model.m_NumRows; i++) {
+						double weight = model.rowWeight(model.slot(i));
+						assertTrue(message, weight >= 1 && weight == Math.rint(weight));
+						totalWeight += weight;
+					}
+					assertEquals(message, data.numInstances(), totalWeight, 0);
+					assertTrue(message, knn.getCondensationReport().contains("held out"));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void instancesAreAveragedWithoutWeights() throws Exception {
+		Instances data = KnnTestSupport.random(93, 1000, 3, 1, 0);
+		try (MyKnn knn = KnnTestSupport.build(data, "-prototypes 50 -K 5")) {
+			Instance[] neighbours = knn.findNearestNeighbours(data.instance(0));
+			double sum = 0;
+			for (Instance neighbour : neighbours) {
+				sum += neighbour.classValue();
+			}
+			assertEquals(sum / neighbours.length, knn.determinePredictedOutput(neighbours), 0);
+
+			// instances of zero weight still have a mean
+			Instance[] unweighted = new Instance[] { new DenseInstance(0, new double[] { 0, 0, 0, 0, 3 }),
+					new DenseInstance(0, new double[] { 0, 0, 0, 0, 5 }) };
+			for (Instance instance : unweighted) {
+				instance.setDataset(data);
+			}
+			assertEquals(4, knn.determinePredictedOutput(unweighted), 0);
+		}
+	}
+
+	@Test
+	public void predictionsSurviveStorage() throws Exception {
+		Instances data = KnnTestSupport.random(94, 2500, 4, 2, 0);
+		Instances queries = KnnTestSupport.queries(data, 9, 95, 0);
+		for (String condensation : new String[] { "-prototypes 200", "-prototype-tolerance 0.5" }) {
+			String options = condensation + " -K 5";
+			try (MyKnn heap = KnnTestSupport.build(data, options);
+					MyKnn offHeap = KnnTestSupport.build(data, options + " -off-heap")) {
+				assertFalse(heap.m_Model.isOffHeap());
+				assertTrue(offHeap.m_Model.isOffHeap());
+				double[] expected = KnnTestSupport.predictions(heap, queries);
+				KnnTestSupport.assertSamePredictions(options + ", off heap", expected,
+						KnnTestSupport.predictions(offHeap, queries));
+
+				for (MyKnn knn : new MyKnn[] { heap, offHeap }) {
+					File file = m_Folder.newFile();
+					knn.writeModel(file);
+					try (MyKnn opened = MyKnn.openModel(file)) {
+						assertTrue(options, opened.m_Model.isCondensed());
+						KnnTestSupport.assertSamePredictions(options + ", opened", expected,
+								KnnTestSupport.predictions(opened, queries));
+					}
+					try (MyKnn copy = deserialise(serialise(knn))) {
+						assertTrue(options, copy.m_Model.isCondensed());
+						KnnTestSupport.assertSamePredictions(options + ", deserialised", expected,
+								KnnTestSupport.predictions(copy, queries));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void windowIsRejected() throws Exception {
+		Instances data = KnnTestSupport.random(96, 500, 3, 1, 0);
+		for (String options : new String[] { "-prototypes 50 -W 100 -K 3", "-prototype-tolerance 0.1 -W 100 -K 3" }) {
+			try (MyKnn knn = new MyKnn()) {
+				knn.setOptions(Utils.splitOptions(options));
+				knn.buildClassifier(data);
+				fail(options + " was built");
+			} catch (Exception e) {
+				assertTrue(options + ": " + e.getMessage(), e.getMessage().contains("window"));
+			}
+		}
+	}
+
+	@Test
+	public void toleranceKeepsSmallestSizeWithin() throws Exception {
+		Instances data = KnnTestSupport.random(97, 6000, 3, 1, 0);
+		Instances queries = KnnTestSupport.queries(data, 13, 98, 0);
+		int[] sizes;
+		double[] relatives;
+		try (MyKnn full = KnnTestSupport.build(data, "-K 5")) {
+			PrototypeCondenser condenser = new PrototypeCondenser(full);
+			sizes = condenser.sizes();
+			relatives = new double[sizes.length];
+			for (int i = 0; i < sizes.length; i++) {
+				condenser.condense(sizes[i]);
+				relatives[i] = condenser.relative();
+			}
+		}
+		assertTrue(sizes.length >= 3);
+
+		// the relative difference of a middle size, which the smaller sizes may exceed
+		double tolerance = relatives[sizes.length / 2];
+		int expected = 0;
+		while (relatives[expected] > tolerance) {
+			expected++;
+		}
+		try (MyKnn byTolerance = KnnTestSupport.build(data, "-prototype-tolerance " + tolerance + " -K 5");
+				MyKnn bySize = KnnTestSupport.build(data, "-prototypes " + sizes[expected] + " -K 5")) {
+			String message = "tolerance " + tolerance + ", sizes " + Arrays.toString(sizes)
+					+ ", relative differences " + Arrays.toString(relatives);
+			assertEquals(message, bySize.m_Model.m_NumRows, byTolerance.m_Model.m_NumRows);
+			KnnTestSupport.assertSamePredictions(message, KnnTestSupport.predictions(bySize, queries),
+					KnnTestSupport.predictions(byTolerance, queries));
+		}
+
+		// no size is within a tolerance below all of them
+		double smallest = Double.POSITIVE_INFINITY;
+		for (double relative : relatives) {
+			smallest = Math.min(smallest, relative);
+		}
+		try (MyKnn knn = KnnTestSupport.build(data, "-prototype-tolerance " + smallest / 2 + " -K 5")) {
+			assertFalse(knn.m_Model.isCondensed());
+			assertEquals(data.numInstances(), knn.m_Model.m_NumRows);
+		}
+	}
+
+	private static byte[] serialise(MyKnn knn) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(knn);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static MyKnn deserialise(byte[] bytes) throws Exception {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return (MyKnn) in.readObject();
+		}
+	}
+}
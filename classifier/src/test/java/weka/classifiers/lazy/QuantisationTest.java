@@ -0,0 +1,167 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import weka.core.Instances;
+
+/**
+ * Checks the inputs held by quantised models: with the re-rank, the exact
+ * inputs stay where they are held, on the heap unless -off-heap is set, and
+ * the neighbours are those of the linear scan, ties included; without it,
+ * the exact inputs are dropped and every search structure finds the
+ * neighbours of the approximate linear scan, after updates, serialisation
+ * and being written to a model file too.
+ */
+public class QuantisationTest {
+
+	/** Quantisations checked. */
+	private static final String[] QUANTISATIONS = { "-quantise float32", "-quantise int16", "-quantise int8" };
+
+	/** Exact search structures, which find the nearest rows for the distances of the model. */
+	private static final String[] INDEXES = { "-I kdtree", "-I balltree", "-I partition", "-I pivot" };
+
+	@Rule
+	public TemporaryFolder m_Folder = new TemporaryFolder();
+
+	@Test
+	public void rerankMatchesLinearScan() throws Exception {
+		for (String quantisation : QUANTISATIONS) {
+			KnnTestSupport.assertMatchesLinearScan(quantisation);
+		}
+	}
+
+	@Test
+	public void rerankKeepsExactInputsWhereTheyAre() throws Exception {
+		Instances data = KnnTestSupport.random(31, 2000, 6, 1, 0);
+		for (String quantisation : QUANTISATIONS) {
+			try (MyKnn knn = KnnTestSupport.build(data, quantisation + " -K 3")) {
+				assertFalse(quantisation, knn.m_Model.isOffHeap());
+				assertEquals(quantisation, 2000 * 6, knn.m_Model.m_Numeric.length);
+			}
+			try (MyKnn knn = KnnTestSupport.build(data, quantisation + " -off-heap -K 3")) {
+				assertTrue(quantisation, knn.m_Model.isOffHeap());
+				assertEquals(quantisation, 0, knn.m_Model.m_Numeric.length);
+			}
+		}
+	}
+
+	@Test
+	public void approximateDropsExactInputs() throws Exception {
+		Instances data = KnnTestSupport.random(32, 2000, 6, 1, 0);
+		try (MyKnn exact = KnnTestSupport.build(data, "-K 3")) {
+			for (String quantisation : QUANTISATIONS) {
+				try (MyKnn knn = KnnTestSupport.build(data, quantisation + " -no-rerank -K 3")) {
+					KnnModel model = knn.m_Model;
+					assertFalse(quantisation, model.isOffHeap());
+					assertFalse(quantisation, model.hasExactInputs());
+					assertEquals(quantisation, 0, model.m_Numeric.length);
+					assertTrue(quantisation, model.footprint() < exact.m_Model.footprint());
+
+					// the codes stand for the inputs, so the quantisation cannot change
+					knn.setQuantisation(exact.getQuantisation());
+					assertTrue(quantisation, model.isApproximate());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void approximateIndexesMatchLinearScan() throws Exception {
+		Instances[] dataSets = KnnTestSupport.dataSets();
+		for (int set = 0; set < dataSets.length; set++) {
+			Instances data = dataSets[set];
+			Instances queries = KnnTestSupport.queries(data, 7, 99 + set, set == 1 ? 5 : 0);
+			for (String quantisation : QUANTISATIONS) {
+				for (int k : new int[] { 1, 7, 50 }) {
+					String options = quantisation + " -no-rerank -K " + k;
+					try (MyKnn linear = KnnTestSupport.build(data, options)) {
+						for (String index : INDEXES) {
+							try (MyKnn knn = KnnTestSupport.build(data, index + " " + options)) {
+								KnnTestSupport.assertSameNeighbours(index + " " + options + ", data set " + set, linear,
+										knn, queries);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void updatesMatchLinearScan() throws Exception {
+		Instances data = KnnTestSupport.random(33, 1500, 4, 2, 5);
+		Instances queries = KnnTestSupport.queries(data, 11, 34, 5);
+		for (String quantisation : QUANTISATIONS) {
+			try (MyKnn exact = KnnTestSupport.build(new Instances(data, 0, 100), "-K 5");
+					MyKnn reranked = KnnTestSupport.build(new Instances(data, 0, 100), quantisation + " -K 5");
+					MyKnn linear = KnnTestSupport.build(new Instances(data, 0, 100), quantisation + " -no-rerank -K 5");
+					MyKnn kdTree = KnnTestSupport.build(new Instances(data, 0, 100),
+							"-I kdtree " + quantisation + " -no-rerank -K 5")) {
+				for (int i = 100; i < data.numInstances(); i++) {
+					exact.updateClassifier(data.instance(i));
+					reranked.updateClassifier(data.instance(i));
+					linear.updateClassifier(data.instance(i));
+					kdTree.updateClassifier(data.instance(i));
+				}
+				assertEquals(0, linear.m_Model.m_Numeric.length);
+				KnnTestSupport.assertSameNeighbours(quantisation + ", re-ranked", exact, reranked, queries);
+				KnnTestSupport.assertSameNeighbours(quantisation + ", approximate", linear, kdTree, queries);
+			}
+		}
+	}
+
+	@Test
+	public void approximateSurvivesSerialisationAndModelFile() throws Exception {
+		Instances data = KnnTestSupport.random(35, 1200, 5, 2, 0);
+		Instances queries = KnnTestSupport.queries(data, 9, 36, 0);
+		for (String quantisation : QUANTISATIONS) {
+			for (String rerank : new String[] { "", " -off-heap", " -no-rerank" }) {
+				String options = quantisation + rerank + " -K 4";
+				try (MyKnn knn = KnnTestSupport.build(data, options)) {
+					double[] expected = KnnTestSupport.predictions(knn, queries);
+
+					try (MyKnn copy = deserialise(serialise(knn))) {
+						assertEquals(options, knn.m_Model.isOffHeap(), copy.m_Model.isOffHeap());
+						assertEquals(options, knn.m_Model.isApproximate(), copy.m_Model.isApproximate());
+						KnnTestSupport.assertSameNeighbours(options + ", deserialised", knn, copy, queries);
+					}
+
+					File file = m_Folder.newFile();
+					knn.writeModel(file);
+					try (MyKnn opened = MyKnn.openModel(file)) {
+						assertEquals(options, knn.m_Model.isApproximate(), opened.m_Model.isApproximate());
+						KnnTestSupport.assertSameNeighbours(options + ", opened", knn, opened, queries);
+						KnnTestSupport.assertSamePredictions(options + ", opened", expected,
+								KnnTestSupport.predictions(opened, queries));
+					}
+				}
+			}
+		}
+	}
+
+	private static byte[] serialise(MyKnn knn) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(knn);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static MyKnn deserialise(byte[] bytes) throws Exception {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return (MyKnn) in.readObject();
+		}
+	}
+}
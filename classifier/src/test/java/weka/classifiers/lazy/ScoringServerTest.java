@@ -0,0 +1,216 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Checks that concurrent clients of a ScoringServer get the predictions of
+ * classifyInstance, whether the batches are predicted with the blocked
+ * linear scan or in parallel; that a request is refused with BUSY when the
+ * queue is full; and that close fails the requests waiting and ends the
+ * open connections. <p>
+ *
+ * The last two hold the batcher in the prediction of a batch, with a
+ * classifier whose batch predictions wait for the test, so that the
+ * requests queue up.
+ */
+public class ScoringServerTest {
+
+	/** Number of clients predicting at once. */
+	private static final int CLIENTS = 8;
+
+	/** Longest wait for the server, in seconds. */
+	private static final long TIMEOUT = 30;
+
+	@Test
+	public void concurrentClientsMatchClassifyInstance() throws Exception {
+		Instances data = KnnTestSupport.random(81, 2000, 4, 2, 0);
+		Instances queries = KnnTestSupport.queries(data, 9, 82, 0);
+		for (String options : new String[] { "-K 5", "-block-rows 256 -K 5", "-I kdtree -K 5" }) {
+			try (MyKnn knn = KnnTestSupport.build(data, options); ScoringServer server = new ScoringServer(knn)) {
+				double[] expected = KnnTestSupport.predictions(knn, queries);
+				int port = server.start(0);
+				ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+				try {
+					CountDownLatch start = new CountDownLatch(1);
+					List<Future<double[]>> results = new ArrayList<Future<double[]>>();
+					for (int c = 0; c < CLIENTS; c++) {
+						results.add(executor.submit(new Callable<double[]>() {
+							@Override
+							public double[] call() throws Exception {
+								try (ScoringClient client = new ScoringClient(port)) {
+									start.await();
+									double[] predictions = new double[queries.numInstances()];
+									for (int i = 0; i < predictions.length; i++) {
+										predictions[i] = client.predict(queries.instance(i));
+									}
+									return predictions;
+								}
+							}
+						}));
+					}
+					start.countDown();
+					for (Future<double[]> result : results) {
+						KnnTestSupport.assertSamePredictions(options, expected, result.get());
+					}
+				} finally {
+					executor.shutdownNow();
+				}
+				assertEquals(options, (long) CLIENTS * queries.numInstances(), server.getRequests());
+				assertEquals(options, 0, server.getRefused());
+				assertTrue(options, server.getMeanBatchSize() >= 1);
+			}
+		}
+	}
+
+	@Test
+	public void busyWhenQueueIsFull() throws Exception {
+		Instances data = KnnTestSupport.random(83, 500, 3, 1, 0);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try (BlockingKnn knn = new BlockingKnn(data); ScoringServer server = new ScoringServer(knn)) {
+			server.setMaxBatchSize(1);
+			server.setQueueSize(1);
+			int port = server.start(0);
+
+			// the batcher takes the first request and waits in its prediction
+			Future<Double> first = predict(executor, port, data.instance(0));
+			assertTrue(knn.m_Entered.await(TIMEOUT, TimeUnit.SECONDS));
+
+			// one of the next two fills the queue, the other is refused
+			List<Future<Double>> next = new ArrayList<Future<Double>>();
+			next.add(predict(executor, port, data.instance(1)));
+			next.add(predict(executor, port, data.instance(2)));
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+			while (server.getRefused() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(5);
+			}
+			assertEquals(1, server.getRefused());
+			knn.m_Release.countDown();
+
+			assertEquals(Double.doubleToLongBits(knn.classifyInstance(data.instance(0))),
+					Double.doubleToLongBits(first.get(TIMEOUT, TimeUnit.SECONDS)));
+			int busy = 0;
+			for (int i = 0; i < next.size(); i++) {
+				try {
+					assertEquals(Double.doubleToLongBits(knn.classifyInstance(data.instance(1 + i))),
+							Double.doubleToLongBits(next.get(i).get(TIMEOUT, TimeUnit.SECONDS)));
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause().toString(), e.getCause() instanceof ScoringClient.BusyException);
+					busy++;
+				}
+			}
+			assertEquals(1, busy);
+			assertEquals(3, server.getRequests());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void closeFailsWaitingRequestsAndEndsConnections() throws Exception {
+		Instances data = KnnTestSupport.random(85, 500, 3, 1, 0);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try (BlockingKnn knn = new BlockingKnn(data)) {
+			ScoringServer server = new ScoringServer(knn);
+			server.setMaxBatchSize(1);
+			int port = server.start(0);
+			try (ScoringClient idle = new ScoringClient(port)) {
+				Future<Double> predicting = predict(executor, port, data.instance(0));
+				assertTrue(knn.m_Entered.await(TIMEOUT, TimeUnit.SECONDS));
+				Future<Double> waiting = predict(executor, port, data.instance(1));
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+				while (server.getRequests() < 2 && System.nanoTime() < deadline) {
+					Thread.sleep(5);
+				}
+				assertEquals(2, server.getRequests());
+
+				server.close();
+				// neither request is predicted nor refused
+				assertFailed(predicting);
+				assertFailed(waiting);
+				try {
+					idle.predict(data.instance(2));
+					fail("predicted after close");
+				} catch (ScoringClient.BusyException e) {
+					fail("refused rather than failed after close");
+				} catch (IOException e) {
+					// expected
+				}
+				try (ScoringClient client = new ScoringClient(port)) {
+					fail("connected after close");
+				} catch (IOException e) {
+					// expected
+				}
+				assertEquals(0, server.getRefused());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static Future<Double> predict(ExecutorService executor, int port, Instance instance) {
+		return executor.submit(new Callable<Double>() {
+			@Override
+			public Double call() throws Exception {
+				try (ScoringClient client = new ScoringClient(port)) {
+					return client.predict(instance);
+				}
+			}
+		});
+	}
+
+	private static void assertFailed(Future<Double> result) throws Exception {
+		try {
+			result.get(TIMEOUT, TimeUnit.SECONDS);
+			fail("predicted after close");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+			assertFalse(e.getCause().toString(), e.getCause() instanceof ScoringClient.BusyException);
+		}
+	}
+
+	/**
+	 * Classifier whose batch predictions wait until the test releases them.
+	 */
+	private static final class BlockingKnn extends MyKnn {
+
+		private static final long serialVersionUID = 1L;
+
+		/** Counted down when a batch prediction starts. */
+		final CountDownLatch m_Entered = new CountDownLatch(1);
+
+		/** Counted down by the test to let the batch predictions go on. */
+		final CountDownLatch m_Release = new CountDownLatch(1);
+
+		BlockingKnn(Instances data) throws Exception {
+			setOptions(Utils.splitOptions("-K 3"));
+			buildClassifier(data);
+		}
+
+		@Override
+		public double[] classifyInstances(Instances instances) throws Exception {
+			m_Entered.countDown();
+			m_Release.await();
+			return super.classifyInstances(instances);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Checks that ShardedKnn predicts exactly what a single MyKnn built over the
+ * whole training set predicts, ties included, whether the shards are sent
+ * from the coordinator or read by the workers from files, for k larger
+ * than a shard too; that threads predict concurrently; and that close stops
+ * the workers.
+ */
+public class ShardedKnnTest {
+
+	/** Number of shards of the classifiers checked. */
+	private static final int SHARDS = 3;
+
+	/** Number of threads predicting at once. */
+	private static final int THREADS = 8;
+
+	@Rule
+	public TemporaryFolder m_Folder = new TemporaryFolder();
+
+	@Test
+	public void matchesMyKnn() throws Exception {
+		Instances[] dataSets = { KnnTestSupport.desharnais(), KnnTestSupport.random(71, 600, 3, 2, 5) };
+		for (int set = 0; set < dataSets.length; set++) {
+			Instances data = dataSets[set];
+			Instances queries = KnnTestSupport.queries(data, 5, 72 + set, set == 1 ? 5 : 0);
+			for (String options : options(data)) {
+				String message = options + ", data set " + set;
+				try (MyKnn expected = KnnTestSupport.build(data, options);
+						ShardedKnn sharded = sharded(options)) {
+					sharded.buildClassifier(data);
+					KnnTestSupport.assertSamePredictions(message, KnnTestSupport.predictions(expected, queries),
+							predictions(sharded, queries));
+					KnnTestSupport.assertSamePredictions(message + ", batch", KnnTestSupport.predictions(expected, queries),
+							sharded.classifyInstances(queries));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void filesMatchMyKnn() throws Exception {
+		// integer inputs, which ARFF holds exactly
+		Instances data = KnnTestSupport.random(73, 600, 3, 2, 5);
+		Instances queries = KnnTestSupport.queries(data, 5, 74, 5);
+		File[] files = new File[SHARDS];
+		for (int s = 0; s < SHARDS; s++) {
+			int begin = data.numInstances() * s / SHARDS;
+			int end = data.numInstances() * (s + 1) / SHARDS;
+			files[s] = m_Folder.newFile("shard" + s + ".arff");
+			try (Writer out = new FileWriter(files[s])) {
+				out.write(new Instances(data, begin, end - begin).toString());
+			}
+		}
+		for (String options : options(data)) {
+			try (MyKnn expected = KnnTestSupport.build(data, options); ShardedKnn sharded = sharded(options)) {
+				sharded.buildClassifier(files, -1);
+				KnnTestSupport.assertSamePredictions(options, KnnTestSupport.predictions(expected, queries),
+						sharded.classifyInstances(queries));
+			}
+		}
+	}
+
+	@Test
+	public void concurrentPredictions() throws Exception {
+		Instances data = KnnTestSupport.random(75, 1500, 4, 1, 0);
+		Instances queries = KnnTestSupport.queries(data, 7, 76, 0);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try (MyKnn knn = KnnTestSupport.build(data, "-K 5"); ShardedKnn sharded = sharded("-K 5")) {
+			sharded.buildClassifier(data);
+			double[] expected = KnnTestSupport.predictions(knn, queries);
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<double[]>> results = new ArrayList<Future<double[]>>();
+			for (int t = 0; t < THREADS; t++) {
+				results.add(executor.submit(new Callable<double[]>() {
+					@Override
+					public double[] call() throws Exception {
+						start.await();
+						return predictions(sharded, queries);
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<double[]> result : results) {
+				KnnTestSupport.assertSamePredictions("concurrent", expected, result.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void closeStopsWorkers() throws Exception {
+		Instances data = KnnTestSupport.random(77, 300, 3, 1, 0);
+		List<ProcessHandle> before = children();
+		ShardedKnn sharded = sharded("-K 3");
+		sharded.buildClassifier(data);
+		// leaves a connection to each worker in the pool
+		predictions(sharded, data);
+		List<ProcessHandle> workers = children();
+		workers.removeAll(before);
+		assertEquals(SHARDS, workers.size());
+
+		// a new build replaces the workers
+		sharded.buildClassifier(data);
+		for (ProcessHandle worker : workers) {
+			worker.onExit().get(30, TimeUnit.SECONDS);
+			assertFalse(worker.isAlive());
+		}
+		workers = children();
+		workers.removeAll(before);
+		assertEquals(SHARDS, workers.size());
+
+		sharded.close();
+		for (ProcessHandle worker : workers) {
+			worker.onExit().get(30, TimeUnit.SECONDS);
+			assertFalse(worker.isAlive());
+		}
+		try {
+			sharded.classifyInstance(data.instance(0));
+			fail("predicted after close");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		sharded.close();
+	}
+
+	/**
+	 * @return the options of the shard classifiers checked on a data set, with
+	 * one k larger than a shard
+	 */
+	private static String[] options(Instances data) {
+		int largerThanShard = data.numInstances() / SHARDS + 10;
+		return new String[] { "-K 1", "-K 7", "-I kdtree -K 7", "-K " + largerThanShard };
+	}
+
+	private static ShardedKnn sharded(String options) throws Exception {
+		ShardedKnn sharded = new ShardedKnn();
+		sharded.setOptions(Utils.splitOptions("-shards " + SHARDS + " -query-batch-size 16 -- " + options));
+		return sharded;
+	}
+
+	private static double[] predictions(ShardedKnn sharded, Instances queries) throws Exception {
+		double[] predictions = new double[queries.numInstances()];
+		for (int i = 0; i < predictions.length; i++) {
+			predictions[i] = sharded.classifyInstance(queries.instance(i));
+		}
+		return predictions;
+	}
+
+	private static List<ProcessHandle> children() {
+		return ProcessHandle.current().children().filter(ProcessHandle::isAlive).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,102 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Checks that the search structures updated as the window slides find the
+ * neighbours of the linear scan over the same window, ties included, and
+ * that a window finds the neighbours of a classifier built on the instances
+ * it holds, up to the rounding of the weighted distances.
+ */
+public class SlidingWindowTest {
+
+	/** Options of the search structures compared with the linear scan. */
+	private static final String[] CONFIGURATIONS = { "-I kdtree", "-I balltree", "-I partition", "-I pivot" };
+
+	/** Number of updates between two comparisons. */
+	private static final int CHECK_EVERY = 150;
+
+	@Test
+	public void indexesMatchLinearScanOverWindow() throws Exception {
+		Instances[] dataSets = KnnTestSupport.dataSets();
+		for (int set = 0; set < dataSets.length; set++) {
+			Instances data = dataSets[set];
+			Instances queries = KnnTestSupport.queries(data, 17, 399 + set, set == 1 ? 5 : 0);
+			int window = Math.min(300, data.numInstances() / 3);
+			for (String options : CONFIGURATIONS) {
+				check(options + ", data set " + set, data, queries, "-W " + window + " -K 7", options);
+			}
+		}
+	}
+
+	@Test
+	public void spanMatchesLinearScan() throws Exception {
+		// the first input, sorted, orders the instances in time
+		Instances data = KnnTestSupport.random(14, 2000, 3, 2, 0);
+		data.sort(0);
+		Instances queries = KnnTestSupport.queries(data, 17, 15, 0);
+		for (String options : CONFIGURATIONS) {
+			check(options + ", span", data, queries, "-W 100000 -window-attribute 1 -window-span 4 -K 5", options);
+		}
+	}
+
+	@Test
+	public void windowMatchesRebuilt() throws Exception {
+		// continuous inputs, so that rounding cannot swap two neighbours
+		Instances data = KnnTestSupport.random(16, 2500, 4, 1, 0);
+		Instances queries = KnnTestSupport.queries(data, 23, 17, 0);
+		int window = 700;
+		for (String options : new String[] { "", "-I kdtree " }) {
+			try (MyKnn updated = KnnTestSupport.build(new Instances(data, 0, 50), options + "-W " + window + " -K 5");
+					MyKnn rebuilt = KnnTestSupport.build(new Instances(data, data.numInstances() - window, window),
+							options + "-K 5")) {
+				for (int i = 50; i < data.numInstances(); i++) {
+					updated.updateClassifier(data.instance(i));
+				}
+				KnnModel model = updated.m_Model;
+				assertEquals(window, model.m_NumRows);
+				assertArrayEquals(rebuilt.min, updated.min, 0);
+				assertArrayEquals(rebuilt.max, updated.max, 0);
+				for (int i = 0; i < queries.numInstances(); i++) {
+					Instance query = queries.instance(i);
+					KnnTestSupport.Neighbours expected = KnnTestSupport.neighbours(rebuilt, query);
+					KnnTestSupport.Neighbours actual = KnnTestSupport.neighbours(updated, query);
+					for (int n = 0; n < expected.m_Rows.length; n++) {
+						// the row of the n-th oldest instance of the window is in slot(n)
+						assertEquals(options + "query " + i, model.slot(expected.m_Rows[n]), actual.m_Rows[n]);
+						assertEquals(options + "query " + i, expected.m_Distances[n], actual.m_Distances[n],
+								1e-12 * (1 + expected.m_Distances[n]));
+					}
+					assertEquals(options + "query " + i, rebuilt.classifyInstance(query), updated.classifyInstance(query),
+							1e-9);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds a linear scan and a search structure with the same window on the
+	 * first instances, updates them with the others and compares them.
+	 */
+	private static void check(String message, Instances data, Instances queries, String window, String options)
+			throws Exception {
+		int initial = Math.min(100, data.numInstances() / 4);
+		try (MyKnn linear = KnnTestSupport.build(new Instances(data, 0, initial), window);
+				MyKnn knn = KnnTestSupport.build(new Instances(data, 0, initial), options + " " + window)) {
+			for (int i = initial; i < data.numInstances(); i++) {
+				linear.updateClassifier(data.instance(i));
+				knn.updateClassifier(data.instance(i));
+				if ((i - initial) % CHECK_EVERY == 0 || i == data.numInstances() - 1) {
+					assertEquals(linear.m_Model.m_Start, knn.m_Model.m_Start);
+					KnnTestSupport.assertSameNeighbours(message + ", after " + i, linear, knn, queries);
+				}
+			}
+		}
+	}
+}
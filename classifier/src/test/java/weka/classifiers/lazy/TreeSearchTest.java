@@ -0,0 +1,20 @@
+package weka.classifiers.lazy;
+
+import org.junit.Test;
+
+/**
+ * Checks that the KD-tree and the ball tree find the neighbours of the
+ * linear scan, in the same order and at the same distances.
+ */
+public class TreeSearchTest {
+
+	@Test
+	public void kdTreeMatchesLinearScan() throws Exception {
+		KnnTestSupport.assertMatchesLinearScan("-I kdtree");
+	}
+
+	@Test
+	public void ballTreeMatchesLinearScan() throws Exception {
+		KnnTestSupport.assertMatchesLinearScan("-I balltree");
+	}
+}
@@ -0,0 +1,82 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import weka.core.Instances;
+
+/**
+ * Checks that a classifier updated one instance at a time finds the
+ * neighbours of the linear scan updated with the same instances, ties
+ * included, for every exact search structure, while the ranges widen, the
+ * index is rebuilt and the rows are renormalised; and that it finds the
+ * neighbours of a classifier built on all the instances at once, up to the
+ * rounding of the weighted distances.
+ */
+public class UpdateClassifierTest {
+
+	/** Options of the configurations compared with the linear scan. */
+	private static final String[] CONFIGURATIONS = { "-I kdtree", "-I balltree", "-I partition", "-I pivot", "-simd",
+			"-cache-size 64" };
+
+	/** Number of updates between two comparisons. */
+	private static final int CHECK_EVERY = 250;
+
+	@Test
+	public void indexesMatchUpdatedLinearScan() throws Exception {
+		Instances[] dataSets = KnnTestSupport.dataSets();
+		for (int set = 0; set < dataSets.length; set++) {
+			Instances data = dataSets[set];
+			Instances queries = KnnTestSupport.queries(data, 11, 299 + set, set == 1 ? 5 : 0);
+			int initial = data.numInstances() / 5;
+			for (String options : CONFIGURATIONS) {
+				for (int k : new int[] { 1, 7 }) {
+					try (MyKnn linear = KnnTestSupport.build(new Instances(data, 0, initial), "-K " + k);
+							MyKnn knn = KnnTestSupport.build(new Instances(data, 0, initial), options + " -K " + k)) {
+						for (int i = initial; i < data.numInstances(); i++) {
+							linear.updateClassifier(data.instance(i));
+							knn.updateClassifier(data.instance(i));
+							if ((i - initial) % CHECK_EVERY == 0 || i == data.numInstances() - 1) {
+								String message = options + ", data set " + set + ", k=" + k + ", after " + i;
+								KnnTestSupport.assertSameNeighbours(message, linear, knn, queries);
+								KnnTestSupport.assertSamePredictions(message, KnnTestSupport.predictions(linear, queries),
+										KnnTestSupport.predictions(knn, queries));
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void updatedMatchesRebuilt() throws Exception {
+		// continuous inputs, so that rounding cannot swap two neighbours
+		Instances data = KnnTestSupport.random(12, 3000, 5, 0, 0);
+		Instances queries = KnnTestSupport.queries(data, 13, 13, 0);
+		for (String options : new String[] { "-K 5", "-I kdtree -K 5" }) {
+			try (MyKnn updated = KnnTestSupport.build(new Instances(data, 0, 100), options);
+					MyKnn rebuilt = KnnTestSupport.build(data, options)) {
+				for (int i = 100; i < data.numInstances(); i++) {
+					updated.updateClassifier(data.instance(i));
+				}
+				assertEquals(rebuilt.m_Model.m_NumRows, updated.m_Model.m_NumRows);
+				assertArrayEquals(rebuilt.min, updated.min, 0);
+				assertArrayEquals(rebuilt.max, updated.max, 0);
+				for (int i = 0; i < queries.numInstances(); i++) {
+					KnnTestSupport.Neighbours expected = KnnTestSupport.neighbours(rebuilt, queries.instance(i));
+					KnnTestSupport.Neighbours actual = KnnTestSupport.neighbours(updated, queries.instance(i));
+					assertArrayEquals(options + ", query " + i + ": rows", expected.m_Rows, actual.m_Rows);
+					for (int n = 0; n < expected.m_Distances.length; n++) {
+						assertEquals(options + ", query " + i, expected.m_Distances[n], actual.m_Distances[n],
+								1e-12 * (1 + expected.m_Distances[n]));
+					}
+					assertEquals(options + ", query " + i, rebuilt.classifyInstance(queries.instance(i)),
+							updated.classifyInstance(queries.instance(i)), 1e-9);
+				}
+			}
+		}
+	}
+}
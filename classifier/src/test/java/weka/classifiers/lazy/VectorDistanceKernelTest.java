@@ -0,0 +1,107 @@
+package weka.classifiers.lazy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import weka.core.Instances;
+
+/**
+ * Checks that the kernel built on the JDK Vector API finds the neighbours of
+ * the scalar loops, ties included, for numbers of numerical inputs that are
+ * not multiples of the number of lanes, with and without categorical
+ * inputs. The tests run with the jdk.incubator.vector module, so the kernel
+ * is always available.
+ */
+public class VectorDistanceKernelTest {
+
+	/** Numbers of numerical inputs, most of them not multiples of 2, 4 or 8 lanes. */
+	private static final int[] NUM_NUMERIC = { 1, 2, 3, 5, 7, 8, 9, 13 };
+
+	@Test
+	public void kernelIsAvailable() throws Exception {
+		assertNotNull(DistanceKernel.vectorised());
+		try (MyKnn knn = KnnTestSupport.build(KnnTestSupport.desharnais(), "-simd -K 1");
+				MyKnn scalar = KnnTestSupport.build(KnnTestSupport.desharnais(), "-K 1")) {
+			assertTrue(knn.m_Model.isVectorised());
+			assertFalse(scalar.m_Model.isVectorised());
+		}
+	}
+
+	@Test
+	public void togglesOnBuiltClassifier() throws Exception {
+		Instances data = KnnTestSupport.random(9, 1000, 5, 1, 0);
+		Instances queries = KnnTestSupport.queries(data, 9, 10, 0);
+		try (MyKnn scalar = KnnTestSupport.build(data, "-K 5"); MyKnn knn = KnnTestSupport.build(data, "-K 5")) {
+			knn.setVectorised(true);
+			assertTrue(knn.m_Model.isVectorised());
+			KnnTestSupport.assertSameNeighbours("turned on", scalar, knn, queries);
+			knn.setVectorised(false);
+			assertFalse(knn.m_Model.isVectorised());
+			KnnTestSupport.assertSameNeighbours("turned off", scalar, knn, queries);
+		}
+	}
+
+	@Test
+	public void kernelIsCloseToScalarSum() {
+		DistanceKernel kernel = DistanceKernel.vectorised();
+		Random random = new Random(3);
+		for (int length = 0; length <= 20; length++) {
+			for (int offset = 0; offset < 3; offset++) {
+				double[] query = new double[length];
+				double[] data = new double[offset + length + 2];
+				for (int j = 0; j < data.length; j++) {
+					data[j] = random.nextDouble();
+				}
+				double expected = 0;
+				for (int j = 0; j < length; j++) {
+					query[j] = random.nextDouble();
+					double diff = query[j] - data[offset + j];
+					expected += diff * diff;
+				}
+				assertEquals("length " + length + ", offset " + offset, expected,
+						kernel.squaredDistance(query, data, offset, length), 4 * (length + 1) * Math.ulp(expected));
+			}
+		}
+	}
+
+	@Test
+	public void desharnaisMatchesScalar() throws Exception {
+		Instances data = KnnTestSupport.desharnais();
+		for (int k : new int[] { 1, 2, 5, 20 }) {
+			check("desharnais", data, data, k);
+		}
+	}
+
+	@Test
+	public void randomMatchesScalar() throws Exception {
+		for (int numNumeric : NUM_NUMERIC) {
+			for (int numNominal : new int[] { 0, 2 }) {
+				for (int grid : new int[] { 0, 4 }) {
+					long seed = 100 * numNumeric + 10 * numNominal + grid;
+					Instances data = KnnTestSupport.random(seed, 700, numNumeric, numNominal, grid);
+					Instances queries = KnnTestSupport.queries(data, 5, seed + 1, grid);
+					String message = numNumeric + " numerical, " + numNominal + " categorical, grid " + grid;
+					for (int k : new int[] { 1, 7, 40 }) {
+						check(message, data, queries, k);
+					}
+				}
+			}
+		}
+	}
+
+	private static void check(String message, Instances data, Instances queries, int k) throws Exception {
+		try (MyKnn scalar = KnnTestSupport.build(data, "-K " + k);
+				MyKnn vectorised = KnnTestSupport.build(data, "-simd -K " + k)) {
+			String description = message + ", k=" + k;
+			KnnTestSupport.assertSameNeighbours(description, scalar, vectorised, queries);
+			KnnTestSupport.assertSamePredictions(description, KnnTestSupport.predictions(scalar, queries),
+					KnnTestSupport.predictions(vectorised, queries));
+		}
+	}
+}